@@ -1,6 +1,8 @@
 package tftp;
 
 import tftp.core.Configuration;
+import tftp.core.TransferOptions;
+import tftp.core.codec.Codecs;
 
 import java.net.InetAddress;
 import java.net.UnknownHostException;
@@ -73,6 +75,42 @@ public abstract class GenericTFTPClient extends Thread {
                         //set the timeout length
                         handleTimeout(args);
                         break;
+                    case "compress":
+                        //set the codec to compress transfers with
+                        handleCompress(args);
+                        break;
+                    case "delta":
+                        //turn delta transfers on or off
+                        handleDelta(args);
+                        break;
+                    case "checksum":
+                        //turn checksum verification on or off
+                        handleChecksum(args);
+                        break;
+                    case "window":
+                        //set the number of blocks sent before waiting for an acknowledgement
+                        handleWindow(args);
+                        break;
+                    case "bulk":
+                        //turn bulk mode on or off
+                        handleBulk(args);
+                        break;
+                    case "fec":
+                        //turn forward error correction for bulk mode on or off
+                        handleFec(args);
+                        break;
+                    case "loss":
+                        //set the fraction of datagrams dropped, to try out a lossy link
+                        handleLoss(args);
+                        break;
+                    case "duplicate":
+                        //set the fraction of datagrams sent twice, to try out a link which duplicates them
+                        handleDuplicate(args);
+                        break;
+                    case "sockbuf":
+                        //set the largest size socket buffers are grown to
+                        handleSocketBuffer(args);
+                        break;
                     case "exit":
                         //stop the client
                         return;
@@ -229,6 +267,249 @@ public abstract class GenericTFTPClient extends Thread {
         }
     }
 
+    /**
+     * Sets the codec which file data is compressed with on the wire, or turns compression off. The server may
+     * still refuse compression, in which case the data is sent uncompressed.
+     *
+     * @param args the user input, split by whitespace
+     */
+    private void handleCompress(String[] args) {
+        //if no arguments to command, print correct usage
+        if (args.length == 1) {
+            System.out.println("usage: compress codec-name|off");
+            System.out.println("available codecs: " + Codecs.getNames());
+            return;
+        }
+
+        //turn off compression, or set the codec, print error if there is no such codec
+        if (args[1].equals("off")) {
+            Configuration.COMPRESSION = null;
+        } else if (Codecs.fromName(args[1]) != null) {
+            Configuration.COMPRESSION = args[1];
+        } else {
+            System.out.println("unknown codec: " + args[1]);
+            System.out.println("available codecs: " + Codecs.getNames());
+        }
+    }
+
+    /**
+     * Turns delta transfers on or off. When on, only the parts of a file which differ from the other side's
+     * existing copy are sent, compared in blocks of the given size. Only supported over TCP.
+     *
+     * @param args the user input, split by whitespace
+     */
+    private void handleDelta(String[] args) {
+        //if no arguments to command, print correct usage
+        if (args.length == 1) {
+            System.out.println("usage: delta on|off|block-size");
+            return;
+        }
+
+        //set the block size, print error if not an integer in range
+        if (args[1].equals("on")) {
+            Configuration.DELTA_BLOCK_SIZE = Configuration.DEFAULT_DELTA_BLOCK_SIZE;
+        } else if (args[1].equals("off")) {
+            Configuration.DELTA_BLOCK_SIZE = 0;
+        } else {
+            try {
+                int blockSize = Integer.parseInt(args[1]);
+                if (blockSize < TransferOptions.MIN_DELTA_BLOCK_SIZE
+                        || blockSize > TransferOptions.MAX_DELTA_BLOCK_SIZE) {
+                    throw new NumberFormatException();
+                }
+                Configuration.DELTA_BLOCK_SIZE = blockSize;
+            } catch (NumberFormatException nfe) {
+                System.out.println("invalid block size: " + args[1]);
+            }
+        }
+    }
+
+    /**
+     * Turns checksum verification of transfers on or off. When on, the sender appends a checksum of the file
+     * data, which the receiver checks - the server may still refuse, in which case the transfer is not verified.
+     *
+     * @param args the user input, split by whitespace
+     */
+    private void handleChecksum(String[] args) {
+        //if no arguments to command, print correct usage
+        if (args.length == 1 || !(args[1].equals("on") || args[1].equals("off"))) {
+            System.out.println("usage: checksum on|off");
+            return;
+        }
+
+        Configuration.CHECKSUM = args[1].equals("on");
+    }
+
+    /**
+     * Sets the number of blocks sent before waiting for an acknowledgement - the server may agree to a smaller
+     * window, or refuse, in which case each block is acknowledged in turn. Only supported over UDP.
+     *
+     * @param args the user input, split by whitespace
+     */
+    private void handleWindow(String[] args) {
+        //if no arguments to command, print correct usage
+        if (args.length == 1) {
+            System.out.println("usage: window block-count");
+            return;
+        }
+
+        //set the window size, print error if not an integer in range
+        try {
+            int windowSize = Integer.parseInt(args[1]);
+            if (windowSize < 1 || windowSize > TransferOptions.MAX_WINDOW_SIZE) {
+                throw new NumberFormatException();
+            }
+            Configuration.WINDOW_SIZE = windowSize;
+        } catch (NumberFormatException nfe) {
+            System.out.println("invalid window size: " + args[1]);
+        }
+    }
+
+    /**
+     * Turns bulk mode on or off - the sender streams the file, and the receiver reports the blocks it is missing,
+     * so only those are resent. Only servers running this implementation agree to it, and only over UDP.
+     *
+     * @param args the user input, split by whitespace
+     */
+    private void handleBulk(String[] args) {
+        //if no arguments to command, print correct usage
+        if (args.length == 1) {
+            System.out.println("usage: bulk block-count|off");
+            return;
+        }
+
+        if (args[1].equals("off")) {
+            Configuration.BULK_WINDOW = 0;
+            return;
+        }
+
+        //set the bulk window, print error if not an integer in range
+        try {
+            int bulkWindow = Integer.parseInt(args[1]);
+            if (bulkWindow < 1 || bulkWindow > TransferOptions.MAX_BULK_WINDOW) {
+                throw new NumberFormatException();
+            }
+            Configuration.BULK_WINDOW = bulkWindow;
+        } catch (NumberFormatException nfe) {
+            System.out.println("invalid bulk window: " + args[1]);
+        }
+    }
+
+    /**
+     * Turns forward error correction on or off for bulk mode - parity blocks are sent after each group of blocks,
+     * so blocks lost from a group can be rebuilt without waiting for them to be resent.
+     *
+     * @param args the user input, split by whitespace
+     */
+    private void handleFec(String[] args) {
+        //if no arguments to command, print correct usage
+        if (args.length == 1) {
+            System.out.println("usage: fec group-size [parity-count]|off");
+            return;
+        }
+
+        if (args[1].equals("off")) {
+            Configuration.FEC_GROUP_SIZE = 0;
+            return;
+        }
+
+        //set the group size and parity count, print error if not integers in range
+        try {
+            int groupSize = Integer.parseInt(args[1]);
+            int parity = args.length > 2 ? Integer.parseInt(args[2]) : 1;
+            if (groupSize < 1 || groupSize > TransferOptions.MAX_FEC_GROUP_SIZE
+                    || parity < 1 || parity > TransferOptions.MAX_FEC_PARITY) {
+                throw new NumberFormatException();
+            }
+            Configuration.FEC_GROUP_SIZE = groupSize;
+            Configuration.FEC_PARITY = parity;
+        } catch (NumberFormatException nfe) {
+            System.out.println("invalid fec group: " + args[1] + (args.length > 2 ? ":" + args[2] : ""));
+        }
+    }
+
+    /**
+     * Sets the fraction of datagrams this client drops on purpose, to try out transfers over a lossy link. Only
+     * applies over UDP.
+     *
+     * @param args the user input, split by whitespace
+     */
+    private void handleLoss(String[] args) {
+        //if no arguments to command, print correct usage
+        if (args.length == 1) {
+            System.out.println("usage: loss fraction");
+            return;
+        }
+
+        //set the loss, print error if not a fraction
+        try {
+            double loss = Double.parseDouble(args[1]);
+            if (!(loss >= 0 && loss < 1)) {
+                throw new NumberFormatException();
+            }
+            Configuration.PACKET_LOSS = loss;
+        } catch (NumberFormatException nfe) {
+            System.out.println("invalid loss: " + args[1]);
+        }
+    }
+
+    /**
+     * Sets the fraction of datagrams this client sends a second time, a while after the original, to try out
+     * transfers over a link which duplicates and delays datagrams. Only applies over UDP.
+     *
+     * @param args the user input, split by whitespace
+     */
+    private void handleDuplicate(String[] args) {
+        //if no arguments to command, print correct usage
+        if (args.length == 1) {
+            System.out.println("usage: duplicate fraction [delay-in-ms]");
+            return;
+        }
+
+        //set the duplication and delay, print error if not a fraction and a whole number of milliseconds
+        try {
+            double duplication = Double.parseDouble(args[1]);
+            int delay = args.length > 2 ? Integer.parseInt(args[2]) : Configuration.DUPLICATE_DELAY;
+            if (!(duplication >= 0 && duplication <= 1) || delay < 0) {
+                throw new NumberFormatException();
+            }
+            Configuration.PACKET_DUPLICATION = duplication;
+            Configuration.DUPLICATE_DELAY = delay;
+        } catch (NumberFormatException nfe) {
+            System.out.println("invalid duplication: " + args[1] + (args.length > 2 ? " " + args[2] : ""));
+        }
+    }
+
+    /**
+     * Sets the largest size a transfer's socket buffers are grown to as it measures the link, or leaves them at
+     * the operating system's defaults.
+     *
+     * @param args the user input, split by whitespace
+     */
+    private void handleSocketBuffer(String[] args) {
+        //if no arguments to command, print correct usage
+        if (args.length == 1) {
+            System.out.println("usage: sockbuf max-bytes|off");
+            return;
+        }
+
+        if (args[1].equals("off")) {
+            Configuration.MAX_SOCKET_BUFFER = 0;
+            return;
+        }
+
+        //set the cap, print error if not a positive integer
+        try {
+            int size = Integer.parseInt(args[1]);
+            if (size < 1) {
+                throw new NumberFormatException();
+            }
+            Configuration.MAX_SOCKET_BUFFER = size;
+        } catch (NumberFormatException nfe) {
+            System.out.println("invalid socket buffer size: " + args[1]);
+        }
+    }
+
     /**
      * Prints the available commands, along with their required and optional arguments.
      */
@@ -237,6 +518,15 @@ public abstract class GenericTFTPClient extends Thread {
         System.out.println("get remote-path [local-path]");
         System.out.println("put local-path [remote-path]");
         System.out.println("timeout time-in-ms");
+        System.out.println("compress codec-name|off");
+        System.out.println("delta on|off|block-size");
+        System.out.println("checksum on|off");
+        System.out.println("window block-count");
+        System.out.println("bulk block-count|off");
+        System.out.println("fec group-size [parity-count]|off");
+        System.out.println("loss fraction");
+        System.out.println("duplicate fraction [delay-in-ms]");
+        System.out.println("sockbuf max-bytes|off");
         System.out.println("exit");
     }
 
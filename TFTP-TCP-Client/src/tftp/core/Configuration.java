@@ -37,4 +37,295 @@ public class Configuration {
      */
     public static int TIMEOUT = 3000;
 
+    /**
+     * The name of the codec which clients ask to compress file data with, or null to transfer data uncompressed.
+     */
+    public static String COMPRESSION = null;
+
+    /**
+     * The directory in which a server keeps compressed copies of files it has sent, or null to compress files
+     * as they are sent (precompressed copies next to the files themselves are used either way).
+     */
+    public static String COMPRESSION_CACHE = null;
+
+    /**
+     * The maximum total size of the compressed copies kept in {@link #COMPRESSION_CACHE}, in bytes.
+     */
+    public static long COMPRESSION_CACHE_SIZE = 256L * 1024 * 1024;
+
+    /**
+     * The block size clients ask to send files as deltas with (against the other side's existing copy of the
+     * file), or 0 to always send whole files. Only supported over TCP.
+     */
+    public static int DELTA_BLOCK_SIZE = 0;
+
+    /**
+     * The block size used for delta transfers when they are turned on without giving one.
+     */
+    public static final int DEFAULT_DELTA_BLOCK_SIZE = 4096;
+
+    /**
+     * Where servers keep the files they serve, as described to {@link tftp.core.storage.Storages#fromDescription}.
+     * By default, files are named relative to the working directory.
+     */
+    public static String STORAGE = "dir:.";
+
+    /**
+     * How many resolved paths of requested files a server caches, so popular files are found without asking the
+     * file system to resolve links each time.
+     */
+    public static int PATH_CACHE_SIZE = 4096;
+
+    /**
+     * How many files a server keeps open once nobody is reading them, ready for the next request.
+     */
+    public static int IDLE_CHANNELS = 64;
+
+    /**
+     * How servers make uploaded files durable - the name of a {@link tftp.core.storage.SyncPolicy}.
+     */
+    public static String SYNC_POLICY = "none";
+
+    /**
+     * How long the group sync policy gathers uploads for before flushing them together, in milliseconds.
+     */
+    public static long GROUP_COMMIT_INTERVAL = 5;
+
+    /**
+     * Uploads whose transfer size is at least this many bytes are written with direct I/O, bypassing the page
+     * cache so they don't evict the files being served. Negative to never use direct I/O.
+     */
+    public static long DIRECT_IO_THRESHOLD = -1;
+
+    /**
+     * How many bytes of an upload written with direct I/O are gathered before being written out together.
+     */
+    public static int DIRECT_IO_CHUNK_SIZE = 1024 * 1024;
+
+    /**
+     * A file listing the names of files to warm up when a server starts, or null to warm up the files most read
+     * in the previous run instead.
+     */
+    public static String PRELOAD_MANIFEST = null;
+
+    /**
+     * The file servers keep counts of how often each file is read in between runs, or null to not keep counts.
+     */
+    public static String ACCESS_STATISTICS = null;
+
+    /**
+     * How many of the most read files of the previous run to warm up, if there is no preload manifest.
+     */
+    public static int PRELOAD_COUNT = 100;
+
+    /**
+     * How many files are read at once while warming up.
+     */
+    public static int PRELOAD_THREADS = 4;
+
+    /**
+     * How long a server remembers that a requested file doesn't exist, in milliseconds, answering further requests
+     * for it straight away. Zero to look every file up.
+     */
+    public static long MISSING_FILE_TTL = 2000;
+
+    /**
+     * The most missing file names a server remembers at once.
+     */
+    public static int MISSING_FILE_CACHE_SIZE = 10000;
+
+    /**
+     * The most files whose first block a server keeps, so a read request for one of them can be answered from the
+     * thread which received it, before the rest of the transfer is handed off. Zero to hand every request off
+     * before answering it.
+     */
+    public static int FIRST_BLOCK_CACHE_SIZE = 1024;
+
+    /**
+     * The number of transfer sockets a UDP server keeps bound ahead of time, so a transfer doesn't wait for one to
+     * be opened. Zero to open each transfer's socket as it starts.
+     */
+    public static int SPARE_SOCKETS = 8;
+
+    /**
+     * How often a UDP server prints how long it took to send the first packet of its answers to read requests,
+     * in seconds. Zero to not print it (or time the requests at all) - the default.
+     */
+    public static long TTFB_REPORT_INTERVAL = 0;
+
+    /**
+     * The most a server sends in total, in bytes per second. Zero for no limit.
+     */
+    public static long GLOBAL_RATE = 0;
+
+    /**
+     * The most a server sends to each subnet of clients, in bytes per second. Zero for no limit.
+     */
+    public static long SUBNET_RATE = 0;
+
+    /**
+     * The most a server sends to each client address, in bytes per second. Zero for no limit.
+     */
+    public static long CLIENT_RATE = 0;
+
+    /**
+     * The length of the prefix grouping IPv4 clients into subnets for {@link #SUBNET_RATE}.
+     */
+    public static int SUBNET_PREFIX_V4 = 24;
+
+    /**
+     * The length of the prefix grouping IPv6 clients into subnets for {@link #SUBNET_RATE}.
+     */
+    public static int SUBNET_PREFIX_V6 = 64;
+
+    /**
+     * The most bytes a rate-limited server sends at once after a pause, above the limited rate.
+     */
+    public static long RATE_BURST = 64 * 1024;
+
+    /**
+     * How often a rate-limited server prints the rates it is sending at, in seconds. Zero to not print them.
+     */
+    public static long RATE_REPORT_INTERVAL = 10;
+
+    /**
+     * The number of blocks a server has in flight at once, across all transfers. When more transfers than this
+     * are sending, they take turns by {@link #PRIORITY_RULES}. Zero to let every transfer send whenever it likes.
+     */
+    public static int SEND_SLOTS = 64;
+
+    /**
+     * The rules putting transfers in priority classes, as a comma-separated list of {@code pattern=class} - the
+     * pattern is a prefix of file names, or {@code @address/prefix} for a subnet of clients. Transfers no rule
+     * matches are classed by their size.
+     */
+    public static String PRIORITY_RULES = null;
+
+    /**
+     * The size up to which files are sent as interactive transfers, ahead of the rest.
+     */
+    public static long SMALL_FILE_SIZE = 1024 * 1024;
+
+    /**
+     * The size from which files are sent as bulk transfers, behind the rest.
+     */
+    public static long BULK_FILE_SIZE = 64L * 1024 * 1024;
+
+    /**
+     * The number of blocks sent before waiting for an acknowledgement (RFC 7440) - the window clients ask for,
+     * and the largest window servers agree to. 1 for lock-step transfers.
+     */
+    public static int WINDOW_SIZE = 8;
+
+    /**
+     * The congestion control variant senders use to keep fewer blocks than the window in flight when the network
+     * is dropping them - one of {@code reno}, {@code gentle} or {@code fixed} (no congestion control).
+     */
+    public static String CONGESTION_CONTROL = "reno";
+
+    /**
+     * The shortest time a receiver waits for the rest of a window before acknowledging what has arrived of it,
+     * in milliseconds - once it has measured the round trip to the sender, it waits at least that long too.
+     */
+    public static int MIN_ACK_DELAY = 2;
+
+    /**
+     * The most blocks a receiver holds in memory while waiting for a missing block of a window, when they can't be
+     * written straight into place in the file (eg. because the data is decompressed on the way).
+     */
+    public static int REORDER_BUFFER = 64;
+
+    /**
+     * The number of blocks a receiver lets arrive after a missing one before telling the sender it is missing - a
+     * block merely overtaken on the way turns up before then, and needn't cost the sender a resend.
+     */
+    public static int REORDER_THRESHOLD = 3;
+
+    /**
+     * The shortest time a sender waits for an acknowledgement before resending, in milliseconds - once a round
+     * trip has been measured the sender waits a few round trips rather than the whole timeout, but never less
+     * than this.
+     */
+    public static int MIN_RETRANSMISSION_TIMEOUT = 20;
+
+    /**
+     * The number of blocks a sender in bulk mode may stream beyond the last block the receiver has in order -
+     * requested by clients, and the largest bulk window servers agree to. 0 to not use bulk mode, which is only
+     * understood by hosts running this implementation.
+     */
+    public static int BULK_WINDOW = 0;
+
+    /**
+     * How often a receiver in bulk mode reports the blocks it is missing while blocks are arriving, in
+     * milliseconds.
+     */
+    public static int NAK_INTERVAL = 2;
+
+    /**
+     * The number of data blocks in each forward error correction group clients request for bulk mode transfers,
+     * and the number of parity blocks sent after each group - one parity block is plain XOR parity, more use a
+     * Reed-Solomon code. A group size of 0 to not request forward error correction. Servers agree to whatever is
+     * requested, as long as bulk mode is in use.
+     */
+    public static int FEC_GROUP_SIZE = 0;
+    public static int FEC_PARITY = 1;
+
+    /**
+     * The fraction of outgoing datagrams on transfer sockets which are deliberately dropped, for trying out
+     * transfers over a lossy link. 0 in normal use.
+     */
+    public static double PACKET_LOSS = 0;
+
+    /**
+     * The fraction of outgoing datagrams on transfer sockets which are deliberately sent a second time, after
+     * {@link #DUPLICATE_DELAY} milliseconds - as if the network had duplicated them and held the copy up. 0 in
+     * normal use.
+     */
+    public static double PACKET_DUPLICATION = 0;
+    public static int DUPLICATE_DELAY = 20;
+
+    /**
+     * What a sender does when a block is acknowledged a second time - the name of a duplicate ACK policy, "ignore"
+     * to only resend when the retransmission timer runs out, or "resend" to resend a window straight away (once)
+     * when the receiver repeats its acknowledgement of the block before it. Lock-step transfers only ever resend
+     * on the timer either way.
+     */
+    public static String DUPLICATE_ACK_POLICY = "resend";
+
+    /**
+     * How much faster than a window per round trip the blocks of a window are paced out - 2 spreads each window
+     * over half the measured round trip time. Zero to send each window in one burst.
+     */
+    public static double PACING_GAIN = 2;
+
+    /**
+     * The largest send or receive buffer, in bytes, a transfer's socket is grown to as it measures the round trip
+     * time and throughput of its link - the kernel may clamp it lower still. 0 to leave socket buffers at the
+     * operating system's defaults.
+     */
+    public static int MAX_SOCKET_BUFFER = 8 * 1024 * 1024;
+
+    /**
+     * The most memory, in bytes, a UDP server's transfers hold in packet buffers at once - a transfer which would
+     * take it past this waits for others to finish. 0 for no limit.
+     */
+    public static long BUFFER_BUDGET = 64L * 1024 * 1024;
+
+    /**
+     * How long a transfer waits for room in the buffer budget before it is refused, in milliseconds.
+     */
+    public static long BUFFER_WAIT = 2000;
+
+    /**
+     * The directory of the content-addressed store uploads are deduplicated into, or null to write uploaded
+     * files directly.
+     */
+    public static String UPLOAD_STORE = null;
+
+    /**
+     * Whether clients ask for transfers to be verified with a checksum. Hosts which don't support the option
+     * just ignore it, so this is on by default.
+     */
+    public static boolean CHECKSUM = true;
+
 }
@@ -0,0 +1,68 @@
+package tftp.core.codec;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * The registry of codecs available for negotiation. New codecs are plugged in with {@link #register(Codec)}.
+ */
+public class Codecs {
+
+    /**
+     * The registered codecs, keyed by (lower case) name, in order of registration.
+     */
+    private static final Map<String, Codec> CODECS = new LinkedHashMap<>();
+
+    static {
+        register(new DeflateCodec());
+        register(new GzipCodec());
+    }
+
+    /**
+     * Makes a codec available for negotiation. A codec registered under the same name as an existing one
+     * replaces it.
+     *
+     * @param codec the codec to register
+     */
+    public static synchronized void register(Codec codec) {
+        CODECS.put(codec.getName().toLowerCase(Locale.ROOT), codec);
+    }
+
+    /**
+     * Finds the codec with the given name.
+     *
+     * @param name the name of the codec
+     * @return the codec, or null if no such codec is registered
+     */
+    public static synchronized Codec fromName(String name) {
+        return CODECS.get(name.trim().toLowerCase(Locale.ROOT));
+    }
+
+    /**
+     * Picks a codec from the value of a compress option, which lists one or more codec names separated by commas
+     * in order of preference.
+     *
+     * @param names the comma-separated codec names
+     * @return the first codec in the list which is registered, or null if none of them are
+     */
+    public static Codec select(String names) {
+        for (String name : names.split(",")) {
+            Codec codec = fromName(name);
+            if (codec != null) {
+                return codec;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * @return the names of all registered codecs
+     */
+    public static synchronized List<String> getNames() {
+        return new ArrayList<>(CODECS.keySet());
+    }
+
+}
@@ -0,0 +1,153 @@
+package tftp.core.codec;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Arrays;
+
+/**
+ * Turns a push-based {@link Codec} into a pull-based stream: reading from this stream gives the compressed form of
+ * the bytes read from the source. The source is read a chunk at a time, so only a chunk's worth of compressed
+ * output (plus whatever the codec itself buffers) is held in memory at once.
+ */
+public class CompressingInputStream extends InputStream {
+
+    /**
+     * How many bytes to read from the source at a time.
+     */
+    private static final int CHUNK_SIZE = 8192;
+
+    /**
+     * The stream holding the uncompressed bytes.
+     */
+    private final InputStream source;
+
+    /**
+     * The codec's compressing stream, which writes into {@link #pending}.
+     */
+    private final OutputStream compressor;
+
+    /**
+     * Buffer used to read chunks from the source.
+     */
+    private final byte[] chunk = new byte[CHUNK_SIZE];
+
+    /**
+     * Compressed bytes produced by the codec but not yet read from this stream.
+     */
+    private byte[] pending = new byte[CHUNK_SIZE];
+
+    /**
+     * The offset of the first unread byte in {@link #pending}.
+     */
+    private int start = 0;
+
+    /**
+     * The offset one past the last unread byte in {@link #pending}.
+     */
+    private int end = 0;
+
+    /**
+     * Whether the source has been exhausted and the codec finished.
+     */
+    private boolean finished = false;
+
+    /**
+     * Creates a new stream giving the compressed form of the source.
+     *
+     * @param source the stream of uncompressed bytes
+     * @param codec the codec to compress with
+     * @throws IOException if the codec could not be set up
+     */
+    public CompressingInputStream(InputStream source, Codec codec) throws IOException {
+        this.source = source;
+        this.compressor = codec.compress(new OutputStream() {
+            @Override
+            public void write(int b) {
+                write(new byte[]{(byte) b}, 0, 1);
+            }
+
+            @Override
+            public void write(byte[] b, int off, int len) {
+                append(b, off, len);
+            }
+        });
+    }
+
+    /**
+     * Appends compressed bytes to the pending buffer, compacting or growing it if needed.
+     */
+    private void append(byte[] b, int off, int len) {
+        if (end + len > pending.length) {
+            //move the unread bytes to the front, then grow if that still isn't enough room
+            System.arraycopy(pending, start, pending, 0, end - start);
+            end -= start;
+            start = 0;
+            if (end + len > pending.length) {
+                pending = Arrays.copyOf(pending, Math.max(pending.length * 2, end + len));
+            }
+        }
+        System.arraycopy(b, off, pending, end, len);
+        end += len;
+    }
+
+    /**
+     * Feeds the codec from the source until some compressed output is available or the source is exhausted.
+     *
+     * @throws IOException if the source could not be read
+     */
+    private void fill() throws IOException {
+        while (start == end && !finished) {
+            int read = source.read(chunk);
+            if (read == -1) {
+                compressor.close();
+                finished = true;
+            } else {
+                compressor.write(chunk, 0, read);
+            }
+        }
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public int read() throws IOException {
+        byte[] single = new byte[1];
+        int read = read(single, 0, 1);
+        return read == -1 ? -1 : single[0] & 0xff;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException {
+        if (len == 0) {
+            return 0;
+        }
+        fill();
+        if (start == end) {
+            return -1;
+        }
+        int count = Math.min(len, end - start);
+        System.arraycopy(pending, start, b, off, count);
+        start += count;
+        return count;
+    }
+
+    /**
+     * Releases the codec (if it has not already finished) and closes the source stream.
+     *
+     * @throws IOException if the source could not be closed
+     */
+    @Override
+    public void close() throws IOException {
+        if (!finished) {
+            finished = true;
+            compressor.close();
+        }
+        source.close();
+    }
+
+}
@@ -0,0 +1,241 @@
+package tftp.core.delta;
+
+import tftp.core.storage.StoredFile;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * The signature of a file for delta transfers: for each full fixed-size block of the file, a weak rolling
+ * checksum (cheap to slide along the new file one byte at a time) and a strong hash (to confirm a weak match).
+ * The receiver sends the signature of its existing copy of a file, and the sender uses it to find which blocks
+ * the receiver already has.
+ */
+public class Signature {
+
+    /**
+     * The length in bytes of the strong hash of each block (MD5).
+     */
+    private static final int STRONG_LENGTH = 16;
+
+    /**
+     * The most blocks a signature holds - a file with more has only its first blocks in its signature, and the
+     * rest is sent as literal data. Bounds the memory a peer can make the sender hold for a signature.
+     */
+    public static final int MAX_BLOCKS = 1 << 20;
+
+    /**
+     * The length of the blocks the file was divided into.
+     */
+    private final int blockSize;
+
+    /**
+     * The weak checksum of each block, by block index.
+     */
+    private final int[] weak;
+
+    /**
+     * The strong hash of each block, by block index.
+     */
+    private final byte[][] strong;
+
+    /**
+     * The block indices having each weak checksum - used to look up candidate blocks as the window rolls.
+     */
+    private final Map<Integer, List<Integer>> index = new HashMap<>();
+
+    /**
+     * Creates a signature from its checksums.
+     */
+    private Signature(int blockSize, int[] weak, byte[][] strong) {
+        this.blockSize = blockSize;
+        this.weak = weak;
+        this.strong = strong;
+        for (int i = 0; i < weak.length; ++i) {
+            index.computeIfAbsent(weak[i], k -> new ArrayList<>(1)).add(i);
+        }
+    }
+
+    /**
+     * Computes the signature of a file. A file which doesn't exist has an empty signature, so that the whole
+     * file is sent as literal data.
+     *
+     * @param file the receiver's existing copy of the file
+     * @param blockSize the length of the blocks to divide the file into
+     * @return the signature of the file
+     * @throws IOException if the file could not be read
+     */
+    public static Signature compute(StoredFile file, int blockSize) throws IOException {
+        List<Integer> weak = new ArrayList<>();
+        List<byte[]> strong = new ArrayList<>();
+        if (file != null) {
+            MessageDigest md5 = md5();
+            byte[] block = new byte[blockSize];
+            //only full blocks are included - a short final block is sent as literal data
+            for (long position = 0; weak.size() < MAX_BLOCKS
+                    && file.read(position, block, 0, blockSize) == blockSize; position += blockSize) {
+                weak.add(weak(block, 0, blockSize));
+                strong.add(md5.digest(block));
+            }
+        }
+        int[] weakArray = new int[weak.size()];
+        for (int i = 0; i < weakArray.length; ++i) {
+            weakArray[i] = weak.get(i);
+        }
+        return new Signature(blockSize, weakArray, strong.toArray(new byte[0][]));
+    }
+
+    /**
+     * Writes this signature to a stream: the block size and block count, followed by the weak checksum and
+     * strong hash of each block.
+     *
+     * @param os the stream to write to
+     * @throws IOException if the stream could not be written to
+     */
+    public void write(OutputStream os) throws IOException {
+        DataOutputStream out = new DataOutputStream(os);
+        out.writeInt(blockSize);
+        out.writeInt(weak.length);
+        for (int i = 0; i < weak.length; ++i) {
+            out.writeInt(weak[i]);
+            out.write(strong[i]);
+        }
+        out.flush();
+    }
+
+    /**
+     * Reads a signature written by {@link #write(OutputStream)}. The header comes from the peer, so it is only
+     * trusted as far as the block size negotiated and {@link #MAX_BLOCKS} - and the checksums are only made room
+     * for as they arrive, so a count which overstates them costs nothing.
+     *
+     * @param is the stream to read from
+     * @param blockSize the block size negotiated for the transfer
+     * @return the signature
+     * @throws IOException if the stream could not be read, or did not hold a valid signature
+     */
+    public static Signature read(InputStream is, int blockSize) throws IOException {
+        DataInputStream in = new DataInputStream(is);
+        int sentBlockSize = in.readInt();
+        int count = in.readInt();
+        if (sentBlockSize != blockSize || count < 0 || count > MAX_BLOCKS) {
+            throw new IOException("invalid signature: block size " + sentBlockSize + ", " + count + " blocks");
+        }
+        int[] weak = new int[Math.min(count, 1024)];
+        List<byte[]> strong = new ArrayList<>(weak.length);
+        for (int i = 0; i < count; ++i) {
+            if (i == weak.length) {
+                weak = Arrays.copyOf(weak, Math.min(count, weak.length * 2));
+            }
+            weak[i] = in.readInt();
+            byte[] hash = new byte[STRONG_LENGTH];
+            in.readFully(hash);
+            strong.add(hash);
+        }
+        return new Signature(blockSize, weak, strong.toArray(new byte[0][]));
+    }
+
+    /**
+     * @return the length of the blocks the file was divided into
+     */
+    public int getBlockSize() {
+        return blockSize;
+    }
+
+    /**
+     * Looks for a block of the receiver's file with the same content as a window of the sender's file.
+     *
+     * @param weakChecksum the weak checksum of the window
+     * @param window the buffer holding the window
+     * @param offset the offset of the window in the buffer (the window is one block long)
+     * @param md5 a digest to compute the strong hash with
+     * @return the index of a matching block, or -1 if there is none
+     */
+    int find(int weakChecksum, byte[] window, int offset, MessageDigest md5) {
+        List<Integer> candidates = index.get(weakChecksum);
+        if (candidates == null) {
+            return -1;
+        }
+        //only compute the (comparatively expensive) strong hash once the weak checksum has matched
+        md5.update(window, offset, blockSize);
+        byte[] hash = md5.digest();
+        for (int candidate : candidates) {
+            if (Arrays.equals(hash, strong[candidate])) {
+                return candidate;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Computes the weak rolling checksum (as used by rsync) of a window of bytes.
+     *
+     * @param buffer the buffer holding the window
+     * @param offset the offset of the window
+     * @param length the length of the window
+     * @return the checksum
+     */
+    static int weak(byte[] buffer, int offset, int length) {
+        int a = 0;
+        int b = 0;
+        for (int i = 0; i < length; ++i) {
+            int x = buffer[offset + i] & 0xff;
+            a += x;
+            b += (length - i) * x;
+        }
+        return (a & 0xffff) | (b << 16);
+    }
+
+    /**
+     * Slides the weak checksum of a window along by one byte.
+     *
+     * @param checksum the checksum of the current window
+     * @param out the byte leaving the window (its first byte)
+     * @param in the byte entering the window (the byte just after its last byte)
+     * @param length the length of the window
+     * @return the checksum of the window one byte further along
+     */
+    static int roll(int checksum, byte out, byte in, int length) {
+        int a = checksum & 0xffff;
+        int b = checksum >>> 16;
+        a = (a - (out & 0xff) + (in & 0xff)) & 0xffff;
+        b = (b - length * (out & 0xff) + a) & 0xffff;
+        return a | (b << 16);
+    }
+
+    /**
+     * @return a new MD5 digest, used for the strong block hashes
+     */
+    static MessageDigest md5() {
+        try {
+            return MessageDigest.getInstance("MD5");
+        } catch (NoSuchAlgorithmException e) {
+            //every Java platform is required to support MD5
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * Reads until the buffer is full or the stream ends.
+     *
+     * @return the number of bytes read
+     */
+    static int readFully(InputStream in, byte[] buffer) throws IOException {
+        int total = 0;
+        int read;
+        while (total < buffer.length && (read = in.read(buffer, total, buffer.length - total)) != -1) {
+            total += read;
+        }
+        return total;
+    }
+
+}
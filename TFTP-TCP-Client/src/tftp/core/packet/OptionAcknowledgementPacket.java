@@ -0,0 +1,84 @@
+package tftp.core.packet;
+
+import java.nio.ByteBuffer;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Represents an option acknowledgement (OACK) packet, as described in the TFTP option extension RFC (2347).
+ * A server sends this in place of the first DATA (for a RRQ) or ACK0 (for a WRQ) to tell the client which of
+ * the requested options it accepted, and with which values.
+ */
+public class OptionAcknowledgementPacket extends TFTPPacket {
+
+    /**
+     * The options accepted by the server, mapped to their (possibly adjusted) values.
+     */
+    private final Map<String, String> options;
+
+    /**
+     * The raw packet bytes.
+     */
+    private final byte[] bytes;
+
+    /**
+     * Creates a new OACK acknowledging the given options.
+     *
+     * @param options the accepted option names mapped to their values
+     */
+    public OptionAcknowledgementPacket(Map<String, String> options) {
+        this.options = Collections.unmodifiableMap(new LinkedHashMap<>(options));
+
+        byte[] optionBytes = encodeOptions(options);
+        this.bytes = new byte[optionBytes.length + 2];
+
+        ByteBuffer buffer = ByteBuffer.wrap(bytes);
+        buffer.putShort(getPacketType().getOpcode());
+        buffer.put(optionBytes);
+    }
+
+    /**
+     * Retrieves an OACK from raw packet bytes.
+     *
+     * @param bytes the buffer containing the packet bytes
+     * @param length the length of the packet bytes in the buffer
+     */
+    public OptionAcknowledgementPacket(byte[] bytes, int length) {
+        this.options = Collections.unmodifiableMap(decodeOptions(bytes, 2, length));
+        this.bytes = new byte[length];
+        System.arraycopy(bytes, 0, this.bytes, 0, length);
+    }
+
+    /**
+     * @return the accepted option names mapped to their values
+     */
+    public Map<String, String> getOptions() {
+        return options;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public byte[] getPacketBytes() {
+        return bytes;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public PacketType getPacketType() {
+        return PacketType.OPTION_ACKNOWLEDGEMENT;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public String toString() {
+        return String.format("%s%s", getPacketType(), options);
+    }
+
+}
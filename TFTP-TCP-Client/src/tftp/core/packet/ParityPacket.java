@@ -0,0 +1,153 @@
+package tftp.core.packet;
+
+import tftp.core.Configuration;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Represents a parity block, sent after each group of data blocks in a bulk mode transfer with forward error
+ * correction, so the receiver can rebuild blocks lost from the group without waiting for them to be resent. This
+ * is not part of any TFTP RFC, so is only sent to hosts which agreed to it. A parity packet holds:
+ * <ul>
+ *     <li>the block number of the first data block in the group</li>
+ *     <li>the number of data blocks in the group (fewer than usual for the final group)</li>
+ *     <li>which of the group's parity blocks this is</li>
+ *     <li>the length of the group's last data block, which is short if it is the final block</li>
+ *     <li>the parity data itself, always a full block long</li>
+ * </ul>
+ */
+public class ParityPacket extends TFTPPacket {
+
+    /**
+     * The offset of the parity data, after the opcode, block number, count, index and length.
+     */
+    public static final int PARITY_OFFSET = 8;
+
+    /**
+     * The length of every parity packet.
+     */
+    public static final int PACKET_LENGTH = PARITY_OFFSET + Configuration.MAX_DATA_LENGTH;
+
+    /**
+     * The block number of the first data block in the group.
+     */
+    private final short firstBlockNumber;
+
+    /**
+     * The number of data blocks in the group.
+     */
+    private final int count;
+
+    /**
+     * Which of the group's parity blocks this is, from 0.
+     */
+    private final int index;
+
+    /**
+     * The length of the group's last data block.
+     */
+    private final int lastLength;
+
+    /**
+     * The raw TFTP packet bytes.
+     */
+    private final byte[] packetBuffer;
+
+    /**
+     * Creates a new parity packet around a buffer the parity data has already been worked out in, at
+     * {@link #PARITY_OFFSET} - so it is not copied again. The header is written into the start of the buffer.
+     *
+     * @param firstBlockNumber the block number of the first data block in the group
+     * @param count the number of data blocks in the group
+     * @param index which of the group's parity blocks this is
+     * @param lastLength the length of the group's last data block
+     * @param packetBuffer a buffer of {@link #PACKET_LENGTH} bytes holding the parity data, which becomes the
+     *                     packet buffer
+     */
+    public ParityPacket(short firstBlockNumber, int count, int index, int lastLength, byte[] packetBuffer) {
+        this.firstBlockNumber = firstBlockNumber;
+        this.count = count;
+        this.index = index;
+        this.lastLength = lastLength;
+        this.packetBuffer = packetBuffer;
+
+        ByteBuffer buffer = ByteBuffer.wrap(packetBuffer);
+        buffer.putShort(getPacketType().getOpcode());
+        buffer.putShort(firstBlockNumber);
+        buffer.put((byte) count);
+        buffer.put((byte) index);
+        buffer.putShort((short) lastLength);
+    }
+
+    /**
+     * Retrieves a parity packet from raw packet bytes.
+     *
+     * @param packetData the buffer containing the packet bytes
+     * @param length the length of the packet in bytes
+     */
+    public ParityPacket(byte[] packetData, int length) {
+        ByteBuffer buffer = ByteBuffer.wrap(packetData);
+        buffer.position(2);
+        this.firstBlockNumber = buffer.getShort();
+        this.count = buffer.get() & 0xff;
+        this.index = buffer.get() & 0xff;
+        this.lastLength = buffer.getShort() & 0xffff;
+
+        //a short packet is padded out, as if the missing parity data were zeroes
+        this.packetBuffer = new byte[PACKET_LENGTH];
+        System.arraycopy(packetData, 0, packetBuffer, 0, Math.min(length, PACKET_LENGTH));
+    }
+
+    /**
+     * @return the block number of the first data block in the group
+     */
+    public short getFirstBlockNumber() {
+        return firstBlockNumber;
+    }
+
+    /**
+     * @return the number of data blocks in the group
+     */
+    public int getCount() {
+        return count;
+    }
+
+    /**
+     * @return which of the group's parity blocks this is, from 0
+     */
+    public int getIndex() {
+        return index;
+    }
+
+    /**
+     * @return the length of the group's last data block
+     */
+    public int getLastLength() {
+        return lastLength;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public byte[] getPacketBytes() {
+        return packetBuffer;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public PacketType getPacketType() {
+        return PacketType.PARITY;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public String toString() {
+        return String.format("%s[block=%d,count=%d,index=%d]", getPacketType(), firstBlockNumber, count, index);
+    }
+
+}
@@ -5,6 +5,9 @@ import tftp.core.TFTPException;
 import tftp.core.util.StringUtil;
 
 import java.nio.ByteBuffer;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
 
 /**
  * An (abstract) definition of a TFTP request packet. RRQs and WRQs share the same functionality, just with
@@ -22,6 +25,11 @@ public abstract class RequestPacket extends TFTPPacket {
      */
     private final Mode mode;
 
+    /**
+     * The options appended to the request (RFC 2347), mapped to their values. Empty if none were given.
+     */
+    private final Map<String, String> options;
+
     /**
      * The raw packet bytes.
      */
@@ -34,17 +42,31 @@ public abstract class RequestPacket extends TFTPPacket {
      * @param mode the transfer mode to use
      */
     public RequestPacket(String fileName, Mode mode) {
+        this(fileName, mode, Collections.<String, String>emptyMap());
+    }
+
+    /**
+     * Creates a new request packet with the given file name, transfer mode and options.
+     *
+     * @param fileName the name of the file to get/put
+     * @param mode the transfer mode to use
+     * @param options the option names mapped to their requested values
+     */
+    public RequestPacket(String fileName, Mode mode, Map<String, String> options) {
         this.fileName = fileName;
         this.mode = mode;
+        this.options = Collections.unmodifiableMap(new LinkedHashMap<>(options));
 
         byte[] fileNameBytes = StringUtil.getBytes(fileName);
         byte[] modeBytes = StringUtil.getBytes(mode.getName());
-        this.bytes = new byte[fileNameBytes.length + modeBytes.length + 2];
+        byte[] optionBytes = encodeOptions(options);
+        this.bytes = new byte[fileNameBytes.length + modeBytes.length + optionBytes.length + 2];
 
         ByteBuffer buffer = ByteBuffer.wrap(bytes);
         buffer.putShort(getPacketType().getOpcode());
         buffer.put(fileNameBytes);
         buffer.put(modeBytes);
+        buffer.put(optionBytes);
     }
 
     /**
@@ -55,18 +77,24 @@ public abstract class RequestPacket extends TFTPPacket {
      * @throws TFTPException if the transfer mode described in the raw packet bytes does not exist
      */
     public RequestPacket(byte[] bytes, int length) throws TFTPException {
-        this.fileName = StringUtil.getString(bytes, 2);
+        this.fileName = StringUtil.getString(bytes, 2, length);
 
         //we found the file-name string already (starting at offset 2). now need to find start of mode
         // string - so increment a counter until the null byte indicating the end of the filename is found,
         // then the mode string starts at the offset immediately after the null byte
         int modeStringOffset = 2;
-        while (bytes[modeStringOffset] != 0 && modeStringOffset < length) {
+        while (modeStringOffset < length && bytes[modeStringOffset] != 0) {
             ++modeStringOffset;
         }
         ++modeStringOffset;
 
-        this.mode = Mode.fromName(StringUtil.getString(bytes, modeStringOffset));
+        String modeName = StringUtil.getString(bytes, modeStringOffset, length);
+        this.mode = Mode.fromName(modeName);
+
+        //any options follow directly after the null byte terminating the mode string
+        this.options = Collections.unmodifiableMap(
+                decodeOptions(bytes, modeStringOffset + modeName.length() + 1, length)
+        );
         this.bytes = new byte[length];
         System.arraycopy(bytes, 0, this.bytes, 0, length);
     }
@@ -85,6 +113,13 @@ public abstract class RequestPacket extends TFTPPacket {
         return mode;
     }
 
+    /**
+     * @return the options appended to this request, mapped to their values (empty if there are none)
+     */
+    public Map<String, String> getOptions() {
+        return options;
+    }
+
     /**
      * {@inheritDoc}
      */
@@ -98,7 +133,10 @@ public abstract class RequestPacket extends TFTPPacket {
      */
     @Override
     public String toString() {
-        return String.format("%s[file=%s,mode=%s]", getPacketType(), getFileName(), getMode());
+        if (options.isEmpty()) {
+            return String.format("%s[file=%s,mode=%s]", getPacketType(), getFileName(), getMode());
+        }
+        return String.format("%s[file=%s,mode=%s,options=%s]", getPacketType(), getFileName(), getMode(), options);
     }
 
 }
@@ -0,0 +1,185 @@
+package tftp.core.preload;
+
+import tftp.core.Configuration;
+import tftp.core.storage.Storage;
+import tftp.core.storage.StoredFile;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.math.BigDecimal;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Warms up the files a server expects to be asked for before it starts accepting requests, so the first clients
+ * after a restart aren't left waiting on a cold disk. Each file is read through once from the storage, which
+ * pulls it into the operating system's page cache (or faults in the mapping, for mapped storage).
+ * <p>
+ * The files to warm are listed in a manifest - one name per line, as clients request it, with blank lines and
+ * lines starting with {@code #} ignored - or else taken from the most read files of the previous run.
+ */
+public class Preloader {
+
+    /**
+     * How much of a file is read at once.
+     */
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    /**
+     * The storage holding the files.
+     */
+    private final Storage storage;
+
+    /**
+     * How many files are read at once.
+     */
+    private final int threads;
+
+    /**
+     * Creates a new preloader.
+     *
+     * @param storage the storage holding the files
+     * @param threads how many files to read at once
+     */
+    public Preloader(Storage storage, int threads) {
+        this.storage = storage;
+        this.threads = Math.max(1, threads);
+    }
+
+    /**
+     * Warms up a server's files as configured: those listed in {@link Configuration#PRELOAD_MANIFEST} if one was
+     * given, otherwise the {@link Configuration#PRELOAD_COUNT} most read files of the previous run.
+     *
+     * @param storage the storage holding the files
+     * @param statistics the counts of reads from earlier runs, or null if none are kept
+     */
+    public static void warmUp(Storage storage, AccessStatistics statistics) {
+        List<String> names;
+        if (Configuration.PRELOAD_MANIFEST != null) {
+            try {
+                names = readManifest(new File(Configuration.PRELOAD_MANIFEST));
+            } catch (IOException e) {
+                System.out.println("unable to read preload manifest: " + e.getMessage());
+                return;
+            }
+        } else if (statistics != null) {
+            names = statistics.top(Configuration.PRELOAD_COUNT);
+        } else {
+            return;
+        }
+        new Preloader(storage, Configuration.PRELOAD_THREADS).preload(names);
+    }
+
+    /**
+     * Reads a manifest of files to warm up.
+     *
+     * @param manifest the manifest file
+     * @return the names listed in the manifest, in order
+     * @throws IOException if the manifest could not be read
+     */
+    public static List<String> readManifest(File manifest) throws IOException {
+        List<String> names = new ArrayList<>();
+        try (BufferedReader reader = new BufferedReader(
+                new InputStreamReader(new FileInputStream(manifest), StandardCharsets.UTF_8))) {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                line = line.trim();
+                if (!line.isEmpty() && !line.startsWith("#")) {
+                    names.add(line);
+                }
+            }
+        }
+        return names;
+    }
+
+    /**
+     * Warms up the given files in parallel, printing progress as it goes. Blocks until every file has been read.
+     * Files which don't exist or can't be read are skipped.
+     *
+     * @param names the names of the files to warm up
+     */
+    public void preload(List<String> names) {
+        if (names.isEmpty()) {
+            return;
+        }
+        System.out.println("warming up " + names.size() + " files");
+        long startTime = System.currentTimeMillis();
+
+        AtomicInteger done = new AtomicInteger();
+        AtomicInteger missing = new AtomicInteger();
+        AtomicLong bytes = new AtomicLong();
+        //report every tenth of the way through, so a long warm-up isn't silent
+        int step = Math.max(1, names.size() / 10);
+
+        ExecutorService executor = Executors.newFixedThreadPool(Math.min(threads, names.size()));
+        for (String name : names) {
+            executor.submit(() -> {
+                try {
+                    bytes.addAndGet(warm(name));
+                } catch (FileNotFoundException e) {
+                    missing.incrementAndGet();
+                } catch (IOException e) {
+                    missing.incrementAndGet();
+                    System.out.println("unable to warm up " + name + ": " + e.getMessage());
+                }
+                int count = done.incrementAndGet();
+                if (count % step == 0 && count < names.size()) {
+                    System.out.printf("warmed %d/%d files (%s MB)%n", count, names.size(), megabytes(bytes.get()));
+                }
+            });
+        }
+        executor.shutdown();
+        try {
+            executor.awaitTermination(Long.MAX_VALUE, TimeUnit.MILLISECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            executor.shutdownNow();
+            return;
+        }
+
+        System.out.printf(
+                "warmed %d files (%s MB) in %s seconds, %d not found%n",
+                names.size() - missing.get(), megabytes(bytes.get()),
+                BigDecimal.valueOf(System.currentTimeMillis() - startTime, 3).setScale(1, BigDecimal.ROUND_UP),
+                missing.get()
+        );
+    }
+
+    /**
+     * Reads a file through once.
+     *
+     * @param name the name of the file
+     * @return the number of bytes read
+     * @throws IOException if the file could not be read
+     */
+    private long warm(String name) throws IOException {
+        byte[] buffer = new byte[BUFFER_SIZE];
+        long position = 0;
+        try (StoredFile file = storage.open(name)) {
+            int read;
+            while ((read = file.read(position, buffer, 0, buffer.length)) > 0) {
+                position += read;
+            }
+        }
+        return position;
+    }
+
+    /**
+     * Formats a number of bytes as megabytes, to one decimal place.
+     */
+    private static String megabytes(long bytes) {
+        return BigDecimal.valueOf(bytes).divide(BigDecimal.valueOf(1024 * 1024), 1, BigDecimal.ROUND_HALF_UP)
+                .toPlainString();
+    }
+
+}
@@ -0,0 +1,131 @@
+package tftp.core.storage;
+
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * A file on the local file system, read and written through a {@link FileChannel}, whose positional reads and
+ * writes can be used by several threads at once.
+ */
+public class ChannelFile implements StoredFile {
+
+    /**
+     * The channel to the file.
+     */
+    private final FileChannel channel;
+
+    /**
+     * Creates a new file around an open channel.
+     *
+     * @param channel the channel to the file
+     */
+    ChannelFile(FileChannel channel) {
+        this.channel = channel;
+    }
+
+    /**
+     * Opens a local file for reading.
+     *
+     * @param file the file to open
+     * @return the opened file
+     * @throws FileNotFoundException if the file doesn't exist, or is a directory
+     */
+    public static ChannelFile open(File file) throws FileNotFoundException {
+        if (!file.isFile()) {
+            throw new FileNotFoundException(file.getPath());
+        }
+        return new ChannelFile(new RandomAccessFile(file, "r").getChannel());
+    }
+
+    /**
+     * Creates (or truncates) a local file for writing.
+     *
+     * @param file the file to create
+     * @return the created file
+     * @throws FileNotFoundException if the file could not be created
+     * @throws IOException if an existing file could not be truncated
+     */
+    public static ChannelFile create(File file) throws IOException {
+        RandomAccessFile raf = new RandomAccessFile(file, "rw");
+        try {
+            raf.setLength(0);
+        } catch (IOException e) {
+            raf.close();
+            throw e;
+        }
+        return new ChannelFile(raf.getChannel());
+    }
+
+    /**
+     * @return the channel to the file
+     */
+    FileChannel getChannel() {
+        return channel;
+    }
+
+    /**
+     * Writes out anything held back by this file, before it is made durable. Writes go straight to the channel,
+     * so there is nothing to do here.
+     *
+     * @throws IOException if the data could not be written
+     */
+    void flush() throws IOException {}
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public long size() throws IOException {
+        return channel.size();
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public int read(long position, byte[] buffer, int offset, int length) throws IOException {
+        ByteBuffer target = ByteBuffer.wrap(buffer, offset, length);
+        while (target.hasRemaining()) {
+            int read = channel.read(target, position + target.position() - offset);
+            if (read == -1) {
+                break;
+            }
+        }
+        int total = target.position() - offset;
+        return total == 0 && length > 0 ? -1 : total;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void write(long position, byte[] buffer, int offset, int length) throws IOException {
+        ByteBuffer source = ByteBuffer.wrap(buffer, offset, length);
+        while (source.hasRemaining()) {
+            channel.write(source, position + source.position() - offset);
+        }
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void truncate(long size) throws IOException {
+        if (channel.size() > size) {
+            channel.truncate(size);
+        }
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void close() throws IOException {
+        channel.close();
+    }
+
+}
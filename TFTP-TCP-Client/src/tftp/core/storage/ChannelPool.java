@@ -0,0 +1,249 @@
+package tftp.core.storage;
+
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.channels.FileChannel;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Shares one read-only channel per file between all the sessions reading it, rather than each opening the file
+ * for itself. Reads are positional, so sessions don't disturb each other. A channel is counted as in use until the
+ * last session reading it closes the file, and a few channels no longer in use are kept open for the next session
+ * to come along - so a storm of requests for the same few files opens each of them once.
+ * <p>
+ * A file which has changed since its channel was opened (by size or modification time) gets a fresh channel, and
+ * the stale one is closed once the sessions already reading it are done.
+ */
+class ChannelPool {
+
+    /**
+     * The most channels kept open while no session is reading them.
+     */
+    private final int maxIdle;
+
+    /**
+     * The channels open, by the file opened - least recently used first.
+     */
+    private final Map<File, Entry> entries = new LinkedHashMap<>(16, 0.75f, true);
+
+    /**
+     * The number of channels open with no session reading them.
+     */
+    private int idle = 0;
+
+    /**
+     * Creates a new pool.
+     *
+     * @param maxIdle the most channels to keep open while no session is reading them
+     */
+    ChannelPool(int maxIdle) {
+        this.maxIdle = maxIdle;
+    }
+
+    /**
+     * Opens a file for reading, sharing its channel with any other sessions reading it.
+     *
+     * @param file the file to open
+     * @return the opened file
+     * @throws FileNotFoundException if the file doesn't exist, or is a directory
+     * @throws IOException if the file could not be opened
+     */
+    StoredFile open(File file) throws IOException {
+        if (!file.isFile()) {
+            throw new FileNotFoundException(file.getPath());
+        }
+        long size = file.length();
+        long lastModified = file.lastModified();
+
+        synchronized (this) {
+            Entry entry = entries.get(file);
+            if (entry != null && (entry.size != size || entry.lastModified != lastModified)) {
+                retire(entry);
+                entry = null;
+            }
+            if (entry == null) {
+                entry = new Entry(file, new RandomAccessFile(file, "r").getChannel(), size, lastModified);
+                entries.put(file, entry);
+            } else if (entry.references == 0) {
+                --idle;
+            }
+            ++entry.references;
+            return new SharedFile(entry);
+        }
+    }
+
+    /**
+     * Stops handing out a file's channel, eg. as the file has been replaced. Sessions already reading it carry on.
+     *
+     * @param file the file
+     */
+    synchronized void invalidate(File file) {
+        Entry entry = entries.get(file);
+        if (entry != null) {
+            retire(entry);
+        }
+    }
+
+    /**
+     * Removes an entry from the pool, closing its channel now if no session is reading it, or else once the last
+     * one is done.
+     */
+    private void retire(Entry entry) {
+        entries.remove(entry.file);
+        entry.retired = true;
+        if (entry.references == 0) {
+            --idle;
+            close(entry);
+        }
+    }
+
+    /**
+     * Drops a session's reference to a channel.
+     */
+    private synchronized void release(Entry entry) {
+        if (--entry.references > 0) {
+            return;
+        }
+        if (entry.retired) {
+            close(entry);
+            return;
+        }
+
+        //keep it open for the next session, closing the least recently used spare channels if there are too many
+        ++idle;
+        Iterator<Entry> iterator = entries.values().iterator();
+        while (idle > maxIdle && iterator.hasNext()) {
+            Entry eldest = iterator.next();
+            if (eldest.references == 0) {
+                iterator.remove();
+                --idle;
+                close(eldest);
+            }
+        }
+    }
+
+    /**
+     * Closes an entry's channel.
+     */
+    private static void close(Entry entry) {
+        try {
+            entry.channel.close();
+        } catch (IOException ignore) {}
+    }
+
+    /**
+     * A channel open to a file.
+     */
+    private static class Entry {
+
+        /**
+         * The file opened.
+         */
+        private final File file;
+
+        /**
+         * The channel to the file.
+         */
+        private final FileChannel channel;
+
+        /**
+         * The size of the file when it was opened.
+         */
+        private final long size;
+
+        /**
+         * The modification time of the file when it was opened.
+         */
+        private final long lastModified;
+
+        /**
+         * The number of sessions reading from this channel.
+         */
+        private int references = 0;
+
+        /**
+         * Whether this channel has been removed from the pool, so is closed once the last session is done.
+         */
+        private boolean retired = false;
+
+        /**
+         * Creates a new entry.
+         */
+        private Entry(File file, FileChannel channel, long size, long lastModified) {
+            this.file = file;
+            this.channel = channel;
+            this.size = size;
+            this.lastModified = lastModified;
+        }
+
+    }
+
+    /**
+     * A file read through a shared channel.
+     */
+    private class SharedFile extends ChannelFile {
+
+        /**
+         * The channel read from.
+         */
+        private final Entry entry;
+
+        /**
+         * Whether this file has been closed, and its reference to the channel dropped.
+         */
+        private boolean closed = false;
+
+        /**
+         * Creates a new file reading through the given channel.
+         */
+        private SharedFile(Entry entry) {
+            super(entry.channel);
+            this.entry = entry;
+        }
+
+        /**
+         * {@inheritDoc}
+         */
+        @Override
+        public long size() {
+            return entry.size;
+        }
+
+        /**
+         * Always fails, as the file is read-only.
+         *
+         * @throws IOException always
+         */
+        @Override
+        public void write(long position, byte[] buffer, int offset, int length) throws IOException {
+            throw new IOException("read-only file");
+        }
+
+        /**
+         * Always fails, as the file is read-only.
+         *
+         * @throws IOException always
+         */
+        @Override
+        public void truncate(long size) throws IOException {
+            throw new IOException("read-only file");
+        }
+
+        /**
+         * Drops this file's reference to the shared channel.
+         */
+        @Override
+        public synchronized void close() {
+            if (!closed) {
+                closed = true;
+                release(entry);
+            }
+        }
+
+    }
+
+}
@@ -0,0 +1,324 @@
+package tftp.core.storage;
+
+import java.io.File;
+import java.io.IOException;
+import java.lang.reflect.Method;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.FileStore;
+import java.nio.file.Files;
+import java.nio.file.OpenOption;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * A file written with direct I/O, bypassing the operating system's page cache - so a large upload doesn't evict
+ * the files being served from it. Direct I/O only accepts writes of whole disk blocks, from memory aligned to a
+ * block, so data is gathered in an aligned buffer and written out a chunk at a time.
+ * <p>
+ * Data must be appended in order, with the exception of a write past the end to reserve space for the file (see
+ * {@link tftp.core.util.FileUtil#preallocate(StoredFile, long)}). The last partial chunk is padded out to a whole
+ * block when the file is flushed, and the file trimmed back to its real size.
+ * <p>
+ * Direct I/O needs Java 10 or later, and a file system which supports it - the option is looked up at runtime.
+ */
+class DirectFile extends ChannelFile {
+
+    /**
+     * The open option asking for direct I/O, or null if this runtime doesn't have it.
+     */
+    private static final OpenOption DIRECT = lookupDirect();
+
+    /**
+     * {@code ByteBuffer.alignedSlice(int)}, or null if this runtime doesn't have it.
+     */
+    private static final Method ALIGNED_SLICE = lookupMethod(ByteBuffer.class, "alignedSlice", int.class);
+
+    /**
+     * {@code FileStore.getBlockSize()}, or null if this runtime doesn't have it.
+     */
+    private static final Method BLOCK_SIZE = lookupMethod(FileStore.class, "getBlockSize");
+
+    /**
+     * The block size assumed if the file system doesn't say.
+     */
+    private static final int DEFAULT_BLOCK_SIZE = 4096;
+
+    /**
+     * The channel to the file, opened for direct I/O.
+     */
+    private final FileChannel channel;
+
+    /**
+     * The size every write to the file is aligned to.
+     */
+    private final int blockSize;
+
+    /**
+     * Gathers appended data into a chunk - aligned to a block, and a whole number of blocks long.
+     */
+    private final ByteBuffer chunk;
+
+    /**
+     * The position in the file of the start of the chunk being gathered. Everything before it has been written.
+     */
+    private long chunkStart = 0;
+
+    /**
+     * The number of bytes appended to the chunk being gathered.
+     */
+    private int filled = 0;
+
+    /**
+     * The number of bytes of the chunk holding data - more than {@link #filled} if space was reserved within it.
+     */
+    private int extent = 0;
+
+    /**
+     * The size of the file, including any space reserved past the appended data.
+     */
+    private long size = 0;
+
+    /**
+     * Creates a new file around a channel opened for direct I/O.
+     */
+    private DirectFile(FileChannel channel, int blockSize, int chunkSize) {
+        super(channel);
+        this.channel = channel;
+        this.blockSize = blockSize;
+        this.chunk = allocate(Math.max(blockSize, chunkSize / blockSize * blockSize), blockSize);
+    }
+
+    /**
+     * @return true if this runtime can open files for direct I/O
+     */
+    static boolean isSupported() {
+        return DIRECT != null && ALIGNED_SLICE != null;
+    }
+
+    /**
+     * Creates (or truncates) a local file for writing with direct I/O.
+     *
+     * @param file the file to create
+     * @param chunkSize how much data to gather before writing it out - rounded to a whole number of blocks
+     * @return the created file
+     * @throws IOException if the file could not be created, or its file system doesn't support direct I/O
+     */
+    static DirectFile create(File file, int chunkSize) throws IOException {
+        if (!isSupported()) {
+            throw new IOException("direct I/O is not supported by this runtime");
+        }
+        Path path = file.toPath();
+        FileChannel channel = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.READ,
+                StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING, DIRECT);
+        try {
+            return new DirectFile(channel, blockSize(path), chunkSize);
+        } catch (IOException | RuntimeException e) {
+            channel.close();
+            throw e;
+        }
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public long size() {
+        return size;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public int read(long position, byte[] buffer, int offset, int length) throws IOException {
+        length = (int) Math.max(0, Math.min(length, size - position));
+        if (length == 0) {
+            return -1;
+        }
+
+        //read whole blocks from the file into aligned memory, then lay any data not yet written over the top
+        long start = alignDown(position);
+        ByteBuffer blocks = allocate((int) (alignUp(position + length) - start), blockSize);
+        while (blocks.hasRemaining() && channel.read(blocks, start + blocks.position()) != -1) {}
+        for (int i = 0; i < length; ++i) {
+            long at = position + i;
+            if (at >= chunkStart && at < chunkStart + extent) {
+                buffer[offset + i] = chunk.get((int) (at - chunkStart));
+            } else {
+                int index = (int) (at - start);
+                buffer[offset + i] = index < blocks.position() ? blocks.get(index) : 0;
+            }
+        }
+        return length;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void write(long position, byte[] buffer, int offset, int length) throws IOException {
+        long end = chunkStart + filled;
+        if (position == end) {
+            append(buffer, offset, length);
+        } else if (position > end && position + length <= chunkStart + chunk.capacity()) {
+            //reserving space within the chunk being gathered - zero the gap, as the chunk is reused
+            for (int i = filled; i < position - chunkStart; ++i) {
+                chunk.put(i, (byte) 0);
+            }
+            for (int i = 0; i < length; ++i) {
+                chunk.put((int) (position - chunkStart) + i, buffer[offset + i]);
+            }
+            extent = Math.max(extent, (int) (position - chunkStart) + length);
+        } else if (position >= chunkStart + chunk.capacity()) {
+            //reserving space past the chunk being gathered - write the blocks holding it now, they are written
+            // again with the real data once it is appended
+            long start = alignDown(position);
+            ByteBuffer blocks = allocate((int) (alignUp(position + length) - start), blockSize);
+            for (int i = 0; i < length; ++i) {
+                blocks.put((int) (position - start) + i, buffer[offset + i]);
+            }
+            writeFully(blocks, start);
+        } else {
+            throw new IOException("direct I/O files must be written in order");
+        }
+        size = Math.max(size, position + length);
+    }
+
+    /**
+     * Appends data to the chunk being gathered, writing the chunk out each time it fills.
+     */
+    private void append(byte[] buffer, int offset, int length) throws IOException {
+        while (length > 0) {
+            int n = Math.min(length, chunk.capacity() - filled);
+            chunk.position(filled);
+            chunk.put(buffer, offset, n);
+            filled += n;
+            extent = Math.max(extent, filled);
+            offset += n;
+            length -= n;
+
+            if (filled == chunk.capacity()) {
+                chunk.clear();
+                writeFully(chunk, chunkStart);
+                chunkStart += filled;
+                filled = 0;
+                extent = 0;
+            }
+        }
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void truncate(long size) throws IOException {
+        if (size >= this.size) {
+            return;
+        }
+        if (size < chunkStart) {
+            throw new IOException("cannot truncate direct I/O file before " + chunkStart + " bytes");
+        }
+        this.size = size;
+        filled = (int) Math.min(filled, size - chunkStart);
+        extent = (int) Math.min(extent, size - chunkStart);
+        if (channel.size() > size) {
+            channel.truncate(size);
+        }
+    }
+
+    /**
+     * Writes out the data gathered so far, padded to a whole block, then trims the file back to its real size.
+     * The data is kept, so more can still be appended after.
+     *
+     * @throws IOException if the data could not be written
+     */
+    @Override
+    void flush() throws IOException {
+        if (extent > 0) {
+            ByteBuffer data = chunk.duplicate();
+            data.position(0).limit((int) alignUp(extent));
+            writeFully(data, chunkStart);
+        }
+        if (channel.size() > size) {
+            channel.truncate(size);
+        }
+    }
+
+    /**
+     * Writes the whole of a buffer (from index 0) to the file at the given position.
+     */
+    private void writeFully(ByteBuffer buffer, long position) throws IOException {
+        while (buffer.hasRemaining()) {
+            channel.write(buffer, position + buffer.position());
+        }
+    }
+
+    /**
+     * Rounds a position down to the start of its block.
+     */
+    private long alignDown(long position) {
+        return position / blockSize * blockSize;
+    }
+
+    /**
+     * Rounds a position up to the end of its block.
+     */
+    private long alignUp(long position) {
+        return alignDown(position + blockSize - 1);
+    }
+
+    /**
+     * Allocates direct memory aligned to the given block size.
+     */
+    private static ByteBuffer allocate(int capacity, int alignment) {
+        ByteBuffer buffer = ByteBuffer.allocateDirect(capacity + alignment);
+        try {
+            ByteBuffer aligned = (ByteBuffer) ALIGNED_SLICE.invoke(buffer, alignment);
+            aligned.limit(capacity);
+            return aligned.slice();
+        } catch (ReflectiveOperationException e) {
+            throw new IllegalStateException("unable to align buffer", e);
+        }
+    }
+
+    /**
+     * Finds the block size of the file system holding a file.
+     */
+    private static int blockSize(Path path) throws IOException {
+        if (BLOCK_SIZE != null) {
+            try {
+                long size = (Long) BLOCK_SIZE.invoke(Files.getFileStore(path));
+                if (size > 0 && size <= Integer.MAX_VALUE) {
+                    return (int) size;
+                }
+            } catch (ReflectiveOperationException ignore) {}
+        }
+        return DEFAULT_BLOCK_SIZE;
+    }
+
+    /**
+     * Looks up {@code ExtendedOpenOption.DIRECT}, which is not part of the Java 8 API.
+     */
+    @SuppressWarnings({"unchecked", "rawtypes"})
+    private static OpenOption lookupDirect() {
+        try {
+            Class type = Class.forName("com.sun.nio.file.ExtendedOpenOption");
+            return (OpenOption) Enum.valueOf(type, "DIRECT");
+        } catch (ClassNotFoundException | IllegalArgumentException e) {
+            return null;
+        }
+    }
+
+    /**
+     * Looks up a method which may not exist in this runtime.
+     */
+    private static Method lookupMethod(Class<?> type, String name, Class<?>... parameters) {
+        try {
+            return type.getMethod(name, parameters);
+        } catch (NoSuchMethodException e) {
+            return null;
+        }
+    }
+
+}
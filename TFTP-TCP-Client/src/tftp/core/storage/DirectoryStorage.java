@@ -0,0 +1,328 @@
+package tftp.core.storage;
+
+import tftp.core.Configuration;
+import tftp.core.util.FileUtil;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.AccessDeniedException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+
+/**
+ * Keeps files in a directory on the local file system. Relative names are resolved against the directory, and
+ * absolute names are used as they are - unless the storage is jailed, when every name is resolved under the
+ * directory by a {@link PathResolver}, and names leading outside it are refused.
+ * <p>
+ * Files are read through channels shared by all the sessions reading them. Files are written under a temporary name
+ * next to their destination, and renamed over it once committed. Files expected to be at least
+ * {@link Configuration#DIRECT_IO_THRESHOLD} bytes are written with direct I/O where it is supported, keeping them
+ * out of the page cache.
+ */
+public class DirectoryStorage implements Storage {
+
+    /**
+     * The directory relative names are resolved against.
+     */
+    private final File root;
+
+    /**
+     * Resolves names under the root directory, or null if the storage isn't jailed.
+     */
+    private final PathResolver resolver;
+
+    /**
+     * Shares channels between the sessions reading the same file.
+     */
+    private final ChannelPool channels = new ChannelPool(Configuration.IDLE_CHANNELS);
+
+    /**
+     * How written files are made durable.
+     */
+    private final SyncPolicy syncPolicy;
+
+    /**
+     * Commits written files in batches, or null unless the sync policy is {@link SyncPolicy#GROUP}.
+     */
+    private final GroupCommit groupCommit;
+
+    /**
+     * Creates a new storage for the given directory, leaving written files for the operating system to flush.
+     * Absolute names are used as they are - for a client's own files, not for serving files.
+     *
+     * @param root the directory relative names are resolved against
+     */
+    public DirectoryStorage(File root) {
+        this.root = root;
+        this.resolver = null;
+        this.syncPolicy = SyncPolicy.NONE;
+        this.groupCommit = null;
+    }
+
+    /**
+     * Creates a new jailed storage for the given directory, which only gives access to the files under it.
+     *
+     * @param root the directory names are resolved under
+     * @param syncPolicy how written files are made durable
+     * @throws IOException if the directory doesn't exist
+     */
+    public DirectoryStorage(File root, SyncPolicy syncPolicy) throws IOException {
+        this.root = root;
+        this.resolver = new PathResolver(root, Configuration.PATH_CACHE_SIZE);
+        this.syncPolicy = syncPolicy;
+        this.groupCommit = syncPolicy == SyncPolicy.GROUP
+                ? new GroupCommit(Configuration.GROUP_COMMIT_INTERVAL)
+                : null;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public StoredFile open(String name) throws IOException {
+        return channels.open(resolve(name));
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public CreatedFile create(String name) throws IOException {
+        return create(name, -1);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public CreatedFile create(String name, long size) throws IOException {
+        File target = resolveFile(name).getAbsoluteFile();
+        //the temporary file must be in the same directory as the target, so it can be renamed over it atomically
+        File temp = File.createTempFile("." + target.getName() + ".", ".part", target.getParentFile());
+        try {
+            return new PendingFile(open(temp, size), temp, target);
+        } catch (IOException e) {
+            temp.delete();
+            throw e;
+        }
+    }
+
+    /**
+     * Opens a new file for writing - with direct I/O if it is big enough, and the file system allows it.
+     *
+     * @param temp the file to open
+     * @param size the expected size of the file in bytes, or -1 if unknown
+     * @return the opened file
+     * @throws IOException if the file could not be opened
+     */
+    private ChannelFile open(File temp, long size) throws IOException {
+        long threshold = Configuration.DIRECT_IO_THRESHOLD;
+        if (threshold >= 0 && size >= threshold && DirectFile.isSupported()) {
+            try {
+                return DirectFile.create(temp, Configuration.DIRECT_IO_CHUNK_SIZE);
+            } catch (IOException e) {
+                //eg. a file system without direct I/O, such as tmpfs - write it through the page cache instead
+                System.out.println("unable to use direct I/O for " + temp + ": " + e.getMessage());
+            }
+        }
+        return ChannelFile.create(temp);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public boolean isWritable() {
+        return true;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void checkAccess(String name) throws IOException {
+        resolveFile(name);
+    }
+
+    /**
+     * Gives the local file a named file is written to, refusing names of existing directories - a file can't be
+     * written in their place, and the temporary file would be made beside them, outside them.
+     *
+     * @param name the name of the file, as given in the request
+     * @return the local file
+     * @throws AccessDeniedException if the name leads outside a jailed storage, or to a directory
+     */
+    private File resolveFile(String name) throws AccessDeniedException {
+        File file = resolve(name);
+        if (file.isDirectory()) {
+            throw new AccessDeniedException(name, null, "is a directory");
+        }
+        return file;
+    }
+
+    /**
+     * Gives the local file holding the named file, or null if the name leads outside a jailed storage.
+     *
+     * @param name the name of the file, as given in the request
+     * @return the local file, or null if it can't be accessed
+     */
+    @Override
+    public File getFile(String name) {
+        try {
+            return resolve(name);
+        } catch (IOException e) {
+            return null;
+        }
+    }
+
+    /**
+     * Gives the local file holding the named file.
+     *
+     * @param name the name of the file, as given in the request
+     * @return the local file
+     * @throws AccessDeniedException if the name leads outside a jailed storage
+     */
+    File resolve(String name) throws AccessDeniedException {
+        if (resolver != null) {
+            return resolver.resolve(name).toFile();
+        }
+        File file = new File(name);
+        return file.isAbsolute() ? file : new File(root, name);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public String toString() {
+        return "directory " + (resolver == null ? root.toString() : resolver.getRoot().toString())
+                + " (sync: " + syncPolicy + ")";
+    }
+
+    /**
+     * A file being written under a temporary name.
+     */
+    private class PendingFile implements CreatedFile {
+
+        /**
+         * The temporary file being written.
+         */
+        private final ChannelFile file;
+
+        /**
+         * The temporary file's path.
+         */
+        private final File temp;
+
+        /**
+         * The path the file is renamed to once committed.
+         */
+        private final File target;
+
+        /**
+         * Whether the file has been committed (or discarded).
+         */
+        private boolean done = false;
+
+        /**
+         * Creates a new pending file.
+         */
+        private PendingFile(ChannelFile file, File temp, File target) {
+            this.file = file;
+            this.temp = temp;
+            this.target = target;
+        }
+
+        /**
+         * {@inheritDoc}
+         */
+        @Override
+        public long size() throws IOException {
+            return file.size();
+        }
+
+        /**
+         * {@inheritDoc}
+         */
+        @Override
+        public int read(long position, byte[] buffer, int offset, int length) throws IOException {
+            return file.read(position, buffer, offset, length);
+        }
+
+        /**
+         * {@inheritDoc}
+         */
+        @Override
+        public void write(long position, byte[] buffer, int offset, int length) throws IOException {
+            file.write(position, buffer, offset, length);
+        }
+
+        /**
+         * {@inheritDoc}
+         */
+        @Override
+        public void truncate(long size) throws IOException {
+            file.truncate(size);
+        }
+
+        /**
+         * {@inheritDoc}
+         */
+        @Override
+        public void commit() throws IOException {
+            if (done) {
+                throw new IOException("file already closed");
+            }
+            done = true;
+            boolean committed = false;
+            try {
+                file.flush();
+                switch (syncPolicy) {
+                    case NONE:
+                        file.close();
+                        rename();
+                        break;
+                    case FILE:
+                        file.getChannel().force(true);
+                        file.close();
+                        rename();
+                        FileUtil.syncDirectory(target.getParentFile());
+                        break;
+                    case GROUP:
+                        groupCommit.commit(file.getChannel(), temp, target);
+                        break;
+                }
+                //sessions opening the file from now on read the new copy
+                channels.invalidate(target);
+                committed = true;
+            } finally {
+                if (!committed) {
+                    file.close();
+                    temp.delete();
+                }
+            }
+        }
+
+        /**
+         * Renames the temporary file over the target.
+         */
+        private void rename() throws IOException {
+            Files.move(temp.toPath(), target.toPath(),
+                    StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        }
+
+        /**
+         * Discards the file, unless it has been committed.
+         */
+        @Override
+        public void close() throws IOException {
+            if (!done) {
+                done = true;
+                file.close();
+                temp.delete();
+            }
+        }
+
+    }
+
+}
@@ -0,0 +1,134 @@
+package tftp.core.storage;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.AccessDeniedException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Turns the file names given in requests into paths under a root directory, refusing any which would lead outside
+ * it - whether by {@code ..}, or by a symbolic link pointing elsewhere. A leading {@code /} is taken to mean the
+ * root, as many clients ask for {@code /pxelinux.0} when they mean {@code pxelinux.0}.
+ * <p>
+ * Checking for symbolic links means asking the file system for the real path of each file, so the real paths of
+ * files which exist are cached, in a bounded map shared by all sessions - the files most asked for are resolved
+ * without touching the file system. The contents of the root itself are trusted: a link swapped in under the root
+ * after a name has been resolved isn't noticed until the name drops out of the cache.
+ */
+public class PathResolver {
+
+    /**
+     * The real path of the root directory.
+     */
+    private final Path root;
+
+    /**
+     * The most names kept in the cache.
+     */
+    private final int maxEntries;
+
+    /**
+     * The real paths of files which exist, by the name asked for.
+     */
+    private final Map<String, Path> cache = new ConcurrentHashMap<>();
+
+    /**
+     * Creates a new resolver.
+     *
+     * @param root the directory names are resolved under
+     * @param maxEntries the most names to cache
+     * @throws IOException if the root directory doesn't exist
+     */
+    public PathResolver(File root, int maxEntries) throws IOException {
+        this.root = root.toPath().toRealPath();
+        this.maxEntries = maxEntries;
+        if (!Files.isDirectory(this.root)) {
+            throw new IOException("not a directory: " + root);
+        }
+    }
+
+    /**
+     * Resolves a name to the path of the file under the root.
+     *
+     * @param name the name of the file, as given in the request
+     * @return the path of the file - its real path if it exists
+     * @throws AccessDeniedException if the name leads outside the root, or to the root itself
+     */
+    public Path resolve(String name) throws AccessDeniedException {
+        Path cached = cache.get(name);
+        if (cached != null) {
+            return cached;
+        }
+
+        //names are always relative to the root, whether or not they start with a slash
+        String relative = name;
+        while (relative.startsWith("/")) {
+            relative = relative.substring(1);
+        }
+        Path path;
+        try {
+            path = root.resolve(relative).normalize();
+        } catch (RuntimeException e) {
+            //not a valid path on this platform
+            throw new AccessDeniedException(name, null, "invalid file name");
+        }
+        if (!path.startsWith(root)) {
+            throw new AccessDeniedException(name, null, "outside the served directory");
+        }
+        if (path.equals(root)) {
+            //eg. "/" or "." - the root is not a file, and a file written in its place would go in its parent
+            throw new AccessDeniedException(name, null, "not a file");
+        }
+
+        //follow any links to where the file really is. if it doesn't exist yet, the closest directory which does
+        // is checked instead, as that is where the file would be created
+        Path existing = path;
+        Path real = null;
+        while (real == null && existing != null) {
+            try {
+                real = existing.toRealPath();
+            } catch (IOException e) {
+                existing = existing.getParent();
+            }
+        }
+        if (real == null || !real.startsWith(root)) {
+            throw new AccessDeniedException(name, null, "outside the served directory");
+        }
+        if (existing == path && real.equals(root)) {
+            //a link back to the root itself
+            throw new AccessDeniedException(name, null, "not a file");
+        }
+
+        if (existing == path) {
+            cache(name, real);
+            return real;
+        }
+        return path;
+    }
+
+    /**
+     * Caches the real path of a name, making room by dropping another name if the cache is full.
+     */
+    private void cache(String name, Path real) {
+        if (cache.size() >= maxEntries) {
+            Iterator<String> names = cache.keySet().iterator();
+            if (names.hasNext()) {
+                names.next();
+                names.remove();
+            }
+        }
+        cache.put(name, real);
+    }
+
+    /**
+     * @return the real path of the root directory
+     */
+    public Path getRoot() {
+        return root;
+    }
+
+}
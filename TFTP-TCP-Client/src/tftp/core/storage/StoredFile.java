@@ -0,0 +1,49 @@
+package tftp.core.storage;
+
+import java.io.Closeable;
+import java.io.IOException;
+
+/**
+ * An open file in a {@link Storage}. Reads and writes are positional - each names the offset it applies to, so
+ * blocks can be read or written in any order, and by several threads at once.
+ */
+public interface StoredFile extends Closeable {
+
+    /**
+     * @return the size of the file in bytes
+     * @throws IOException if the size could not be read
+     */
+    long size() throws IOException;
+
+    /**
+     * Reads a block of the file. Fewer bytes than asked for are only read at the end of the file.
+     *
+     * @param position the offset in the file to start reading at
+     * @param buffer the buffer to read into
+     * @param offset the offset in the buffer to read into
+     * @param length the number of bytes to read
+     * @return the number of bytes read, or -1 if the position is at or past the end of the file
+     * @throws IOException if the file could not be read
+     */
+    int read(long position, byte[] buffer, int offset, int length) throws IOException;
+
+    /**
+     * Writes a block of the file, growing the file if the block ends past the end of it.
+     *
+     * @param position the offset in the file to start writing at
+     * @param buffer the buffer holding the bytes to write
+     * @param offset the offset of the bytes in the buffer
+     * @param length the number of bytes to write
+     * @throws IOException if the file could not be written, eg. if it is read-only
+     */
+    void write(long position, byte[] buffer, int offset, int length) throws IOException;
+
+    /**
+     * Cuts the file down to the given size. Does nothing if the file is no bigger than that already.
+     *
+     * @param size the new size of the file in bytes
+     * @throws IOException if the file could not be truncated, eg. if it is read-only
+     */
+    void truncate(long size) throws IOException;
+
+}
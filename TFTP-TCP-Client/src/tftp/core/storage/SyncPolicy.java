@@ -0,0 +1,65 @@
+package tftp.core.storage;
+
+/**
+ * How uploaded files are made durable - that is, when they are flushed from the page cache to disk - before they
+ * are made visible under their names.
+ */
+public enum SyncPolicy {
+
+    /**
+     * Files are left for the operating system to flush when it sees fit. Fastest, but an upload acknowledged just
+     * before a crash may be lost.
+     */
+    NONE("none"),
+
+    /**
+     * Each file, and then its directory, is flushed before its upload completes.
+     */
+    FILE("file"),
+
+    /**
+     * Files completing within a short interval of each other are flushed together in one batch, and their
+     * directories flushed once for the whole batch - so concurrent durable uploads share the cost of flushing
+     * rather than each waiting for its own.
+     */
+    GROUP("group");
+
+    /**
+     * The name used to choose this policy.
+     */
+    private final String name;
+
+    /**
+     * Creates a new sync policy with the given name.
+     *
+     * @param name the name used to choose this policy
+     */
+    SyncPolicy(String name) {
+        this.name = name;
+    }
+
+    /**
+     * Finds the sync policy with the given name.
+     *
+     * @param name the name of the policy
+     * @return the policy
+     * @throws IllegalArgumentException if there is no such policy
+     */
+    public static SyncPolicy fromName(String name) {
+        for (SyncPolicy policy : values()) {
+            if (policy.name.equals(name)) {
+                return policy;
+            }
+        }
+        throw new IllegalArgumentException("unknown sync policy: " + name);
+    }
+
+    /**
+     * @return the name used to choose this policy
+     */
+    @Override
+    public String toString() {
+        return name;
+    }
+
+}
@@ -1,6 +1,16 @@
 package tftp.tcp;
 
 import tftp.core.Configuration;
+import tftp.core.TransferOptions;
+import tftp.core.delta.DeltaEncoder;
+import tftp.core.delta.PatchingOutputStream;
+import tftp.core.delta.Signature;
+import tftp.core.storage.CreatedFile;
+import tftp.core.storage.Storage;
+import tftp.core.storage.StoredFile;
+import tftp.core.storage.StoredFileInputStream;
+import tftp.core.storage.StoredFileOutputStream;
+import tftp.core.util.FileUtil;
 
 import java.io.*;
 import java.math.BigDecimal;
@@ -11,84 +21,273 @@ import java.math.BigDecimal;
 public class TCPFileUtil {
 
     /**
-     * Sends a file over an output stream.
+     * Sends a file over an output stream. If a delta transfer was negotiated, the receiver first sends the
+     * signature of its existing copy of the file, and only the differences are sent back.
      *
+     * @param is the input stream from the receiver - only read from for delta transfers
      * @param os the output stream to write the file to
-     * @param fileName the path of the file to write to the output stream
+     * @param file the file to write to the output stream - left open
+     * @param options the options negotiated for this transfer
      */
-    public static void send(OutputStream os, String fileName) {
+    public static void send(InputStream is, OutputStream os, StoredFile file, TransferOptions options) {
+        if (options.getDeltaBlockSize() > 0) {
+            sendDelta(is, os, file, options);
+            return;
+        }
+
         //track the time taken and the number of bytes sent to print at the end if all goes well
         long startTime = System.currentTimeMillis();
-        int bytesSent = 0;
+        long bytesSent = 0;
 
         //allocate a buffer for sending data - might as well make this 512 bytes, like the data packets in TFTP
         byte[] buffer = new byte[Configuration.MAX_DATA_LENGTH];
 
-        //open an input stream to the file
-        try (FileInputStream reader = new FileInputStream(fileName)) {
-            int num;
-            try {
-                //keep on writing to the output stream until the end of the file is reached
-                while ((num = reader.read(buffer)) != -1) {
-                    os.write(buffer, 0, num);
-                    bytesSent += num;
-                }
-            } catch (IOException e) {
-                System.out.println("error sending file: " + e.getMessage());
-                return;
-            }
+        //read the file from the start, compressing and checksumming it on the way out if negotiated
+        InputStream reader;
+        try {
+            reader = options.encode(new StoredFileInputStream(file));
         } catch (IOException e) {
             System.out.println("error reading from file: " + e.getMessage());
             return;
         }
 
+        int num;
+        try {
+            //keep on writing to the output stream until the end of the file is reached
+            while ((num = reader.read(buffer)) != -1) {
+                os.write(buffer, 0, num);
+                bytesSent += num;
+            }
+        } catch (IOException e) {
+            System.out.println("error sending file: " + e.getMessage());
+            return;
+        }
+
         //print information about the transfer, and finish
-        long time = System.currentTimeMillis() - startTime;
-        double seconds = (double) time / 1000.0;
-        BigDecimal bigDecimal = new BigDecimal(seconds);
-        bigDecimal = bigDecimal.setScale(1, BigDecimal.ROUND_UP);
-        System.out.printf("sent %d bytes in %s seconds%n", bytesSent, bigDecimal.toPlainString());
+        System.out.printf("sent %d bytes in %s seconds%n", bytesSent, elapsed(startTime));
+    }
+
+    /**
+     * Sends a file as a delta against the receiver's existing copy, whose signature is read from the receiver
+     * first. The delta is compressed and checksummed on the way out if negotiated.
+     *
+     * @param is the input stream to read the signature from
+     * @param os the output stream to write the delta to
+     * @param file the file to send
+     * @param options the options negotiated for this transfer
+     */
+    private static void sendDelta(InputStream is, OutputStream os, StoredFile file, TransferOptions options) {
+        long startTime = System.currentTimeMillis();
+
+        Signature basis;
+        try {
+            basis = Signature.read(is, options.getDeltaBlockSize());
+        } catch (IOException e) {
+            System.out.println("error reading signature: " + e.getMessage());
+            return;
+        }
+
+        long matched;
+        long length;
+        try {
+            length = file.size();
+            OutputStream out = options.encode(os);
+            matched = DeltaEncoder.encode(new StoredFileInputStream(file), basis, out);
+            if (out != os) {
+                //flush anything still held by the compressing stream, and the checksum, through to the
+                // receiver
+                out.close();
+            }
+            os.flush();
+        } catch (IOException e) {
+            System.out.println("error sending file: " + e.getMessage());
+            return;
+        }
+
+        System.out.printf(
+                "sent delta of %d bytes (%d bytes already at receiver) in %s seconds%n",
+                length, matched, elapsed(startTime)
+        );
     }
 
     /**
-     * Receives a file from an input stream and writes it to file.
+     * Receives a file from an input stream and writes it to file. The file only replaces any existing copy once
+     * it has been received in full. If a delta transfer was negotiated, the signature of the existing copy of the
+     * file is sent first, and the file is rebuilt from it.
      *
      * @param is the input stream to read the file bytes from
-     * @param file the path where the file will be written
+     * @param os the output stream to the sender - only written to for delta transfers
+     * @param storage the storage to write the file to
+     * @param name the name of the file to write
+     * @param options the options negotiated for this transfer
      */
-    public static void receive(InputStream is, String file) {
+    public static void receive(InputStream is, OutputStream os, Storage storage, String name,
+                               TransferOptions options) {
+        if (options.getDeltaBlockSize() > 0) {
+            receiveDelta(is, os, storage, name, options);
+            return;
+        }
+
         //track the time taken and the number of bytes received to print at the end if all goes well
         long startTime = System.currentTimeMillis();
-        int bytesReceived = 0;
+        long bytesReceived;
 
-        //allocate a buffer for sending data - might as well make this 512 bytes, like the data packets in TFTP
-        byte[] buffer = new byte[Configuration.MAX_DATA_LENGTH];
+        //create the file, and write to it from the start
+        try (CreatedFile file = storage.create(name, expectedSize(options))) {
+            StoredFileOutputStream writer = new StoredFileOutputStream(file);
+            bytesReceived = receiveInto(is, file, writer, writer, options);
+            if (bytesReceived == -1) {
+                return;
+            }
+            file.commit();
+        } catch (IOException e) {
+            System.out.println("error writing to file: " + e.getMessage());
+            return;
+        }
+
+        //print information about the transfer, and finish
+        System.out.printf("received %d bytes in %s seconds%n", bytesReceived, elapsed(startTime));
+    }
 
-        //open an output stream to the file
-        try (FileOutputStream writer = new FileOutputStream(file)) {
-            int num;
+    /**
+     * Receives a file as a delta against the existing copy. The rebuilt file is written alongside the existing
+     * copy and replaces it once complete - so the existing copy stays intact (and readable) until then, and is
+     * kept if the transfer fails.
+     *
+     * @param is the input stream to read the delta from
+     * @param os the output stream to send the signature to
+     * @param storage the storage holding the existing copy
+     * @param name the name of the file to write
+     * @param options the options negotiated for this transfer
+     */
+    private static void receiveDelta(InputStream is, OutputStream os, Storage storage, String name,
+                                     TransferOptions options) {
+        long startTime = System.currentTimeMillis();
+        int blockSize = options.getDeltaBlockSize();
+
+        long bytesReceived;
+        long length;
+        try (StoredFile existing = openExisting(storage, name);
+             CreatedFile rebuilt = storage.create(name, expectedSize(options))) {
+
+            //tell the sender which blocks we already have
             try {
-                //keep on reading from the input stream until the remote client/server finishes sending and closes the
-                // connection
-                while ((num = is.read(buffer)) != -1) {
-                    writer.write(buffer, 0, num);
-                    bytesReceived += num;
-                }
+                Signature.compute(existing, blockSize).write(os);
             } catch (IOException e) {
-                System.out.println("error receiving file: " + e.getMessage());
+                System.out.println("error sending signature: " + e.getMessage());
                 return;
             }
+
+            StoredFileOutputStream writer = new StoredFileOutputStream(rebuilt);
+            PatchingOutputStream patcher = new PatchingOutputStream(existing, blockSize, writer);
+            bytesReceived = receiveInto(is, rebuilt, writer, patcher, options);
+            if (bytesReceived == -1) {
+                return;
+            }
+            length = rebuilt.size();
+            rebuilt.commit();
         } catch (IOException e) {
             System.out.println("error writing to file: " + e.getMessage());
             return;
         }
 
-        //print information about the transfer, and finish
+        System.out.printf(
+                "received delta of %d bytes for %d byte file in %s seconds%n",
+                bytesReceived, length, elapsed(startTime)
+        );
+    }
+
+    /**
+     * Opens the existing copy of a file to rebuild a delta against.
+     *
+     * @param storage the storage holding the file
+     * @param name the name of the file
+     * @return the existing copy, or null if there isn't one
+     * @throws IOException if the file exists but could not be opened
+     */
+    private static StoredFile openExisting(Storage storage, String name) throws IOException {
+        try {
+            return storage.open(name);
+        } catch (FileNotFoundException e) {
+            return null;
+        }
+    }
+
+    /**
+     * Gives the size a received file is expected to be.
+     *
+     * @param options the options negotiated for this transfer
+     * @return the size of the file in bytes, or -1 if the sender didn't say
+     */
+    private static long expectedSize(TransferOptions options) {
+        return options.hasTransferSize() ? options.getTransferSize() : -1;
+    }
+
+    /**
+     * Reads from the input stream until the sender closes the connection, writing the received bytes to the
+     * destination file through the given stream.
+     *
+     * @param is the input stream to read the file bytes from
+     * @param file the destination file
+     * @param writer the stream writing to the destination file
+     * @param target the stream to write received bytes to - the writer itself, or a stream in front of it
+     * @param options the options negotiated for this transfer
+     * @return the number of bytes received, or -1 if the transfer failed
+     * @throws IOException if the destination file could not be written to
+     */
+    private static long receiveInto(InputStream is, StoredFile file, StoredFileOutputStream writer,
+                                    OutputStream target, TransferOptions options) throws IOException {
+        long bytesReceived = 0;
+
+        //allocate a buffer for sending data - might as well make this 512 bytes, like the data packets in TFTP
+        byte[] buffer = new byte[Configuration.MAX_DATA_LENGTH];
+
+        //if the size of the file is known, reserve the space up front
+        if (options.hasTransferSize()) {
+            FileUtil.preallocate(file, options.getTransferSize());
+        }
+
+        //decompress and verify the received bytes on their way to the file if negotiated
+        OutputStream sink = options.decode(target);
+
+        int num;
+        try {
+            //keep on reading from the input stream until the remote client/server finishes sending and closes the
+            // connection
+            while ((num = is.read(buffer)) != -1) {
+                sink.write(buffer, 0, num);
+                bytesReceived += num;
+            }
+            if (sink != writer) {
+                //flush anything still held by the decoding stream through to the file, verifying the checksum
+                // if one was negotiated
+                sink.close();
+            }
+            if (target != writer && sink != target) {
+                target.close();
+            }
+        } catch (IOException e) {
+            System.out.println("error receiving file: " + e.getMessage());
+            return -1;
+        }
+
+        //if space was reserved up front but the file came up short, trim the excess
+        file.truncate(writer.getPosition());
+        return bytesReceived;
+    }
+
+    /**
+     * Gives the time elapsed since the start of a transfer, for printing.
+     *
+     * @param startTime the time the transfer started, in milliseconds
+     * @return the elapsed time in seconds, rounded up to one decimal place
+     */
+    private static String elapsed(long startTime) {
         long time = System.currentTimeMillis() - startTime;
         double seconds = (double) time / 1000.0;
         BigDecimal bigDecimal = new BigDecimal(seconds);
         bigDecimal = bigDecimal.setScale(1, BigDecimal.ROUND_UP);
-        System.out.printf("received %d bytes in %s seconds%n", bytesReceived, bigDecimal.toPlainString());
+        return bigDecimal.toPlainString();
     }
 
 }
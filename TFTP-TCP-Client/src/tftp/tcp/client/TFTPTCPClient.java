@@ -4,17 +4,32 @@ import tftp.GenericTFTPClient;
 import tftp.core.Configuration;
 import tftp.core.Mode;
 import tftp.core.TFTPException;
+import tftp.core.TransferOptions;
+import tftp.core.checksum.Checksums;
+import tftp.core.codec.Codecs;
 import tftp.core.packet.*;
+import tftp.core.storage.DirectoryStorage;
+import tftp.core.storage.Storage;
+import tftp.core.storage.StoredFile;
+import tftp.core.tuning.BufferTuner;
+import tftp.core.tuning.TuningInputStream;
+import tftp.core.tuning.TuningOutputStream;
 import tftp.tcp.TCPFileUtil;
 
 import java.io.*;
 import java.net.*;
+import java.util.Collections;
 
 /**
  * A client for sending/receiving files from a server using the Trivial File Transfer Protocol over TCP.
  */
 public class TFTPTCPClient extends GenericTFTPClient {
 
+    /**
+     * The local files sent and received - named as given by the user, relative to the working directory.
+     */
+    private final Storage localFiles = new DirectoryStorage(new File("."));
+
     /**
      * {@inheritDoc}
      */
@@ -33,13 +48,15 @@ public class TFTPTCPClient extends GenericTFTPClient {
         //open a socket using any free port
         try (Socket socket = new Socket()) {
 
-            //attempt to connect to the server
+            //attempt to connect to the server, timing the handshake as a first measure of the round trip time
+            long connectStart = System.nanoTime();
             try {
                 socket.connect(new InetSocketAddress(remoteAddress, remotePort));
             } catch (IOException e) {
                 System.out.println("could not reach server: " + e.getMessage());
                 return;
             }
+            long connectTime = System.nanoTime() - connectStart;
 
             //open the input and output streams
             InputStream is;
@@ -57,8 +74,23 @@ public class TFTPTCPClient extends GenericTFTPClient {
                 return;
             }
 
+            //grow the socket's buffers to fit the link as the transfer goes
+            BufferTuner tuner = BufferTuner.forSocket(socket);
+            if (tuner != null) {
+                tuner.measured(connectTime);
+                is = new TuningInputStream(is, tuner);
+                os = new TuningOutputStream(os, tuner);
+            }
+
+            //ask the server for the size of the file (so the space can be reserved up front), to compress the
+            // data if set up to do so, and to send a delta if there is already a copy of the file here
+            TransferOptions options = requestedOptions(0);
+            if (!new File(localFile).isFile()) {
+                options.setDeltaBlockSize(0);
+            }
+
             //send an initial RRQ
-            ReadRequestPacket rrq = new ReadRequestPacket(remoteFile, Mode.OCTET);
+            ReadRequestPacket rrq = new ReadRequestPacket(remoteFile, Mode.OCTET, options.toMap());
 
             try {
                 os.write(rrq.getPacketBytes());
@@ -76,20 +108,27 @@ public class TFTPTCPClient extends GenericTFTPClient {
                     return;
                 }
 
-                //should acknowledge the response from the server
-                if (!(response instanceof AcknowledgementPacket)) {
+                //should acknowledge the response from the server - with an OACK if it accepted any options
+                if (response instanceof OptionAcknowledgementPacket) {
+                    options.acknowledge(((OptionAcknowledgementPacket) response).getOptions());
+                    System.out.println("negotiated options: " + options);
+                } else if (response instanceof AcknowledgementPacket) {
+                    options.acknowledge(Collections.<String, String>emptyMap());
+                } else {
                     System.out.println("unexpected packet from server, aborting: " + response);
                     return;
                 }
 
             } catch (IOException e) {
                 System.out.println("could not read server response: " + e.getMessage());
+                return;
             } catch (TFTPException e) {
                 System.out.println("could not parse server response: " + e.getMessage());
+                return;
             }
 
             //receive the file now that ACK from server has been received
-            TCPFileUtil.receive(is, localFile);
+            TCPFileUtil.receive(is, os, localFiles, localFile, options);
 
         } catch (IOException e) {
             System.out.println("could not create socket: " + e.getMessage());
@@ -113,13 +152,15 @@ public class TFTPTCPClient extends GenericTFTPClient {
         //open a socket using any free port
         try (Socket socket = new Socket()) {
 
-            //attempt to connect to the server
+            //attempt to connect to the server, timing the handshake as a first measure of the round trip time
+            long connectStart = System.nanoTime();
             try {
                 socket.connect(new InetSocketAddress(remoteAddress, remotePort));
             } catch (IOException e) {
                 System.out.println("could not reach server: " + e.getMessage());
                 return;
             }
+            long connectTime = System.nanoTime() - connectStart;
 
             //open the input and output streams
             InputStream is;
@@ -137,8 +178,20 @@ public class TFTPTCPClient extends GenericTFTPClient {
                 return;
             }
 
+            //grow the socket's buffers to fit the link as the transfer goes
+            BufferTuner tuner = BufferTuner.forSocket(socket);
+            if (tuner != null) {
+                tuner.measured(connectTime);
+                is = new TuningInputStream(is, tuner);
+                os = new TuningOutputStream(os, tuner);
+            }
+
+            //tell the server the size of the file (so it can reserve the space up front), and ask it to accept
+            // compressed data and deltas if set up to do so
+            TransferOptions options = requestedOptions(file.length());
+
             //send an initial WRQ
-            WriteRequestPacket wrq = new WriteRequestPacket(remoteFile, Mode.OCTET);
+            WriteRequestPacket wrq = new WriteRequestPacket(remoteFile, Mode.OCTET, options.toMap());
 
             try {
                 os.write(wrq.getPacketBytes());
@@ -156,14 +209,21 @@ public class TFTPTCPClient extends GenericTFTPClient {
                     return;
                 }
 
-                //should acknowledge the response from the server
-                if (!(response instanceof AcknowledgementPacket)) {
+                //should acknowledge the response from the server - with an OACK if it accepted any options
+                if (response instanceof OptionAcknowledgementPacket) {
+                    options.acknowledge(((OptionAcknowledgementPacket) response).getOptions());
+                    System.out.println("negotiated options: " + options);
+                } else if (response instanceof AcknowledgementPacket) {
+                    options.acknowledge(Collections.<String, String>emptyMap());
+                } else {
                     System.out.println("unexpected packet from server, aborting: " + response);
                     return;
                 }
 
                 //server accepted WRQ - send file
-                TCPFileUtil.send(os, localFile);
+                try (StoredFile stored = localFiles.open(localFile)) {
+                    TCPFileUtil.send(is, os, stored, options);
+                }
 
             } catch (IOException e) {
                 System.out.println("could not read server response: " + e.getMessage());
@@ -176,6 +236,25 @@ public class TFTPTCPClient extends GenericTFTPClient {
         }
     }
 
+    /**
+     * Builds the options to append to a request.
+     *
+     * @param transferSize the size of the file being sent, or 0 to ask the server for the size of the file
+     * @return the options to request
+     */
+    private TransferOptions requestedOptions(long transferSize) {
+        TransferOptions options = new TransferOptions();
+        options.setTransferSize(transferSize);
+        if (Configuration.COMPRESSION != null) {
+            options.setCodec(Codecs.fromName(Configuration.COMPRESSION));
+        }
+        options.setDeltaBlockSize(Configuration.DELTA_BLOCK_SIZE);
+        if (Configuration.CHECKSUM) {
+            options.setChecksum(String.join(",", Checksums.getNames()));
+        }
+        return options;
+    }
+
     /**
      * Since the first packet could be an acknowledgement packet (4 bytes) or an error packet (arbitrarily many
      * bytes up to the max packet length), it is hard to tell where the file transfer starts. To solve this, the server
@@ -189,7 +268,13 @@ public class TFTPTCPClient extends GenericTFTPClient {
      */
     private TFTPPacket readPadded(InputStream is) throws IOException, TFTPException {
         byte[] padded = new byte[Configuration.MAX_PACKET_LENGTH];
-        int read = is.read(padded, 0, padded.length);
+        //keep reading until the whole padded packet is in, as the server may send more straight after it (eg. the
+        // signature for a delta transfer), and a single read can stop short
+        int read = 0;
+        int num;
+        while (read < padded.length && (num = is.read(padded, read, padded.length - read)) != -1) {
+            read += num;
+        }
         if (read != Configuration.MAX_PACKET_LENGTH)
             throw new TFTPException("packet not padded properly");
         return TFTPPacket.fromByteArray(padded, Configuration.MAX_PACKET_LENGTH);
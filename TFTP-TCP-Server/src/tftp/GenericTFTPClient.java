@@ -1,6 +1,8 @@
 package tftp;
 
 import tftp.core.Configuration;
+import tftp.core.TransferOptions;
+import tftp.core.codec.Codecs;
 
 import java.net.InetAddress;
 import java.net.UnknownHostException;
@@ -71,6 +73,18 @@ public abstract class GenericTFTPClient extends Thread {
                         //set the timeout length
                         handleTimeout(args);
                         break;
+                    case "compress":
+                        //set the codec to compress transfers with
+                        handleCompress(args);
+                        break;
+                    case "delta":
+                        //turn delta transfers on or off
+                        handleDelta(args);
+                        break;
+                    case "checksum":
+                        //turn checksum verification on or off
+                        handleChecksum(args);
+                        break;
                     case "exit":
                         //stop the client
                         return;
@@ -227,6 +241,79 @@ public abstract class GenericTFTPClient extends Thread {
         }
     }
 
+    /**
+     * Sets the codec which file data is compressed with on the wire, or turns compression off. The server may
+     * still refuse compression, in which case the data is sent uncompressed.
+     *
+     * @param args the user input, split by whitespace
+     */
+    private void handleCompress(String[] args) {
+        //if no arguments to command, print correct usage
+        if (args.length == 1) {
+            System.out.println("usage: compress codec-name|off");
+            System.out.println("available codecs: " + Codecs.getNames());
+            return;
+        }
+
+        //turn off compression, or set the codec, print error if there is no such codec
+        if (args[1].equals("off")) {
+            Configuration.COMPRESSION = null;
+        } else if (Codecs.fromName(args[1]) != null) {
+            Configuration.COMPRESSION = args[1];
+        } else {
+            System.out.println("unknown codec: " + args[1]);
+            System.out.println("available codecs: " + Codecs.getNames());
+        }
+    }
+
+    /**
+     * Turns delta transfers on or off. When on, only the parts of a file which differ from the other side's
+     * existing copy are sent, compared in blocks of the given size. Only supported over TCP.
+     *
+     * @param args the user input, split by whitespace
+     */
+    private void handleDelta(String[] args) {
+        //if no arguments to command, print correct usage
+        if (args.length == 1) {
+            System.out.println("usage: delta on|off|block-size");
+            return;
+        }
+
+        //set the block size, print error if not an integer in range
+        if (args[1].equals("on")) {
+            Configuration.DELTA_BLOCK_SIZE = Configuration.DEFAULT_DELTA_BLOCK_SIZE;
+        } else if (args[1].equals("off")) {
+            Configuration.DELTA_BLOCK_SIZE = 0;
+        } else {
+            try {
+                int blockSize = Integer.parseInt(args[1]);
+                if (blockSize < TransferOptions.MIN_DELTA_BLOCK_SIZE
+                        || blockSize > TransferOptions.MAX_DELTA_BLOCK_SIZE) {
+                    throw new NumberFormatException();
+                }
+                Configuration.DELTA_BLOCK_SIZE = blockSize;
+            } catch (NumberFormatException nfe) {
+                System.out.println("invalid block size: " + args[1]);
+            }
+        }
+    }
+
+    /**
+     * Turns checksum verification of transfers on or off. When on, the sender appends a checksum of the file
+     * data, which the receiver checks - the server may still refuse, in which case the transfer is not verified.
+     *
+     * @param args the user input, split by whitespace
+     */
+    private void handleChecksum(String[] args) {
+        //if no arguments to command, print correct usage
+        if (args.length == 1 || !(args[1].equals("on") || args[1].equals("off"))) {
+            System.out.println("usage: checksum on|off");
+            return;
+        }
+
+        Configuration.CHECKSUM = args[1].equals("on");
+    }
+
     /**
      * Prints the available commands, along with their required and optional arguments.
      */
@@ -235,6 +322,9 @@ public abstract class GenericTFTPClient extends Thread {
         System.out.println("get remote-path [local-path]");
         System.out.println("put local-path [remote-path]");
         System.out.println("timeout time-in-ms");
+        System.out.println("compress codec-name|off");
+        System.out.println("delta on|off|block-size");
+        System.out.println("checksum on|off");
         System.out.println("exit");
     }
 
@@ -0,0 +1,117 @@
+package tftp.core.checksum;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.zip.Checksum;
+
+/**
+ * The receiving end of a checksum trailer: passes bytes through to an underlying stream while updating a
+ * checksum, always holding back the last few bytes, since until the stream ends they may be the trailer. When
+ * closed, the held-back bytes are compared against the checksum of everything before them.
+ */
+public class VerifyingOutputStream extends OutputStream {
+
+    /**
+     * The stream to write the verified bytes to.
+     */
+    private final OutputStream out;
+
+    /**
+     * The checksum of the bytes passed through so far.
+     */
+    private final Checksum checksum;
+
+    /**
+     * Whether to close the underlying stream once verified (eg. a decoding stream which needs finishing), or
+     * just flush it.
+     */
+    private final boolean closeUnderlying;
+
+    /**
+     * The last bytes written, which may turn out to be the trailer.
+     */
+    private final byte[] held = new byte[Checksums.TRAILER_LENGTH];
+
+    /**
+     * How many bytes are currently held back.
+     */
+    private int heldLength = 0;
+
+    /**
+     * Creates a new verifying stream.
+     *
+     * @param out the stream to write verified bytes to
+     * @param checksum a new checksum, of the same algorithm as the sender's
+     * @param closeUnderlying true to close the underlying stream when this is closed, false to only flush it
+     */
+    public VerifyingOutputStream(OutputStream out, Checksum checksum, boolean closeUnderlying) {
+        this.out = out;
+        this.checksum = checksum;
+        this.closeUnderlying = closeUnderlying;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void write(int b) throws IOException {
+        write(new byte[]{(byte) b}, 0, 1);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException {
+        //of the held bytes plus the new bytes, everything but the last TRAILER_LENGTH can be passed through
+        int release = heldLength + len - held.length;
+        if (release > 0) {
+            int fromHeld = Math.min(release, heldLength);
+            if (fromHeld > 0) {
+                pass(held, 0, fromHeld);
+                System.arraycopy(held, fromHeld, held, 0, heldLength - fromHeld);
+                heldLength -= fromHeld;
+            }
+            int fromNew = release - fromHeld;
+            if (fromNew > 0) {
+                pass(b, off, fromNew);
+                off += fromNew;
+                len -= fromNew;
+            }
+        }
+        System.arraycopy(b, off, held, heldLength, len);
+        heldLength += len;
+    }
+
+    /**
+     * Passes verified bytes through to the underlying stream.
+     */
+    private void pass(byte[] b, int off, int len) throws IOException {
+        checksum.update(b, off, len);
+        out.write(b, off, len);
+    }
+
+    /**
+     * Compares the trailer against the checksum of the bytes before it.
+     *
+     * @throws IOException if the trailer is missing or does not match
+     */
+    @Override
+    public void close() throws IOException {
+        if (closeUnderlying) {
+            out.close();
+        } else {
+            out.flush();
+        }
+        if (heldLength != held.length) {
+            throw new IOException("checksum trailer missing");
+        }
+        byte[] expected = Checksums.trailer(checksum);
+        for (int i = 0; i < held.length; ++i) {
+            if (held[i] != expected[i]) {
+                throw new IOException("checksum mismatch - file is corrupt");
+            }
+        }
+    }
+
+}
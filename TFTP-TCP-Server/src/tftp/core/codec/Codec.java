@@ -0,0 +1,46 @@
+package tftp.core.codec;
+
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * A compression scheme which may be negotiated for a transfer using the compress option. Both directions work by
+ * 'pushing' bytes through a stream: the sender pushes file bytes through {@link #compress(OutputStream)}, and the
+ * receiver pushes the bytes it receives through {@link #decompress(OutputStream)} on their way to the file.
+ * <p>
+ * Closing either returned stream must flush everything still buffered by the codec through to the underlying
+ * stream, but must leave the underlying stream open.
+ */
+public interface Codec {
+
+    /**
+     * @return the name used to identify this codec in the compress option
+     */
+    String getName();
+
+    /**
+     * @return the file name extension conventionally used for files in this codec's format (eg. ".gz"),
+     * used to find precompressed copies of files
+     */
+    String getFileExtension();
+
+    /**
+     * Wraps a stream so that bytes written to the returned stream are written, compressed, to the given stream.
+     *
+     * @param out the stream to write compressed bytes to
+     * @return a stream accepting the uncompressed bytes
+     * @throws IOException if the codec could not be set up
+     */
+    OutputStream compress(OutputStream out) throws IOException;
+
+    /**
+     * Wraps a stream so that compressed bytes written to the returned stream are written, decompressed, to the
+     * given stream.
+     *
+     * @param out the stream to write decompressed bytes to
+     * @return a stream accepting the compressed bytes
+     * @throws IOException if the codec could not be set up
+     */
+    OutputStream decompress(OutputStream out) throws IOException;
+
+}
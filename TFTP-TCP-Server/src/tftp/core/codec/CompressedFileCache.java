@@ -0,0 +1,197 @@
+package tftp.core.codec;
+
+import tftp.core.storage.Storage;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Finds compressed copies of files, so that a server sending a file compressed doesn't have to compress it again
+ * for every request. A precompressed sibling made by an administrator (eg. {@code boot.img.gz} next to
+ * {@code boot.img}) is used if it is at least as new as the file itself. Otherwise the file is compressed once into
+ * a cache directory in the background - the transfers asking for it meanwhile compress it as they go - and that
+ * copy is reused until the file changes. The cache is kept under a size limit by removing the least recently used
+ * copies.
+ */
+public class CompressedFileCache {
+
+    /**
+     * The directory holding compressed copies, or null if only precompressed siblings are used.
+     */
+    private final File directory;
+
+    /**
+     * The maximum total size in bytes of the compressed copies in the cache directory.
+     */
+    private final long maxBytes;
+
+    /**
+     * The names of the copies being made, so each is only made once however many transfers ask for it meanwhile.
+     */
+    private final Set<String> pending = ConcurrentHashMap.newKeySet();
+
+    /**
+     * Makes the copies, one at a time.
+     */
+    private final ExecutorService compressor = Executors.newSingleThreadExecutor(r -> {
+        Thread thread = new Thread(r, "compressor");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    /**
+     * Creates a new cache.
+     *
+     * @param directory the directory to keep compressed copies in, or null to only use precompressed siblings
+     * @param maxBytes the maximum total size in bytes of the compressed copies
+     */
+    public CompressedFileCache(File directory, long maxBytes) {
+        this.directory = directory;
+        this.maxBytes = maxBytes;
+        if (directory != null && !directory.isDirectory() && !directory.mkdirs()) {
+            System.out.println("unable to create compression cache: " + directory);
+        }
+    }
+
+    /**
+     * Finds a copy of a file in the given codec's format. If there is none yet, one is made in the background for
+     * the transfers after this one.
+     *
+     * @param storage the storage holding the file
+     * @param name the name of the file, as given in the request
+     * @param codec the codec negotiated for the transfer
+     * @return a file holding the compressed bytes, or null if there is no usable copy and the file must be
+     *         compressed as it is sent
+     */
+    public File lookup(Storage storage, String name, Codec codec) {
+        File file = storage.getFile(name);
+        if (file == null) {
+            return null;
+        }
+
+        //a precompressed sibling is found by name like the file itself, so it can't lead out of a jailed storage -
+        // and is only trusted if it is not older than the file it was made from
+        File sibling = storage.getFile(name + codec.getFileExtension());
+        if (sibling != null && sibling.isFile() && sibling.lastModified() >= file.lastModified()) {
+            return sibling;
+        }
+
+        //files too big for the cache are compressed on the fly
+        if (directory == null || file.length() > maxBytes) {
+            return null;
+        }
+
+        try {
+            String key = key(file, codec);
+            File cached = new File(directory, key + codec.getFileExtension());
+            if (cached.isFile()) {
+                //mark as recently used, so it is the last to be evicted
+                cached.setLastModified(System.currentTimeMillis());
+                return cached;
+            }
+            //compressing the whole file could take longer than the client waits for an answer
+            if (pending.add(key)) {
+                compressor.execute(() -> fill(file, cached, codec, key));
+            }
+            return null;
+        } catch (IOException e) {
+            System.out.println("unable to cache compressed copy of " + file + ": " + e.getMessage());
+            return null;
+        }
+    }
+
+    /**
+     * Makes a copy in the cache, and makes room for it.
+     */
+    private void fill(File file, File cached, Codec codec, String key) {
+        try {
+            compress(file, cached, codec);
+            evict();
+        } catch (IOException e) {
+            System.out.println("unable to cache compressed copy of " + file + ": " + e.getMessage());
+        } finally {
+            pending.remove(key);
+        }
+    }
+
+    /**
+     * Names a compressed copy after the file's path, size, modification time and codec - so a changed file
+     * gets a fresh copy, and the stale one is eventually evicted.
+     */
+    private static String key(File file, Codec codec) throws IOException {
+        String identity = file.getCanonicalPath() + '\0' + file.length() + '\0' + file.lastModified()
+                + '\0' + codec.getName();
+        try {
+            byte[] hash = MessageDigest.getInstance("SHA-1").digest(identity.getBytes(StandardCharsets.UTF_8));
+            StringBuilder hex = new StringBuilder();
+            for (byte b : hash) {
+                hex.append(String.format("%02x", b));
+            }
+            return hex.toString();
+        } catch (NoSuchAlgorithmException e) {
+            throw new IOException(e);
+        }
+    }
+
+    /**
+     * Compresses a file into the cache. The copy is written under a temporary name and renamed into place, so
+     * sessions never see a half-written copy.
+     */
+    private void compress(File file, File cached, Codec codec) throws IOException {
+        File temp = File.createTempFile("compress", ".tmp", directory);
+        try {
+            try (InputStream in = new FileInputStream(file);
+                 FileOutputStream fos = new FileOutputStream(temp)) {
+                OutputStream out = codec.compress(fos);
+                byte[] buffer = new byte[8192];
+                int read;
+                while ((read = in.read(buffer)) != -1) {
+                    out.write(buffer, 0, read);
+                }
+                out.close();
+            }
+            Files.move(temp.toPath(), cached.toPath(), StandardCopyOption.ATOMIC_MOVE);
+        } finally {
+            temp.delete();
+        }
+    }
+
+    /**
+     * Removes the least recently used compressed copies until the cache is within its size limit. A copy being
+     * sent by another session can safely be removed, as the open file is unaffected.
+     */
+    private synchronized void evict() {
+        //copies still being written are left alone
+        File[] files = directory.listFiles(f -> f.isFile() && !f.getName().endsWith(".tmp"));
+        if (files == null) {
+            return;
+        }
+        long total = 0;
+        for (File f : files) {
+            total += f.length();
+        }
+        Arrays.sort(files, Comparator.comparingLong(File::lastModified));
+        for (int i = 0; i < files.length && total > maxBytes; ++i) {
+            long length = files[i].length();
+            if (files[i].delete()) {
+                total -= length;
+            }
+        }
+    }
+
+}
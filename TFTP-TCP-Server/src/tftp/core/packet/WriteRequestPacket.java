@@ -3,6 +3,8 @@ package tftp.core.packet;
 import tftp.core.Mode;
 import tftp.core.TFTPException;
 
+import java.util.Map;
+
 /**
  * Represents a write-request (WRQ) packet in the trivial file transfer protocol.
  */
@@ -15,6 +17,13 @@ public class WriteRequestPacket extends RequestPacket {
         super(file, mode);
     }
 
+    /**
+     * {@inheritDoc}
+     */
+    public WriteRequestPacket(String file, Mode mode, Map<String, String> options) {
+        super(file, mode, options);
+    }
+
     /**
      * {@inheritDoc}
      */
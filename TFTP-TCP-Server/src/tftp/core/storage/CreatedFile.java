@@ -0,0 +1,19 @@
+package tftp.core.storage;
+
+import java.io.IOException;
+
+/**
+ * A file being written by an upload. The file only replaces any existing file with the same name once it is
+ * committed, so readers never see it half-written - closing it without committing discards it.
+ */
+public interface CreatedFile extends StoredFile {
+
+    /**
+     * Makes the file visible under its name, replacing any existing file, and made durable according to the
+     * storage's {@link SyncPolicy}. The file is closed once committed.
+     *
+     * @throws IOException if the file could not be committed
+     */
+    void commit() throws IOException;
+
+}
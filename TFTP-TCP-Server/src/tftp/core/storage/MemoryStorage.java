@@ -0,0 +1,213 @@
+package tftp.core.storage;
+
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Keeps files in memory, for small sets of hot files (eg. boot images) which are served far more often than
+ * they change. A file being written is only added once committed, and readers of the file it replaces keep
+ * reading the old contents. The storage can be loaded from a directory at startup - files written to it afterwards are only
+ * kept in memory, and are lost when the server stops.
+ */
+public class MemoryStorage implements Storage {
+
+    /**
+     * The files, mapped from their names.
+     */
+    private final Map<String, MemoryFile> files = new ConcurrentHashMap<>();
+
+    /**
+     * Creates a new, empty storage.
+     */
+    public MemoryStorage() {}
+
+    /**
+     * Creates a new storage holding copies of all files in a directory (and its subdirectories), named by their
+     * paths relative to the directory.
+     *
+     * @param directory the directory to load
+     * @return the loaded storage
+     * @throws IOException if a file could not be read
+     */
+    public static MemoryStorage load(File directory) throws IOException {
+        MemoryStorage storage = new MemoryStorage();
+        storage.load(directory, "");
+        return storage;
+    }
+
+    /**
+     * Loads the files in a directory, with the given prefix on their names.
+     */
+    private void load(File directory, String prefix) throws IOException {
+        File[] children = directory.listFiles();
+        if (children == null) {
+            throw new IOException("unable to list " + directory);
+        }
+        for (File child : children) {
+            if (child.isDirectory()) {
+                load(child, prefix + child.getName() + "/");
+            } else if (child.isFile()) {
+                byte[] data = Files.readAllBytes(child.toPath());
+                files.put(prefix + child.getName(), new MemoryFile(data, data.length));
+            }
+        }
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public StoredFile open(String name) throws IOException {
+        MemoryFile file = files.get(name);
+        if (file == null) {
+            throw new FileNotFoundException(name);
+        }
+        return file;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public CreatedFile create(String name) {
+        return new PendingFile(name);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public boolean isWritable() {
+        return true;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public File getFile(String name) {
+        return null;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public String toString() {
+        return "memory (" + files.size() + " files)";
+    }
+
+    /**
+     * A file held in a byte array, which grows as it is written.
+     */
+    private static class MemoryFile implements StoredFile {
+
+        /**
+         * The contents of the file, plus room to grow.
+         */
+        private byte[] data;
+
+        /**
+         * The size of the file - the number of bytes of {@link #data} in use.
+         */
+        private int size;
+
+        /**
+         * Creates a new file.
+         */
+        private MemoryFile(byte[] data, int size) {
+            this.data = data;
+            this.size = size;
+        }
+
+        /**
+         * {@inheritDoc}
+         */
+        @Override
+        public synchronized long size() {
+            return size;
+        }
+
+        /**
+         * {@inheritDoc}
+         */
+        @Override
+        public synchronized int read(long position, byte[] buffer, int offset, int length) {
+            if (position >= size) {
+                return length == 0 ? 0 : -1;
+            }
+            int count = (int) Math.min(length, size - position);
+            System.arraycopy(data, (int) position, buffer, offset, count);
+            return count;
+        }
+
+        /**
+         * {@inheritDoc}
+         */
+        @Override
+        public synchronized void write(long position, byte[] buffer, int offset, int length) throws IOException {
+            long end = position + length;
+            if (end > Integer.MAX_VALUE - 8) {
+                throw new IOException("file too large to hold in memory");
+            }
+            if (end > data.length) {
+                //grow geometrically, so a file written a block at a time isn't copied for every block
+                byte[] grown = new byte[(int) Math.min(Integer.MAX_VALUE - 8, Math.max(end, data.length * 2L))];
+                System.arraycopy(data, 0, grown, 0, size);
+                data = grown;
+            }
+            System.arraycopy(buffer, offset, data, (int) position, length);
+            size = Math.max(size, (int) end);
+        }
+
+        /**
+         * {@inheritDoc}
+         */
+        @Override
+        public synchronized void truncate(long size) {
+            if (size < this.size) {
+                this.size = (int) size;
+            }
+        }
+
+        /**
+         * Does nothing - the contents stay in memory until the file is replaced.
+         */
+        @Override
+        public void close() {}
+
+    }
+
+    /**
+     * A file being written, which is added to the storage once committed.
+     */
+    private class PendingFile extends MemoryFile implements CreatedFile {
+
+        /**
+         * The name the file is added under.
+         */
+        private final String name;
+
+        /**
+         * Creates a new, empty pending file.
+         */
+        private PendingFile(String name) {
+            super(new byte[0], 0);
+            this.name = name;
+        }
+
+        /**
+         * {@inheritDoc}
+         */
+        @Override
+        public void commit() {
+            files.put(name, this);
+        }
+
+    }
+
+}
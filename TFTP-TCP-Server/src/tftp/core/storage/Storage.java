@@ -0,0 +1,74 @@
+package tftp.core.storage;
+
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.nio.file.AccessDeniedException;
+
+/**
+ * Where a server keeps the files it serves, so transfers don't have to care whether a file lives in a directory,
+ * in memory or inside an archive. Files are looked up by the name given in the client's request.
+ */
+public interface Storage {
+
+    /**
+     * Opens a file for reading.
+     *
+     * @param name the name of the file, as given in the request
+     * @return the opened file
+     * @throws FileNotFoundException if there is no such file
+     * @throws AccessDeniedException if the name leads outside the storage
+     * @throws IOException if the file could not be opened
+     */
+    StoredFile open(String name) throws IOException;
+
+    /**
+     * Creates a file for writing. The file replaces any existing file with the same name once it is committed -
+     * until then, readers still see the existing file.
+     *
+     * @param name the name of the file, as given in the request
+     * @return the created (empty) file
+     * @throws FileNotFoundException if the file could not be created, eg. if the storage is read-only
+     * @throws IOException if the file could not be created
+     */
+    CreatedFile create(String name) throws IOException;
+
+    /**
+     * Creates a file for writing, as {@link #create(String)}, given how big it is expected to be - which a storage
+     * may use to choose how the file is written.
+     *
+     * @param name the name of the file, as given in the request
+     * @param size the expected size of the file in bytes, or -1 if unknown
+     * @return the created (empty) file
+     * @throws FileNotFoundException if the file could not be created, eg. if the storage is read-only
+     * @throws IOException if the file could not be created
+     */
+    default CreatedFile create(String name, long size) throws IOException {
+        return create(name);
+    }
+
+    /**
+     * Checks that a name may be looked up in this storage at all, so a request for a file outside it can be refused
+     * before the transfer starts.
+     *
+     * @param name the name of the file, as given in the request
+     * @throws AccessDeniedException if the name leads outside the storage
+     * @throws IOException if the name could not be checked
+     */
+    default void checkAccess(String name) throws IOException {}
+
+    /**
+     * @return true if files can be created in this storage
+     */
+    boolean isWritable();
+
+    /**
+     * Gives the file on the local file system holding the named file, for features which need one (eg. finding
+     * precompressed copies of the file, or delta transfers).
+     *
+     * @param name the name of the file, as given in the request
+     * @return the local file, or null if the named file doesn't live on the local file system
+     */
+    File getFile(String name);
+
+}
@@ -0,0 +1,79 @@
+package tftp.core.storage;
+
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * Writes a stored file from start to end, for transfers which receive a file as a stream. Closing the stream
+ * leaves the file open.
+ */
+public class StoredFileOutputStream extends OutputStream {
+
+    /**
+     * The file being written.
+     */
+    private final StoredFile file;
+
+    /**
+     * The offset the next byte is written at.
+     */
+    private long position = 0;
+
+    /**
+     * Creates a new stream writing from the start of the given file.
+     *
+     * @param file the file to write
+     */
+    public StoredFileOutputStream(StoredFile file) {
+        this.file = file;
+    }
+
+    /**
+     * @return the number of bytes written so far - if space was reserved for the file up front, the file should
+     * be truncated to this once the transfer is complete
+     */
+    public long getPosition() {
+        return position;
+    }
+
+    /**
+     * Writes bytes further on in the file, without moving the stream's position - for data which arrived ahead of
+     * its turn. Once the stream reaches it, it is skipped over rather than written again.
+     *
+     * @param ahead how far past the stream's position to write, in bytes
+     * @param b the buffer holding the bytes to write
+     * @param off the offset of the bytes in the buffer
+     * @param len the number of bytes to write
+     * @throws IOException if the file could not be written
+     */
+    public void writeAhead(long ahead, byte[] b, int off, int len) throws IOException {
+        file.write(position + ahead, b, off, len);
+    }
+
+    /**
+     * Moves the stream's position past bytes already written with {@link #writeAhead(long, byte[], int, int)}.
+     *
+     * @param len the number of bytes to skip
+     */
+    public void skip(long len) {
+        position += len;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void write(int b) throws IOException {
+        write(new byte[]{(byte) b}, 0, 1);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException {
+        file.write(position, b, off, len);
+        position += len;
+    }
+
+}
@@ -0,0 +1,320 @@
+package tftp.core.tuning;
+
+import tftp.core.Configuration;
+
+import java.net.DatagramSocket;
+import java.net.InetAddress;
+import java.net.Socket;
+import java.net.SocketException;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Grows a transfer's socket buffers to fit its link, rather than leaving them at the operating system's defaults -
+ * which limit a fast or distant link to however many bytes the defaults hold per round trip. Along the way the
+ * transfer tells the tuner the round trip time it measures and the bytes it sends or receives, and every few round
+ * trips the throughput over them gives the bandwidth-delay product of the link. A buffer is grown to twice that,
+ * so there is room to spare while the throughput climbs, up to {@link Configuration#MAX_SOCKET_BUFFER}.
+ * <p>
+ * Buffers are only ever grown past their current size, so a TCP socket's buffers are never pinned below what the
+ * kernel's own autotuning had already reached. Each change is printed with the size asked for and the size the
+ * kernel actually gave, which is where its limits (eg. {@code net.core.rmem_max} on Linux) show up.
+ */
+public class BufferTuner {
+
+    /**
+     * Roughly what the kernel charges a buffer for each datagram on top of its payload - so a receive buffer holding
+     * a window of small datagrams has to be quite a lot larger than the window's data.
+     */
+    private static final int DATAGRAM_OVERHEAD = 768;
+
+    /**
+     * The shortest time throughput is measured over, in nanoseconds - however short the round trip, so a few
+     * bytes sent in a burst don't look like a fast link.
+     */
+    private static final long MIN_PERIOD = 50_000_000L;
+
+    /**
+     * The number of round trips throughput is measured over.
+     */
+    private static final int PERIOD_ROUND_TRIPS = 4;
+
+    /**
+     * The most hosts whose round trip time is remembered.
+     */
+    private static final int MAX_REMEMBERED = 1024;
+
+    /**
+     * The shortest round trip time measured to each host, in nanoseconds - so a transfer which can't measure the
+     * round trip itself (eg. a TCP server sending a file, which never hears back from the client) can start from
+     * the one measured by an earlier transfer, as the kernel does with its own metrics for TCP.
+     */
+    private static final Map<InetAddress, Long> ROUND_TRIPS = Collections.synchronizedMap(
+            new LinkedHashMap<InetAddress, Long>(16, 0.75f, true) {
+                @Override
+                protected boolean removeEldestEntry(Map.Entry<InetAddress, Long> eldest) {
+                    return size() > MAX_REMEMBERED;
+                }
+            }
+    );
+
+    /**
+     * Reads and sets the size of one of a socket's buffers.
+     */
+    private interface SocketBuffer {
+
+        int get() throws SocketException;
+
+        void set(int size) throws SocketException;
+
+    }
+
+    /**
+     * One of the socket's buffers, and the throughput measured through it.
+     */
+    private class Side {
+
+        /**
+         * The name of the buffer, for printing.
+         */
+        private final String name;
+
+        /**
+         * Reads and sets the size of the buffer.
+         */
+        private final SocketBuffer buffer;
+
+        /**
+         * The size the buffer was last asked to be, or its size when the transfer started.
+         */
+        private int requested;
+
+        /**
+         * Whether the kernel gave less than was last asked for - there is no point asking for more.
+         */
+        private boolean clamped = false;
+
+        /**
+         * The start of the current measurement period in nanoseconds (0 before the first bytes), and the bytes
+         * counted since then.
+         */
+        private long periodStart = 0;
+        private long bytes = 0;
+
+        /**
+         * Creates a new side.
+         */
+        private Side(String name, SocketBuffer buffer) throws SocketException {
+            this.name = name;
+            this.buffer = buffer;
+            this.requested = buffer.get();
+        }
+
+        /**
+         * Counts bytes through the buffer, and grows it if the period is over and the link needs more.
+         */
+        private void count(long count) {
+            long now = System.nanoTime();
+            if (periodStart == 0) {
+                periodStart = now;
+                return;
+            }
+            bytes += count;
+            long elapsed = now - periodStart;
+            if (rtt == 0 || elapsed < Math.max(MIN_PERIOD, PERIOD_ROUND_TRIPS * rtt)) {
+                return;
+            }
+            //bytes per second times seconds per round trip
+            long product = (long) ((double) bytes * rtt / elapsed);
+            periodStart = now;
+            bytes = 0;
+            grow(2 * product, String.format("bdp %d bytes at %.1f ms", product, rtt / 1_000_000.0));
+        }
+
+        /**
+         * Grows the buffer to at least the given size, if it isn't already that large.
+         */
+        private void grow(long target, String reason) {
+            if (clamped || target <= requested || requested >= cap) {
+                return;
+            }
+            //ask in powers of two, so the buffer is set a handful of times rather than every period
+            int size = (int) Math.min(cap, Long.highestOneBit(target - 1) << 1);
+            try {
+                //the kernel may have grown the buffer itself since it was last looked at
+                int before = buffer.get();
+                if (before >= size) {
+                    requested = before;
+                    return;
+                }
+                buffer.set(size);
+                int actual = buffer.get();
+                requested = size;
+                clamped = actual < size;
+                System.out.printf(
+                        "socket %s buffer to %s: asked for %d bytes, was %d, got %d%s (%s)%n",
+                        name, peer, size, before, actual, clamped ? " - clamped by the kernel" : "", reason
+                );
+            } catch (SocketException e) {
+                System.out.println("could not set socket " + name + " buffer: " + e.getMessage());
+                clamped = true;
+            }
+        }
+
+    }
+
+    /**
+     * The host at the other end of the socket.
+     */
+    private final InetAddress peer;
+
+    /**
+     * The socket's send and receive buffers.
+     */
+    private final Side send;
+    private final Side receive;
+
+    /**
+     * The largest size a buffer is grown to.
+     */
+    private final int cap;
+
+    /**
+     * The shortest round trip time measured, in nanoseconds - 0 until one is known. The shortest is the one taken,
+     * as longer ones include time spent queued behind the transfer's own data, which a bigger buffer would only
+     * add to.
+     */
+    private long rtt;
+
+    /**
+     * When a round trip being timed started, in nanoseconds, or 0 if none is.
+     */
+    private long roundTripStart = 0;
+
+    /**
+     * Creates a new tuner.
+     */
+    private BufferTuner(InetAddress peer, SocketBuffer send, SocketBuffer receive) throws SocketException {
+        this.peer = peer;
+        this.send = new Side("send", send);
+        this.receive = new Side("receive", receive);
+        this.cap = Configuration.MAX_SOCKET_BUFFER;
+        Long remembered = ROUND_TRIPS.get(peer);
+        this.rtt = remembered == null ? 0 : remembered;
+    }
+
+    /**
+     * Creates a tuner for a UDP transfer's socket, with the cap set in {@link Configuration}.
+     *
+     * @param socket the socket
+     * @param peer the host the transfer is with
+     * @return the tuner, or null if socket buffers are left alone (or can't be read)
+     */
+    public static BufferTuner forSocket(DatagramSocket socket, InetAddress peer) {
+        if (Configuration.MAX_SOCKET_BUFFER <= 0) {
+            return null;
+        }
+        try {
+            return new BufferTuner(
+                    peer,
+                    new SocketBuffer() {
+                        public int get() throws SocketException { return socket.getSendBufferSize(); }
+                        public void set(int size) throws SocketException { socket.setSendBufferSize(size); }
+                    },
+                    new SocketBuffer() {
+                        public int get() throws SocketException { return socket.getReceiveBufferSize(); }
+                        public void set(int size) throws SocketException { socket.setReceiveBufferSize(size); }
+                    }
+            );
+        } catch (SocketException e) {
+            System.out.println("could not read socket buffer sizes: " + e.getMessage());
+            return null;
+        }
+    }
+
+    /**
+     * Creates a tuner for a TCP transfer's connected socket, with the cap set in {@link Configuration}.
+     *
+     * @param socket the socket
+     * @return the tuner, or null if socket buffers are left alone (or can't be read)
+     */
+    public static BufferTuner forSocket(Socket socket) {
+        if (Configuration.MAX_SOCKET_BUFFER <= 0) {
+            return null;
+        }
+        try {
+            return new BufferTuner(
+                    socket.getInetAddress(),
+                    new SocketBuffer() {
+                        public int get() throws SocketException { return socket.getSendBufferSize(); }
+                        public void set(int size) throws SocketException { socket.setSendBufferSize(size); }
+                    },
+                    new SocketBuffer() {
+                        public int get() throws SocketException { return socket.getReceiveBufferSize(); }
+                        public void set(int size) throws SocketException { socket.setReceiveBufferSize(size); }
+                    }
+            );
+        } catch (SocketException e) {
+            System.out.println("could not read socket buffer sizes: " + e.getMessage());
+            return null;
+        }
+    }
+
+    /**
+     * Takes a new measurement of the round trip time.
+     *
+     * @param rtt the round trip time, in nanoseconds
+     */
+    public void measured(long rtt) {
+        if (rtt <= 0) {
+            return;
+        }
+        this.rtt = this.rtt == 0 ? rtt : Math.min(this.rtt, rtt);
+        ROUND_TRIPS.put(peer, this.rtt);
+    }
+
+    /**
+     * Starts timing a round trip, which ends with the next bytes received - eg. on sending an acknowledgement
+     * which the sender waits for before sending more. Does nothing if a round trip is already being timed.
+     */
+    public void startRoundTrip() {
+        if (roundTripStart == 0) {
+            roundTripStart = System.nanoTime();
+        }
+    }
+
+    /**
+     * Counts bytes sent.
+     *
+     * @param bytes the number of bytes
+     */
+    public void sent(long bytes) {
+        send.count(bytes);
+    }
+
+    /**
+     * Counts bytes received, ending the round trip being timed if there is one.
+     *
+     * @param bytes the number of bytes
+     */
+    public void received(long bytes) {
+        if (roundTripStart != 0) {
+            measured(System.nanoTime() - roundTripStart);
+            roundTripStart = 0;
+        }
+        receive.count(bytes);
+    }
+
+    /**
+     * Grows the receive buffer to hold a number of datagrams at once - the window the sender may send before
+     * hearing back, which would otherwise be dropped as they arrive if the buffer filled up.
+     *
+     * @param datagrams the number of datagrams
+     * @param length the length of each datagram
+     */
+    public void reserve(int datagrams, int length) {
+        receive.grow((long) datagrams * (length + DATAGRAM_OVERHEAD), "window of " + datagrams + " datagrams");
+    }
+
+}
@@ -31,9 +31,23 @@ public class StringUtil {
      * @return a String object representing the same string as the one in the buffer
      */
     public static String getString(byte[] bytes, int offset) {
+        return getString(bytes, offset, bytes.length);
+    }
+
+    /**
+     * Given a byte array representing a TFTP string, return a java String object. The string is terminated by
+     * a null byte or by the given limit, whichever comes first - this stops a missing null byte from reading
+     * past the end of a packet into stale buffer contents.
+     *
+     * @param bytes the buffer holding the string
+     * @param offset the offset where the string starts
+     * @param limit the offset one past the last byte that may belong to the string
+     * @return a String object representing the same string as the one in the buffer
+     */
+    public static String getString(byte[] bytes, int offset, int limit) {
         //first, find the null byte position
         int nullPos = offset;
-        while (nullPos < bytes.length && bytes[nullPos] != 0) {
+        while (nullPos < limit && bytes[nullPos] != 0) {
             ++nullPos;
         }
         //given the null byte position, calculate the length of the string
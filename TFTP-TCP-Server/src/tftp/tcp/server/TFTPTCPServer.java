@@ -3,13 +3,30 @@ package tftp.tcp.server;
 import tftp.core.Configuration;
 import tftp.core.ErrorType;
 import tftp.core.Mode;
+import tftp.core.Option;
 import tftp.core.TFTPException;
+import tftp.core.TransferOptions;
+import tftp.core.codec.CompressedFileCache;
 import tftp.core.packet.*;
+import tftp.core.preload.AccessStatistics;
+import tftp.core.preload.Preloader;
+import tftp.core.scheduling.ScheduledOutputStream;
+import tftp.core.scheduling.TransferScheduler;
+import tftp.core.shaping.BandwidthShaper;
+import tftp.core.shaping.ShapedOutputStream;
+import tftp.core.storage.ChannelFile;
+import tftp.core.storage.Storage;
+import tftp.core.storage.Storages;
+import tftp.core.storage.StoredFile;
+import tftp.core.tuning.BufferTuner;
+import tftp.core.tuning.TuningInputStream;
+import tftp.core.tuning.TuningOutputStream;
 import tftp.tcp.TCPFileUtil;
 
 import java.io.*;
 import java.net.ServerSocket;
 import java.net.Socket;
+import java.nio.file.AccessDeniedException;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
 
@@ -23,13 +40,52 @@ public class TFTPTCPServer extends Thread {
      */
     private final int port;
 
+    /**
+     * Finds compressed copies of files for clients which negotiate compression, shared by all transfers.
+     */
+    private final CompressedFileCache compressedFiles;
+
+    /**
+     * Where the files served are kept.
+     */
+    private final Storage storage;
+
+    /**
+     * Counts reads of each file, or null if no counts are kept.
+     */
+    private final AccessStatistics statistics;
+
+    /**
+     * Limits the rate files are sent at, or null if they are sent as fast as the connection allows.
+     */
+    private final BandwidthShaper shaper;
+
+    /**
+     * Shares the send slots between transfers when the server is busy, or null if transfers send as they like.
+     */
+    private final TransferScheduler scheduler;
+
     /**
      * Creates a new TFTP TCP server.
      *
      * @param port the port to bind the server socket to
+     * @param storage where the files served are kept
+     * @param statistics counts reads of each file, or null to not keep counts
+     * @throws IllegalArgumentException if the priority rules are invalid
      */
-    public TFTPTCPServer(int port) {
+    public TFTPTCPServer(int port, Storage storage, AccessStatistics statistics) {
         this.port = port;
+        this.storage = storage;
+        this.statistics = statistics;
+        this.shaper = BandwidthShaper.fromConfiguration();
+        if (shaper != null && Configuration.RATE_REPORT_INTERVAL > 0) {
+            shaper.startReporting(Configuration.RATE_REPORT_INTERVAL);
+        }
+        this.scheduler = TransferScheduler.fromConfiguration();
+        this.compressedFiles = new CompressedFileCache(
+                Configuration.COMPRESSION_CACHE == null ? null : new File(Configuration.COMPRESSION_CACHE),
+                Configuration.COMPRESSION_CACHE_SIZE
+        );
     }
 
     /**
@@ -73,6 +129,15 @@ public class TFTPTCPServer extends Thread {
                         return;
                     }
 
+                    //grow the socket's buffers to fit the link as the transfer goes - the round trip time is taken
+                    // from an earlier transfer with the client, or timed from the acknowledgement of a WRQ to the
+                    // first bytes of the file
+                    BufferTuner tuner = BufferTuner.forSocket(workerSocket);
+                    if (tuner != null) {
+                        is = new TuningInputStream(is, tuner);
+                        os = new TuningOutputStream(os, tuner);
+                    }
+
                     //allocate a buffer to store the client request
                     byte[] buffer = new byte[Configuration.MAX_PACKET_LENGTH];
 
@@ -113,52 +178,133 @@ public class TFTPTCPServer extends Thread {
                     }
 
                     String fileName = ((RequestPacket) packet).getFileName();
-                    File file = new File(fileName);
+
+                    //parse any options appended to the request. the timeout, window size, bulk and fec options
+                    // have no meaning over TCP, as there is no retransmission, so they are dropped
+                    TransferOptions options = TransferOptions.fromMap(rq.getOptions());
+                    options.clear(Option.TIMEOUT);
+                    options.clear(Option.WINDOW_SIZE);
+                    options.clear(Option.BULK);
+                    options.clear(Option.FEC);
 
                     System.out.println("responding to request: " + rq + " from client: " + workerSocket.getInetAddress() + ":" + workerSocket.getPort());
 
                     if (packet instanceof WriteRequestPacket) {
 
+                        if (!storage.isWritable()) {
+                            ErrorPacket error = new ErrorPacket(
+                                    ErrorType.ACCESS_VIOLATION, "read-only server: " + rq.getFileName()
+                            );
+                            try {
+                                writePadded(error, os);
+                            } catch (IOException e) {
+                                System.out.println("could not send error packet: " + e.getMessage());
+                            }
+                            return;
+                        }
+
+                        try {
+                            storage.checkAccess(fileName);
+                        } catch (IOException e) {
+                            refuse(rq, os);
+                            return;
+                        }
+
+                        //a delta is only worth it if there is an existing copy to compare against
+                        if (!exists(fileName)) {
+                            options.clear(Option.DELTA);
+                        }
+
                         //send an acknowledgement to the client so it will send the file through
-                        AcknowledgementPacket ack = new AcknowledgementPacket((short) 0);
+                        if (tuner != null) {
+                            tuner.startRoundTrip();
+                        }
                         try {
-                            writePadded(ack, os);
+                            writePadded(acknowledgement(options), os);
                         } catch (IOException e) {
                             System.out.println("could not send acknowledgement: " + e.getMessage());
                             return;
                         }
 
                         //now receive the file
-                        TCPFileUtil.receive(is, fileName);
+                        TCPFileUtil.receive(is, os, storage, fileName, options);
 
                     } else if (packet instanceof ReadRequestPacket) {
 
                         //ensure that the requested file exists
-                        if (!file.exists()) {
+                        StoredFile source;
+                        try {
+                            source = storage.open(fileName);
+                        } catch (AccessDeniedException e) {
+                            refuse(rq, os);
+                            return;
+                        } catch (IOException e) {
                             ErrorPacket error = new ErrorPacket(
                                     ErrorType.FILE_NOT_FOUND, "file not found: " + rq.getFileName()
                             );
                             try {
                                 writePadded(error, os);
-                            } catch (IOException e) {
-                                System.out.println("could not send error packet: " + e.getMessage());
+                            } catch (IOException e2) {
+                                System.out.println("could not send error packet: " + e2.getMessage());
                             }
                             return;
                         }
 
-                        //send an acknowledgement to the client to notify it that all is going well and the file is
-                        // about to be sent through
-                        AcknowledgementPacket ack = new AcknowledgementPacket((short) 0);
+                        if (statistics != null) {
+                            statistics.record(fileName);
+                        }
+
                         try {
-                            writePadded(ack, os);
+                            //the client asked for the size of the file, so fill it in
+                            if (options.hasTransferSize()) {
+                                options.setTransferSize(source.size());
+                            }
+
+                            //if the client negotiated compression, send a compressed copy of the file where there
+                            // is one, rather than compressing it all over again. not for deltas, which are
+                            // computed from the file itself
+                            if (options.getCodec() != null && options.getDeltaBlockSize() == 0) {
+                                File compressed = compressedFiles.lookup(storage, fileName, options.getCodec());
+                                if (compressed != null) {
+                                    StoredFile copy = ChannelFile.open(compressed);
+                                    source.close();
+                                    source = copy;
+                                    options.setPrecompressed(true);
+                                }
+                            }
+
+                            //send an acknowledgement to the client to notify it that all is going well and the
+                            // file is about to be sent through
+                            try {
+                                writePadded(acknowledgement(options), os);
+                            } catch (IOException e) {
+                                System.out.println("could not send acknowledgement: " + e.getMessage());
+                                return;
+                            }
+
+                            //now send it to the client, taking turns with the other transfers when the server
+                            // is busy, and no faster than the rate limits allow
+                            OutputStream out = os;
+                            if (scheduler != null) {
+                                TransferScheduler.Session session = scheduler.register(
+                                        fileName, source.size(), workerSocket.getInetAddress()
+                                );
+                                System.out.println("sending " + fileName + " as " + session.getPriority()
+                                        + " transfer");
+                                out = new ScheduledOutputStream(out, session);
+                            }
+                            if (shaper != null) {
+                                out = new ShapedOutputStream(out, shaper, workerSocket.getInetAddress());
+                            }
+                            TCPFileUtil.send(is, out, source, options);
                         } catch (IOException e) {
-                            System.out.println("could not send acknowledgement: " + e.getMessage());
-                            return;
+                            System.out.println("error reading from file: " + e.getMessage());
+                        } finally {
+                            try {
+                                source.close();
+                            } catch (IOException ignore) {}
                         }
 
-                        //now send it to the client
-                        TCPFileUtil.send(os, fileName);
-
                     }
 
                 });
@@ -178,6 +324,51 @@ public class TFTPTCPServer extends Thread {
         }
     }
 
+    /**
+     * Refuses a request for a file outside the served directory.
+     *
+     * @param rq the request
+     * @param os the output stream to the client
+     */
+    private void refuse(RequestPacket rq, OutputStream os) {
+        System.out.println("refusing request outside the served directory: " + rq.getFileName());
+        ErrorPacket error = new ErrorPacket(ErrorType.ACCESS_VIOLATION, "access denied: " + rq.getFileName());
+        try {
+            writePadded(error, os);
+        } catch (IOException e) {
+            System.out.println("could not send error packet: " + e.getMessage());
+        }
+    }
+
+    /**
+     * Checks whether the storage already holds a file.
+     *
+     * @param name the name of the file
+     * @return true if the file could be opened
+     */
+    private boolean exists(String name) {
+        try {
+            storage.open(name).close();
+            return true;
+        } catch (IOException e) {
+            return false;
+        }
+    }
+
+    /**
+     * Gives the packet used to accept a request: a plain ACK0, or an OACK if any of the requested options
+     * were accepted.
+     *
+     * @param options the options accepted for the transfer
+     * @return the packet to send to the client
+     */
+    private TFTPPacket acknowledgement(TransferOptions options) {
+        if (options.isEmpty()) {
+            return new AcknowledgementPacket((short) 0);
+        }
+        return new OptionAcknowledgementPacket(options.toMap());
+    }
+
     /**
      * Since the first packet could be an acknowledgement packet (4 bytes) or an error packet (arbitrarily many
      * bytes up to the max packet length), it is hard to tell where the file transfer starts. To solve this, the server
@@ -219,11 +410,109 @@ public class TFTPTCPServer extends Thread {
                     System.out.println("invalid timeout: " + args[i + 1]);
                     return;
                 }
+            } else if (args[i].equals("-sockbuf")) {
+                try {
+                    Configuration.MAX_SOCKET_BUFFER = Integer.parseInt(args[i + 1]);
+                } catch (NumberFormatException nfe) {
+                    System.out.println("invalid socket buffer size: " + args[i + 1]);
+                    return;
+                }
+            } else if (args[i].equals("-cachedir")) {
+                Configuration.COMPRESSION_CACHE = args[i + 1];
+            } else if (args[i].equals("-cachesize")) {
+                try {
+                    //given in megabytes
+                    Configuration.COMPRESSION_CACHE_SIZE = Long.parseLong(args[i + 1]) * 1024 * 1024;
+                } catch (NumberFormatException nfe) {
+                    System.out.println("invalid cache size: " + args[i + 1]);
+                    return;
+                }
+            } else if (args[i].equals("-storage")) {
+                Configuration.STORAGE = args[i + 1];
+            } else if (args[i].equals("-sync")) {
+                Configuration.SYNC_POLICY = args[i + 1];
+            } else if (args[i].equals("-preload")) {
+                Configuration.PRELOAD_MANIFEST = args[i + 1];
+            } else if (args[i].equals("-stats")) {
+                Configuration.ACCESS_STATISTICS = args[i + 1];
+            } else if (args[i].equals("-globalrate")) {
+                try {
+                    //given in kilobytes per second
+                    Configuration.GLOBAL_RATE = Long.parseLong(args[i + 1]) * 1024;
+                } catch (NumberFormatException nfe) {
+                    System.out.println("invalid global rate: " + args[i + 1]);
+                    return;
+                }
+            } else if (args[i].equals("-subnetrate")) {
+                try {
+                    //given in kilobytes per second
+                    Configuration.SUBNET_RATE = Long.parseLong(args[i + 1]) * 1024;
+                } catch (NumberFormatException nfe) {
+                    System.out.println("invalid subnet rate: " + args[i + 1]);
+                    return;
+                }
+            } else if (args[i].equals("-clientrate")) {
+                try {
+                    //given in kilobytes per second
+                    Configuration.CLIENT_RATE = Long.parseLong(args[i + 1]) * 1024;
+                } catch (NumberFormatException nfe) {
+                    System.out.println("invalid client rate: " + args[i + 1]);
+                    return;
+                }
+            } else if (args[i].equals("-slots")) {
+                try {
+                    Configuration.SEND_SLOTS = Integer.parseInt(args[i + 1]);
+                } catch (NumberFormatException nfe) {
+                    System.out.println("invalid number of send slots: " + args[i + 1]);
+                    return;
+                }
+            } else if (args[i].equals("-priority")) {
+                Configuration.PRIORITY_RULES = args[i + 1];
+            } else if (args[i].equals("-directio")) {
+                try {
+                    //given in megabytes
+                    Configuration.DIRECT_IO_THRESHOLD = Long.parseLong(args[i + 1]) * 1024 * 1024;
+                } catch (NumberFormatException nfe) {
+                    System.out.println("invalid direct I/O threshold: " + args[i + 1]);
+                    return;
+                }
             }
         }
 
+        //open the storage the files are served from
+        Storage storage;
+        try {
+            storage = Storages.fromDescription(Configuration.STORAGE);
+        } catch (IOException | IllegalArgumentException e) {
+            System.out.println("invalid storage: " + e.getMessage());
+            System.out.println("expected: " + Storages.USAGE);
+            return;
+        }
+        System.out.println("serving files from " + storage);
+
+        //load the counts of reads from earlier runs, and keep counting
+        AccessStatistics statistics = null;
+        if (Configuration.ACCESS_STATISTICS != null) {
+            try {
+                statistics = new AccessStatistics(new File(Configuration.ACCESS_STATISTICS));
+                statistics.saveOnExit();
+            } catch (IOException e) {
+                System.out.println("unable to load access statistics: " + e.getMessage());
+                return;
+            }
+        }
+
+        //warm up the files expected to be asked for before accepting any requests
+        Preloader.warmUp(storage, statistics);
+
         //run the server, passing the port as an argument
-        Thread server = new TFTPTCPServer(port);
+        Thread server;
+        try {
+            server = new TFTPTCPServer(port, storage, statistics);
+        } catch (IllegalArgumentException e) {
+            System.out.println("invalid priority rules: " + e.getMessage());
+            return;
+        }
         server.start();
     }
 
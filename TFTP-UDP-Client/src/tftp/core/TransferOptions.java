@@ -0,0 +1,580 @@
+package tftp.core;
+
+import tftp.core.checksum.ChecksumInputStream;
+import tftp.core.checksum.ChecksumOutputStream;
+import tftp.core.checksum.Checksums;
+import tftp.core.checksum.VerifyingOutputStream;
+import tftp.core.codec.Codec;
+import tftp.core.codec.Codecs;
+import tftp.core.codec.CompressingInputStream;
+
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Holds the options negotiated for a single transfer. The requesting side fills this in with the options it would
+ * like to use, sends them in its RRQ/WRQ, and then replaces them with whatever the responder acknowledges in its
+ * OACK. The responding side parses the requested options, adjusts them (eg. filling in the transfer size) and
+ * answers with those it is willing to use.
+ */
+public class TransferOptions {
+
+    /**
+     * The smallest timeout (in seconds) which may be negotiated, as specified in RFC 2349.
+     */
+    public static final int MIN_TIMEOUT = 1;
+
+    /**
+     * The largest timeout (in seconds) which may be negotiated, as specified in RFC 2349.
+     */
+    public static final int MAX_TIMEOUT = 255;
+
+    /**
+     * The smallest block size which may be negotiated for delta transfers.
+     */
+    public static final int MIN_DELTA_BLOCK_SIZE = 512;
+
+    /**
+     * The largest block size which may be negotiated for delta transfers.
+     */
+    public static final int MAX_DELTA_BLOCK_SIZE = 1 << 20;
+
+    /**
+     * The largest window size which may be negotiated, as specified in RFC 7440.
+     */
+    public static final int MAX_WINDOW_SIZE = 65535;
+
+    /**
+     * The largest bulk window which may be negotiated - less than half the range of block numbers, so a block
+     * number always tells which block within the window is meant.
+     */
+    public static final int MAX_BULK_WINDOW = 16384;
+
+    /**
+     * The largest number of data blocks in a forward error correction group, and the largest number of parity
+     * blocks for each group - the parity code needs distinct field elements for every block of a group.
+     */
+    public static final int MAX_FEC_GROUP_SIZE = 128;
+    public static final int MAX_FEC_PARITY = 16;
+
+    /**
+     * The size of the file being transferred in bytes, or -1 if the option is not in use.
+     */
+    private long transferSize = -1;
+
+    /**
+     * The negotiated retransmission timeout in seconds, or 0 if the option is not in use.
+     */
+    private int timeout = 0;
+
+    /**
+     * The codec the file data is compressed with on the wire, or null if the option is not in use.
+     */
+    private Codec codec = null;
+
+    /**
+     * Whether the file being sent is already in the codec's format (eg. a precompressed copy), so must be sent
+     * as-is rather than compressed again. This is local to the sending side, and is not negotiated.
+     */
+    private boolean precompressed = false;
+
+    /**
+     * The block size used to compare the receiver's existing copy of the file against the sender's, if the file
+     * is sent as a delta, or 0 if the option is not in use.
+     */
+    private int deltaBlockSize = 0;
+
+    /**
+     * The checksum algorithm used to verify the transfer, or null if the option is not in use. The sender
+     * appends a checksum of the bytes it put on the wire, which the receiver checks once all have arrived.
+     */
+    private String checksum = null;
+
+    /**
+     * The number of blocks the sender may send before waiting for an acknowledgement, or 0 if the option is not
+     * in use.
+     */
+    private int windowSize = 0;
+
+    /**
+     * The number of blocks the sender may have sent beyond the last block the receiver has in order, if the file
+     * is sent in bulk mode - streamed, with the receiver reporting only the blocks it is missing - or 0 if the
+     * option is not in use. This is not a standard option, so only hosts running this implementation agree to it.
+     */
+    private int bulkWindow = 0;
+
+    /**
+     * The number of data blocks in each forward error correction group, and the number of parity blocks sent
+     * after each group, or 0 if the option is not in use. This only applies in bulk mode, and is not a standard
+     * option either.
+     */
+    private int fecGroupSize = 0;
+    private int fecParity = 0;
+
+    /**
+     * Parses the options this implementation understands from a map of option names to values. Unknown options,
+     * and options with values out of range, are ignored - the RFC requires the responder to simply leave these out
+     * of its OACK.
+     *
+     * @param options the option names mapped to their values, as found in a request or OACK packet
+     * @return the parsed options
+     */
+    public static TransferOptions fromMap(Map<String, String> options) {
+        TransferOptions parsed = new TransferOptions();
+
+        String tsize = options.get(Option.TSIZE.getName());
+        if (tsize != null) {
+            try {
+                long value = Long.parseLong(tsize);
+                if (value >= 0) {
+                    parsed.transferSize = value;
+                }
+            } catch (NumberFormatException ignore) {}
+        }
+
+        String timeout = options.get(Option.TIMEOUT.getName());
+        if (timeout != null) {
+            try {
+                int value = Integer.parseInt(timeout);
+                if (value >= MIN_TIMEOUT && value <= MAX_TIMEOUT) {
+                    parsed.timeout = value;
+                }
+            } catch (NumberFormatException ignore) {}
+        }
+
+        String compress = options.get(Option.COMPRESS.getName());
+        if (compress != null) {
+            //a requester may list several codecs in order of preference - the first one known here is chosen
+            parsed.codec = Codecs.select(compress);
+        }
+
+        String delta = options.get(Option.DELTA.getName());
+        if (delta != null) {
+            try {
+                int value = Integer.parseInt(delta);
+                if (value >= MIN_DELTA_BLOCK_SIZE && value <= MAX_DELTA_BLOCK_SIZE) {
+                    parsed.deltaBlockSize = value;
+                }
+            } catch (NumberFormatException ignore) {}
+        }
+
+        String checksum = options.get(Option.CHECKSUM.getName());
+        if (checksum != null) {
+            //as with codecs, a requester may list several algorithms in order of preference
+            parsed.checksum = Checksums.select(checksum);
+        }
+
+        String windowSize = options.get(Option.WINDOW_SIZE.getName());
+        if (windowSize != null) {
+            try {
+                int value = Integer.parseInt(windowSize);
+                if (value >= 1 && value <= MAX_WINDOW_SIZE) {
+                    parsed.windowSize = value;
+                }
+            } catch (NumberFormatException ignore) {}
+        }
+
+        String bulk = options.get(Option.BULK.getName());
+        if (bulk != null) {
+            try {
+                int value = Integer.parseInt(bulk);
+                if (value >= 1 && value <= MAX_BULK_WINDOW) {
+                    parsed.bulkWindow = value;
+                }
+            } catch (NumberFormatException ignore) {}
+        }
+
+        String fec = options.get(Option.FEC.getName());
+        if (fec != null) {
+            //the group size and the number of parity blocks, eg. "16:2"
+            String[] parts = fec.split(":", 2);
+            try {
+                int groupSize = Integer.parseInt(parts[0]);
+                int parity = parts.length > 1 ? Integer.parseInt(parts[1]) : 1;
+                if (groupSize >= 1 && groupSize <= MAX_FEC_GROUP_SIZE && parity >= 1 && parity <= MAX_FEC_PARITY) {
+                    parsed.fecGroupSize = groupSize;
+                    parsed.fecParity = parity;
+                }
+            } catch (NumberFormatException ignore) {}
+        }
+
+        return parsed;
+    }
+
+    /**
+     * @return the options in use, mapped to their values - suitable for a request or OACK packet
+     */
+    public Map<String, String> toMap() {
+        Map<String, String> options = new LinkedHashMap<>();
+        if (transferSize >= 0) {
+            options.put(Option.TSIZE.getName(), Long.toString(transferSize));
+        }
+        if (timeout > 0) {
+            options.put(Option.TIMEOUT.getName(), Integer.toString(timeout));
+        }
+        if (codec != null) {
+            options.put(Option.COMPRESS.getName(), codec.getName());
+        }
+        if (deltaBlockSize > 0) {
+            options.put(Option.DELTA.getName(), Integer.toString(deltaBlockSize));
+        }
+        if (checksum != null) {
+            options.put(Option.CHECKSUM.getName(), checksum);
+        }
+        if (windowSize > 0) {
+            options.put(Option.WINDOW_SIZE.getName(), Integer.toString(windowSize));
+        }
+        if (bulkWindow > 0) {
+            options.put(Option.BULK.getName(), Integer.toString(bulkWindow));
+        }
+        if (fecGroupSize > 0) {
+            options.put(Option.FEC.getName(), fecGroupSize + ":" + fecParity);
+        }
+        return options;
+    }
+
+    /**
+     * Replaces the requested options with those acknowledged by the responder. Any option left out of the OACK was
+     * refused, and so is no longer in use. If the responder did not send an OACK at all, this should be called with
+     * an empty map.
+     *
+     * @param acknowledged the option names mapped to their values, as found in the OACK
+     */
+    public void acknowledge(Map<String, String> acknowledged) {
+        TransferOptions parsed = fromMap(acknowledged);
+        this.transferSize = parsed.transferSize;
+        this.timeout = parsed.timeout;
+        this.codec = parsed.codec;
+        this.deltaBlockSize = parsed.deltaBlockSize;
+        this.checksum = parsed.checksum;
+        this.windowSize = parsed.windowSize;
+        this.bulkWindow = parsed.bulkWindow;
+        this.fecGroupSize = parsed.fecGroupSize;
+        this.fecParity = parsed.fecParity;
+    }
+
+    /**
+     * @return true if no options are in use
+     */
+    public boolean isEmpty() {
+        return toMap().isEmpty();
+    }
+
+    /**
+     * @return true if the transfer size option is in use
+     */
+    public boolean hasTransferSize() {
+        return transferSize >= 0;
+    }
+
+    /**
+     * @return the size of the file being transferred in bytes, or -1 if the option is not in use
+     */
+    public long getTransferSize() {
+        return transferSize;
+    }
+
+    /**
+     * Sets the transfer size. A requester reading a file sets this to 0, to ask the responder for the size.
+     *
+     * @param transferSize the size of the file in bytes
+     */
+    public void setTransferSize(long transferSize) {
+        this.transferSize = transferSize;
+    }
+
+    /**
+     * Gives the timeout to use for this transfer. If no timeout was negotiated, falls back to the global
+     * {@link Configuration#TIMEOUT}.
+     *
+     * @return the retransmission timeout in milliseconds
+     */
+    public int getTimeout() {
+        return timeout > 0 ? timeout * 1000 : Configuration.TIMEOUT;
+    }
+
+    /**
+     * Requests a timeout for this transfer. The option is negotiated in whole seconds, so the given length is
+     * rounded up and clamped to the range allowed by the RFC.
+     *
+     * @param millis the timeout length in milliseconds
+     */
+    public void setTimeout(int millis) {
+        int seconds = (millis + 999) / 1000;
+        this.timeout = Math.max(MIN_TIMEOUT, Math.min(MAX_TIMEOUT, seconds));
+    }
+
+    /**
+     * Stops using an option - for options which don't apply to a particular transport (eg. the timeout over
+     * TCP, where there is no retransmission), so a responder leaves them out of its OACK.
+     *
+     * @param option the option to stop using
+     */
+    public void clear(Option option) {
+        switch (option) {
+            case TSIZE:
+                transferSize = -1;
+                break;
+            case TIMEOUT:
+                timeout = 0;
+                break;
+            case COMPRESS:
+                codec = null;
+                break;
+            case DELTA:
+                deltaBlockSize = 0;
+                break;
+            case CHECKSUM:
+                checksum = null;
+                break;
+            case WINDOW_SIZE:
+                windowSize = 0;
+                break;
+            case BULK:
+                bulkWindow = 0;
+                break;
+            case FEC:
+                fecGroupSize = 0;
+                fecParity = 0;
+                break;
+        }
+    }
+
+    /**
+     * @return the codec the file data is compressed with, or null if the data is sent as-is
+     */
+    public Codec getCodec() {
+        return codec;
+    }
+
+    /**
+     * Requests that the file data be compressed on the wire.
+     *
+     * @param codec the codec to compress with, or null to send the data as-is
+     */
+    public void setCodec(Codec codec) {
+        this.codec = codec;
+    }
+
+    /**
+     * Marks the file being sent as already being in the codec's format, so it is not compressed again.
+     *
+     * @param precompressed true if the file being sent is already compressed with the negotiated codec
+     */
+    public void setPrecompressed(boolean precompressed) {
+        this.precompressed = precompressed;
+    }
+
+    /**
+     * @return the block size used to compare the two copies of the file if it is sent as a delta, or 0 if the
+     * whole file is sent
+     */
+    public int getDeltaBlockSize() {
+        return deltaBlockSize;
+    }
+
+    /**
+     * Requests that the file be sent as a delta against the receiver's existing copy.
+     *
+     * @param deltaBlockSize the block size to compare the copies with, or 0 to send the whole file
+     */
+    public void setDeltaBlockSize(int deltaBlockSize) {
+        this.deltaBlockSize = deltaBlockSize;
+    }
+
+    /**
+     * @return the checksum algorithm used to verify the transfer, or null if it is not verified
+     */
+    public String getChecksum() {
+        return checksum;
+    }
+
+    /**
+     * Requests that the transfer be verified with a checksum. A comma-separated list of algorithms may be given
+     * in order of preference (eg. the result of joining {@link Checksums#getNames()}), leaving the responder to
+     * choose one.
+     *
+     * @param checksum the checksum algorithm(s), or null to not verify the transfer
+     */
+    public void setChecksum(String checksum) {
+        this.checksum = checksum;
+    }
+
+    /**
+     * @return the number of blocks the sender may send before waiting for an acknowledgement - 1 (lock-step, as
+     * in RFC 1350) if the option is not in use
+     */
+    public int getWindowSize() {
+        return windowSize > 0 ? windowSize : 1;
+    }
+
+    /**
+     * Requests that the sender send up to the given number of blocks before waiting for an acknowledgement, as
+     * described in RFC 7440. A responder may answer with a smaller window.
+     *
+     * @param windowSize the number of blocks, or 0 to not use the option
+     */
+    public void setWindowSize(int windowSize) {
+        this.windowSize = Math.max(0, Math.min(MAX_WINDOW_SIZE, windowSize));
+    }
+
+    /**
+     * Shrinks the window to the given number of blocks, if a larger one was requested - a responder answers with
+     * no larger a window than it is willing to use.
+     *
+     * @param max the largest window, in blocks
+     */
+    public void limitWindowSize(int max) {
+        if (windowSize > max) {
+            windowSize = Math.max(1, max);
+        }
+    }
+
+    /**
+     * @return the number of blocks the sender may have sent beyond the last block the receiver has in order, if
+     * the file is sent in bulk mode, or 0 if it is not - bulk mode takes the place of any window size negotiated
+     */
+    public int getBulkWindow() {
+        return bulkWindow;
+    }
+
+    /**
+     * Requests that the file be sent in bulk mode - streamed without waiting for acknowledgements, the receiver
+     * reporting the blocks it is missing so that only those are resent. A responder may answer with a smaller
+     * bulk window, or refuse.
+     *
+     * @param bulkWindow the most blocks the receiver holds while waiting for a missing one, or 0 to not use bulk
+     *                   mode
+     */
+    public void setBulkWindow(int bulkWindow) {
+        this.bulkWindow = Math.max(0, Math.min(MAX_BULK_WINDOW, bulkWindow));
+    }
+
+    /**
+     * Shrinks the bulk window to the given number of blocks, if a larger one was requested - or refuses bulk mode
+     * altogether if the given limit is 0, along with forward error correction, which only applies in bulk mode.
+     *
+     * @param max the largest bulk window, in blocks, or 0 to refuse bulk mode
+     */
+    public void limitBulkWindow(int max) {
+        if (bulkWindow > max) {
+            bulkWindow = Math.max(0, max);
+        }
+        if (bulkWindow == 0) {
+            clear(Option.FEC);
+        }
+    }
+
+    /**
+     * @return the number of data blocks in each forward error correction group, or 0 if no parity blocks are sent
+     */
+    public int getFecGroupSize() {
+        return fecGroupSize;
+    }
+
+    /**
+     * @return the number of parity blocks sent after each forward error correction group, or 0 if none are sent
+     */
+    public int getFecParity() {
+        return fecParity;
+    }
+
+    /**
+     * Requests forward error correction for a bulk mode transfer - parity blocks sent after each group of data
+     * blocks, from which the receiver can rebuild as many blocks lost from the group as there are parity blocks,
+     * without waiting for them to be resent. Out of range values are clamped.
+     *
+     * @param groupSize the number of data blocks in each group, or 0 to not send parity blocks
+     * @param parity the number of parity blocks sent after each group
+     */
+    public void setFec(int groupSize, int parity) {
+        if (groupSize <= 0) {
+            this.fecGroupSize = 0;
+            this.fecParity = 0;
+        } else {
+            this.fecGroupSize = Math.min(MAX_FEC_GROUP_SIZE, groupSize);
+            this.fecParity = Math.max(1, Math.min(MAX_FEC_PARITY, parity));
+        }
+    }
+
+    /**
+     * Wraps the stream of file bytes to be sent, so that reading from it gives the bytes to put on the wire. If a
+     * checksum is in use, it is computed over the bytes as they are read (after compression) and appended once
+     * the file is exhausted.
+     *
+     * @param fileInput the stream reading from the file
+     * @return the stream of bytes to send - the same stream if no codec or checksum is in use
+     * @throws IOException if the codec could not be set up
+     */
+    public InputStream encode(InputStream fileInput) throws IOException {
+        InputStream in = codec == null || precompressed ? fileInput : new CompressingInputStream(fileInput, codec);
+        return checksum == null ? in : new ChecksumInputStream(in, Checksums.create(checksum));
+    }
+
+    /**
+     * Wraps the stream writing to the remote host, for senders which push bytes rather than having them pulled
+     * (eg. a delta encoder). The returned stream must be closed once all bytes have been written, to flush the
+     * remainder and the checksum (if any) through - this leaves the remote host's stream itself open.
+     *
+     * @param wireOutput the stream writing to the remote host
+     * @return the stream to write the bytes to send to - the same stream if no codec or checksum is in use
+     * @throws IOException if the codec could not be set up
+     */
+    public OutputStream encode(OutputStream wireOutput) throws IOException {
+        final OutputStream trailer = checksum == null
+                ? wireOutput
+                : new ChecksumOutputStream(wireOutput, Checksums.create(checksum));
+        final OutputStream compressor = codec == null ? trailer : codec.compress(trailer);
+        if (compressor == wireOutput) {
+            return wireOutput;
+        }
+        return new FilterOutputStream(compressor) {
+            @Override
+            public void write(byte[] b, int off, int len) throws IOException {
+                out.write(b, off, len);
+            }
+
+            @Override
+            public void close() throws IOException {
+                //finish the compressor, then write the checksum of everything it produced
+                if (compressor != trailer) {
+                    compressor.close();
+                }
+                if (trailer != wireOutput) {
+                    trailer.close();
+                }
+            }
+        };
+    }
+
+    /**
+     * Wraps the stream writing to the destination file, so that the bytes received off the wire can be written
+     * straight to it. When a codec or checksum is in use, the returned stream must be closed once all bytes have
+     * been written to flush the remainder through to the file (and verify the checksum) - this leaves the file
+     * stream itself open.
+     *
+     * @param fileOutput the stream writing to the file
+     * @return the stream to write received bytes to - the same stream if no codec or checksum is in use
+     * @throws IOException if the codec could not be set up - or, on closing the returned stream, if the checksum
+     *                     did not match
+     */
+    public OutputStream decode(OutputStream fileOutput) throws IOException {
+        OutputStream out = codec == null ? fileOutput : codec.decompress(fileOutput);
+        return checksum == null
+                ? out
+                : new VerifyingOutputStream(out, Checksums.create(checksum), out != fileOutput);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public String toString() {
+        return toMap().toString();
+    }
+
+}
@@ -0,0 +1,93 @@
+package tftp.core.checksum;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.zip.Checksum;
+
+/**
+ * Passes bytes through from a source, updating a checksum as it goes, and then appends the checksum as a trailer
+ * once the source is exhausted. The checksum is computed over the bytes as they are sent, so no extra pass over
+ * the file is needed.
+ */
+public class ChecksumInputStream extends FilterInputStream {
+
+    /**
+     * The checksum of the bytes read so far.
+     */
+    private final Checksum checksum;
+
+    /**
+     * The trailer, once the source has been exhausted.
+     */
+    private byte[] trailer = null;
+
+    /**
+     * How much of the trailer has been read.
+     */
+    private int trailerRead = 0;
+
+    /**
+     * Creates a new stream appending a checksum to the given source.
+     *
+     * @param in the source stream
+     * @param checksum a new checksum
+     */
+    public ChecksumInputStream(InputStream in, Checksum checksum) {
+        super(in);
+        this.checksum = checksum;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public int read() throws IOException {
+        byte[] single = new byte[1];
+        int read = read(single, 0, 1);
+        return read == -1 ? -1 : single[0] & 0xff;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException {
+        if (len == 0) {
+            return 0;
+        }
+        if (trailer == null) {
+            int read = in.read(b, off, len);
+            if (read != -1) {
+                checksum.update(b, off, read);
+                return read;
+            }
+            trailer = Checksums.trailer(checksum);
+        }
+        if (trailerRead == trailer.length) {
+            return -1;
+        }
+        int count = Math.min(len, trailer.length - trailerRead);
+        System.arraycopy(trailer, trailerRead, b, off, count);
+        trailerRead += count;
+        return count;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public long skip(long n) {
+        //skipping would leave bytes out of the checksum
+        return 0;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public boolean markSupported() {
+        return false;
+    }
+
+}
@@ -3,6 +3,7 @@ package tftp.core.packet;
 import tftp.core.Configuration;
 
 import java.nio.ByteBuffer;
+import java.util.Arrays;
 
 /**
  * Represents a data packet in the trivial file transfer protocol.
@@ -47,6 +48,39 @@ public class DataPacket extends TFTPPacket {
         buffer.put(dataBuffer, 0, dataLength);
     }
 
+    /**
+     * Creates a new data packet around a buffer the data has already been read into, at {@link #DATA_OFFSET} - so
+     * the data is not copied again. The header is written into the start of the buffer.
+     *
+     * @param blockNumber the block number assigned to this data packet
+     * @param packetBuffer the buffer holding the data at {@link #DATA_OFFSET}, which becomes the packet buffer
+     * @param dataLength the length of the data in the buffer
+     * @return the data packet
+     */
+    public static DataPacket wrap(short blockNumber, byte[] packetBuffer, int dataLength) {
+        if (packetBuffer.length != dataLength + DATA_OFFSET) {
+            //only the final block is short, so this copy happens at most once per transfer
+            packetBuffer = Arrays.copyOf(packetBuffer, dataLength + DATA_OFFSET);
+        }
+        return new DataPacket(blockNumber, dataLength, packetBuffer);
+    }
+
+    /**
+     * Creates a new data packet around a buffer already holding the data.
+     *
+     * @param blockNumber the block number assigned to this data packet
+     * @param dataLength the length of the data in the buffer
+     * @param packetBuffer the buffer holding the data at {@link #DATA_OFFSET}
+     */
+    private DataPacket(short blockNumber, int dataLength, byte[] packetBuffer) {
+        this.blockNumber = blockNumber;
+        this.dataLength = dataLength;
+        this.packetBuffer = packetBuffer;
+        ByteBuffer buffer = ByteBuffer.wrap(packetBuffer);
+        buffer.putShort(getPacketType().getOpcode());
+        buffer.putShort(blockNumber);
+    }
+
     /**
      * Retrieves a data packet instance from a raw TFTP packet.
      *
@@ -11,7 +11,10 @@ public enum PacketType {
     WRITE_REQUEST("WRQ", 2),
     DATA("DATA", 3),
     ACKNOWLEDGEMENT("ACK", 4),
-    ERROR("ERR", 5);
+    ERROR("ERR", 5),
+    OPTION_ACKNOWLEDGEMENT("OACK", 6),
+    NEGATIVE_ACKNOWLEDGEMENT("NAK", 7),
+    PARITY("PAR", 8);
 
     /**
      * A human-readable short string representing the packet type.
@@ -1,8 +1,13 @@
 package tftp.core.packet;
 
 import tftp.core.TFTPException;
+import tftp.core.util.StringUtil;
 
+import java.io.ByteArrayOutputStream;
 import java.nio.ByteBuffer;
+import java.util.LinkedHashMap;
+import java.util.Locale;
+import java.util.Map;
 
 /**
  * A class that represents a generic TFTP packet.
@@ -45,10 +50,58 @@ public abstract class TFTPPacket {
                 return new ReadRequestPacket(buffer, length);
             case WRITE_REQUEST:
                 return new WriteRequestPacket(buffer, length);
+            case OPTION_ACKNOWLEDGEMENT:
+                return new OptionAcknowledgementPacket(buffer, length);
+            case NEGATIVE_ACKNOWLEDGEMENT:
+                return new NegativeAcknowledgementPacket(buffer, length);
+            case PARITY:
+                return new ParityPacket(buffer, length);
             default:
                 throw new TFTPException("unknown packet type: " + type);
         }
 
     }
 
+    /**
+     * Encodes a set of options as described in the TFTP option extension RFC (2347) - each option is written as
+     * a null-terminated name followed by a null-terminated value.
+     *
+     * @param options the option names mapped to their values
+     * @return the encoded options, ready to be appended to a RRQ/WRQ or placed in an OACK
+     */
+    protected static byte[] encodeOptions(Map<String, String> options) {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        for (Map.Entry<String, String> option : options.entrySet()) {
+            byte[] name = StringUtil.getBytes(option.getKey());
+            byte[] value = StringUtil.getBytes(option.getValue());
+            bytes.write(name, 0, name.length);
+            bytes.write(value, 0, value.length);
+        }
+        return bytes.toByteArray();
+    }
+
+    /**
+     * Decodes a sequence of name/value option pairs. Option names are case-insensitive, so they are converted to
+     * lower case. A trailing name without a value is ignored.
+     *
+     * @param bytes the buffer holding the packet bytes
+     * @param offset the offset of the first option name in the buffer
+     * @param length the length of the packet in the buffer
+     * @return the option names mapped to their values, in the order they appeared in the packet
+     */
+    protected static Map<String, String> decodeOptions(byte[] bytes, int offset, int length) {
+        Map<String, String> options = new LinkedHashMap<>();
+        while (offset < length) {
+            String name = StringUtil.getString(bytes, offset, length);
+            offset += name.length() + 1;
+            if (offset >= length) {
+                break;
+            }
+            String value = StringUtil.getString(bytes, offset, length);
+            offset += value.length() + 1;
+            options.put(name.toLowerCase(Locale.ROOT), value);
+        }
+        return options;
+    }
+
 }
@@ -0,0 +1,136 @@
+package tftp.core.preload;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.AbstractMap;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Counts how often each file is read, and keeps the counts in a file between runs - so that after a restart the
+ * files which were hot last time can be warmed up before any clients arrive. Counts carried over from earlier runs
+ * are halved each time they are loaded, so the ranking follows what has been hot lately.
+ * <p>
+ * The file has one line per file name: the count, a tab, then the name.
+ */
+public class AccessStatistics {
+
+    /**
+     * The file the counts are kept in.
+     */
+    private final File file;
+
+    /**
+     * The number of reads of each file, by name.
+     */
+    private final Map<String, LongAdder> counts = new ConcurrentHashMap<>();
+
+    /**
+     * Creates new statistics, loading the counts kept from earlier runs if there are any.
+     *
+     * @param file the file the counts are kept in
+     * @throws IOException if the file exists but could not be read
+     */
+    public AccessStatistics(File file) throws IOException {
+        this.file = file;
+        if (!file.isFile()) {
+            return;
+        }
+        try (BufferedReader reader = new BufferedReader(
+                new InputStreamReader(new FileInputStream(file), StandardCharsets.UTF_8))) {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                int tab = line.indexOf('\t');
+                if (tab == -1) {
+                    continue;
+                }
+                try {
+                    long count = (Long.parseLong(line.substring(0, tab)) + 1) / 2;
+                    if (count > 0) {
+                        counts.computeIfAbsent(line.substring(tab + 1), name -> new LongAdder()).add(count);
+                    }
+                } catch (NumberFormatException ignore) {}
+            }
+        }
+    }
+
+    /**
+     * Counts a read of a file. Safe to call from any number of transfers at once.
+     *
+     * @param name the name of the file, as given in the request
+     */
+    public void record(String name) {
+        counts.computeIfAbsent(name, n -> new LongAdder()).increment();
+    }
+
+    /**
+     * Gives the most read files.
+     *
+     * @param limit the maximum number of names to give
+     * @return the names of the most read files, most read first
+     */
+    public List<String> top(int limit) {
+        List<Map.Entry<String, Long>> entries = snapshot();
+        List<String> names = new ArrayList<>();
+        for (int i = 0; i < entries.size() && i < limit; ++i) {
+            names.add(entries.get(i).getKey());
+        }
+        return names;
+    }
+
+    /**
+     * Writes the counts to the file, replacing it atomically so a crash mid-write doesn't lose the last copy.
+     *
+     * @throws IOException if the counts could not be written
+     */
+    public void save() throws IOException {
+        File temp = File.createTempFile(file.getName() + ".", ".tmp", file.getAbsoluteFile().getParentFile());
+        try {
+            try (Writer writer = new OutputStreamWriter(new FileOutputStream(temp), StandardCharsets.UTF_8)) {
+                for (Map.Entry<String, Long> entry : snapshot()) {
+                    writer.write(entry.getValue() + "\t" + entry.getKey() + "\n");
+                }
+            }
+            Files.move(temp.toPath(), file.toPath(),
+                    StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } finally {
+            temp.delete();
+        }
+    }
+
+    /**
+     * Saves the counts when the program exits.
+     */
+    public void saveOnExit() {
+        Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+            try {
+                save();
+            } catch (IOException e) {
+                System.out.println("unable to save access statistics: " + e.getMessage());
+            }
+        }));
+    }
+
+    /**
+     * @return the current counts, most read first
+     */
+    private List<Map.Entry<String, Long>> snapshot() {
+        List<Map.Entry<String, Long>> entries = new ArrayList<>();
+        counts.forEach((name, count) -> entries.add(new AbstractMap.SimpleEntry<>(name, count.sum())));
+        entries.sort((a, b) -> Long.compare(b.getValue(), a.getValue()));
+        return entries;
+    }
+
+}
@@ -0,0 +1,467 @@
+package tftp.core.scheduling;
+
+import tftp.core.Configuration;
+
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.EnumMap;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+
+/**
+ * Shares the server's send slots between the transfers in progress, so a few huge transfers can't hold up the
+ * many small ones. A transfer holds a slot from sending a block until it hears back about it, and there are only
+ * so many slots - when transfers are waiting for one, the next free slot goes to the transfer whose turn it is.
+ * <p>
+ * Each transfer is put in a {@link PriorityClass}, by rules on its file name or client address, or failing those
+ * by the size of the file. Slots are shared between the classes by weighted fair queueing, so each class gets its
+ * weighted share while it has transfers waiting, and the classes with nothing waiting leave theirs to the others.
+ * Within the interactive class, the transfer with the least left to send goes first (shortest job first), so
+ * small files finish as quickly as possible. Within the other classes, the transfer which has sent the least so
+ * far goes first, so they share evenly.
+ */
+public class TransferScheduler {
+
+    /**
+     * The number of send slots.
+     */
+    private final int slots;
+
+    /**
+     * The number of send slots not held by a transfer.
+     */
+    private int free;
+
+    /**
+     * The rules classifying transfers by file name or client address, in the order they were given.
+     */
+    private final List<Rule> rules;
+
+    /**
+     * The transfers waiting for a slot, for each class.
+     */
+    private final Map<PriorityClass, Queue> queues = new EnumMap<>(PriorityClass.class);
+
+    /**
+     * The virtual time of the fair queueing - the finishing tag of the last slot handed out.
+     */
+    private double virtualTime = 0;
+
+    /**
+     * Breaks ties between waiting transfers, in the order they started waiting.
+     */
+    private long sequence = 0;
+
+    /**
+     * Creates a new scheduler.
+     *
+     * @param slots the number of send slots
+     * @param rules the rules classifying transfers, as a comma-separated list of {@code pattern=class} - where
+     *              the pattern is either a prefix of file names, or {@code @address/prefix} for a subnet of clients
+     * @throws IllegalArgumentException if the rules are invalid
+     */
+    public TransferScheduler(int slots, String rules) {
+        this.slots = slots;
+        this.free = slots;
+        this.rules = parseRules(rules);
+        for (PriorityClass priority : PriorityClass.values()) {
+            queues.put(priority, new Queue(priority));
+        }
+    }
+
+    /**
+     * Creates a scheduler with the slots and rules set in {@link Configuration}.
+     *
+     * @return the scheduler, or null if transfers aren't scheduled
+     * @throws IllegalArgumentException if the rules are invalid
+     */
+    public static TransferScheduler fromConfiguration() {
+        if (Configuration.SEND_SLOTS <= 0) {
+            return null;
+        }
+        return new TransferScheduler(Configuration.SEND_SLOTS, Configuration.PRIORITY_RULES);
+    }
+
+    /**
+     * Registers a transfer about to start.
+     *
+     * @param name the name of the file being sent
+     * @param size the size of the file being sent, or -1 if not known
+     * @param client the address of the client it is sent to
+     * @return the transfer, which must take a slot before sending each block
+     */
+    public Session register(String name, long size, InetAddress client) {
+        return new Session(classify(name, size, client), size);
+    }
+
+    /**
+     * Decides which class a transfer is in - by the first rule matching it, or if none do by the size of its file.
+     */
+    private PriorityClass classify(String name, long size, InetAddress client) {
+        for (Rule rule : rules) {
+            if (rule.matches(name, client)) {
+                return rule.priority;
+            }
+        }
+        if (size < 0) {
+            return PriorityClass.NORMAL;
+        } else if (size <= Configuration.SMALL_FILE_SIZE) {
+            return PriorityClass.INTERACTIVE;
+        } else if (size >= Configuration.BULK_FILE_SIZE) {
+            return PriorityClass.BULK;
+        }
+        return PriorityClass.NORMAL;
+    }
+
+    /**
+     * Waits for a slot to send a block.
+     */
+    private synchronized void acquire(Session session, int count) {
+        Waiter waiter = new Waiter(session, count, sequence++);
+        queues.get(session.priority).waiters.add(waiter);
+        dispatch();
+
+        boolean interrupted = false;
+        while (!waiter.granted) {
+            try {
+                wait();
+            } catch (InterruptedException e) {
+                //a block can't be sent without a slot, so keep waiting - it won't be long
+                interrupted = true;
+            }
+        }
+        ++session.held;
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Takes a slot to send a block if one is free - which means nobody is waiting for one, as free slots are
+     * handed out as soon as they come back.
+     */
+    private synchronized boolean tryAcquire(Session session, int count) {
+        if (free == 0) {
+            return false;
+        }
+        Queue queue = queues.get(session.priority);
+        queue.finish = Math.max(virtualTime, queue.finish) + (double) count / queue.priority.getWeight();
+        virtualTime = queue.finish;
+        session.sent += count;
+        ++session.held;
+        --free;
+        return true;
+    }
+
+    /**
+     * Gives back a number of the slots a transfer holds - no more than it holds.
+     */
+    private synchronized void release(Session session, int count) {
+        count = Math.min(count, session.held);
+        if (count <= 0) {
+            return;
+        }
+        session.held -= count;
+        free += count;
+        dispatch();
+    }
+
+    /**
+     * Hands out the free slots to the waiting transfers whose turn it is.
+     */
+    private void dispatch() {
+        boolean granted = false;
+        while (free > 0) {
+            //the class whose next block would finish first, if each class were sent at its weighted share
+            Queue next = null;
+            double nextFinish = 0;
+            for (Queue queue : queues.values()) {
+                Waiter head = queue.waiters.peek();
+                if (head == null) {
+                    continue;
+                }
+                double finish = Math.max(virtualTime, queue.finish)
+                        + (double) head.count / queue.priority.getWeight();
+                if (next == null || finish < nextFinish) {
+                    next = queue;
+                    nextFinish = finish;
+                }
+            }
+            if (next == null) {
+                break;
+            }
+
+            Waiter waiter = next.waiters.poll();
+            next.finish = nextFinish;
+            virtualTime = nextFinish;
+            waiter.session.sent += waiter.count;
+            waiter.granted = true;
+            --free;
+            granted = true;
+        }
+        if (granted) {
+            notifyAll();
+        }
+    }
+
+    /**
+     * Parses the rules classifying transfers.
+     */
+    private static List<Rule> parseRules(String rules) {
+        List<Rule> parsed = new ArrayList<>();
+        if (rules == null || rules.trim().isEmpty()) {
+            return parsed;
+        }
+        for (String rule : rules.split(",")) {
+            int equals = rule.lastIndexOf('=');
+            if (equals == -1) {
+                throw new IllegalArgumentException("expected pattern=class: " + rule);
+            }
+            String pattern = rule.substring(0, equals).trim();
+            PriorityClass priority = PriorityClass.fromName(rule.substring(equals + 1).trim());
+            if (pattern.startsWith("@")) {
+                parsed.add(Rule.forSubnet(pattern.substring(1), priority));
+            } else {
+                parsed.add(new Rule(pattern, null, 0, priority));
+            }
+        }
+        return parsed;
+    }
+
+    /**
+     * @return a description of this scheduler, for printing
+     */
+    @Override
+    public String toString() {
+        return slots + " send slots, " + rules.size() + " classification rules";
+    }
+
+    /**
+     * A transfer, sharing the send slots with the others.
+     */
+    public class Session {
+
+        /**
+         * The class the transfer is in.
+         */
+        private final PriorityClass priority;
+
+        /**
+         * The size of the file being sent, or -1 if not known.
+         */
+        private final long size;
+
+        /**
+         * The number of bytes sent so far, including any resent - guarded by the scheduler.
+         */
+        private long sent = 0;
+
+        /**
+         * The number of slots the transfer holds - guarded by the scheduler.
+         */
+        private int held = 0;
+
+        /**
+         * Creates a new session.
+         */
+        private Session(PriorityClass priority, long size) {
+            this.priority = priority;
+            this.size = size;
+        }
+
+        /**
+         * Waits for a slot to send a block. The slot must be given back with {@link #release()} once the block
+         * has been acknowledged, or given up on.
+         *
+         * @param count the size of the block, in bytes
+         */
+        public void acquire(int count) {
+            TransferScheduler.this.acquire(this, count);
+        }
+
+        /**
+         * Takes a slot to send a block, without waiting - for answering a request from a thread which can't wait.
+         * The slot must be given back as for {@link #acquire(int)}.
+         *
+         * @param count the size of the block, in bytes
+         * @return true if a slot was free, and has been taken
+         */
+        public boolean tryAcquire(int count) {
+            return TransferScheduler.this.tryAcquire(this, count);
+        }
+
+        /**
+         * Gives back a slot taken by {@link #acquire(int)}.
+         */
+        public void release() {
+            TransferScheduler.this.release(this, 1);
+        }
+
+        /**
+         * Gives back every slot the transfer still holds - eg. as it ends, with blocks never acknowledged.
+         */
+        public void releaseAll() {
+            TransferScheduler.this.release(this, Integer.MAX_VALUE);
+        }
+
+        /**
+         * @return the class the transfer is in
+         */
+        public PriorityClass getPriority() {
+            return priority;
+        }
+
+    }
+
+    /**
+     * A transfer waiting for a slot to send a block.
+     */
+    private static class Waiter {
+
+        /**
+         * The transfer waiting.
+         */
+        private final Session session;
+
+        /**
+         * The size of the block, in bytes.
+         */
+        private final int count;
+
+        /**
+         * The order the transfer is served in within its class, lowest first - how much it has left to send for
+         * interactive transfers, or how much it has sent for the others.
+         */
+        private final long order;
+
+        /**
+         * Breaks ties in the order, in the order transfers started waiting.
+         */
+        private final long sequence;
+
+        /**
+         * Whether the transfer has been given a slot.
+         */
+        private boolean granted = false;
+
+        /**
+         * Creates a new waiter - called holding the scheduler's lock.
+         */
+        private Waiter(Session session, int count, long sequence) {
+            this.session = session;
+            this.count = count;
+            this.order = session.priority == PriorityClass.INTERACTIVE && session.size >= 0
+                    ? session.size - session.sent
+                    : session.sent;
+            this.sequence = sequence;
+        }
+
+    }
+
+    /**
+     * The transfers of one class waiting for a slot.
+     */
+    private static class Queue {
+
+        /**
+         * The class of the transfers.
+         */
+        private final PriorityClass priority;
+
+        /**
+         * The waiting transfers, the one to serve next first.
+         */
+        private final PriorityQueue<Waiter> waiters = new PriorityQueue<>(
+                Comparator.<Waiter>comparingLong(w -> w.order).thenComparingLong(w -> w.sequence)
+        );
+
+        /**
+         * The finishing tag of the last slot handed to this class.
+         */
+        private double finish = 0;
+
+        /**
+         * Creates a new, empty, queue.
+         */
+        private Queue(PriorityClass priority) {
+            this.priority = priority;
+        }
+
+    }
+
+    /**
+     * A rule putting transfers of some files, or to some clients, in a class.
+     */
+    private static class Rule {
+
+        /**
+         * The prefix of the names of the files matched, or null if matching clients.
+         */
+        private final String prefix;
+
+        /**
+         * The network address of the subnet of clients matched, or null if matching files.
+         */
+        private final byte[] network;
+
+        /**
+         * The length of the subnet's prefix, in bits.
+         */
+        private final int bits;
+
+        /**
+         * The class transfers matched are put in.
+         */
+        private final PriorityClass priority;
+
+        /**
+         * Creates a new rule.
+         */
+        private Rule(String prefix, byte[] network, int bits, PriorityClass priority) {
+            this.prefix = prefix;
+            this.network = network;
+            this.bits = bits;
+            this.priority = priority;
+        }
+
+        /**
+         * Creates a rule matching a subnet of clients, written as {@code address/prefix}.
+         */
+        private static Rule forSubnet(String subnet, PriorityClass priority) {
+            int slash = subnet.indexOf('/');
+            try {
+                byte[] network = InetAddress.getByName(slash == -1 ? subnet : subnet.substring(0, slash))
+                        .getAddress();
+                int bits = slash == -1 ? network.length * 8 : Integer.parseInt(subnet.substring(slash + 1));
+                return new Rule(null, network, bits, priority);
+            } catch (UnknownHostException | NumberFormatException e) {
+                throw new IllegalArgumentException("invalid subnet: " + subnet);
+            }
+        }
+
+        /**
+         * @return true if a transfer of the given file to the given client is matched by this rule
+         */
+        private boolean matches(String name, InetAddress client) {
+            if (prefix != null) {
+                return name.startsWith(prefix);
+            }
+            byte[] address = client.getAddress();
+            if (address.length != network.length) {
+                return false;
+            }
+            for (int i = 0; i < address.length && i * 8 < bits; ++i) {
+                int mask = (0xff00 >> Math.min(8, bits - i * 8)) & 0xff;
+                if (((address[i] ^ network[i]) & mask) != 0) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+    }
+
+}
@@ -0,0 +1,264 @@
+package tftp.core.shaping;
+
+import tftp.core.Configuration;
+
+import java.math.BigDecimal;
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Limits how fast a server sends, so that one greedy client can't take the whole uplink. Each client address, each
+ * subnet and the server as a whole can be given a rate in bytes per second, with a {@link TokenBucket} for each.
+ * Before sending, a session draws from every bucket which applies to its client, then waits as long as the slowest
+ * of them says.
+ */
+public class BandwidthShaper {
+
+    /**
+     * Once this many clients or subnets have buckets, full buckets are forgotten - they are recreated, full, the
+     * next time they are needed.
+     */
+    private static final int MAX_IDLE_BUCKETS = 4096;
+
+    /**
+     * The bucket for all sending, or null if there is no global limit.
+     */
+    private final TokenBucket global;
+
+    /**
+     * The rate each client address is limited to in bytes per second, or zero for no limit.
+     */
+    private final long clientRate;
+
+    /**
+     * The rate each subnet is limited to in bytes per second, or zero for no limit.
+     */
+    private final long subnetRate;
+
+    /**
+     * The capacity of each bucket, in bytes.
+     */
+    private final long burst;
+
+    /**
+     * The buckets for each client address.
+     */
+    private final Map<InetAddress, TokenBucket> clients = new ConcurrentHashMap<>();
+
+    /**
+     * The buckets for each subnet, by the subnet's network address.
+     */
+    private final Map<InetAddress, TokenBucket> subnets = new ConcurrentHashMap<>();
+
+    /**
+     * Creates a new shaper.
+     *
+     * @param globalRate the rate the server as a whole is limited to in bytes per second, or zero for no limit
+     * @param subnetRate the rate each subnet is limited to in bytes per second, or zero for no limit
+     * @param clientRate the rate each client address is limited to in bytes per second, or zero for no limit
+     * @param burst the most bytes which can be sent at once after a pause, in bytes
+     */
+    public BandwidthShaper(long globalRate, long subnetRate, long clientRate, long burst) {
+        this.global = globalRate > 0 ? new TokenBucket(globalRate, burst) : null;
+        this.subnetRate = subnetRate;
+        this.clientRate = clientRate;
+        this.burst = burst;
+    }
+
+    /**
+     * Creates a shaper with the limits set in {@link Configuration}.
+     *
+     * @return the shaper, or null if no limits are set
+     */
+    public static BandwidthShaper fromConfiguration() {
+        if (Configuration.GLOBAL_RATE <= 0 && Configuration.SUBNET_RATE <= 0 && Configuration.CLIENT_RATE <= 0) {
+            return null;
+        }
+        return new BandwidthShaper(
+                Configuration.GLOBAL_RATE, Configuration.SUBNET_RATE, Configuration.CLIENT_RATE,
+                Configuration.RATE_BURST
+        );
+    }
+
+    /**
+     * Waits until the given number of bytes may be sent to a client.
+     *
+     * @param client the address of the client
+     * @param count the number of bytes about to be sent
+     */
+    public void acquire(InetAddress client, int count) {
+        long wait = 0;
+        if (global != null) {
+            wait = global.reserve(count);
+        }
+        if (subnetRate > 0) {
+            wait = Math.max(wait, bucket(subnets, subnet(client), subnetRate).reserve(count));
+        }
+        if (clientRate > 0) {
+            wait = Math.max(wait, bucket(clients, client, clientRate).reserve(count));
+        }
+        sleep(wait);
+    }
+
+    /**
+     * Finds the bucket for a client or subnet, creating it if there isn't one.
+     */
+    private TokenBucket bucket(Map<InetAddress, TokenBucket> buckets, InetAddress address, long rate) {
+        TokenBucket bucket = buckets.get(address);
+        if (bucket == null) {
+            if (buckets.size() >= MAX_IDLE_BUCKETS) {
+                buckets.values().removeIf(TokenBucket::isIdle);
+            }
+            bucket = buckets.computeIfAbsent(address, a -> new TokenBucket(rate, burst));
+        }
+        return bucket;
+    }
+
+    /**
+     * Gives the network address of the subnet holding a client, by the prefix lengths in {@link Configuration}.
+     */
+    private static InetAddress subnet(InetAddress client) {
+        byte[] address = client.getAddress();
+        int prefix = address.length == 4 ? Configuration.SUBNET_PREFIX_V4 : Configuration.SUBNET_PREFIX_V6;
+        for (int i = 0; i < address.length; ++i) {
+            int bits = Math.max(0, Math.min(8, prefix - i * 8));
+            address[i] &= (byte) (0xff00 >> bits);
+        }
+        try {
+            return InetAddress.getByAddress(address);
+        } catch (UnknownHostException e) {
+            //only thrown for addresses of the wrong length
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * Sleeps for the given time, without giving up early on spurious wakeups.
+     */
+    private static void sleep(long nanos) {
+        long deadline = System.nanoTime() + nanos;
+        long remaining;
+        while ((remaining = deadline - System.nanoTime()) > 0) {
+            LockSupport.parkNanos(remaining);
+            if (Thread.currentThread().isInterrupted()) {
+                return;
+            }
+        }
+    }
+
+    /**
+     * Prints the current rates and the time spent throttled at a regular interval, from a background thread.
+     *
+     * @param interval the time between reports, in seconds
+     */
+    public void startReporting(long interval) {
+        ScheduledExecutorService reporter = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread thread = new Thread(r, "bandwidth-reporter");
+            thread.setDaemon(true);
+            return thread;
+        });
+        Report report = new Report(interval);
+        reporter.scheduleAtFixedRate(() -> System.out.println(report.next()), interval, interval, TimeUnit.SECONDS);
+    }
+
+    /**
+     * Works out the rates over each reporting interval, from the totals kept by the buckets.
+     */
+    private class Report {
+
+        /**
+         * The time between reports, in seconds.
+         */
+        private final long interval;
+
+        /**
+         * The totals of each bucket at the last report.
+         */
+        private Map<TokenBucket, long[]> previous = new HashMap<>();
+
+        /**
+         * Creates a new report.
+         */
+        private Report(long interval) {
+            this.interval = interval;
+        }
+
+        /**
+         * @return a line describing the rates since the last report
+         */
+        private String next() {
+            Map<TokenBucket, long[]> current = new HashMap<>();
+            StringBuilder line = new StringBuilder("bandwidth:");
+            if (global != null) {
+                line.append(" global ").append(describe(global, current));
+            }
+
+            //the busiest subnet and client are the most interesting - the rest are summarised by count
+            append(line, "subnet", subnets, current);
+            append(line, "client", clients, current);
+
+            previous = current;
+            return line.toString();
+        }
+
+        /**
+         * Appends the number of buckets of a kind, and the rate of the busiest.
+         */
+        private void append(StringBuilder line, String kind, Map<InetAddress, TokenBucket> buckets,
+                            Map<TokenBucket, long[]> current) {
+            if (buckets.isEmpty()) {
+                return;
+            }
+            InetAddress busiest = null;
+            long busiestBytes = -1;
+            for (Map.Entry<InetAddress, TokenBucket> entry : buckets.entrySet()) {
+                long sent = delta(entry.getValue())[0];
+                if (sent > busiestBytes) {
+                    busiest = entry.getKey();
+                    busiestBytes = sent;
+                }
+            }
+            line.append(", ").append(buckets.size()).append(' ').append(kind).append("s");
+            line.append(", busiest ").append(kind).append(' ').append(busiest.getHostAddress()).append(' ')
+                    .append(describe(buckets.get(busiest), current));
+            for (TokenBucket bucket : buckets.values()) {
+                current.put(bucket, new long[]{bucket.getBytes(), bucket.getThrottledNanos()});
+            }
+        }
+
+        /**
+         * Describes a bucket's rate and time spent throttled since the last report.
+         */
+        private String describe(TokenBucket bucket, Map<TokenBucket, long[]> current) {
+            long[] delta = bucket == null ? new long[2] : delta(bucket);
+            if (bucket != null) {
+                current.put(bucket, new long[]{bucket.getBytes(), bucket.getThrottledNanos()});
+            }
+            long limit = bucket == null ? 0 : bucket.getRate();
+            return String.format(
+                    "%s KB/s (limit %d KB/s, throttled %s s)",
+                    BigDecimal.valueOf(delta[0]).divide(BigDecimal.valueOf(1024 * interval), 1,
+                            BigDecimal.ROUND_HALF_UP).toPlainString(),
+                    limit / 1024,
+                    BigDecimal.valueOf(delta[1], 9).setScale(1, BigDecimal.ROUND_HALF_UP).toPlainString()
+            );
+        }
+
+        /**
+         * Gives the bytes sent and the time throttled by a bucket since the last report.
+         */
+        private long[] delta(TokenBucket bucket) {
+            long[] last = previous.getOrDefault(bucket, new long[2]);
+            return new long[]{bucket.getBytes() - last[0], bucket.getThrottledNanos() - last[1]};
+        }
+
+    }
+
+}
@@ -0,0 +1,66 @@
+package tftp.core.shaping;
+
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetAddress;
+
+/**
+ * Writes to a stream no faster than a {@link BandwidthShaper} allows for a client, for transfers which send a file
+ * as a stream. Large writes are split up, so they go out at a steady rate rather than in one burst after a long
+ * wait.
+ */
+public class ShapedOutputStream extends FilterOutputStream {
+
+    /**
+     * The most bytes written to the underlying stream at once.
+     */
+    private static final int CHUNK_SIZE = 8192;
+
+    /**
+     * Limits the rate written at.
+     */
+    private final BandwidthShaper shaper;
+
+    /**
+     * The address of the client written to.
+     */
+    private final InetAddress client;
+
+    /**
+     * Creates a new stream.
+     *
+     * @param out the stream to write to
+     * @param shaper limits the rate written at
+     * @param client the address of the client written to
+     */
+    public ShapedOutputStream(OutputStream out, BandwidthShaper shaper, InetAddress client) {
+        super(out);
+        this.shaper = shaper;
+        this.client = client;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void write(int b) throws IOException {
+        shaper.acquire(client, 1);
+        out.write(b);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException {
+        while (len > 0) {
+            int count = Math.min(len, CHUNK_SIZE);
+            shaper.acquire(client, count);
+            out.write(b, off, count);
+            off += count;
+            len -= count;
+        }
+    }
+
+}
@@ -0,0 +1,120 @@
+package tftp.core.shaping;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * A token bucket limiting a rate in bytes per second, which any number of threads can draw from at once without
+ * locking. Rather than counting tokens, the bucket keeps the time at which it would next be empty if nothing else
+ * were drawn (the "theoretical arrival time" of the generic cell rate algorithm) - drawing from the bucket moves
+ * that time on by the cost of the bytes drawn, with a single compare-and-set. A full bucket allows a burst of up to
+ * its capacity to go out at once.
+ * <p>
+ * Drawing never blocks: the caller is told how long to wait before sending, having already reserved its bytes, so
+ * callers sharing the bucket queue up behind each other fairly.
+ */
+public class TokenBucket {
+
+    /**
+     * The rate, in bytes per second.
+     */
+    private final long rate;
+
+    /**
+     * How far the reserved time may run ahead of now before callers have to wait, in nanoseconds - the capacity
+     * of the bucket, expressed as time.
+     */
+    private final long burstNanos;
+
+    /**
+     * The time (in terms of {@link System#nanoTime()}) at which everything reserved so far will have been sent at
+     * the limited rate.
+     */
+    private final AtomicLong reservedUntil;
+
+    /**
+     * The total number of bytes drawn from the bucket.
+     */
+    private final LongAdder bytes = new LongAdder();
+
+    /**
+     * The total time callers have been told to wait, in nanoseconds.
+     */
+    private final LongAdder throttledNanos = new LongAdder();
+
+    /**
+     * Creates a new, full, bucket.
+     *
+     * @param rate the rate to limit to, in bytes per second
+     * @param burst the capacity of the bucket, in bytes
+     */
+    public TokenBucket(long rate, long burst) {
+        if (rate <= 0) {
+            throw new IllegalArgumentException("rate must be positive: " + rate);
+        }
+        this.rate = rate;
+        this.burstNanos = nanosFor(Math.max(burst, 1));
+        this.reservedUntil = new AtomicLong(System.nanoTime());
+    }
+
+    /**
+     * Draws bytes from the bucket.
+     *
+     * @param count the number of bytes about to be sent
+     * @return how long to wait before sending them, in nanoseconds - zero if they can be sent now
+     */
+    public long reserve(int count) {
+        long cost = nanosFor(count);
+        long now = System.nanoTime();
+        long start;
+        long end;
+        do {
+            start = reservedUntil.get();
+            //an idle bucket refills, but only up to its capacity
+            end = Math.max(start, now - burstNanos) + cost;
+        } while (!reservedUntil.compareAndSet(start, end));
+
+        long wait = Math.max(0, end - burstNanos - now);
+        bytes.add(count);
+        if (wait > 0) {
+            throttledNanos.add(wait);
+        }
+        return wait;
+    }
+
+    /**
+     * @return true if the bucket is full, so forgetting it and starting a new one later would make no difference
+     */
+    public boolean isIdle() {
+        return System.nanoTime() - reservedUntil.get() >= burstNanos;
+    }
+
+    /**
+     * @return the rate limited to, in bytes per second
+     */
+    public long getRate() {
+        return rate;
+    }
+
+    /**
+     * @return the total number of bytes drawn from the bucket
+     */
+    public long getBytes() {
+        return bytes.sum();
+    }
+
+    /**
+     * @return the total time callers have been told to wait, in nanoseconds
+     */
+    public long getThrottledNanos() {
+        return throttledNanos.sum();
+    }
+
+    /**
+     * Gives the time taken to send a number of bytes at the limited rate.
+     */
+    private long nanosFor(long count) {
+        return count * 1000000000L / rate;
+    }
+
+}
@@ -0,0 +1,177 @@
+package tftp.core.storage;
+
+import tftp.core.Configuration;
+import tftp.core.packet.DataPacket;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Keeps the first block and the size of files recently read, so a server can answer a read request for one of
+ * them (with the first block, or with an option acknowledgement giving the size) without opening the file - the
+ * file is opened afterwards, while the client answers, and checked against what was sent.
+ * <p>
+ * For files on the local file system, an entry is only used while the file's size and modification time are as
+ * they were when it was read. Otherwise entries are used until invalidated, eg. by an upload of the file.
+ */
+public class FirstBlockCache {
+
+    /**
+     * The storage the files are read from.
+     */
+    private final Storage storage;
+
+    /**
+     * The most files kept at once - past this, new files aren't kept until others are invalidated.
+     */
+    private final int maxEntries;
+
+    /**
+     * The files kept, by name as given in requests.
+     */
+    private final Map<String, Entry> entries = new ConcurrentHashMap<>();
+
+    /**
+     * Creates a new cache.
+     *
+     * @param storage the storage the files are read from
+     * @param maxEntries the most files to keep at once
+     */
+    public FirstBlockCache(Storage storage, int maxEntries) {
+        this.storage = storage;
+        this.maxEntries = maxEntries;
+    }
+
+    /**
+     * Creates a cache for a storage, with the size set in {@link Configuration}.
+     *
+     * @param storage the storage the files are read from
+     * @return the cache, or null if first blocks aren't kept
+     */
+    public static FirstBlockCache fromConfiguration(Storage storage) {
+        return Configuration.FIRST_BLOCK_CACHE_SIZE > 0
+                ? new FirstBlockCache(storage, Configuration.FIRST_BLOCK_CACHE_SIZE)
+                : null;
+    }
+
+    /**
+     * Looks up a file's first block.
+     *
+     * @param name the name of the file, as given in the request
+     * @return the file's entry, or null if it isn't kept (or the file has changed since)
+     */
+    public Entry lookup(String name) {
+        Entry entry = entries.get(name);
+        if (entry == null || entry.file == null) {
+            return entry;
+        }
+        if (entry.file.length() != entry.size || entry.file.lastModified() != entry.lastModified) {
+            entries.remove(name, entry);
+            return null;
+        }
+        return entry;
+    }
+
+    /**
+     * Reads a file's first block and keeps it, along with the file's size, if there is room.
+     *
+     * @param name the name of the file, as given in the request
+     * @param source the file, as opened for the transfer - it is read positionally, so the transfer isn't disturbed
+     * @return the file's entry, or null if there was no room for it
+     * @throws IOException if the file could not be read
+     */
+    public Entry record(String name, StoredFile source) throws IOException {
+        if (entries.size() >= maxEntries && !entries.containsKey(name)) {
+            return null;
+        }
+        //look at the local file before reading it, so a change part way through shows up as a change
+        File file = storage.getFile(name);
+        long lastModified = file == null ? 0 : file.lastModified();
+        long size = source.size();
+
+        byte[] block = new byte[Configuration.MAX_DATA_LENGTH];
+        int read = source.read(0, block, 0, block.length);
+        Entry entry = new Entry(file, size, lastModified, new DataPacket((short) 1, block, Math.max(0, read)));
+        entries.put(name, entry);
+        return entry;
+    }
+
+    /**
+     * Forgets a file, as it has been replaced.
+     *
+     * @param name the name of the file, as given in the request
+     */
+    public void invalidate(String name) {
+        entries.remove(name);
+    }
+
+    /**
+     * A file's first block and size.
+     */
+    public static class Entry {
+
+        /**
+         * The file on the local file system, or null if the storage doesn't keep files there.
+         */
+        private final File file;
+
+        /**
+         * The size of the file, and its modification time when it was read.
+         */
+        private final long size;
+        private final long lastModified;
+
+        /**
+         * The first block of the file, ready to send.
+         */
+        private final DataPacket firstBlock;
+
+        /**
+         * Creates a new entry.
+         */
+        private Entry(File file, long size, long lastModified, DataPacket firstBlock) {
+            this.file = file;
+            this.size = size;
+            this.lastModified = lastModified;
+            this.firstBlock = firstBlock;
+        }
+
+        /**
+         * @return the size of the file in bytes
+         */
+        public long getSize() {
+            return size;
+        }
+
+        /**
+         * @return the first block of the file - shared, so not to be changed
+         */
+        public DataPacket getFirstBlock() {
+            return firstBlock;
+        }
+
+        /**
+         * Checks whether the file, as opened for a transfer, still starts with the block kept.
+         *
+         * @param block the first block read from the file
+         * @param length the length of the block
+         * @return true if it is the same
+         */
+        public boolean matches(byte[] block, int length) {
+            if (length != firstBlock.getDataLength()) {
+                return false;
+            }
+            byte[] kept = firstBlock.getPacketBytes();
+            for (int i = 0; i < length; ++i) {
+                if (block[i] != kept[DataPacket.DATA_OFFSET + i]) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+    }
+
+}
@@ -0,0 +1,181 @@
+package tftp.core.storage;
+
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+
+/**
+ * Serves files straight out of a zip archive, without extracting them. Files are named by their paths within
+ * the archive. Read-only - files can't be written through it.
+ */
+public class ZipStorage implements Storage {
+
+    /**
+     * The archive the files are served from.
+     */
+    private final ZipFile archive;
+
+    /**
+     * Opens a storage serving the entries of the given archive.
+     *
+     * @param archive the zip file to serve
+     * @throws IOException if the archive could not be opened
+     */
+    public ZipStorage(File archive) throws IOException {
+        this.archive = new ZipFile(archive);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public StoredFile open(String name) throws IOException {
+        //entries never have a leading slash, but clients may well ask for one
+        while (name.startsWith("/")) {
+            name = name.substring(1);
+        }
+        ZipEntry entry = archive.getEntry(name);
+        if (entry == null || entry.isDirectory()) {
+            throw new FileNotFoundException(name);
+        }
+        return new EntryFile(entry);
+    }
+
+    /**
+     * Always fails, as this storage is read-only.
+     *
+     * @throws FileNotFoundException always
+     */
+    @Override
+    public CreatedFile create(String name) throws IOException {
+        throw new FileNotFoundException(name + " (read-only storage)");
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public boolean isWritable() {
+        return false;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public File getFile(String name) {
+        return null;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public String toString() {
+        return "zip " + archive.getName();
+    }
+
+    /**
+     * An entry of the archive. A compressed entry can only be read from the start, so reads are served from a
+     * stream which is kept open between reads - sequential reads (the usual case) just continue from where the
+     * last left off, a read further on skips ahead, and a read further back starts the stream again.
+     */
+    private class EntryFile implements StoredFile {
+
+        /**
+         * The entry being read.
+         */
+        private final ZipEntry entry;
+
+        /**
+         * The stream reading the entry, or null if none has been opened yet.
+         */
+        private InputStream stream = null;
+
+        /**
+         * The offset in the entry the stream is at.
+         */
+        private long streamPosition = 0;
+
+        /**
+         * Creates a new file reading the given entry.
+         */
+        private EntryFile(ZipEntry entry) {
+            this.entry = entry;
+        }
+
+        /**
+         * {@inheritDoc}
+         */
+        @Override
+        public long size() {
+            return entry.getSize();
+        }
+
+        /**
+         * {@inheritDoc}
+         */
+        @Override
+        public synchronized int read(long position, byte[] buffer, int offset, int length) throws IOException {
+            if (stream == null || position < streamPosition) {
+                close();
+                stream = archive.getInputStream(entry);
+                streamPosition = 0;
+            }
+            while (streamPosition < position) {
+                long skipped = stream.skip(position - streamPosition);
+                if (skipped <= 0) {
+                    return length == 0 ? 0 : -1;
+                }
+                streamPosition += skipped;
+            }
+
+            int total = 0;
+            while (total < length) {
+                int read = stream.read(buffer, offset + total, length - total);
+                if (read == -1) {
+                    break;
+                }
+                total += read;
+            }
+            streamPosition += total;
+            return total == 0 && length > 0 ? -1 : total;
+        }
+
+        /**
+         * Always fails, as the file is read-only.
+         *
+         * @throws IOException always
+         */
+        @Override
+        public void write(long position, byte[] buffer, int offset, int length) throws IOException {
+            throw new IOException("read-only file");
+        }
+
+        /**
+         * Always fails, as the file is read-only.
+         *
+         * @throws IOException always
+         */
+        @Override
+        public void truncate(long size) throws IOException {
+            throw new IOException("read-only file");
+        }
+
+        /**
+         * {@inheritDoc}
+         */
+        @Override
+        public synchronized void close() throws IOException {
+            if (stream != null) {
+                stream.close();
+                stream = null;
+            }
+        }
+
+    }
+
+}
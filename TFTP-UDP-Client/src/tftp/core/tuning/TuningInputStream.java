@@ -0,0 +1,53 @@
+package tftp.core.tuning;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * Counts the bytes read from a socket's stream towards a {@link BufferTuner}, for transfers which receive a file
+ * as a stream.
+ */
+public class TuningInputStream extends FilterInputStream {
+
+    /**
+     * Grows the socket's buffers.
+     */
+    private final BufferTuner tuner;
+
+    /**
+     * Creates a new stream.
+     *
+     * @param in the socket's stream to read from
+     * @param tuner grows the socket's buffers
+     */
+    public TuningInputStream(InputStream in, BufferTuner tuner) {
+        super(in);
+        this.tuner = tuner;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public int read() throws IOException {
+        int b = in.read();
+        if (b != -1) {
+            tuner.received(1);
+        }
+        return b;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException {
+        int num = in.read(b, off, len);
+        if (num > 0) {
+            tuner.received(num);
+        }
+        return num;
+    }
+
+}
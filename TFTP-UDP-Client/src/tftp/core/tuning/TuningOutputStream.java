@@ -0,0 +1,47 @@
+package tftp.core.tuning;
+
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * Counts the bytes written to a socket's stream towards a {@link BufferTuner}, for transfers which send a file as
+ * a stream.
+ */
+public class TuningOutputStream extends FilterOutputStream {
+
+    /**
+     * Grows the socket's buffers.
+     */
+    private final BufferTuner tuner;
+
+    /**
+     * Creates a new stream.
+     *
+     * @param out the socket's stream to write to
+     * @param tuner grows the socket's buffers
+     */
+    public TuningOutputStream(OutputStream out, BufferTuner tuner) {
+        super(out);
+        this.tuner = tuner;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void write(int b) throws IOException {
+        out.write(b);
+        tuner.sent(1);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException {
+        out.write(b, off, len);
+        tuner.sent(len);
+    }
+
+}
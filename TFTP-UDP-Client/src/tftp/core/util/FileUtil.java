@@ -0,0 +1,73 @@
+package tftp.core.util;
+
+import tftp.core.storage.StoredFile;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * Provides file-related utilities used when receiving files.
+ */
+public class FileUtil {
+
+    /**
+     * Reserves space for a file of the given size before any of it has been received, by writing a single byte at
+     * the final offset. This lets the filesystem lay the file out in one go rather than growing it 512 bytes at a
+     * time, and on filesystems which do not support sparse files it allocates the blocks up front - so a full disk
+     * is discovered before the transfer starts rather than part-way through it.
+     *
+     * @param channel the channel of the (empty) destination file
+     * @param size the expected size of the file in bytes
+     * @throws IOException if the space could not be reserved
+     */
+    public static void preallocate(FileChannel channel, long size) throws IOException {
+        if (size <= channel.size()) {
+            return;
+        }
+        //positional write, so the channel's own position (used by the sequential writes which follow) is untouched
+        channel.write(ByteBuffer.wrap(new byte[1]), size - 1);
+    }
+
+    /**
+     * Reserves space for a stored file of the given size before any of it has been received, in the same way as
+     * {@link #preallocate(FileChannel, long)}.
+     *
+     * @param file the (empty) destination file
+     * @param size the expected size of the file in bytes
+     * @throws IOException if the space could not be reserved
+     */
+    public static void preallocate(StoredFile file, long size) throws IOException {
+        if (size > file.size()) {
+            file.write(size - 1, new byte[1], 0, 1);
+        }
+    }
+
+    /**
+     * Trims a file back to the number of bytes actually written to it. Needed after {@link #preallocate} if the
+     * file turned out to be shorter than announced.
+     *
+     * @param channel the channel of the destination file
+     * @throws IOException if the file could not be truncated
+     */
+    public static void truncateToPosition(FileChannel channel) throws IOException {
+        if (channel.size() > channel.position()) {
+            channel.truncate(channel.position());
+        }
+    }
+
+    /**
+     * Flushes a directory to disk, so that files renamed into it survive a crash. Not every platform can open a
+     * directory to flush it (eg. Windows) - there, this does nothing.
+     *
+     * @param directory the directory to flush
+     */
+    public static void syncDirectory(File directory) {
+        try (FileChannel channel = FileChannel.open(directory.toPath(), StandardOpenOption.READ)) {
+            channel.force(true);
+        } catch (IOException ignore) {}
+    }
+
+}
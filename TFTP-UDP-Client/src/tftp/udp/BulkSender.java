@@ -0,0 +1,551 @@
+package tftp.udp;
+
+import tftp.core.Configuration;
+import tftp.core.TFTPException;
+import tftp.core.TransferOptions;
+import tftp.core.packet.*;
+import tftp.core.scheduling.TransferScheduler;
+import tftp.core.shaping.BandwidthShaper;
+import tftp.core.tuning.BufferTuner;
+import tftp.udp.congestion.CongestionControl;
+import tftp.udp.fec.ParityCode;
+import tftp.udp.fec.ParityEncoder;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetAddress;
+import java.net.SocketTimeoutException;
+import java.util.ArrayDeque;
+import java.util.BitSet;
+import java.util.Deque;
+import java.util.List;
+
+/**
+ * Sends a file in bulk mode, once the receiver has agreed to it. Rather than waiting for each block or window to
+ * be acknowledged, the blocks are streamed, and the receiver reports every so often (with a
+ * {@link NegativeAcknowledgementPacket}) the last block it has in order, the furthest it has got, and the blocks
+ * missing in between. Only the missing blocks are resent, so on a lossy link a lost block costs one datagram,
+ * rather than the rest of its window (or a whole timeout, in lock-step).
+ * <p>
+ * The receiver holds on to the blocks after a missing one until it arrives, so the sender never gets further
+ * ahead of the last block the receiver has in order than the negotiated bulk window. The congestion window limits
+ * the blocks sent beyond the furthest one the receiver has reported.
+ * <p>
+ * Blocks are numbered from 1 here, as longs, so a transfer of more than 65535 blocks needs no special handling -
+ * the block numbers on the wire are the low 16 bits, and always fall within a bulk window of the blocks in flight.
+ * <p>
+ * If forward error correction was agreed, parity blocks are sent after each group of blocks, and a block reported
+ * missing is not resent until its group's parity blocks have had a round trip to rebuild it - a loss the parity
+ * covers costs nothing more.
+ */
+public class BulkSender {
+
+    /**
+     * The socket used to send and receive datagrams.
+     */
+    private final DatagramSocket socket;
+
+    /**
+     * The address and port of the receiver.
+     */
+    private final InetAddress remoteAddress;
+    private final int remotePort;
+
+    /**
+     * The stream the blocks are read from.
+     */
+    private final InputStream source;
+
+    /**
+     * The options negotiated for the transfer.
+     */
+    private final TransferOptions options;
+
+    /**
+     * Limits the rate datagrams are sent at, or null.
+     */
+    private final BandwidthShaper shaper;
+
+    /**
+     * The transfer's share of the send slots, or null.
+     */
+    private final TransferScheduler.Session session;
+
+    /**
+     * Spaces out the blocks sent together.
+     */
+    private final Pacer pacer;
+
+    /**
+     * Decides how long to go without a report before resending.
+     */
+    private final RetransmissionTimer timer;
+
+    /**
+     * Keeps fewer blocks in flight while the network shows signs of congestion.
+     */
+    private final CongestionControl congestion;
+
+    /**
+     * Grows the socket's buffers to fit the link, or null.
+     */
+    private final BufferTuner tuner;
+
+    /**
+     * The transfer's share of the server's packet buffers, which blocks are read into and given back to once
+     * acknowledged - or null.
+     */
+    private final BufferPool.Lease buffers;
+
+    /**
+     * The bulk window - the most blocks sent beyond the last block the receiver has in order.
+     */
+    private final int window;
+
+    /**
+     * The blocks sent but not yet acknowledged, indexed by block number modulo the window, and when each was
+     * last sent (in terms of {@link System#nanoTime()}) and whether it has been sent more than once.
+     */
+    private final DataPacket[] blocks;
+    private final long[] sentAt;
+    private final boolean[] resent;
+
+    /**
+     * The blocks the receiver reported missing, waiting to be resent - and which of them are waiting, by block
+     * number modulo the window.
+     */
+    private final Deque<Long> lost = new ArrayDeque<>();
+    private final BitSet queued;
+
+    /**
+     * The first block not yet acknowledged, the next block to read from the file, and the furthest block the
+     * receiver has reported getting.
+     */
+    private long base = 1;
+    private long next = 1;
+    private long highest = 0;
+
+    /**
+     * The number of the final block, or -1 if it has not been read yet.
+     */
+    private long finalBlock = -1;
+
+    /**
+     * Losses of blocks before this one have already been reacted to - the congestion window is only cut once for
+     * the blocks lost from each window's worth, as in TCP's fast recovery.
+     */
+    private long recoveryPoint = 0;
+
+    /**
+     * Works out the parity blocks for each group, or null if forward error correction is not in use - and the
+     * number of blocks in a group.
+     */
+    private final ParityEncoder encoder;
+    private final int groupSize;
+
+    /**
+     * The parity blocks waiting to go out with the current burst, and when each group's parity blocks were sent
+     * (in terms of {@link System#nanoTime()}), indexed by group number modulo the number of groups a window spans.
+     */
+    private final Deque<ParityPacket> parity = new ArrayDeque<>();
+    private final long[] paritySentAt;
+
+    /**
+     * The number of data bytes acknowledged, the number of blocks resent, and the number of reports received.
+     */
+    private long bytesSent = 0;
+    private long blocksResent = 0;
+    private long reports = 0;
+    private long paritySent = 0;
+
+    /**
+     * Creates a new sender.
+     */
+    private BulkSender(DatagramSocket socket, InetAddress remoteAddress, int remotePort, InputStream source,
+                       TransferOptions options, BandwidthShaper shaper, TransferScheduler.Session session,
+                       Pacer pacer, RetransmissionTimer timer, CongestionControl congestion, BufferTuner tuner,
+                       BufferPool.Lease buffers) {
+        this.socket = socket;
+        this.remoteAddress = remoteAddress;
+        this.remotePort = remotePort;
+        this.source = source;
+        this.options = options;
+        this.shaper = shaper;
+        this.session = session;
+        this.pacer = pacer;
+        this.timer = timer;
+        this.congestion = congestion;
+        this.tuner = tuner;
+        this.buffers = buffers;
+        this.window = options.getBulkWindow();
+        this.blocks = new DataPacket[window];
+        this.sentAt = new long[window];
+        this.resent = new boolean[window];
+        this.queued = new BitSet(window);
+        if (options.getFecGroupSize() > 0) {
+            this.groupSize = options.getFecGroupSize();
+            this.encoder = new ParityEncoder(new ParityCode(groupSize, options.getFecParity()));
+            this.paritySentAt = new long[window / groupSize + 2];
+        } else {
+            this.groupSize = 0;
+            this.encoder = null;
+            this.paritySentAt = null;
+        }
+    }
+
+    /**
+     * Sends a file in bulk mode, starting from the first block.
+     *
+     * @param socket the socket used to send and receive datagrams
+     * @param remoteAddress the address of the receiver
+     * @param remotePort the port of the receiver
+     * @param source the stream to read the blocks from
+     * @param options the options negotiated for the transfer, including the bulk window
+     * @param shaper limits the rate datagrams are sent at, or null
+     * @param session the transfer's share of the send slots, or null
+     * @param pacer spaces out the blocks sent together
+     * @param timer decides how long to go without a report before resending
+     * @param congestion keeps fewer blocks in flight while the network shows signs of congestion
+     * @param tuner grows the socket's buffers to fit the link, or null
+     * @param buffers the transfer's share of the server's packet buffers to read blocks into, or null
+     * @return the number of data bytes sent, or -1 if the transfer was abandoned (the reason having been printed)
+     * @throws TFTPException if the receiver stopped answering
+     */
+    public static long send(DatagramSocket socket, InetAddress remoteAddress, int remotePort, InputStream source,
+                            TransferOptions options, BandwidthShaper shaper, TransferScheduler.Session session,
+                            Pacer pacer, RetransmissionTimer timer, CongestionControl congestion,
+                            BufferTuner tuner, BufferPool.Lease buffers) throws TFTPException {
+        BulkSender sender = new BulkSender(
+                socket, remoteAddress, remotePort, source, options, shaper, session, pacer, timer, congestion, tuner,
+                buffers
+        );
+        long bytesSent = sender.send();
+        if (bytesSent >= 0) {
+            System.out.printf(
+                    "bulk mode: resent %d blocks in answer to %d reports%n", sender.blocksResent, sender.reports
+            );
+            if (sender.encoder != null) {
+                System.out.printf(
+                        "fec: sent %d parity blocks for groups of %d%n", sender.paritySent, sender.groupSize
+                );
+            }
+        }
+        return bytesSent;
+    }
+
+    /**
+     * Streams the file until every block has been acknowledged.
+     */
+    private long send() throws TFTPException {
+        byte[] receiveBuffer = new byte[Configuration.MAX_PACKET_LENGTH];
+        DatagramPacket rcvDatagram = new DatagramPacket(receiveBuffer, receiveBuffer.length);
+
+        //the blocks to send in each round - those reported missing, then as many new ones as fit in the window
+        long[] burst = new long[2 * window];
+
+        //keep track of the number of consecutive timeouts, and the number of nonsense packets received
+        int timeouts = 0;
+        int invalids = 0;
+        int timeout = -1;
+
+        while (finalBlock < 0 || base <= finalBlock) {
+            if (timeouts == Configuration.MAX_TIMEOUTS) {
+                throw new TFTPException("error: transfer timed out");
+            } else if (invalids == Configuration.MAX_INVALIDS) {
+                throw new TFTPException(
+                        "error: too many invalid packets received " +
+                        "or error writing to/reading from socket"
+                );
+            }
+
+            int count;
+            try {
+                count = fillBurst(burst);
+            } catch (IOException e) {
+                System.out.println("error reading from file");
+                return -1;
+            }
+
+            try {
+                pacer.startWindow();
+                for (int i = 0; i < count; ++i) {
+                    DatagramPacket datagram = UDPUtil.toDatagram(block(burst[i]), remoteAddress, remotePort);
+                    if (shaper != null) {
+                        shaper.acquire(remoteAddress, datagram.getLength());
+                    }
+                    pacer.pace();
+                    socket.send(datagram);
+                    sentAt[index(burst[i])] = System.nanoTime();
+                }
+                //the parity blocks of any groups completed by the burst follow it. they are never resent, and
+                // hold no send slot or place in the congestion window - losing one only matters if a block was lost too
+                while (!parity.isEmpty()) {
+                    ParityPacket packet = parity.poll();
+                    DatagramPacket datagram = UDPUtil.toDatagram(packet, remoteAddress, remotePort);
+                    if (shaper != null) {
+                        shaper.acquire(remoteAddress, datagram.getLength());
+                    }
+                    pacer.pace();
+                    socket.send(datagram);
+                    paritySentAt[group(sequence(packet.getFirstBlockNumber()))] = System.nanoTime();
+                    ++paritySent;
+                }
+
+                try {
+                    //wait for the next report - if none comes, the receiver has stopped getting blocks
+                    int wait = timer.getTimeout(options.getTimeout());
+                    if (wait != timeout) {
+                        socket.setSoTimeout(wait);
+                        timeout = wait;
+                    }
+                    socket.receive(rcvDatagram);
+                } catch (SocketTimeoutException e) {
+                    System.out.println("timed out, resending block " + base);
+                    if (timeout >= options.getTimeout()) {
+                        ++timeouts;
+                    }
+                    timer.timedOut();
+                    congestion.onTimeout();
+                    //resend the first block the receiver is missing, and the last one sent - if the blocks
+                    // after the furthest it reported were lost (or its reports were), the next report lists
+                    // exactly which
+                    queueLost(base);
+                    queueLost(next - 1);
+                    recoveryPoint = next;
+                    continue;
+                }
+
+                TFTPPacket received;
+                try {
+                    received = UDPUtil.fromDatagram(rcvDatagram);
+                } catch (TFTPException e) {
+                    ++invalids;
+                    continue;
+                }
+
+                if (received instanceof NegativeAcknowledgementPacket) {
+                    report((NegativeAcknowledgementPacket) received);
+                    timeouts = 0;
+                    invalids = 0;
+                } else if (received instanceof AcknowledgementPacket) {
+                    //the receiver acknowledges the final block with a plain ACK, once it has everything
+                    long acknowledged = sequence((short) ((AcknowledgementPacket) received).getBlockNumber());
+                    if (acknowledged >= base && acknowledged < next) {
+                        acknowledge(acknowledged);
+                        timer.acknowledged();
+                    }
+                    timeouts = 0;
+                    invalids = 0;
+                } else if (received instanceof ErrorPacket) {
+                    System.out.println("error: " + ((ErrorPacket) received).getMessage());
+                    return -1;
+                }
+
+            } catch (IOException e) {
+                //failed to send/receive datagram - just try again, up to the limit checked above
+                ++invalids;
+            }
+        }
+
+        return bytesSent;
+    }
+
+    /**
+     * Works out which blocks to send next - those reported missing, then as many new blocks as the window allows,
+     * read from the file.
+     *
+     * @return the number of blocks filled in
+     */
+    private int fillBurst(long[] burst) throws IOException {
+        int count = 0;
+        while (!lost.isEmpty()) {
+            long block = lost.poll();
+            queued.clear(index(block));
+            if (block >= base && block < next) {
+                burst[count++] = block;
+                resent[index(block)] = true;
+                ++blocksResent;
+            }
+        }
+
+        //the congestion window limits the blocks in flight - those sent beyond the furthest the receiver reported -
+        // so a missing block holds up no more than the bulk window, rather than the congestion window
+        while (finalBlock < 0 && next - base < window && next - 1 - highest < congestion.getWindow()) {
+            //each block holds a send slot until it is acknowledged - with none in flight, wait for one, otherwise
+            // send what the slots allow and wait for the next report to free some
+            if (session != null) {
+                if (next == base) {
+                    session.acquire(Configuration.MAX_PACKET_LENGTH);
+                } else if (!session.tryAcquire(Configuration.MAX_PACKET_LENGTH)) {
+                    break;
+                }
+            }
+            //read straight into the packet buffer, after the header, so it can be sent without copying
+            byte[] packetBuffer = FileSender.takeBuffer(buffers);
+            int read = FileSender.readBlock(
+                    source, packetBuffer, DataPacket.DATA_OFFSET, Configuration.MAX_DATA_LENGTH
+            );
+            if (read == -1) {
+                //the file is a multiple of the block size (or empty), so it ends with an empty block
+                read = 0;
+            }
+            blocks[index(next)] = DataPacket.wrap((short) next, packetBuffer, read);
+            if (buffers != null && blocks[index(next)].getPacketBytes() != packetBuffer) {
+                //the final block was copied into a buffer of its own length
+                buffers.give(packetBuffer);
+            }
+            resent[index(next)] = false;
+            if (read < Configuration.MAX_DATA_LENGTH) {
+                finalBlock = next;
+            }
+            if (encoder != null) {
+                List<ParityPacket> completed = encoder.add(blocks[index(next)]);
+                if (!completed.isEmpty()) {
+                    //not sent yet, so the group's blocks can't be resent until it has been
+                    paritySentAt[group(next)] = Long.MAX_VALUE;
+                    parity.addAll(completed);
+                }
+            }
+            burst[count++] = next++;
+        }
+        return count;
+    }
+
+    /**
+     * Takes note of a report from the receiver.
+     */
+    private void report(NegativeAcknowledgementPacket nak) {
+        ++reports;
+        long acknowledged = sequence(nak.getBlockNumber());
+        long furthest = sequence(nak.getHighestBlockNumber());
+        if (acknowledged < base - 1 || acknowledged >= next || furthest >= next) {
+            //an old report, overtaken by a later one
+            return;
+        }
+        if (acknowledged >= base) {
+            acknowledge(acknowledged);
+        }
+
+        //the round trip is measured to the furthest block reported, unless it was resent (Karn's algorithm)
+        long now = System.nanoTime();
+        if (furthest > highest) {
+            if (!resent[index(furthest)]) {
+                timer.measured(now - sentAt[index(furthest)]);
+                if (tuner != null) {
+                    tuner.measured(now - sentAt[index(furthest)]);
+                }
+                pacer.update(timer.getSmoothedRtt(), Math.min(window, congestion.getWindow()));
+            } else {
+                timer.acknowledged();
+            }
+            highest = furthest;
+        }
+
+        //queue the missing blocks to be resent - except those resent too recently for the report to know
+        boolean loss = false;
+        for (int i = 0; i < nak.getRangeCount(); ++i) {
+            long start = sequence(nak.getRangeStart(i));
+            long end = Math.min(next, start + nak.getRangeLength(i));
+            for (long block = Math.max(base, start); block < end; ++block) {
+                if (now - sentAt[index(block)] <= timer.getSmoothedRtt()) {
+                    continue;
+                }
+                if (awaitingParity(block, now)) {
+                    //the receiver may yet rebuild it, but the loss is a sign of congestion all the same
+                    loss |= block >= recoveryPoint;
+                } else if (queueLost(block)) {
+                    loss |= block >= recoveryPoint;
+                }
+            }
+        }
+        if (loss) {
+            congestion.onLoss();
+            recoveryPoint = next;
+        }
+    }
+
+    /**
+     * Acknowledges every block up to and including the given one.
+     */
+    private void acknowledge(long acknowledged) {
+        int count = 0;
+        for (; base <= acknowledged; ++base) {
+            bytesSent += blocks[index(base)].getDataLength();
+            if (tuner != null) {
+                tuner.sent(blocks[index(base)].getDataLength());
+            }
+            if (buffers != null) {
+                buffers.give(blocks[index(base)].getPacketBytes());
+            }
+            blocks[index(base)] = null;
+            if (session != null) {
+                session.release();
+            }
+            ++count;
+        }
+        congestion.onAcknowledged(count);
+    }
+
+    /**
+     * Queues a block to be resent, unless it is already queued or has been acknowledged.
+     *
+     * @return true if the block was queued
+     */
+    private boolean queueLost(long block) {
+        if (block < base || block >= next || queued.get(index(block))) {
+            return false;
+        }
+        queued.set(index(block));
+        lost.add(block);
+        return true;
+    }
+
+    /**
+     * Decides whether a block reported missing should be left for the receiver to rebuild from its group's parity
+     * blocks - if they have not been sent yet, or were sent too recently for the report to know.
+     */
+    private boolean awaitingParity(long block, long now) {
+        if (encoder == null) {
+            return false;
+        }
+        long groupEnd = block - (block - 1) % groupSize + groupSize - 1;
+        if (groupEnd >= next && finalBlock < 0) {
+            //the group is still being sent
+            return true;
+        }
+        long sentAt = paritySentAt[group(block)];
+        return sentAt == Long.MAX_VALUE || now - sentAt <= timer.getSmoothedRtt();
+    }
+
+    /**
+     * Gives the index of a block's group in the array of parity send times.
+     */
+    private int group(long block) {
+        return (int) ((block - 1) / groupSize % paritySentAt.length);
+    }
+
+    /**
+     * Gives the block with the given number, which must be in the window.
+     */
+    private DataPacket block(long block) {
+        return blocks[index(block)];
+    }
+
+    /**
+     * Gives the index of a block in the window's arrays.
+     */
+    private int index(long block) {
+        return (int) (block % window);
+    }
+
+    /**
+     * Works out which block a block number on the wire means - the one with those low 16 bits nearest to the
+     * first block not yet acknowledged.
+     */
+    private long sequence(short blockNumber) {
+        return base + (short) (blockNumber - (short) base);
+    }
+
+}
@@ -0,0 +1,64 @@
+package tftp.udp;
+
+/**
+ * What a sender does when an acknowledgement arrives for a block it has already had acknowledged. The receiver
+ * repeats its last acknowledgement when it notices a block missing from a window - but an acknowledgement can also
+ * be duplicated or held up in the network, and a copy arriving late looks just the same. Resending in answer to
+ * every copy is the Sorcerer's Apprentice bug (RFC 1123, section 4.2.3.1): each resent block is acknowledged
+ * again, each of those acknowledgements triggers another resend, and the traffic doubles with every round.
+ */
+public enum DuplicateAckPolicy {
+
+    /**
+     * Duplicate acknowledgements are counted, and otherwise ignored - blocks are only ever resent when the
+     * retransmission timer runs out, as RFC 1123 requires of lock-step TFTP. A window with a lost block waits out
+     * the timer, but duplicates on the network cost nothing.
+     */
+    IGNORE("ignore"),
+
+    /**
+     * A repeated acknowledgement of the block before the window resends the window straight away, at most once per
+     * window - recovering from a lost block a timeout sooner. A copy arriving sooner than half a round trip into
+     * the window can't be a report of a lost block, so is ignored, but one held up for longer costs a window.
+     */
+    RESEND("resend");
+
+    /**
+     * The name used to choose this policy.
+     */
+    private final String name;
+
+    /**
+     * Creates a new duplicate acknowledgement policy with the given name.
+     *
+     * @param name the name used to choose this policy
+     */
+    DuplicateAckPolicy(String name) {
+        this.name = name;
+    }
+
+    /**
+     * Finds the duplicate acknowledgement policy with the given name.
+     *
+     * @param name the name of the policy
+     * @return the policy
+     * @throws IllegalArgumentException if there is no such policy
+     */
+    public static DuplicateAckPolicy fromName(String name) {
+        for (DuplicateAckPolicy policy : values()) {
+            if (policy.name.equals(name)) {
+                return policy;
+            }
+        }
+        throw new IllegalArgumentException("unknown duplicate ack policy: " + name);
+    }
+
+    /**
+     * @return the name used to choose this policy
+     */
+    @Override
+    public String toString() {
+        return name;
+    }
+
+}
@@ -2,15 +2,25 @@ package tftp.udp;
 
 import tftp.core.Configuration;
 import tftp.core.TFTPException;
+import tftp.core.TransferOptions;
 import tftp.core.packet.*;
+import tftp.core.scheduling.TransferScheduler;
+import tftp.core.shaping.BandwidthShaper;
+import tftp.core.tuning.BufferTuner;
+import tftp.udp.congestion.CongestionControl;
+import tftp.udp.congestion.CongestionControls;
+import tftp.udp.congestion.FixedWindow;
 
-import java.io.FileInputStream;
 import java.io.IOException;
+import java.io.InputStream;
 import java.math.BigDecimal;
 import java.net.DatagramPacket;
 import java.net.DatagramSocket;
 import java.net.InetAddress;
 import java.net.SocketTimeoutException;
+import java.util.ArrayDeque;
+import java.util.Collections;
+import java.util.Deque;
 
 /**
  * A generic class for sending a file over UDP using the trivial file transfer protocol.
@@ -24,54 +34,235 @@ public class FileSender {
      * Sends a file to a TFTP host.
      *
      * @param socket the socket used to send and receive datagrams
-     * @param firstPacket the first packet to send - this is usually a WRQ or a DATA1
+     * @param firstPacket the first packet to send - this is usually a WRQ, a DATA1 or an OACK
      * @param remoteAddress the address of the remote host to send datagrams to
      * @param remotePort the port on the remote host to send datagrams to
-     * @param fis the file input stream to read from, which is sent to the remote host
+     * @param fis the stream to read the file from, which is sent to the remote host
      * @param firstBlockNumber the initial block number - this differs depending on whether it is a client or server
+     * @param options the options for this transfer - if the first packet is a request, these are the requested
+     *                options, and are updated to reflect what the remote host acknowledged
      * @throws TFTPException if an 'unfixable' error occurred during transfer
      */
     public static void send(DatagramSocket socket, TFTPPacket firstPacket, InetAddress remoteAddress,
-                            int remotePort, FileInputStream fis, short firstBlockNumber) throws TFTPException {
+                            int remotePort, InputStream fis, short firstBlockNumber,
+                            TransferOptions options) throws TFTPException {
+        send(socket, firstPacket, remoteAddress, remotePort, fis, firstBlockNumber, options, null, null);
+    }
+
+    /**
+     * Sends a file to a TFTP host, limiting the rate it is sent at and sharing the server's send slots with other
+     * transfers.
+     *
+     * @param socket the socket used to send and receive datagrams
+     * @param firstPacket the first packet to send - this is usually a WRQ, a DATA1 or an OACK
+     * @param remoteAddress the address of the remote host to send datagrams to
+     * @param remotePort the port on the remote host to send datagrams to
+     * @param fis the stream to read the file from, which is sent to the remote host
+     * @param firstBlockNumber the initial block number - this differs depending on whether it is a client or server
+     * @param options the options for this transfer - if the first packet is a request, these are the requested
+     *                options, and are updated to reflect what the remote host acknowledged
+     * @param shaper limits the rate datagrams are sent at, or null to send them as fast as they are acknowledged
+     * @param session the transfer's share of the send slots, or null to send without waiting for a slot
+     * @throws TFTPException if an 'unfixable' error occurred during transfer
+     */
+    public static void send(DatagramSocket socket, TFTPPacket firstPacket, InetAddress remoteAddress,
+                            int remotePort, InputStream fis, short firstBlockNumber,
+                            TransferOptions options, BandwidthShaper shaper,
+                            TransferScheduler.Session session) throws TFTPException {
+        send(
+                socket, firstPacket, remoteAddress, remotePort, fis, firstBlockNumber, options, shaper, session, 0,
+                null
+        );
+    }
+
+    /**
+     * Sends a file to a TFTP host, once the first packet has already been sent - eg. by a server answering a
+     * request as soon as it arrives - so the transfer carries on by waiting for its acknowledgement.
+     *
+     * @param socket the socket used to send and receive datagrams
+     * @param firstPacket the first packet, already sent - this is usually a DATA1 or an OACK
+     * @param remoteAddress the address of the remote host to send datagrams to
+     * @param remotePort the port on the remote host to send datagrams to
+     * @param fis the stream to read the file from, after the first packet's data if it holds any
+     * @param firstBlockNumber the initial block number - this differs depending on whether it is a client or server
+     * @param options the options for this transfer
+     * @param shaper limits the rate datagrams are sent at, or null to send them as fast as they are acknowledged
+     * @param session the transfer's share of the send slots, or null to send without waiting for a slot - if the
+     *                first packet has been sent already, it holds a slot, which is given back once it is answered.
+     *                Any slots still held when the transfer ends are given back, however it ends
+     * @param firstSentAt when the first packet was sent, in terms of {@link System#nanoTime()}, or 0 if it hasn't
+     *                    been sent yet
+     * @param buffers the transfer's share of the server's packet buffers to read blocks into, or null to allocate
+     *                them as they are needed
+     * @throws TFTPException if an 'unfixable' error occurred during transfer
+     */
+    public static void send(DatagramSocket socket, TFTPPacket firstPacket, InetAddress remoteAddress,
+                            int remotePort, InputStream fis, short firstBlockNumber,
+                            TransferOptions options, BandwidthShaper shaper,
+                            TransferScheduler.Session session, long firstSentAt,
+                            BufferPool.Lease buffers) throws TFTPException {
+        try {
+            sendFile(
+                    socket, firstPacket, remoteAddress, remotePort, fis, firstBlockNumber, options, shaper, session,
+                    firstSentAt, buffers
+            );
+        } finally {
+            //blocks never acknowledged, eg. as the transfer was given up on, still hold their slots
+            if (session != null) {
+                session.releaseAll();
+            }
+        }
+    }
+
+    /**
+     * Sends a file to a TFTP host, as for {@link #send(DatagramSocket, TFTPPacket, InetAddress, int, InputStream,
+     * short, TransferOptions, BandwidthShaper, TransferScheduler.Session, long, BufferPool.Lease)} - leaving any
+     * send slots still held when it ends for the caller to give back.
+     */
+    private static void sendFile(DatagramSocket socket, TFTPPacket firstPacket, InetAddress remoteAddress,
+                                 int remotePort, InputStream fis, short firstBlockNumber,
+                                 TransferOptions options, BandwidthShaper shaper,
+                                 TransferScheduler.Session session, long firstSentAt,
+                                 BufferPool.Lease buffers) throws TFTPException {
 
         //track the time taken and the number of bytes sent to print at the end if all goes well
         long startTime = System.currentTimeMillis();
-        int bytesSent = 0;
+        long bytesSent = 0;
 
-        //the packet currently being sent into the network
-        TFTPPacket sendPacket;
-
-        //a buffer for holding the data contained in received datagrams
+        //a buffer for holding the data contained in received datagrams, and a datagram 'shell' around it
         byte[] receiveBuffer = new byte[Configuration.MAX_PACKET_LENGTH];
-        //a buffer for holding the data read from the file
-        byte[] fileBuffer = new byte[Configuration.MAX_DATA_LENGTH];
-        
-        //to check if we're sending the initial packet since this differs between server and client
+        DatagramPacket rcvDatagram = new DatagramPacket(receiveBuffer, receiveBuffer.length);
+
+        //the packets sent (or about to be) but not yet acknowledged, oldest first - starting with the first
+        // packet, which could be a WRQ, a DATA1 or an OACK. once the first packet is acknowledged, up to a window
+        // of data blocks is sent before waiting for an acknowledgement (RFC 7440), a window of one block being
+        // plain lock-step TFTP
+        Deque<TFTPPacket> unacknowledged = new ArrayDeque<>();
+        unacknowledged.add(firstPacket);
+
+        //the number of packets at the front of the window which have been sent since the window last started -
+        // the rest are still to be sent
+        int sent = 0;
+
+        //the number of blocks in a window - only known once a request has been acknowledged
+        int window = firstPacket instanceof RequestPacket ? 1 : options.getWindowSize();
+
+        //keeps fewer blocks than the window in flight while the network shows signs of congestion
+        CongestionControl congestion = congestionControl(window);
+
+        //whether the first packet is still waiting for acknowledgement, since this differs between server and
+        // client
         boolean first = true;
 
-        //the current block number being sent - waiting for acknowledgement of this block
-        short blockNumber = firstBlockNumber;
+        //the block number of the next block to read from the file
+        short nextBlock = (short) (firstBlockNumber + 1);
 
-        //a variable to hold the number of bytes read from the file input stream (see below)
-        int read;
+        //the stream the data blocks are read from - this is the file input stream, wrapped according to any
+        // negotiated options (eg. compression). only known once the options have been acknowledged
+        InputStream source = null;
 
-        //the length of the last file-read (will be 512 unless it is the final read)
+        //the length of the last block read (will be 512 unless it is the final block), and whether the final
+        // block has been read
         int lastLength = Configuration.MAX_DATA_LENGTH;
+        boolean endOfFile = false;
+        if (firstPacket instanceof DataPacket) {
+            lastLength = ((DataPacket) firstPacket).getDataLength();
+            endOfFile = lastLength < Configuration.MAX_DATA_LENGTH;
+        }
+
+        //spaces out the blocks of each window, and decides how long to wait for an acknowledgement, according to
+        // the round trip times measured along the way. a round trip is measured from the last packet of a window
+        // being sent to its acknowledgement arriving, except for windows which had to be resent (Karn's algorithm)
+        Pacer pacer = new Pacer(Configuration.PACING_GAIN);
+        RetransmissionTimer timer = new RetransmissionTimer();
+        int timeout = options.getTimeout();
+        long lastSendTime = 0;
+        long windowStartTime = 0;
+        boolean resent = false;
+
+        //when each packet of the window was last sent, indexed by the low bits of its block number - a partial
+        // acknowledgement only counts as a loss if the first block missing had a round trip to reach the receiver
+        long[] sendTimes = sendTimes(window);
 
-        //loop until all file is sent, then break out
+        //grows the socket's buffers to fit the link, from the round trips measured and the data acknowledged
+        BufferTuner tuner = BufferTuner.forSocket(socket, remoteAddress);
+
+        //what to do about an acknowledgement of a block already acknowledged, and the number received. if the
+        // policy is to resend, the window is resent at most once per report of a missing block, and whether it
+        // has been since the last report is kept - resending in answer to every duplicate acknowledgement would
+        // double the traffic with each round (the Sorcerer's Apprentice bug)
+        DuplicateAckPolicy duplicatePolicy = DuplicateAckPolicy.fromName(Configuration.DUPLICATE_ACK_POLICY);
+        long duplicateAcks = 0;
+        boolean recovering = false;
+
+        //whether only the first block of the window is to be resent, rather than the whole window, and whether
+        // that is how the receiver was last answered. a receiver which keeps the blocks arriving after a missing
+        // one acknowledges past the resent block as soon as it arrives - and once it has, only the first block
+        // missing is resent each time, rather than blocks it already has. a receiver which throws them away
+        // acknowledges only the resent block, and the rest of the window is resent as usual
+        boolean resendFirst = false;
+        boolean resentFirst = false;
+
+        //keep track of the number of consecutive timeouts, and the number of nonsense packets received
+        int timeouts = 0;
+        int invalids = 0;
+
+        //each packet holds a send slot from being sent until it is answered - when the server is busy, the slots
+        // go to the transfers whose turn it is. this is the number of packets at the front of the window holding
+        // one - packets resent keep the slot they have
+        int holding = 0;
+
+        //the first packet may be on its way already - if so, wait for its acknowledgement as if it had been sent
+        // from here, holding its send slot until then
+        if (firstSentAt != 0) {
+            sent = 1;
+            windowStartTime = firstSentAt;
+            lastSendTime = firstSentAt;
+            sendTimes[blockNumber(firstPacket, firstBlockNumber) & (sendTimes.length - 1)] = firstSentAt;
+            holding = session != null ? 1 : 0;
+        }
+
+        //loop until all file is sent and acknowledged, then break out
         while (true) {
 
-            //generally will be sending data, but the first packet is different (could be WRQ or DATA1)
-            // so check which ack we're up to and set the packet to send accordingly
-            if (first) {
-                sendPacket = firstPacket;
-                if (firstPacket instanceof DataPacket) {
-                    lastLength = ((DataPacket) firstPacket).getDataLength();
+            if (!first && options.getBulkWindow() > 0) {
+                //the receiver agreed to bulk mode - stream the rest of the file, resending only the blocks it
+                // reports missing
+                try {
+                    if (source == null) {
+                        source = options.encode(fis);
+                    }
+                } catch (IOException e) {
+                    System.out.println("error reading from file");
+                    return;
                 }
-            } else {
+                window = options.getBulkWindow();
+                congestion = congestionControl(window);
+                long bulkBytes = BulkSender.send(
+                        socket, remoteAddress, remotePort, source, options, shaper, session, pacer, timer, congestion,
+                        tuner, buffers
+                );
+                if (bulkBytes < 0) {
+                    return;
+                }
+                bytesSent += bulkBytes;
+                break;
+            }
+
+            //top up the window with blocks read from the file - not while the first packet is a request or OACK
+            // waiting for acknowledgement, as the window isn't agreed on until then
+            while ((!first || firstPacket instanceof DataPacket)
+                    && unacknowledged.size() < Math.min(window, congestion.getWindow()) && !endOfFile) {
+                int read;
+                byte[] packetBuffer;
                 try {
-                    //read a chunk of the file into the file buffer (usually 512 bytes)
-                    read = fis.read(fileBuffer);
+                    if (source == null) {
+                        source = options.encode(fis);
+                    }
+                    //read a chunk of the file (usually 512 bytes) straight into the packet buffer, after the header
+                    // so the buffer can be sent as it is without copying the data into a packet
+                    packetBuffer = takeBuffer(buffers);
+                    read = readBlock(source, packetBuffer, DataPacket.DATA_OFFSET, Configuration.MAX_DATA_LENGTH);
                 } catch (IOException e) {
                     System.out.println("error reading from file");
                     return;
@@ -81,97 +272,268 @@ public class FileSender {
                     // RFC, need to check if the file size is a multiple of 512 bytes. if so, a zero-byte data
                     // packet must be sent.
                     if (lastLength == Configuration.MAX_DATA_LENGTH) {
-                        //if last length sent was 512, then need to send a 0-byte data packet - so set read to 0
                         read = 0;
                     } else {
+                        endOfFile = true;
                         break;
                     }
                 }
-                //create a new data packet containing the file's chunk of data
-                sendPacket = new DataPacket(blockNumber, fileBuffer, read);
+                //create a new data packet around the file's chunk of data
+                DataPacket packet = DataPacket.wrap(nextBlock++, packetBuffer, read);
+                if (buffers != null && packet.getPacketBytes() != packetBuffer) {
+                    //the final block was copied into a buffer of its own length
+                    buffers.give(packetBuffer);
+                }
+                unacknowledged.add(packet);
                 lastLength = read;
+                endOfFile = read < Configuration.MAX_DATA_LENGTH;
             }
 
-            //convert the TFTP packet into a datagram
-            DatagramPacket datagram = UDPUtil.toDatagram(sendPacket, remoteAddress, remotePort);
-
-            //create a datagram 'shell' to hold the datagram received from the network
-            DatagramPacket rcvDatagram = new DatagramPacket(receiveBuffer, receiveBuffer.length);
+            if (unacknowledged.isEmpty()) {
+                //everything has been acknowledged
+                break;
+            }
 
-            //keep track of the number of consecutive timeouts, and the number of nonsense packets received
-            int timeouts = 0;
-            int invalids = 0;
+            if (timeouts == Configuration.MAX_TIMEOUTS) {
+                //too many timeouts - give up
+                throw new TFTPException("error: transfer timed out");
+            } else if (invalids == Configuration.MAX_INVALIDS) {
+                //too many odd packets received or too many failed attempts to write to output stream
+                throw new TFTPException(
+                        "error: too many invalid packets received " +
+                        "or error writing to/reading from socket"
+                );
+            }
 
-            //continue looping until we reach the max number of timeouts/invalids or until the packet is acknowledged
-            // the hopeful alternative is that the relevant ACK is received, in which case will break out of the loop
-            while (timeouts < Configuration.MAX_TIMEOUTS && invalids < Configuration.MAX_INVALIDS) {
-                try {
-                    //send the current datagram to the remote host
+            try {
+                //send the rest of the window to the remote host, spaced out by the pacer, once the rate limits
+                // allow it and there are send slots for it - resent blocks count against the limits too
+                if (sent == 0) {
+                    pacer.startWindow();
+                    windowStartTime = System.nanoTime();
+                }
+                if (resendFirst) {
+                    //just the block the receiver is missing - it has the rest of what was sent
+                    DatagramPacket datagram = UDPUtil.toDatagram(
+                            unacknowledged.peekFirst(), remoteAddress, remotePort
+                    );
+                    if (shaper != null) {
+                        shaper.acquire(remoteAddress, datagram.getLength());
+                    }
+                    socket.send(datagram);
+                    lastSendTime = System.nanoTime();
+                    sendTimes[blockNumber(unacknowledged.peekFirst(), firstBlockNumber) & (sendTimes.length - 1)]
+                            = lastSendTime;
+                    resendFirst = false;
+                }
+                int index = 0;
+                for (TFTPPacket packet : unacknowledged) {
+                    if (index++ < sent) {
+                        continue;
+                    }
+                    DatagramPacket datagram = UDPUtil.toDatagram(packet, remoteAddress, remotePort);
+                    if (session != null && index > holding) {
+                        //a transfer with nothing in flight waits its turn for a slot - one with blocks in flight
+                        // only takes a slot which is free, and otherwise waits for its blocks to be answered
+                        // (which gives their slots back), so it can never wait on itself
+                        if (holding == 0) {
+                            session.acquire(datagram.getLength());
+                        } else if (!session.tryAcquire(datagram.getLength())) {
+                            break;
+                        }
+                        ++holding;
+                    }
+                    if (shaper != null) {
+                        shaper.acquire(remoteAddress, datagram.getLength());
+                    }
+                    pacer.pace();
                     socket.send(datagram);
+                    lastSendTime = System.nanoTime();
+                    sendTimes[blockNumber(packet, firstBlockNumber) & (sendTimes.length - 1)] = lastSendTime;
+                    ++sent;
+                }
 
-                    try {
-                        //block until we receive a response, if this throws a timeout exception then increment
-                        // the number of timeouts and 're-enter' the loop - thus sending the datagram again
-                        socket.receive(rcvDatagram);
-                    } catch (SocketTimeoutException timeout) {
-                        System.out.println("timed out, resending " + sendPacket);
+                try {
+                    //block until we receive a response, if this throws a timeout exception then go round
+                    // again - resending the whole window
+                    int wait = timer.getTimeout(options.getTimeout());
+                    if (wait != timeout) {
+                        socket.setSoTimeout(wait);
+                        timeout = wait;
+                    }
+                    socket.receive(rcvDatagram);
+                } catch (SocketTimeoutException e) {
+                    System.out.println("timed out, resending " + unacknowledged.peekFirst());
+                    //only timeouts of the whole negotiated timeout count towards giving up - shorter ones
+                    // just double the wait, so a slow receiver gets as long as it ever did
+                    if (timeout >= options.getTimeout()) {
                         ++timeouts;
-                        continue;
                     }
+                    timer.timedOut();
+                    if (!first) {
+                        congestion.onTimeout();
+                    }
+                    sent = 0;
+                    resent = true;
+                    resentFirst = false;
+                    continue;
+                }
 
-                    if (blockNumber == firstBlockNumber) {
-                        //server can respond from a different port, so re-set the remote port based on
-                        // the received datagram
-                        remotePort = rcvDatagram.getPort();
+                if (first) {
+                    //server can respond from a different port, so re-set the remote port based on
+                    // the received datagram
+                    remotePort = rcvDatagram.getPort();
+                }
+
+                //convert the received datagram to a TFTP packet - if this throws an exception, it means the packet
+                // is 'nonsensical' in terms of the protocol - so count it and wait for another
+                TFTPPacket received;
+                try {
+                    received = UDPUtil.fromDatagram(rcvDatagram);
+                } catch (TFTPException e) {
+                    ++invalids;
+                    continue;
+                }
+
+                if (received instanceof OptionAcknowledgementPacket && first
+                        && firstPacket instanceof RequestPacket) {
+                    //the remote host accepted (some of) the requested options - an OACK stands in for the
+                    // ACK0 of a write request, so take note of the options and move on to the first block
+                    options.acknowledge(((OptionAcknowledgementPacket) received).getOptions());
+                    System.out.println("negotiated options: " + options);
+                    socket.setSoTimeout(options.getTimeout());
+                    timeout = options.getTimeout();
+                    window = options.getWindowSize();
+                    congestion = congestionControl(window);
+                    sendTimes = sendTimes(window);
+                    unacknowledged.removeFirst();
+                    if (holding > 0) {
+                        session.release();
+                        --holding;
                     }
+                    sent = 0;
+                    first = false;
+                    timeouts = 0;
+                    invalids = 0;
+                } else if (received instanceof AcknowledgementPacket) {
+                    short ackNumber = (short) ((AcknowledgementPacket) received).getBlockNumber();
 
-                    //convert the received datagram to a TFTP packet - if this throws an exception, it means the packet
-                    // is 'nonsensical' in terms of the protocol - so re-send the request for the next packet and
-                    // increment the number of these invalid packets received
-                    TFTPPacket received;
-                    try {
-                        received = UDPUtil.fromDatagram(rcvDatagram);
-                    } catch (TFTPException e) {
-                        ++invalids;
-                        continue;
+                    //find the acknowledged packet in the window - an acknowledgement covers every packet up to
+                    // and including the one it names
+                    int acknowledged = 0;
+                    index = 0;
+                    for (TFTPPacket packet : unacknowledged) {
+                        ++index;
+                        if (index <= sent && blockNumber(packet, firstBlockNumber) == ackNumber) {
+                            acknowledged = index;
+                        }
                     }
 
-                    if (received instanceof AcknowledgementPacket) {
-                        AcknowledgementPacket ack = (AcknowledgementPacket) received;
+                    if (acknowledged > 0) {
+                        if (first && firstPacket instanceof RequestPacket) {
+                            //plain ACK rather than an OACK - the remote host ignored any options
+                            options.acknowledge(Collections.<String, String>emptyMap());
+                            window = 1;
+                            congestion = congestionControl(window);
+                        }
+                        if (acknowledged == sent && !resent) {
+                            timer.measured(System.nanoTime() - lastSendTime);
+                            if (tuner != null) {
+                                tuner.measured(System.nanoTime() - lastSendTime);
+                            }
+                            pacer.update(timer.getSmoothedRtt(), Math.min(window, congestion.getWindow()));
+                        } else {
+                            timer.acknowledged();
+                        }
 
-                        //packet has correct ack number, we are waiting on this packet
-                        if (ack.getBlockNumber() == blockNumber) {
-                            if (sendPacket.getPacketType() == PacketType.DATA) {
+                        int blocks = 0;
+                        for (int i = 0; i < acknowledged; ++i) {
+                            TFTPPacket packet = unacknowledged.removeFirst();
+                            if (holding > 0) {
+                                session.release();
+                                --holding;
+                            }
+                            if (packet.getPacketType() == PacketType.DATA) {
                                 //update with the number of bytes successfully sent
-                                bytesSent += ((DataPacket) sendPacket).getDataLength();
+                                bytesSent += ((DataPacket) packet).getDataLength();
+                                if (tuner != null) {
+                                    tuner.sent(((DataPacket) packet).getDataLength());
+                                }
+                                ++blocks;
+                                //the first packet may be shared (eg. a cached first block), so only the blocks
+                                // read here are reused
+                                if (buffers != null && packet != firstPacket) {
+                                    buffers.give(packet.getPacketBytes());
+                                }
                             }
-                            //ready to send the next packet - break out of the loop
-                            ++blockNumber;
-                            first = false;
-                            break;
                         }
+                        congestion.onAcknowledged(blocks);
 
-                    } else if (received instanceof ErrorPacket) {
-                        //received error packet from remote host, so print the message and terminate
-                        System.out.println("error: " + ((ErrorPacket) received).getMessage());
-                        return;
+                        //anything left unacknowledged from the window didn't reach the receiver in time - it
+                        // acknowledges the last block it got in order as soon as it notices a gap, or when the
+                        // stream of blocks stops for a while. if the first block it is missing was sent at least a
+                        // round trip ago, the receiver could have seen the blocks after it, so it was lost - back
+                        // off, and carry on from there. if not, the receiver's wait ran out while the blocks were
+                        // held up on the way (eg. by the rate limits), which is no sign of congestion
+                        boolean partial = acknowledged < sent;
+                        if (partial && resentFirst && acknowledged > 1) {
+                            //the receiver kept what arrived after the block resent, and has told us the next
+                            // block it is missing - resend only that, as part of the same recovery
+                            sent -= acknowledged;
+                            resendFirst = true;
+                        } else if (partial && System.nanoTime() - sendTimes[blockNumber(
+                                unacknowledged.peekFirst(), firstBlockNumber) & (sendTimes.length - 1)]
+                                < timer.getSmoothedRtt()) {
+                            //the rest of the window is still on its way - move the window along, and wait for it
+                            // rather than sending it again
+                            sent -= acknowledged;
+                            recovering = false;
+                            resentFirst = false;
+                        } else {
+                            recovering = partial;
+                            if (recovering) {
+                                congestion.onLoss();
+                            }
+                            sent = 0;
+                            resentFirst = false;
+                        }
+                        resent = false;
+                        first = false;
+                        timeouts = 0;
+                        invalids = 0;
+                    } else {
+                        //a duplicate - either the receiver is reporting a missing block, or it is a late copy of
+                        // an acknowledgement already dealt with. a report can't arrive until blocks of the window
+                        // have made it to the receiver and the report back, so one arriving much sooner than a
+                        // round trip into the window is a copy of the acknowledgement which started it
+                        ++duplicateAcks;
+                        if (duplicatePolicy == DuplicateAckPolicy.RESEND && window > 1 && !recovering
+                                && sent == unacknowledged.size()
+                                && System.nanoTime() - windowStartTime >= timer.getSmoothedRtt() / 2
+                                && ackNumber
+                                == (short) (blockNumber(unacknowledged.peekFirst(), firstBlockNumber) - 1)) {
+                            //the receiver is still waiting for the first block of the window, so it was lost -
+                            // back off, and resend it straight away rather than waiting for a timeout. if the
+                            // receiver throws away blocks after a missing one, the rest of the window follows once
+                            // it acknowledges this one
+                            congestion.onLoss();
+                            resendFirst = true;
+                            resentFirst = true;
+                            resent = true;
+                            recovering = true;
+                        }
                     }
 
-                } catch (IOException e) {
-                    //failed to send/receive datagram - just try again, up to the limit specified by the while loop
-                    ++invalids;
+                } else if (received instanceof ErrorPacket) {
+                    //received error packet from remote host, so print the message and terminate
+                    System.out.println("error: " + ((ErrorPacket) received).getMessage());
+                    return;
                 }
-            }
 
-            if (timeouts == Configuration.MAX_TIMEOUTS) {
-                //too many timeouts - give up
-                throw new TFTPException("error: transfer timed out");
-            } else if (invalids == Configuration.MAX_INVALIDS) {
-                //too many odd packets received or too many failed attempts to write to output stream
-                throw new TFTPException(
-                        "error: too many invalid packets received " +
-                        "or error writing to/reading from socket"
-                );
+            } catch (IOException e) {
+                //failed to send/receive datagram - just try again, up to the limit checked above
+                ++invalids;
+                sent = 0;
             }
 
         }
@@ -182,6 +544,93 @@ public class FileSender {
         BigDecimal bigDecimal = new BigDecimal(seconds);
         bigDecimal = bigDecimal.setScale(1, BigDecimal.ROUND_UP);
         System.out.printf("sent %d bytes in %s seconds%n", bytesSent, bigDecimal.toPlainString());
+        if (duplicateAcks > 0) {
+            System.out.printf("received %d duplicate acknowledgements (%s)%n", duplicateAcks, duplicatePolicy);
+        }
+        if (socket instanceof LossySocket) {
+            System.out.println(socket);
+            //what the retransmissions cost, compared to the data itself
+            long wireBytes = ((LossySocket) socket).getBytesSent();
+            System.out.printf(
+                    "%d bytes on the wire for %d bytes of data (%.3fx)%n",
+                    wireBytes, bytesSent, bytesSent == 0 ? 0.0 : (double) wireBytes / bytesSent
+            );
+        }
+        String pacing = pacer.report();
+        if (pacing != null) {
+            System.out.println(pacing);
+        }
+        if (window > 1) {
+            System.out.println("congestion control " + congestion);
+        }
+    }
+
+    /**
+     * Creates the congestion control set in {@link Configuration#CONGESTION_CONTROL} for a transfer.
+     *
+     * @param window the window negotiated with the receiver, in blocks
+     * @return the congestion control - a fixed window if the one set is unknown
+     */
+    private static CongestionControl congestionControl(int window) {
+        CongestionControl congestion = CongestionControls.create(Configuration.CONGESTION_CONTROL, window);
+        return congestion == null ? new FixedWindow(window) : congestion;
+    }
+
+    /**
+     * Creates the table of when each packet of a window was sent - a power of two long, so block numbers index it
+     * by their low bits, and longer than the window, so the packets of a window never share an entry.
+     *
+     * @param window the window, in blocks
+     * @return the table
+     */
+    private static long[] sendTimes(int window) {
+        return new long[Integer.highestOneBit(Math.max(1, window)) << 1];
+    }
+
+    /**
+     * Gives the block number a packet is acknowledged with.
+     *
+     * @param packet a packet sent - the first packet, or a data block
+     * @param firstBlockNumber the block number the first packet is acknowledged with
+     * @return the block number
+     */
+    private static short blockNumber(TFTPPacket packet, short firstBlockNumber) {
+        return packet instanceof DataPacket ? ((DataPacket) packet).getBlockNumber() : firstBlockNumber;
+    }
+
+    /**
+     * Takes a buffer for a data packet, with room for a full block after the header.
+     *
+     * @param buffers the transfer's share of the server's packet buffers, or null to allocate a new buffer
+     * @return the buffer
+     */
+    static byte[] takeBuffer(BufferPool.Lease buffers) {
+        int length = DataPacket.DATA_OFFSET + Configuration.MAX_DATA_LENGTH;
+        return buffers != null ? buffers.take(length) : new byte[length];
+    }
+
+    /**
+     * Reads the next block of data to send. Unlike a single {@link InputStream#read(byte[])}, this keeps reading
+     * until the buffer is full - a short block signals the end of the transfer, so one must only be sent at the
+     * end of the stream (a compressing stream, for instance, can return fewer bytes than asked for at any time).
+     *
+     * @param in the stream to read from
+     * @param buffer the buffer to read the block into
+     * @param offset the offset in the buffer to read the block into
+     * @param length the length of a full block
+     * @return the number of bytes read, or -1 if the end of the stream was reached before any were read
+     * @throws IOException if the stream could not be read
+     */
+    static int readBlock(InputStream in, byte[] buffer, int offset, int length) throws IOException {
+        int total = 0;
+        while (total < length) {
+            int read = in.read(buffer, offset + total, length - total);
+            if (read == -1) {
+                break;
+            }
+            total += read;
+        }
+        return total == 0 && length > 0 ? -1 : total;
     }
 
 }
@@ -0,0 +1,132 @@
+package tftp.udp;
+
+import java.io.IOException;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.SocketException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A socket which drops a random fraction of the datagrams sent through it, as if they were lost on the way, and
+ * sends a copy of another fraction again a while later, as if the network had duplicated and held it up - for
+ * trying out how transfers cope with a poor link, without needing one. Each datagram is dropped or duplicated
+ * independently.
+ * <p>
+ * The socket counts the bytes the transfer itself sends (not the injected copies), so the overhead of
+ * retransmissions can be compared to the size of the file.
+ */
+public class LossySocket extends DatagramSocket {
+
+    /**
+     * Sends the delayed copies of datagrams, for every lossy socket.
+     */
+    private static final ScheduledExecutorService DELAYER = Executors.newSingleThreadScheduledExecutor(r -> {
+        Thread thread = new Thread(r, "duplicate-delayer");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    /**
+     * The fraction of datagrams dropped, and the fraction duplicated, between 0 and 1.
+     */
+    private final double loss;
+    private final double duplication;
+
+    /**
+     * How long after the original a duplicate is sent, in milliseconds.
+     */
+    private final int delay;
+
+    /**
+     * The number of datagrams sent, the number of those dropped, and the number duplicated - and the number of
+     * bytes sent.
+     */
+    private long sent = 0;
+    private long dropped = 0;
+    private long duplicated = 0;
+    private long bytesSent = 0;
+
+    /**
+     * Creates a new socket bound to any free port, which drops datagrams but doesn't duplicate any.
+     *
+     * @param loss the fraction of datagrams dropped, between 0 and 1
+     * @throws SocketException if the socket could not be opened
+     */
+    public LossySocket(double loss) throws SocketException {
+        this(loss, 0, 0);
+    }
+
+    /**
+     * Creates a new socket bound to any free port.
+     *
+     * @param loss the fraction of datagrams dropped, between 0 and 1
+     * @param duplication the fraction of datagrams sent again later, between 0 and 1
+     * @param delay how long after the original a duplicate is sent, in milliseconds
+     * @throws SocketException if the socket could not be opened
+     */
+    public LossySocket(double loss, double duplication, int delay) throws SocketException {
+        this.loss = loss;
+        this.duplication = duplication;
+        this.delay = delay;
+    }
+
+    /**
+     * Sends a datagram - or, by chance, doesn't, or sends it twice.
+     *
+     * @param datagram the datagram to send
+     * @throws IOException if the datagram could not be sent
+     */
+    @Override
+    public void send(DatagramPacket datagram) throws IOException {
+        ++sent;
+        bytesSent += datagram.getLength();
+        if (ThreadLocalRandom.current().nextDouble() < duplication) {
+            //copied, as the caller may reuse the datagram before the copy goes
+            byte[] copy = new byte[datagram.getLength()];
+            System.arraycopy(datagram.getData(), datagram.getOffset(), copy, 0, copy.length);
+            DatagramPacket duplicate = new DatagramPacket(
+                    copy, copy.length, datagram.getAddress(), datagram.getPort()
+            );
+            ++duplicated;
+            DELAYER.schedule(() -> deliver(duplicate), delay, TimeUnit.MILLISECONDS);
+        }
+        if (ThreadLocalRandom.current().nextDouble() < loss) {
+            ++dropped;
+            return;
+        }
+        super.send(datagram);
+    }
+
+    /**
+     * @return the number of bytes the transfer has sent through the socket, including those dropped but not the
+     * duplicates
+     */
+    public long getBytesSent() {
+        return bytesSent;
+    }
+
+    /**
+     * Sends a delayed duplicate.
+     */
+    private void deliver(DatagramPacket duplicate) {
+        try {
+            super.send(duplicate);
+        } catch (IOException ignore) {
+            //the socket was closed in the meantime - the duplicate is lost, as it might have been anyway
+        }
+    }
+
+    /**
+     * @return how many of the datagrams sent were dropped and duplicated, for printing at the end of a transfer
+     */
+    @Override
+    public String toString() {
+        return String.format(
+                "dropped %d and duplicated %d of %d datagrams sent (%d bytes)", dropped, duplicated, sent, bytesSent
+        );
+    }
+
+}
@@ -0,0 +1,194 @@
+package tftp.udp;
+
+import tftp.core.Configuration;
+import tftp.core.packet.DataPacket;
+import tftp.core.storage.StoredFileOutputStream;
+
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+
+/**
+ * Keeps the blocks of a window which arrive after a missing one, so they are not thrown away and sent again once
+ * it turns up. Where the received data goes straight into a file, each such block is written in place as soon as
+ * it arrives, and only its length is kept. Otherwise (eg. if the data is decompressed on the way to the file, so
+ * its place in the file isn't known yet) the blocks themselves are held, up to {@link Configuration#REORDER_BUFFER}
+ * of them, until they can be written in order.
+ * <p>
+ * Blocks are numbered from 1 here, as longs, as in {@link BulkReceiver} - the receiver's window always falls
+ * within half the range of block numbers, so the low 16 bits on the wire tell which block is meant.
+ */
+public class ReorderBuffer {
+
+    /**
+     * The stream the blocks are written to in order.
+     */
+    private final OutputStream sink;
+
+    /**
+     * The file written to, if blocks are written in place as they arrive - as a channel, or a stored file's
+     * stream - or both null if blocks are held.
+     */
+    private final FileChannel channel;
+    private final StoredFileOutputStream stored;
+
+    /**
+     * The blocks held until they can be written, indexed by block number modulo the capacity, or null if blocks
+     * are written in place - and the length of each block kept, or -1 where there is none.
+     */
+    private final DataPacket[] held;
+    private final int[] lengths;
+
+    /**
+     * The number of the next block to be written in order.
+     */
+    private long next = 1;
+
+    /**
+     * The final block, if it has been kept.
+     */
+    private DataPacket finalPacket = null;
+
+    /**
+     * The number of blocks kept so far.
+     */
+    private long kept = 0;
+
+    /**
+     * Creates a new buffer.
+     */
+    private ReorderBuffer(OutputStream sink, FileChannel channel, StoredFileOutputStream stored, int capacity) {
+        this.sink = sink;
+        this.channel = channel;
+        this.stored = stored;
+        this.held = channel == null && stored == null ? new DataPacket[capacity] : null;
+        this.lengths = new int[capacity];
+        Arrays.fill(lengths, -1);
+    }
+
+    /**
+     * Creates a buffer for a transfer, before any block has been written.
+     *
+     * @param fos the stream the file is written to
+     * @param sink the stream the received data is written to - the same stream, unless it is decoded on the way
+     * @param window the number of blocks the sender sends before waiting for an acknowledgement
+     * @return the buffer, or null if only one block is sent at a time, so none can arrive out of order
+     */
+    public static ReorderBuffer create(OutputStream fos, OutputStream sink, int window) {
+        if (window <= 1) {
+            return null;
+        }
+        if (sink == fos && fos instanceof FileOutputStream) {
+            return new ReorderBuffer(sink, ((FileOutputStream) fos).getChannel(), null, window);
+        } else if (sink == fos && fos instanceof StoredFileOutputStream) {
+            return new ReorderBuffer(sink, null, (StoredFileOutputStream) fos, window);
+        }
+        return new ReorderBuffer(sink, null, null, Math.min(window, Configuration.REORDER_BUFFER));
+    }
+
+    /**
+     * Gives the number of the block with the given block number, which must be in the window.
+     */
+    private long sequence(short blockNumber) {
+        return next + (short) (blockNumber - (short) next);
+    }
+
+    /**
+     * @param blockNumber the block number of a block which arrived
+     * @return true if the block has already been kept
+     */
+    public boolean isKept(short blockNumber) {
+        long block = sequence(blockNumber);
+        return block > next && block < next + lengths.length && lengths[index(block)] >= 0;
+    }
+
+    /**
+     * Keeps a block which arrived after a missing one - writing it in place, or holding it.
+     *
+     * @param data the block
+     * @return true if it was kept, false if it is too far ahead to be (or already has been)
+     * @throws IOException if the block could not be written
+     */
+    public boolean keep(DataPacket data) throws IOException {
+        long block = sequence(data.getBlockNumber());
+        if (block <= next || block >= next + lengths.length || lengths[index(block)] >= 0) {
+            return false;
+        }
+        long ahead = (block - next) * Configuration.MAX_DATA_LENGTH;
+        if (channel != null) {
+            ByteBuffer buffer = ByteBuffer.wrap(data.getPacketBytes(), DataPacket.DATA_OFFSET, data.getDataLength());
+            long position = channel.position() + ahead;
+            while (buffer.hasRemaining()) {
+                position += channel.write(buffer, position);
+            }
+        } else if (stored != null) {
+            stored.writeAhead(ahead, data.getPacketBytes(), DataPacket.DATA_OFFSET, data.getDataLength());
+        } else {
+            held[index(block)] = data;
+        }
+        lengths[index(block)] = data.getDataLength();
+        if (data.isFinalPacket()) {
+            finalPacket = data;
+        }
+        ++kept;
+        return true;
+    }
+
+    /**
+     * Takes note that the next block was written in order, having arrived in its turn.
+     */
+    public void advance() {
+        ++next;
+    }
+
+    /**
+     * Writes the next block, if it was kept - or, if it was written in place when it arrived, moves the stream
+     * past it.
+     *
+     * @return the length of the block, or -1 if it was not kept
+     * @throws IOException if the block could not be written
+     */
+    public int release() throws IOException {
+        int index = index(next);
+        int length = lengths[index];
+        if (length < 0) {
+            return -1;
+        }
+        if (channel != null) {
+            channel.position(channel.position() + length);
+        } else if (stored != null) {
+            stored.skip(length);
+        } else {
+            sink.write(held[index].getPacketBytes(), DataPacket.DATA_OFFSET, length);
+            held[index] = null;
+        }
+        lengths[index] = -1;
+        ++next;
+        return length;
+    }
+
+    /**
+     * @return the final block, if it was kept, or null
+     */
+    public DataPacket getFinalPacket() {
+        return finalPacket;
+    }
+
+    /**
+     * @return the number of blocks kept so far, having arrived after a missing one
+     */
+    public long getKept() {
+        return kept;
+    }
+
+    /**
+     * Gives the index of a block in the buffer's arrays.
+     */
+    private int index(long block) {
+        return (int) (block % lengths.length);
+    }
+
+}
@@ -0,0 +1,85 @@
+package tftp.udp;
+
+import tftp.core.Configuration;
+
+/**
+ * Works out how long a sender waits for an acknowledgement before resending, from the round trip times measured
+ * along the way (RFC 6298) - rather than always waiting the whole negotiated timeout, which on a lossy link leaves
+ * the transfer idle for most of its time. The negotiated timeout is the longest the sender ever waits, and until
+ * a round trip has been measured it is the only timeout there is.
+ * <p>
+ * Each timeout in a row doubles the wait, up to the negotiated timeout, so a receiver which has gone away (rather
+ * than one on a lossy link) is given as long as it always was before the transfer is given up on.
+ */
+public class RetransmissionTimer {
+
+    /**
+     * The most times the wait is doubled - enough to reach the negotiated timeout from any round trip time.
+     */
+    private static final int MAX_BACKOFF = 16;
+
+    /**
+     * The smoothed round trip time and its variation, in nanoseconds - 0 before the first measurement.
+     */
+    private long smoothedRtt = 0;
+    private long rttVariation = 0;
+
+    /**
+     * The number of times in a row the sender has timed out, doubling the wait each time.
+     */
+    private int backoff = 0;
+
+    /**
+     * Takes a new measurement of the round trip time, and resets the backoff.
+     *
+     * @param rtt the time between sending a packet and its acknowledgement arriving, in nanoseconds
+     */
+    public void measured(long rtt) {
+        if (smoothedRtt == 0) {
+            smoothedRtt = rtt;
+            rttVariation = rtt / 2;
+        } else {
+            rttVariation += (Math.abs(smoothedRtt - rtt) - rttVariation) / 4;
+            smoothedRtt += (rtt - smoothedRtt) / 8;
+        }
+        backoff = 0;
+    }
+
+    /**
+     * Called when a packet was acknowledged, but its round trip couldn't be measured (eg. it had been resent) -
+     * the receiver is evidently still there, so the backoff is reset.
+     */
+    public void acknowledged() {
+        backoff = 0;
+    }
+
+    /**
+     * Called on a timeout, doubling the wait.
+     */
+    public void timedOut() {
+        backoff = Math.min(MAX_BACKOFF, backoff + 1);
+    }
+
+    /**
+     * @return the smoothed round trip time in nanoseconds, or 0 if none has been measured
+     */
+    public long getSmoothedRtt() {
+        return smoothedRtt;
+    }
+
+    /**
+     * Gives the time to wait for an acknowledgement before resending.
+     *
+     * @param maxTimeout the negotiated timeout, in milliseconds
+     * @return the time to wait, in milliseconds
+     */
+    public int getTimeout(int maxTimeout) {
+        if (smoothedRtt == 0) {
+            return maxTimeout;
+        }
+        long timeout = (smoothedRtt + Math.max(1_000_000, 4 * rttVariation) + 999_999) / 1_000_000;
+        timeout = Math.max(Configuration.MIN_RETRANSMISSION_TIMEOUT, timeout) << backoff;
+        return (int) Math.min(maxTimeout, timeout);
+    }
+
+}
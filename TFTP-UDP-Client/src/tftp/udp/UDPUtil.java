@@ -1,10 +1,13 @@
 package tftp.udp;
 
+import tftp.core.Configuration;
 import tftp.core.TFTPException;
 import tftp.core.packet.TFTPPacket;
 
 import java.net.DatagramPacket;
+import java.net.DatagramSocket;
 import java.net.InetAddress;
+import java.net.SocketException;
 
 /**
  * A utility class providing services related to sending/receiving TFTP packets in datagrams.
@@ -38,4 +41,20 @@ public class UDPUtil {
         return datagram;
     }
 
+    /**
+     * Opens a socket for a transfer, bound to any free port - one which drops and duplicates datagrams at random if
+     * {@link Configuration#PACKET_LOSS} or {@link Configuration#PACKET_DUPLICATION} is set.
+     *
+     * @return the socket
+     * @throws SocketException if the socket could not be opened
+     */
+    public static DatagramSocket openSocket() throws SocketException {
+        if (Configuration.PACKET_LOSS > 0 || Configuration.PACKET_DUPLICATION > 0) {
+            return new LossySocket(
+                    Configuration.PACKET_LOSS, Configuration.PACKET_DUPLICATION, Configuration.DUPLICATE_DELAY
+            );
+        }
+        return new DatagramSocket();
+    }
+
 }
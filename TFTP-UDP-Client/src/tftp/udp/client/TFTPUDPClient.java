@@ -5,6 +5,9 @@ import tftp.core.Configuration;
 import tftp.core.ErrorType;
 import tftp.core.Mode;
 import tftp.core.TFTPException;
+import tftp.core.TransferOptions;
+import tftp.core.checksum.Checksums;
+import tftp.core.codec.Codecs;
 import tftp.core.packet.ErrorPacket;
 import tftp.core.packet.ReadRequestPacket;
 import tftp.core.packet.WriteRequestPacket;
@@ -40,9 +43,31 @@ public class TFTPUDPClient extends GenericTFTPClient {
     @Override
     public void get(String remoteFile, String localFile) {
         try {
-            DatagramSocket socket = new DatagramSocket();
+            DatagramSocket socket = UDPUtil.openSocket();
             socket.setSoTimeout(Configuration.TIMEOUT);
             
+            //ask the server for the size of the file (so the space can be reserved up front), for it
+            // to use the same timeout as this client, and to compress and checksum the data and send it in
+            // windows (or in bulk mode) if set up to do so
+            TransferOptions options = new TransferOptions();
+            options.setTransferSize(0);
+            options.setTimeout(Configuration.TIMEOUT);
+            if (Configuration.COMPRESSION != null) {
+                options.setCodec(Codecs.fromName(Configuration.COMPRESSION));
+            }
+            if (Configuration.CHECKSUM) {
+                options.setChecksum(String.join(",", Checksums.getNames()));
+            }
+            if (Configuration.WINDOW_SIZE > 1) {
+                options.setWindowSize(Configuration.WINDOW_SIZE);
+            }
+            if (Configuration.BULK_WINDOW > 0) {
+                options.setBulkWindow(Configuration.BULK_WINDOW);
+            }
+            if (Configuration.BULK_WINDOW > 0 && Configuration.FEC_GROUP_SIZE > 0) {
+                options.setFec(Configuration.FEC_GROUP_SIZE, Configuration.FEC_PARITY);
+            }
+
             //open an output stream to the local file
             try (FileOutputStream fos = new FileOutputStream(localFile)) {
 
@@ -50,10 +75,11 @@ public class TFTPUDPClient extends GenericTFTPClient {
                 // a read request packet
                 FileReceiver.receive(
                         socket,
-                        new ReadRequestPacket(remoteFile, Mode.OCTET),
+                        new ReadRequestPacket(remoteFile, Mode.OCTET, options.toMap()),
                         remoteAddress,
                         remotePort,
-                        fos
+                        fos,
+                        options
                 );
 
             } catch (FileNotFoundException fnfe) {
@@ -87,21 +113,44 @@ public class TFTPUDPClient extends GenericTFTPClient {
     @Override
     public void put(String localFile, String remoteFile) {
         try {
-            DatagramSocket socket = new DatagramSocket();
+            DatagramSocket socket = UDPUtil.openSocket();
             socket.setSoTimeout(Configuration.TIMEOUT);
 
             //open an input stream to read from the given file
             try (FileInputStream fis = new FileInputStream(localFile)) {
 
+                //tell the server the size of the file (so it can reserve the space up front), ask it to
+                // use the same timeout as this client, and to accept compressed and checksummed data in
+                // windows (or in bulk mode) if set up to do so
+                TransferOptions options = new TransferOptions();
+                options.setTransferSize(fis.getChannel().size());
+                options.setTimeout(Configuration.TIMEOUT);
+                if (Configuration.COMPRESSION != null) {
+                    options.setCodec(Codecs.fromName(Configuration.COMPRESSION));
+                }
+                if (Configuration.CHECKSUM) {
+                    options.setChecksum(String.join(",", Checksums.getNames()));
+                }
+                if (Configuration.WINDOW_SIZE > 1) {
+                    options.setWindowSize(Configuration.WINDOW_SIZE);
+                }
+                if (Configuration.BULK_WINDOW > 0) {
+                    options.setBulkWindow(Configuration.BULK_WINDOW);
+                }
+                if (Configuration.BULK_WINDOW > 0 && Configuration.FEC_GROUP_SIZE > 0) {
+                    options.setFec(Configuration.FEC_GROUP_SIZE, Configuration.FEC_PARITY);
+                }
+
                 //send the file to the server, specifying the first packet in the 'communication' to be
                 // a write request packet
                 FileSender.send(
                         socket,
-                        new WriteRequestPacket(remoteFile, Mode.OCTET),
+                        new WriteRequestPacket(remoteFile, Mode.OCTET, options.toMap()),
                         remoteAddress,
                         remotePort,
                         fis,
-                        (short) 0
+                        (short) 0,
+                        options
                 );
 
             } catch (FileNotFoundException e) {
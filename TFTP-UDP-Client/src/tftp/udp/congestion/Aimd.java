@@ -0,0 +1,119 @@
+package tftp.udp.congestion;
+
+/**
+ * Additive increase, multiplicative decrease, after TCP Reno (RFC 5681). The window starts at one block and
+ * doubles each round trip (slow start) until it reaches the threshold, then grows by a fixed number of blocks each
+ * round trip. A reported loss cuts the window by a factor, and sets the threshold there; a timeout sets the
+ * threshold the same way, but drops the window back to one block to start again.
+ */
+public class Aimd implements CongestionControl {
+
+    /**
+     * The name of this variant, for printing.
+     */
+    private final String name;
+
+    /**
+     * The number of blocks the window grows by each round trip, once past slow start.
+     */
+    private final double increase;
+
+    /**
+     * The factor the window is cut by on a loss.
+     */
+    private final double decrease;
+
+    /**
+     * The largest the window can be - the window negotiated with the receiver.
+     */
+    private final int maxWindow;
+
+    /**
+     * The window, in blocks - fractional, as it grows by a fraction of a block with each acknowledgement.
+     */
+    private double window = 1;
+
+    /**
+     * The window up to which slow start carries on.
+     */
+    private double threshold;
+
+    /**
+     * The number of losses and timeouts seen, for printing.
+     */
+    private int losses = 0;
+    private int timeouts = 0;
+
+    /**
+     * Creates a new AIMD congestion control.
+     *
+     * @param name the name of this variant, for printing
+     * @param increase the number of blocks the window grows by each round trip, once past slow start
+     * @param decrease the factor the window is cut by on a loss, between 0 and 1
+     * @param maxWindow the window negotiated with the receiver, in blocks
+     */
+    public Aimd(String name, double increase, double decrease, int maxWindow) {
+        this.name = name;
+        this.increase = increase;
+        this.decrease = decrease;
+        this.maxWindow = Math.max(1, maxWindow);
+        this.threshold = this.maxWindow;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public int getWindow() {
+        return Math.max(1, (int) window);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void onAcknowledged(int blocks) {
+        for (int i = 0; i < blocks; ++i) {
+            if (window < threshold) {
+                //slow start - a block for each block acknowledged, so the window doubles each round trip
+                window += 1;
+            } else {
+                //congestion avoidance - spread over the window, so it grows by 'increase' each round trip
+                window += increase / window;
+            }
+        }
+        window = Math.min(window, maxWindow);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void onLoss() {
+        ++losses;
+        threshold = Math.max(1, window * decrease);
+        window = threshold;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void onTimeout() {
+        ++timeouts;
+        threshold = Math.max(1, window * decrease);
+        window = 1;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public String toString() {
+        return String.format(
+                "%s: window %.1f blocks, threshold %.1f, %d losses, %d timeouts",
+                name, window, threshold, losses, timeouts
+        );
+    }
+
+}
@@ -0,0 +1,56 @@
+package tftp.udp.congestion;
+
+/**
+ * No congestion control - the whole negotiated window is always sent, as in RFC 7440.
+ */
+public class FixedWindow implements CongestionControl {
+
+    /**
+     * The negotiated window, in blocks.
+     */
+    private final int window;
+
+    /**
+     * Creates a new fixed window.
+     *
+     * @param window the negotiated window, in blocks
+     */
+    public FixedWindow(int window) {
+        this.window = Math.max(1, window);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public int getWindow() {
+        return window;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void onAcknowledged(int blocks) {}
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void onLoss() {}
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void onTimeout() {}
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public String toString() {
+        return "fixed window of " + window + " blocks";
+    }
+
+}
@@ -0,0 +1,233 @@
+package tftp.udp.fec;
+
+import tftp.core.Configuration;
+import tftp.core.packet.DataPacket;
+import tftp.core.packet.ParityPacket;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Rebuilds data blocks lost from a group, from the group's parity blocks, for a bulk mode transfer with forward
+ * error correction. Rather than holding on to every block of a group until it is known whether any were lost, each
+ * block's share is added to the group's syndromes as it arrives (and the block can be written out straight away).
+ * Once a parity block arrives, its syndrome is left holding only the shares of the blocks still missing - and once
+ * there are as many syndromes as missing blocks, those blocks are rebuilt.
+ * <p>
+ * Blocks are numbered from 1, as longs, as in {@link tftp.udp.BulkReceiver}.
+ */
+public class ParityDecoder {
+
+    /**
+     * The code the parity blocks were worked out with.
+     */
+    private final ParityCode code;
+
+    /**
+     * The groups not yet complete, by their first block.
+     */
+    private final TreeMap<Long, Group> groups = new TreeMap<>();
+
+    /**
+     * The number of blocks rebuilt so far.
+     */
+    private long recovered = 0;
+
+    /**
+     * Creates a new decoder.
+     *
+     * @param code the code the parity blocks were worked out with
+     */
+    public ParityDecoder(ParityCode code) {
+        this.code = code;
+    }
+
+    /**
+     * Adds a data block which arrived. Each block must only be added once.
+     *
+     * @param block the number of the block
+     * @param packet the block
+     * @return any blocks of the same group which could be rebuilt as a result
+     */
+    public List<DataPacket> addData(long block, DataPacket packet) {
+        Group group = group(block - (block - 1) % code.getGroupSize());
+        int column = (int) (block - group.first);
+        if (group.done || group.received[column]) {
+            return Collections.emptyList();
+        }
+        group.received[column] = true;
+        ++group.receivedCount;
+        for (int row = 0; row < code.getParity(); ++row) {
+            code.accumulate(
+                    group.syndromes[row], 0, row, column,
+                    packet.getPacketBytes(), DataPacket.DATA_OFFSET, packet.getDataLength()
+            );
+        }
+        return recover(group);
+    }
+
+    /**
+     * Adds a parity block which arrived.
+     *
+     * @param firstBlock the number of the first block of the parity block's group
+     * @param packet the parity block
+     * @return any blocks of the group which could be rebuilt as a result
+     */
+    public List<DataPacket> addParity(long firstBlock, ParityPacket packet) {
+        if ((firstBlock - 1) % code.getGroupSize() != 0 || packet.getIndex() >= code.getParity()
+                || packet.getCount() < 1 || packet.getCount() > code.getGroupSize()) {
+            //not a parity block of this code
+            return Collections.emptyList();
+        }
+        Group group = group(firstBlock);
+        int row = packet.getIndex();
+        if (group.done || group.parity[row]) {
+            return Collections.emptyList();
+        }
+        group.parity[row] = true;
+        ++group.parityCount;
+        group.count = packet.getCount();
+        group.lastLength = packet.getLastLength();
+        byte[] bytes = packet.getPacketBytes();
+        byte[] syndrome = group.syndromes[row];
+        for (int i = 0; i < syndrome.length; ++i) {
+            syndrome[i] ^= bytes[ParityPacket.PARITY_OFFSET + i];
+        }
+        return recover(group);
+    }
+
+    /**
+     * Forgets the groups whose blocks have all been written - their parity blocks are no use any more.
+     *
+     * @param expected the next block to be written
+     */
+    public void discardBefore(long expected) {
+        Map.Entry<Long, Group> first;
+        while ((first = groups.firstEntry()) != null && first.getKey() + code.getGroupSize() <= expected) {
+            groups.pollFirstEntry();
+        }
+    }
+
+    /**
+     * @return the number of blocks rebuilt so far
+     */
+    public long getRecovered() {
+        return recovered;
+    }
+
+    /**
+     * Finds the group starting with the given block, starting it if need be.
+     */
+    private Group group(long first) {
+        Group group = groups.get(first);
+        if (group == null) {
+            group = new Group(first, code.getGroupSize(), code.getParity());
+            groups.put(first, group);
+        }
+        return group;
+    }
+
+    /**
+     * Rebuilds the blocks missing from a group, if there are enough parity blocks to.
+     */
+    private List<DataPacket> recover(Group group) {
+        if (group.count < 0) {
+            //no parity block has arrived, so it isn't known how many blocks are in the group
+            return Collections.emptyList();
+        }
+        int missing = 0;
+        for (int column = 0; column < group.count; ++column) {
+            if (!group.received[column]) {
+                ++missing;
+            }
+        }
+        if (missing == 0) {
+            group.done = true;
+            return Collections.emptyList();
+        } else if (missing > group.parityCount) {
+            return Collections.emptyList();
+        }
+
+        int[] rows = new int[missing];
+        byte[][] syndromes = new byte[missing][];
+        for (int row = 0, n = 0; n < missing; ++row) {
+            if (group.parity[row]) {
+                rows[n] = row;
+                syndromes[n++] = group.syndromes[row];
+            }
+        }
+        int[] lost = new int[missing];
+        byte[][] targets = new byte[missing][];
+        for (int column = 0, n = 0; column < group.count; ++column) {
+            if (!group.received[column]) {
+                lost[n] = column;
+                targets[n++] = new byte[DataPacket.DATA_OFFSET + Configuration.MAX_DATA_LENGTH];
+            }
+        }
+        code.recover(rows, syndromes, lost, targets, DataPacket.DATA_OFFSET, Configuration.MAX_DATA_LENGTH);
+
+        List<DataPacket> rebuilt = new ArrayList<>(missing);
+        for (int n = 0; n < missing; ++n) {
+            int length = lost[n] == group.count - 1 ? group.lastLength : Configuration.MAX_DATA_LENGTH;
+            rebuilt.add(DataPacket.wrap((short) (group.first + lost[n]), targets[n], length));
+        }
+        recovered += missing;
+        group.done = true;
+        return rebuilt;
+    }
+
+    /**
+     * A group of data blocks, and what has arrived of it.
+     */
+    private static class Group {
+
+        /**
+         * The number of the group's first block.
+         */
+        private final long first;
+
+        /**
+         * The number of blocks in the group and the length of its last block, or -1 until a parity block arrives.
+         */
+        private int count = -1;
+        private int lastLength = -1;
+
+        /**
+         * Which data blocks have arrived.
+         */
+        private final boolean[] received;
+        private int receivedCount = 0;
+
+        /**
+         * Which parity blocks have arrived.
+         */
+        private final boolean[] parity;
+        private int parityCount = 0;
+
+        /**
+         * The syndromes for each parity block - the shares of the data blocks which arrived, added to the parity
+         * block once it arrives.
+         */
+        private final byte[][] syndromes;
+
+        /**
+         * Whether every block of the group has arrived or been rebuilt.
+         */
+        private boolean done = false;
+
+        /**
+         * Creates a new, empty, group.
+         */
+        private Group(long first, int size, int parityCount) {
+            this.first = first;
+            this.received = new boolean[size];
+            this.parity = new boolean[parityCount];
+            this.syndromes = new byte[parityCount][Configuration.MAX_DATA_LENGTH];
+        }
+
+    }
+
+}
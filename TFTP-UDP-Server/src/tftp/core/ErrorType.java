@@ -12,7 +12,8 @@ public enum ErrorType {
     ILLEGAL_OPERATION(4, "Illegal TFTP operation."),
     UNKNOWN_ID(5, "Unknown transfer ID."),
     FILE_EXISTS(6, "File already exists."),
-    NO_SUCH_USER(7, "No such user.");
+    NO_SUCH_USER(7, "No such user."),
+    OPTION_NEGOTIATION(8, "Option negotiation failed.");
 
     /**
      * The 'opcode' of this error, as specified in the RFC.
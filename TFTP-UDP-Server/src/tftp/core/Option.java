@@ -0,0 +1,47 @@
+package tftp.core;
+
+/**
+ * Represents a TFTP option which may be appended to a request and acknowledged by the responder, as described in
+ * the TFTP option extension RFC (2347).
+ */
+public enum Option {
+
+    TSIZE("tsize"),
+    TIMEOUT("timeout"),
+    COMPRESS("compress"),
+    DELTA("delta"),
+    CHECKSUM("checksum"),
+    WINDOW_SIZE("windowsize"),
+    BULK("bulk"),
+    FEC("fec");
+
+    /**
+     * The name used to identify this option in request and OACK packets.
+     */
+    private final String name;
+
+    /**
+     * Creates a new TFTP option with the given name.
+     *
+     * @param name the name of the option as it appears on the wire
+     */
+    Option(String name) {
+        this.name = name;
+    }
+
+    /**
+     * @return the name of the option
+     */
+    public String getName() {
+        return name;
+    }
+
+    /**
+     * @return same as {@link #getName()}
+     */
+    @Override
+    public String toString() {
+        return name;
+    }
+
+}
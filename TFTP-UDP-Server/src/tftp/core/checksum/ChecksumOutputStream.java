@@ -0,0 +1,67 @@
+package tftp.core.checksum;
+
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.zip.Checksum;
+
+/**
+ * Passes bytes through to an underlying stream, updating a checksum as it goes, and then appends the checksum
+ * as a trailer when closed. Closing leaves the underlying stream open.
+ */
+public class ChecksumOutputStream extends FilterOutputStream {
+
+    /**
+     * The checksum of the bytes written so far.
+     */
+    private final Checksum checksum;
+
+    /**
+     * Whether the trailer has been written.
+     */
+    private boolean closed = false;
+
+    /**
+     * Creates a new stream appending a checksum to what is written to the given stream.
+     *
+     * @param out the underlying stream
+     * @param checksum a new checksum
+     */
+    public ChecksumOutputStream(OutputStream out, Checksum checksum) {
+        super(out);
+        this.checksum = checksum;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void write(int b) throws IOException {
+        checksum.update(b);
+        out.write(b);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException {
+        checksum.update(b, off, len);
+        out.write(b, off, len);
+    }
+
+    /**
+     * Writes the trailer and flushes, leaving the underlying stream open.
+     *
+     * @throws IOException if the trailer could not be written
+     */
+    @Override
+    public void close() throws IOException {
+        if (!closed) {
+            closed = true;
+            out.write(Checksums.trailer(checksum));
+            out.flush();
+        }
+    }
+
+}
@@ -0,0 +1,109 @@
+package tftp.core.checksum;
+
+import java.lang.reflect.Constructor;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.zip.CRC32;
+import java.util.zip.Checksum;
+
+/**
+ * The checksum algorithms available for the checksum option. CRC-32C is preferred, as it is computed with a
+ * single instruction per word on modern CPUs - but it only exists from Java 9, so it is looked up at runtime and
+ * CRC-32 (also hardware-accelerated on most platforms) is used where it is missing.
+ */
+public class Checksums {
+
+    /**
+     * The name of the CRC-32C algorithm in the checksum option.
+     */
+    public static final String CRC32C = "crc32c";
+
+    /**
+     * The name of the CRC-32 algorithm in the checksum option.
+     */
+    public static final String CRC32 = "crc32";
+
+    /**
+     * The length in bytes of the checksum trailer - both algorithms give 32-bit checksums.
+     */
+    public static final int TRAILER_LENGTH = 4;
+
+    /**
+     * The constructor of the CRC-32C implementation, or null if this platform doesn't have one.
+     */
+    private static final Constructor<? extends Checksum> CRC32C_CONSTRUCTOR = findCrc32c();
+
+    /**
+     * Looks up the CRC-32C implementation's constructor, once, so creating a checksum is a plain call.
+     */
+    private static Constructor<? extends Checksum> findCrc32c() {
+        try {
+            return Class.forName("java.util.zip.CRC32C").asSubclass(Checksum.class).getConstructor();
+        } catch (ReflectiveOperationException e) {
+            return null;
+        }
+    }
+
+    /**
+     * @return the names of the supported algorithms, most preferred first
+     */
+    public static List<String> getNames() {
+        List<String> names = new ArrayList<>();
+        if (CRC32C_CONSTRUCTOR != null) {
+            names.add(CRC32C);
+        }
+        names.add(CRC32);
+        return names;
+    }
+
+    /**
+     * Picks an algorithm from the value of a checksum option, which lists one or more algorithm names separated
+     * by commas in order of preference.
+     *
+     * @param names the comma-separated algorithm names
+     * @return the first algorithm in the list which is supported, or null if none of them are
+     */
+    public static String select(String names) {
+        List<String> supported = getNames();
+        for (String name : names.split(",")) {
+            String trimmed = name.trim().toLowerCase(Locale.ROOT);
+            if (supported.contains(trimmed)) {
+                return trimmed;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Creates a new checksum.
+     *
+     * @param name the name of a supported algorithm
+     * @return a new checksum, ready to be updated
+     * @throws IllegalArgumentException if the algorithm is not supported
+     */
+    public static Checksum create(String name) {
+        if (CRC32C.equals(name) && CRC32C_CONSTRUCTOR != null) {
+            try {
+                return CRC32C_CONSTRUCTOR.newInstance();
+            } catch (ReflectiveOperationException e) {
+                throw new IllegalStateException(e);
+            }
+        } else if (CRC32.equals(name)) {
+            return new CRC32();
+        }
+        throw new IllegalArgumentException("unsupported checksum: " + name);
+    }
+
+    /**
+     * Encodes a checksum value as a trailer.
+     *
+     * @param checksum the checksum of all the bytes before the trailer
+     * @return the trailer bytes (big-endian)
+     */
+    static byte[] trailer(Checksum checksum) {
+        long value = checksum.getValue();
+        return new byte[]{(byte) (value >>> 24), (byte) (value >>> 16), (byte) (value >>> 8), (byte) value};
+    }
+
+}
@@ -0,0 +1,77 @@
+package tftp.core.codec;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.Inflater;
+import java.util.zip.InflaterOutputStream;
+
+/**
+ * A codec using the zlib (deflate) format from {@code java.util.zip}. The memory held per transfer is bounded by
+ * the deflate window (32 KiB) plus a small staging buffer, regardless of the size of the file.
+ */
+public class DeflateCodec implements Codec {
+
+    /**
+     * The size of the buffer used to stage bytes on their way through the deflater/inflater.
+     */
+    private static final int BUFFER_SIZE = 4096;
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public String getName() {
+        return "deflate";
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public String getFileExtension() {
+        //as used by pigz -z for zlib-format files
+        return ".zz";
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public OutputStream compress(OutputStream out) {
+        return new DeflaterOutputStream(out, new Deflater(Deflater.DEFAULT_COMPRESSION), BUFFER_SIZE) {
+            @Override
+            public void close() throws IOException {
+                //finish the deflate stream and release the native deflater, but leave the underlying stream open
+                finish();
+                def.end();
+                out.flush();
+            }
+        };
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public OutputStream decompress(OutputStream out) {
+        return new InflaterOutputStream(out, new Inflater(), BUFFER_SIZE) {
+            @Override
+            public void close() throws IOException {
+                //inflate whatever is left and release the native inflater, but leave the underlying stream open
+                try {
+                    finish();
+                    out.flush();
+                    if (!inf.finished()) {
+                        throw new EOFException("truncated compressed stream");
+                    }
+                } finally {
+                    inf.end();
+                }
+            }
+        };
+    }
+
+}
@@ -0,0 +1,294 @@
+package tftp.core.codec;
+
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.zip.CRC32;
+import java.util.zip.DataFormatException;
+import java.util.zip.GZIPOutputStream;
+import java.util.zip.Inflater;
+import java.util.zip.ZipException;
+
+/**
+ * A codec using the gzip format (RFC 1952). The wire format is identical to a .gz file, so a precompressed copy
+ * of a file made with gzip can be sent as-is. Only single-member gzip streams are supported.
+ */
+public class GzipCodec implements Codec {
+
+    /**
+     * The size of the buffer used to stage bytes on their way through the deflater/inflater.
+     */
+    private static final int BUFFER_SIZE = 4096;
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public String getName() {
+        return "gzip";
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public String getFileExtension() {
+        return ".gz";
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public OutputStream compress(OutputStream out) throws IOException {
+        return new GZIPOutputStream(out, BUFFER_SIZE) {
+            @Override
+            public void close() throws IOException {
+                //write the trailer and release the native deflater, but leave the underlying stream open
+                finish();
+                def.end();
+                out.flush();
+            }
+        };
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public OutputStream decompress(OutputStream out) {
+        return new DecodingStream(out);
+    }
+
+    /**
+     * Decodes a gzip stream as it is written. The JDK only offers gzip decoding as an input stream, which does
+     * not fit a receiver handed one block at a time - so the header and trailer are parsed here, and the deflate
+     * data in between goes through a raw {@link Inflater}.
+     */
+    private static class DecodingStream extends OutputStream {
+
+        /**
+         * The magic number at the start of every gzip stream.
+         */
+        private static final int MAGIC = 0x8b1f;
+
+        /**
+         * The header flags marking the optional header fields.
+         */
+        private static final int FHCRC = 2, FEXTRA = 4, FNAME = 8, FCOMMENT = 16;
+
+        /**
+         * The length of the trailer: CRC-32 and size of the uncompressed data.
+         */
+        private static final int TRAILER_LENGTH = 8;
+
+        /**
+         * The stream to write the decompressed bytes to.
+         */
+        private final OutputStream out;
+
+        /**
+         * Inflates the raw deflate data between header and trailer.
+         */
+        private final Inflater inflater = new Inflater(true);
+
+        /**
+         * Checksum of the decompressed bytes, compared against the trailer.
+         */
+        private final CRC32 crc = new CRC32();
+
+        /**
+         * Buffer for decompressed bytes on their way to the underlying stream.
+         */
+        private final byte[] buffer = new byte[BUFFER_SIZE];
+
+        /**
+         * Collects the header and then the trailer, since either may be split across writes.
+         */
+        private final ByteArrayOutputStream pending = new ByteArrayOutputStream();
+
+        /**
+         * Where in the gzip stream the decoder is - 0 for header, 1 for deflate data, 2 for trailer, 3 for done.
+         */
+        private int state = 0;
+
+        /**
+         * The number of decompressed bytes so far, compared against the trailer.
+         */
+        private long size = 0;
+
+        /**
+         * Creates a new decoding stream.
+         *
+         * @param out the stream to write decompressed bytes to
+         */
+        DecodingStream(OutputStream out) {
+            this.out = out;
+        }
+
+        /**
+         * {@inheritDoc}
+         */
+        @Override
+        public void write(int b) throws IOException {
+            write(new byte[]{(byte) b}, 0, 1);
+        }
+
+        /**
+         * {@inheritDoc}
+         */
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            while (len > 0) {
+                int used;
+                switch (state) {
+                    case 0:
+                        used = header(b, off, len);
+                        break;
+                    case 1:
+                        used = body(b, off, len);
+                        break;
+                    case 2:
+                        used = trailer(b, off, len);
+                        break;
+                    default:
+                        //only single-member streams are supported, so anything after the trailer is ignored
+                        used = len;
+                        break;
+                }
+                off += used;
+                len -= used;
+            }
+        }
+
+        /**
+         * Collects header bytes until the whole header has been seen.
+         *
+         * @return the number of bytes used
+         */
+        private int header(byte[] b, int off, int len) throws IOException {
+            int before = pending.size();
+            pending.write(b, off, len);
+            byte[] bytes = pending.toByteArray();
+            int headerLength = headerLength(bytes);
+            if (headerLength == -1) {
+                return len;
+            }
+            pending.reset();
+            state = 1;
+            return headerLength - before;
+        }
+
+        /**
+         * Works out the length of the header, if all of it is available.
+         *
+         * @param h the bytes collected so far
+         * @return the header length, or -1 if more bytes are needed
+         * @throws ZipException if this is not a gzip stream
+         */
+        private static int headerLength(byte[] h) throws ZipException {
+            if (h.length < 10) {
+                return -1;
+            }
+            if (((h[0] & 0xff) | ((h[1] & 0xff) << 8)) != MAGIC || h[2] != 8) {
+                throw new ZipException("not in gzip format");
+            }
+            int flags = h[3] & 0xff;
+            int pos = 10;
+            if ((flags & FEXTRA) != 0) {
+                if (h.length < pos + 2) {
+                    return -1;
+                }
+                pos += 2 + ((h[pos] & 0xff) | ((h[pos + 1] & 0xff) << 8));
+            }
+            for (int field : new int[]{FNAME, FCOMMENT}) {
+                if ((flags & field) != 0) {
+                    //null-terminated string
+                    while (pos < h.length && h[pos] != 0) {
+                        ++pos;
+                    }
+                    ++pos;
+                }
+            }
+            if ((flags & FHCRC) != 0) {
+                pos += 2;
+            }
+            return pos <= h.length ? pos : -1;
+        }
+
+        /**
+         * Inflates deflate data, moving on to the trailer once the end of the deflate data is reached.
+         *
+         * @return the number of bytes used
+         */
+        private int body(byte[] b, int off, int len) throws IOException {
+            inflater.setInput(b, off, len);
+            try {
+                while (!inflater.finished()) {
+                    int inflated = inflater.inflate(buffer);
+                    if (inflated == 0) {
+                        if (inflater.needsInput() || inflater.needsDictionary()) {
+                            break;
+                        }
+                        continue;
+                    }
+                    crc.update(buffer, 0, inflated);
+                    size += inflated;
+                    out.write(buffer, 0, inflated);
+                }
+            } catch (DataFormatException e) {
+                throw new ZipException(e.getMessage());
+            }
+            if (inflater.finished()) {
+                state = 2;
+                return len - inflater.getRemaining();
+            }
+            return len;
+        }
+
+        /**
+         * Collects the trailer and checks it against the decompressed data.
+         *
+         * @return the number of bytes used
+         */
+        private int trailer(byte[] b, int off, int len) throws IOException {
+            int used = Math.min(len, TRAILER_LENGTH - pending.size());
+            pending.write(b, off, used);
+            if (pending.size() == TRAILER_LENGTH) {
+                byte[] t = pending.toByteArray();
+                long expectedCrc = readInt(t, 0);
+                long expectedSize = readInt(t, 4);
+                if (expectedCrc != crc.getValue() || expectedSize != (size & 0xffffffffL)) {
+                    throw new ZipException("corrupt gzip trailer");
+                }
+                state = 3;
+            }
+            return used;
+        }
+
+        /**
+         * Reads an unsigned little-endian 32-bit integer.
+         */
+        private static long readInt(byte[] b, int off) {
+            return (b[off] & 0xffL) | ((b[off + 1] & 0xffL) << 8)
+                    | ((b[off + 2] & 0xffL) << 16) | ((b[off + 3] & 0xffL) << 24);
+        }
+
+        /**
+         * Releases the inflater and flushes the decompressed bytes, leaving the underlying stream open.
+         *
+         * @throws IOException if the gzip stream ended early
+         */
+        @Override
+        public void close() throws IOException {
+            inflater.end();
+            out.flush();
+            if (state != 3) {
+                throw new EOFException("unexpected end of gzip stream");
+            }
+        }
+
+    }
+
+}
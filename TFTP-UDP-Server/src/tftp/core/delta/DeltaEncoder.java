@@ -0,0 +1,132 @@
+package tftp.core.delta;
+
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.security.MessageDigest;
+
+/**
+ * Encodes a file as a delta against the signature of the receiver's existing copy. The delta is a sequence of
+ * instructions: literal data the receiver doesn't have, references to blocks of its existing copy which it
+ * does have, and an end marker.
+ */
+public class DeltaEncoder {
+
+    /**
+     * Instruction marking the end of the delta.
+     */
+    static final int END = 0;
+
+    /**
+     * Instruction followed by a length and that many bytes of literal data.
+     */
+    static final int LITERAL = 1;
+
+    /**
+     * Instruction followed by the index of a block of the receiver's existing copy.
+     */
+    static final int COPY = 2;
+
+    /**
+     * The most literal data held back before it is written out as one instruction - this bounds the memory
+     * used by the encoder (and decoder) regardless of how much of the file has changed.
+     */
+    static final int MAX_LITERAL = 64 * 1024;
+
+    /**
+     * Encodes a file as a delta, writing the instructions to the given stream. The file is read once,
+     * sequentially, with a window of one block rolling along it a byte at a time.
+     *
+     * @param file the stream reading the sender's file
+     * @param basis the signature of the receiver's existing copy
+     * @param os the stream to write the delta to
+     * @return the number of bytes of the file found in the receiver's copy (and so not sent)
+     * @throws IOException if the file could not be read or the delta could not be written
+     */
+    public static long encode(InputStream file, Signature basis, OutputStream os) throws IOException {
+        DataOutputStream out = new DataOutputStream(os);
+        MessageDigest md5 = Signature.md5();
+        int blockSize = basis.getBlockSize();
+        long matched = 0;
+
+        //the buffer holds the pending literal data followed by the window. 'literal' is the offset of the
+        // start of the pending literal data, and 'pos' is the offset of the start of the window
+        byte[] buffer = new byte[MAX_LITERAL + blockSize + 1];
+        int filled = 0;
+        int literal = 0;
+        int pos = 0;
+        boolean eof = false;
+
+        //the weak checksum of the current window, and whether it is up to date
+        int weak = 0;
+        boolean rolling = false;
+
+        while (true) {
+            //make sure the window, plus the byte after it (for rolling), is in the buffer
+            if (pos + blockSize >= filled && !eof) {
+                //move the pending literal data to the front to make room
+                System.arraycopy(buffer, literal, buffer, 0, filled - literal);
+                filled -= literal;
+                pos -= literal;
+                literal = 0;
+                int read;
+                while (filled < buffer.length && (read = file.read(buffer, filled, buffer.length - filled)) != -1) {
+                    filled += read;
+                }
+                eof = filled < buffer.length;
+            }
+            if (pos + blockSize > filled) {
+                //not enough left for a whole window, so the remainder is literal data
+                break;
+            }
+
+            if (!rolling) {
+                weak = Signature.weak(buffer, pos, blockSize);
+                rolling = true;
+            }
+
+            int block = basis.find(weak, buffer, pos, md5);
+            if (block != -1) {
+                //the receiver already has this window - send whatever came before it, then a reference
+                writeLiteral(out, buffer, literal, pos - literal);
+                out.writeByte(COPY);
+                out.writeInt(block);
+                matched += blockSize;
+                pos += blockSize;
+                literal = pos;
+                rolling = false;
+                continue;
+            }
+
+            //no match, so the first byte of the window becomes literal data and the window moves along by one
+            if (pos + blockSize == filled) {
+                //no byte after the window to roll in - this is the end of the file
+                break;
+            }
+            weak = Signature.roll(weak, buffer[pos], buffer[pos + blockSize], blockSize);
+            ++pos;
+            if (pos - literal == MAX_LITERAL) {
+                writeLiteral(out, buffer, literal, pos - literal);
+                literal = pos;
+            }
+        }
+
+        writeLiteral(out, buffer, literal, filled - literal);
+        out.writeByte(END);
+        out.flush();
+        return matched;
+    }
+
+    /**
+     * Writes a literal instruction, if there is any literal data.
+     */
+    private static void writeLiteral(DataOutputStream out, byte[] buffer, int offset, int length) throws IOException {
+        if (length > 0) {
+            out.writeByte(LITERAL);
+            out.writeInt(length);
+            out.write(buffer, offset, length);
+        }
+    }
+
+}
@@ -0,0 +1,170 @@
+package tftp.core.delta;
+
+import tftp.core.storage.StoredFile;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * Rebuilds a file from a delta as the delta is written to this stream: literal data is passed straight through,
+ * and block references are filled in from the receiver's existing copy of the file. Like the decoding streams of
+ * the codecs, this is push-based, so it can sit behind a decompressing stream.
+ */
+public class PatchingOutputStream extends OutputStream {
+
+    /**
+     * The receiver's existing copy of the file, or null if it has none.
+     */
+    private final StoredFile basis;
+
+    /**
+     * The length of the blocks the existing copy was divided into.
+     */
+    private final int blockSize;
+
+    /**
+     * The stream to write the rebuilt file to.
+     */
+    private final OutputStream out;
+
+    /**
+     * Buffer for blocks copied from the existing copy.
+     */
+    private final byte[] block;
+
+    /**
+     * Collects the 4-byte argument of the current instruction, which may be split across writes.
+     */
+    private final byte[] argument = new byte[4];
+
+    /**
+     * How many bytes of {@link #argument} have been collected.
+     */
+    private int argumentLength = 0;
+
+    /**
+     * The instruction currently being decoded, or -1 if the next byte is an instruction.
+     */
+    private int instruction = -1;
+
+    /**
+     * The number of bytes of literal data left in the current literal instruction.
+     */
+    private int literalRemaining = 0;
+
+    /**
+     * Whether the end marker has been seen.
+     */
+    private boolean ended = false;
+
+    /**
+     * Creates a new patching stream.
+     *
+     * @param basis the receiver's existing copy of the file, or null if it has none
+     * @param blockSize the length of the blocks in the signature sent to the sender
+     * @param out the stream to write the rebuilt file to
+     */
+    public PatchingOutputStream(StoredFile basis, int blockSize, OutputStream out) {
+        this.basis = basis;
+        this.blockSize = blockSize;
+        this.out = out;
+        this.block = new byte[blockSize];
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void write(int b) throws IOException {
+        write(new byte[]{(byte) b}, 0, 1);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException {
+        while (len > 0) {
+            if (ended) {
+                throw new IOException("data after end of delta");
+            }
+
+            if (instruction == -1) {
+                //start of a new instruction
+                instruction = b[off] & 0xff;
+                ++off;
+                --len;
+                argumentLength = 0;
+                if (instruction == DeltaEncoder.END) {
+                    ended = true;
+                    instruction = -1;
+                } else if (instruction != DeltaEncoder.LITERAL && instruction != DeltaEncoder.COPY) {
+                    throw new IOException("invalid delta instruction: " + instruction);
+                }
+                continue;
+            }
+
+            if (argumentLength < argument.length) {
+                //collect the length (LITERAL) or block index (COPY)
+                int used = Math.min(len, argument.length - argumentLength);
+                System.arraycopy(b, off, argument, argumentLength, used);
+                argumentLength += used;
+                off += used;
+                len -= used;
+                if (argumentLength == argument.length) {
+                    int value = ((argument[0] & 0xff) << 24) | ((argument[1] & 0xff) << 16)
+                            | ((argument[2] & 0xff) << 8) | (argument[3] & 0xff);
+                    if (instruction == DeltaEncoder.COPY) {
+                        copy(value);
+                        instruction = -1;
+                    } else {
+                        literalRemaining = value;
+                        if (literalRemaining == 0) {
+                            instruction = -1;
+                        }
+                    }
+                }
+                continue;
+            }
+
+            //literal data - pass it straight through
+            int used = Math.min(len, literalRemaining);
+            out.write(b, off, used);
+            off += used;
+            len -= used;
+            literalRemaining -= used;
+            if (literalRemaining == 0) {
+                instruction = -1;
+            }
+        }
+    }
+
+    /**
+     * Copies a block of the receiver's existing copy to the rebuilt file.
+     *
+     * @param index the index of the block
+     * @throws IOException if there is no such block, or it could not be read
+     */
+    private void copy(int index) throws IOException {
+        if (basis == null || index < 0
+                || basis.read((long) index * blockSize, block, 0, blockSize) != blockSize) {
+            throw new IOException("delta refers to missing block: " + index);
+        }
+        out.write(block);
+    }
+
+    /**
+     * Checks the whole delta was received and flushes the rebuilt file, leaving the underlying stream open.
+     *
+     * @throws IOException if the delta ended early
+     */
+    @Override
+    public void close() throws IOException {
+        out.flush();
+        if (!ended) {
+            throw new EOFException("unexpected end of delta");
+        }
+    }
+
+}
@@ -0,0 +1,164 @@
+package tftp.core.packet;
+
+import tftp.core.Configuration;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Represents a NAK, sent by the receiver of a bulk mode transfer to report where it is up to. This is not part of
+ * any TFTP RFC, so is only sent to hosts which agreed to bulk mode. A NAK holds:
+ * <ul>
+ *     <li>the block number of the last block received in order, acknowledging it and every block before it</li>
+ *     <li>the block number of the furthest block received</li>
+ *     <li>the blocks missing in between, as ranges of a first block number and a count of blocks</li>
+ * </ul>
+ */
+public class NegativeAcknowledgementPacket extends TFTPPacket {
+
+    /**
+     * The length of the packet without any ranges: the opcode, and the two block numbers.
+     */
+    private static final int HEADER_LENGTH = 6;
+
+    /**
+     * The number of bytes each missing range takes up.
+     */
+    private static final int RANGE_LENGTH = 4;
+
+    /**
+     * The most missing ranges a single NAK can report, so it is no longer than a full DATA packet.
+     */
+    public static final int MAX_RANGES = (Configuration.MAX_PACKET_LENGTH - HEADER_LENGTH) / RANGE_LENGTH;
+
+    /**
+     * The block number of the last block received in order.
+     */
+    private final short blockNumber;
+
+    /**
+     * The block number of the furthest block received.
+     */
+    private final short highestBlockNumber;
+
+    /**
+     * The missing ranges, as pairs of the first block number and the number of blocks.
+     */
+    private final short[] ranges;
+
+    /**
+     * The raw TFTP packet bytes.
+     */
+    private final byte[] bytes;
+
+    /**
+     * Creates a new NAK.
+     *
+     * @param blockNumber the block number of the last block received in order
+     * @param highestBlockNumber the block number of the furthest block received
+     * @param ranges the missing ranges, as pairs of the first block number and the number of blocks - at most
+     *               {@link #MAX_RANGES} of them
+     */
+    public NegativeAcknowledgementPacket(short blockNumber, short highestBlockNumber, short[] ranges) {
+        if (ranges.length % 2 != 0 || ranges.length / 2 > MAX_RANGES) {
+            throw new IllegalArgumentException("invalid missing ranges: " + ranges.length);
+        }
+        this.blockNumber = blockNumber;
+        this.highestBlockNumber = highestBlockNumber;
+        this.ranges = ranges.clone();
+        this.bytes = new byte[HEADER_LENGTH + ranges.length * 2];
+
+        ByteBuffer buffer = ByteBuffer.wrap(bytes);
+        buffer.putShort(getPacketType().getOpcode());
+        buffer.putShort(blockNumber);
+        buffer.putShort(highestBlockNumber);
+        for (short value : ranges) {
+            buffer.putShort(value);
+        }
+    }
+
+    /**
+     * Creates a new NAK from the raw packet bytes. The packet data is assumed to start at offset 0. Any trailing
+     * bytes not making up a whole range are ignored.
+     *
+     * @param packetData the buffer holding the packet bytes
+     * @param length the length of the packet in the buffer
+     */
+    public NegativeAcknowledgementPacket(byte[] packetData, int length) {
+        ByteBuffer buffer = ByteBuffer.wrap(packetData, 0, length);
+        buffer.position(2);
+        this.blockNumber = length >= 4 ? buffer.getShort() : 0;
+        this.highestBlockNumber = length >= HEADER_LENGTH ? buffer.getShort() : blockNumber;
+        int count = Math.max(0, (length - HEADER_LENGTH) / RANGE_LENGTH);
+        this.ranges = new short[count * 2];
+        for (int i = 0; i < ranges.length; ++i) {
+            ranges[i] = buffer.getShort();
+        }
+        this.bytes = new byte[length];
+        System.arraycopy(packetData, 0, bytes, 0, length);
+    }
+
+    /**
+     * @return the block number of the last block received in order
+     */
+    public short getBlockNumber() {
+        return blockNumber;
+    }
+
+    /**
+     * @return the block number of the furthest block received
+     */
+    public short getHighestBlockNumber() {
+        return highestBlockNumber;
+    }
+
+    /**
+     * @return the number of missing ranges reported
+     */
+    public int getRangeCount() {
+        return ranges.length / 2;
+    }
+
+    /**
+     * @param index the index of a missing range
+     * @return the block number of the first block in the range
+     */
+    public short getRangeStart(int index) {
+        return ranges[index * 2];
+    }
+
+    /**
+     * @param index the index of a missing range
+     * @return the number of blocks in the range
+     */
+    public int getRangeLength(int index) {
+        return ranges[index * 2 + 1] & 0xffff;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public byte[] getPacketBytes() {
+        return bytes;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public PacketType getPacketType() {
+        return PacketType.NEGATIVE_ACKNOWLEDGEMENT;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public String toString() {
+        return String.format(
+                "%s{block=%d,highest=%d,ranges=%d}",
+                getPacketType(), blockNumber, highestBlockNumber, getRangeCount()
+        );
+    }
+
+}
@@ -0,0 +1,77 @@
+package tftp.core.scheduling;
+
+/**
+ * How urgent a transfer is, deciding its share of the send slots when the server is busy.
+ */
+public enum PriorityClass {
+
+    /**
+     * Small files a client is waiting on before it can do anything else, eg. boot configuration. These get the
+     * largest share, so finish first.
+     */
+    INTERACTIVE("interactive", 16),
+
+    /**
+     * Everything not classed otherwise.
+     */
+    NORMAL("normal", 4),
+
+    /**
+     * Large files nobody is waiting on in particular, eg. disk images. These soak up whatever the other classes
+     * leave, but are never starved entirely.
+     */
+    BULK("bulk", 1);
+
+    /**
+     * The name used to choose this class.
+     */
+    private final String name;
+
+    /**
+     * The share of send slots a transfer of this class gets, relative to the other classes.
+     */
+    private final int weight;
+
+    /**
+     * Creates a new priority class.
+     *
+     * @param name the name used to choose this class
+     * @param weight the share of send slots a transfer of this class gets
+     */
+    PriorityClass(String name, int weight) {
+        this.name = name;
+        this.weight = weight;
+    }
+
+    /**
+     * Finds the priority class with the given name.
+     *
+     * @param name the name of the class
+     * @return the class
+     * @throws IllegalArgumentException if there is no such class
+     */
+    public static PriorityClass fromName(String name) {
+        for (PriorityClass priority : values()) {
+            if (priority.name.equals(name)) {
+                return priority;
+            }
+        }
+        throw new IllegalArgumentException("unknown priority class: " + name);
+    }
+
+    /**
+     * @return the share of send slots a transfer of this class gets, relative to the other classes
+     */
+    public int getWeight() {
+        return weight;
+    }
+
+    /**
+     * @return the name used to choose this class
+     */
+    @Override
+    public String toString() {
+        return name;
+    }
+
+}
@@ -0,0 +1,60 @@
+package tftp.core.scheduling;
+
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * Writes to a stream a chunk at a time, taking a send slot from a {@link TransferScheduler} for each chunk, for
+ * transfers which send a file as a stream.
+ */
+public class ScheduledOutputStream extends FilterOutputStream {
+
+    /**
+     * The most bytes written to the underlying stream with one slot.
+     */
+    private static final int CHUNK_SIZE = 8192;
+
+    /**
+     * The transfer's share of the send slots.
+     */
+    private final TransferScheduler.Session session;
+
+    /**
+     * Creates a new stream.
+     *
+     * @param out the stream to write to
+     * @param session the transfer's share of the send slots
+     */
+    public ScheduledOutputStream(OutputStream out, TransferScheduler.Session session) {
+        super(out);
+        this.session = session;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void write(int b) throws IOException {
+        write(new byte[]{(byte) b}, 0, 1);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException {
+        while (len > 0) {
+            int count = Math.min(len, CHUNK_SIZE);
+            session.acquire(count);
+            try {
+                out.write(b, off, count);
+            } finally {
+                session.release();
+            }
+            off += count;
+            len -= count;
+        }
+    }
+
+}
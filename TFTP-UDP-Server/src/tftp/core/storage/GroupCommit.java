@@ -0,0 +1,171 @@
+package tftp.core.storage;
+
+import tftp.core.util.FileUtil;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.LinkedBlockingQueue;
+
+/**
+ * Commits uploaded files in batches for the {@link SyncPolicy#GROUP} policy. Uploads completing within a short
+ * interval of each other are queued up, then a single thread flushes all of their files at once, renames them into
+ * place, and flushes each directory involved just once - the uploads wait until their batch is done.
+ */
+public class GroupCommit implements Runnable {
+
+    /**
+     * How long to gather commits for after the first of a batch arrives, in milliseconds.
+     */
+    private final long interval;
+
+    /**
+     * The commits waiting for the next batch.
+     */
+    private final BlockingQueue<Request> queue = new LinkedBlockingQueue<>();
+
+    /**
+     * Creates a new group committer, and starts its thread.
+     *
+     * @param interval how long to gather commits for after the first of a batch arrives, in milliseconds
+     */
+    public GroupCommit(long interval) {
+        this.interval = interval;
+        Thread thread = new Thread(this, "group-commit");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    /**
+     * Commits a file in the next batch, waiting until the batch is done.
+     *
+     * @param channel the channel the file was written through, which is closed once the file is flushed
+     * @param temp the file as written
+     * @param target the name to rename the file to
+     * @throws IOException if the file could not be flushed or renamed
+     */
+    public void commit(FileChannel channel, File temp, File target) throws IOException {
+        Request request = new Request(channel, temp, target);
+        queue.add(request);
+        try {
+            request.result.get();
+        } catch (ExecutionException e) {
+            throw e.getCause() instanceof IOException ? (IOException) e.getCause() : new IOException(e.getCause());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("interrupted waiting for commit");
+        }
+    }
+
+    /**
+     * Loops forever, committing batches as they gather.
+     */
+    @Override
+    public void run() {
+        List<Request> batch = new ArrayList<>();
+        while (true) {
+            try {
+                batch.add(queue.take());
+                Thread.sleep(interval);
+            } catch (InterruptedException e) {
+                return;
+            }
+            queue.drainTo(batch);
+
+            //flush the files all at once, so the file system can fold them into as few disk flushes as it can
+            batch.parallelStream().forEach(Request::flush);
+
+            Set<File> directories = new HashSet<>();
+            for (Request request : batch) {
+                if (request.rename()) {
+                    directories.add(request.target.getAbsoluteFile().getParentFile());
+                }
+            }
+            for (File directory : directories) {
+                FileUtil.syncDirectory(directory);
+            }
+            for (Request request : batch) {
+                request.result.complete(null);
+            }
+            batch.clear();
+        }
+    }
+
+    /**
+     * A file waiting to be committed.
+     */
+    private static class Request {
+
+        /**
+         * The channel the file was written through.
+         */
+        private final FileChannel channel;
+
+        /**
+         * The file as written.
+         */
+        private final File temp;
+
+        /**
+         * The name to rename the file to.
+         */
+        private final File target;
+
+        /**
+         * Completed once the file is committed, or with the error which stopped it being committed.
+         */
+        private final CompletableFuture<Void> result = new CompletableFuture<>();
+
+        /**
+         * Creates a new commit request.
+         */
+        private Request(FileChannel channel, File temp, File target) {
+            this.channel = channel;
+            this.temp = temp;
+            this.target = target;
+        }
+
+        /**
+         * Flushes and closes the file.
+         */
+        private void flush() {
+            try {
+                channel.force(true);
+                channel.close();
+            } catch (IOException e) {
+                result.completeExceptionally(e);
+            }
+        }
+
+        /**
+         * Renames the file into place, unless flushing it failed.
+         *
+         * @return true if the file was renamed
+         */
+        private boolean rename() {
+            if (result.isDone()) {
+                return false;
+            }
+            try {
+                Files.move(temp.toPath(), target.toPath(),
+                        StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+                return true;
+            } catch (IOException e) {
+                result.completeExceptionally(e);
+                return false;
+            }
+        }
+
+    }
+
+}
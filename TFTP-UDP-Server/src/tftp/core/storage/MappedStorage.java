@@ -0,0 +1,251 @@
+package tftp.core.storage;
+
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Serves files from a directory by mapping them into memory, so reads are copies out of the page cache rather
+ * than system calls. A file is mapped once and the mapping is shared by all sessions reading it, until the last
+ * of them closes the file - or until the file changes, when sessions opening it afterwards get a fresh mapping.
+ * Read-only - files can't be written through it.
+ */
+public class MappedStorage implements Storage {
+
+    /**
+     * The files served, as a plain directory.
+     */
+    private final DirectoryStorage directory;
+
+    /**
+     * The mappings currently open, by the file mapped.
+     */
+    private final Map<File, Mapping> mappings = new HashMap<>();
+
+    /**
+     * Creates a new storage serving the files in the given directory.
+     *
+     * @param root the directory names are resolved under
+     * @throws IOException if the directory doesn't exist
+     */
+    public MappedStorage(File root) throws IOException {
+        this.directory = new DirectoryStorage(root, SyncPolicy.NONE);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public StoredFile open(String name) throws IOException {
+        File file = directory.resolve(name);
+        if (!file.isFile()) {
+            throw new FileNotFoundException(name);
+        }
+        File key = file.getCanonicalFile();
+
+        synchronized (mappings) {
+            Mapping mapping = mappings.get(key);
+            if (mapping == null || !mapping.isCurrent(key)) {
+                //a stale mapping stays valid for the sessions already reading it, and is released by the last
+                mapping = new Mapping(key);
+                mappings.put(key, mapping);
+            }
+            ++mapping.references;
+            return new MappedFile(mapping);
+        }
+    }
+
+    /**
+     * Drops a reference to a mapping, forgetting it once nothing refers to it so it can be released.
+     */
+    private void release(Mapping mapping) {
+        synchronized (mappings) {
+            if (--mapping.references == 0 && mappings.get(mapping.file) == mapping) {
+                mappings.remove(mapping.file);
+            }
+        }
+    }
+
+    /**
+     * Always fails, as this storage is read-only.
+     *
+     * @throws FileNotFoundException always
+     */
+    @Override
+    public CreatedFile create(String name) throws IOException {
+        throw new FileNotFoundException(name + " (read-only storage)");
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public boolean isWritable() {
+        return false;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void checkAccess(String name) throws IOException {
+        directory.checkAccess(name);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public File getFile(String name) {
+        return directory.getFile(name);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public String toString() {
+        return "mapped " + directory;
+    }
+
+    /**
+     * A mapping of a whole file, shared by the sessions reading it.
+     */
+    private static class Mapping {
+
+        /**
+         * The file mapped.
+         */
+        private final File file;
+
+        /**
+         * The size of the file when it was mapped.
+         */
+        private final long size;
+
+        /**
+         * The modification time of the file when it was mapped.
+         */
+        private final long lastModified;
+
+        /**
+         * The mapping itself.
+         */
+        private final MappedByteBuffer buffer;
+
+        /**
+         * The number of open files reading from this mapping.
+         */
+        private int references = 0;
+
+        /**
+         * Maps a file.
+         */
+        private Mapping(File file) throws IOException {
+            this.file = file;
+            this.lastModified = file.lastModified();
+            try (RandomAccessFile raf = new RandomAccessFile(file, "r")) {
+                this.size = raf.length();
+                if (size > Integer.MAX_VALUE) {
+                    throw new IOException("file too large to map: " + file);
+                }
+                //the mapping stays valid once the channel is closed
+                this.buffer = raf.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, size);
+            }
+        }
+
+        /**
+         * @return true if the file hasn't changed since it was mapped
+         */
+        private boolean isCurrent(File file) {
+            return file.length() == size && file.lastModified() == lastModified;
+        }
+
+    }
+
+    /**
+     * A file read from a shared mapping.
+     */
+    private class MappedFile implements StoredFile {
+
+        /**
+         * The mapping read from.
+         */
+        private final Mapping mapping;
+
+        /**
+         * Whether this file has been closed, and its reference to the mapping dropped.
+         */
+        private boolean closed = false;
+
+        /**
+         * Creates a new file reading from the given mapping.
+         */
+        private MappedFile(Mapping mapping) {
+            this.mapping = mapping;
+        }
+
+        /**
+         * {@inheritDoc}
+         */
+        @Override
+        public long size() {
+            return mapping.size;
+        }
+
+        /**
+         * {@inheritDoc}
+         */
+        @Override
+        public int read(long position, byte[] buffer, int offset, int length) {
+            if (position >= mapping.size) {
+                return length == 0 ? 0 : -1;
+            }
+            //a duplicate has its own position, so concurrent reads don't interfere
+            ByteBuffer view = mapping.buffer.duplicate();
+            view.position((int) position);
+            int count = Math.min(length, view.remaining());
+            view.get(buffer, offset, count);
+            return count;
+        }
+
+        /**
+         * Always fails, as the file is read-only.
+         *
+         * @throws IOException always
+         */
+        @Override
+        public void write(long position, byte[] buffer, int offset, int length) throws IOException {
+            throw new IOException("read-only file");
+        }
+
+        /**
+         * Always fails, as the file is read-only.
+         *
+         * @throws IOException always
+         */
+        @Override
+        public void truncate(long size) throws IOException {
+            throw new IOException("read-only file");
+        }
+
+        /**
+         * Drops this file's reference to the shared mapping.
+         */
+        @Override
+        public synchronized void close() {
+            if (!closed) {
+                closed = true;
+                release(mapping);
+            }
+        }
+
+    }
+
+}
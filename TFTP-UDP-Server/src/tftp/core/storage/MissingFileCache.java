@@ -0,0 +1,272 @@
+package tftp.core.storage;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.FileSystems;
+import java.nio.file.Path;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Remembers names which were recently found not to exist, so that clients probing for many files which aren't
+ * there (eg. network-booting machines trying per-MAC and per-IP config files) can be answered without looking
+ * each one up again. Names are forgotten after a short time to live, or as soon as a file is created under them:
+ * files uploaded through the server are reported with {@link #invalidate(String)}, and for files on the local file
+ * system the directories they would be created in are watched for changes - for as long as a name remembered
+ * would be created in them.
+ */
+public class MissingFileCache implements Runnable {
+
+    /**
+     * The storage the names are looked up in.
+     */
+    private final Storage storage;
+
+    /**
+     * How long a name is remembered for, in milliseconds.
+     */
+    private final long ttl;
+
+    /**
+     * The most names remembered at once - past this, new names aren't cached until old ones expire.
+     */
+    private final int maxEntries;
+
+    /**
+     * The names found not to exist.
+     */
+    private final Map<String, Entry> entries = new ConcurrentHashMap<>();
+
+    /**
+     * The watch keys of the directories being watched, by directory. Guarded by this cache.
+     */
+    private final Map<Path, WatchKey> watched = new HashMap<>();
+
+    /**
+     * Watches the directories missing files would be created in, or null if the file system can't be watched.
+     */
+    private final WatchService watcher;
+
+    /**
+     * Creates a new cache, and starts watching for files being created.
+     *
+     * @param storage the storage the names are looked up in
+     * @param ttl how long a name is remembered for, in milliseconds
+     * @param maxEntries the most names to remember at once
+     */
+    public MissingFileCache(Storage storage, long ttl, int maxEntries) {
+        this.storage = storage;
+        this.ttl = ttl;
+        this.maxEntries = maxEntries;
+
+        WatchService watcher;
+        try {
+            watcher = FileSystems.getDefault().newWatchService();
+        } catch (IOException | UnsupportedOperationException e) {
+            //still correct, just slower to notice files created outside the server
+            System.out.println("unable to watch for new files, relying on expiry: " + e.getMessage());
+            watcher = null;
+        }
+        this.watcher = watcher;
+
+        if (watcher != null) {
+            Thread thread = new Thread(this, "missing-file-watcher");
+            thread.setDaemon(true);
+            thread.start();
+        }
+    }
+
+    /**
+     * Checks whether a name was recently found not to exist.
+     *
+     * @param name the name of the file, as given in the request
+     * @return true if the file is known not to exist
+     */
+    public boolean isMissing(String name) {
+        Entry entry = entries.get(name);
+        if (entry == null) {
+            return false;
+        }
+        if (System.nanoTime() - entry.expires > 0) {
+            entries.remove(name, entry);
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     * Remembers that a name doesn't exist.
+     *
+     * @param name the name of the file, as given in the request
+     */
+    public void recordMissing(String name) {
+        if (entries.size() >= maxEntries) {
+            //make room by dropping whatever has expired - if nothing has, this name just isn't cached
+            long now = System.nanoTime();
+            entries.values().removeIf(entry -> now - entry.expires > 0);
+            if (entries.size() >= maxEntries) {
+                return;
+            }
+        }
+
+        File file = storage.getFile(name);
+        Path path = file == null ? null : file.getAbsoluteFile().toPath().normalize();
+        Path directory = path == null || watcher == null ? null : closestDirectory(path);
+        //remembered before its directory is watched, so a sweep can't stop watching the directory in between
+        entries.put(name, new Entry(path, directory, System.nanoTime() + ttl * 1000000L));
+        if (directory != null) {
+            watch(directory);
+        }
+    }
+
+    /**
+     * Forgets a name, as a file has been created under it.
+     *
+     * @param name the name of the file, as given in the request
+     */
+    public void invalidate(String name) {
+        entries.remove(name);
+    }
+
+    /**
+     * Finds the closest existing directory to a missing file. That is the directory the file would be created in,
+     * or the directory in which the first of the file's missing parent directories would be.
+     *
+     * @return the directory, or null if there is none
+     */
+    private static Path closestDirectory(Path path) {
+        Path directory = path.getParent();
+        while (directory != null && !directory.toFile().isDirectory()) {
+            directory = directory.getParent();
+        }
+        return directory;
+    }
+
+    /**
+     * Watches a directory for changes, unless it already is.
+     */
+    private synchronized void watch(Path directory) {
+        if (watched.containsKey(directory)) {
+            return;
+        }
+        try {
+            WatchKey key = directory.register(watcher, StandardWatchEventKinds.ENTRY_CREATE,
+                    StandardWatchEventKinds.ENTRY_MODIFY);
+            watched.put(directory, key);
+        } catch (IOException e) {
+            System.out.println("unable to watch " + directory + ": " + e.getMessage());
+        }
+    }
+
+    /**
+     * Stops watching a directory which has gone.
+     */
+    private synchronized void unwatch(Path directory, WatchKey key) {
+        watched.remove(directory, key);
+    }
+
+    /**
+     * Forgets the names which have expired, and stops watching the directories no name remembered would be created
+     * in - so a client probing many directories doesn't leave them all watched.
+     */
+    private synchronized void sweep() {
+        long now = System.nanoTime();
+        entries.values().removeIf(entry -> now - entry.expires > 0);
+        Set<Path> needed = new HashSet<>();
+        for (Entry entry : entries.values()) {
+            if (entry.directory != null) {
+                needed.add(entry.directory);
+            }
+        }
+        for (Iterator<Map.Entry<Path, WatchKey>> i = watched.entrySet().iterator(); i.hasNext(); ) {
+            Map.Entry<Path, WatchKey> watch = i.next();
+            if (!needed.contains(watch.getKey())) {
+                watch.getValue().cancel();
+                i.remove();
+            }
+        }
+    }
+
+    /**
+     * Loops forever, forgetting names as files are created under them, and sweeping once every time to live.
+     */
+    @Override
+    public void run() {
+        long nextSweep = System.nanoTime() + ttl * 1000000L;
+        while (true) {
+            WatchKey key;
+            try {
+                key = watcher.poll(Math.max(1, (nextSweep - System.nanoTime()) / 1000000L), TimeUnit.MILLISECONDS);
+            } catch (InterruptedException | ClosedWatchServiceException e) {
+                return;
+            }
+            if (System.nanoTime() - nextSweep >= 0) {
+                sweep();
+                nextSweep = System.nanoTime() + ttl * 1000000L;
+            }
+            if (key == null) {
+                continue;
+            }
+
+            Path directory = (Path) key.watchable();
+            for (WatchEvent<?> event : key.pollEvents()) {
+                if (event.kind() == StandardWatchEventKinds.OVERFLOW) {
+                    //some events were lost - any of the names could exist now
+                    entries.clear();
+                } else {
+                    //a created directory could hold any number of the missing files
+                    Path created = directory.resolve((Path) event.context());
+                    entries.values().removeIf(entry -> entry.path != null && entry.path.startsWith(created));
+                }
+            }
+
+            if (!key.reset()) {
+                //the directory has gone, or is no longer needed - it is watched again if a file is found missing
+                // from it
+                unwatch(directory, key);
+            }
+        }
+    }
+
+    /**
+     * A name found not to exist.
+     */
+    private static class Entry {
+
+        /**
+         * Where the file would be on the local file system, or null if the storage doesn't keep files there.
+         */
+        private final Path path;
+
+        /**
+         * The directory watched for the file being created, or null if none is.
+         */
+        private final Path directory;
+
+        /**
+         * When the name is forgotten, in terms of {@link System#nanoTime()}.
+         */
+        private final long expires;
+
+        /**
+         * Creates a new entry.
+         */
+        private Entry(Path path, Path directory, long expires) {
+            this.path = path;
+            this.directory = directory;
+            this.expires = expires;
+        }
+
+    }
+
+}
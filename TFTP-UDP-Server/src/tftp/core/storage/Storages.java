@@ -0,0 +1,52 @@
+package tftp.core.storage;
+
+import tftp.core.Configuration;
+
+import java.io.File;
+import java.io.IOException;
+
+/**
+ * Creates storages from the descriptions given on the command line.
+ */
+public class Storages {
+
+    /**
+     * Describes the accepted storage descriptions, for printing.
+     */
+    public static final String USAGE = "dir:path | memory:path | mmap:path | zip:archive";
+
+    /**
+     * Creates a storage from a description of the form {@code type:path}, where the type is one of:
+     * <ul>
+     *     <li>{@code dir} - files in the directory at the path</li>
+     *     <li>{@code memory} - copies of the files in the directory at the path, held in memory</li>
+     *     <li>{@code mmap} - files in the directory at the path, memory-mapped (read-only)</li>
+     *     <li>{@code zip} - the entries of the zip archive at the path (read-only)</li>
+     * </ul>
+     * A description with no type is taken to be a directory. Files written to a directory are made durable
+     * according to {@link Configuration#SYNC_POLICY}.
+     *
+     * @param description the description of the storage
+     * @return the storage described
+     * @throws IllegalArgumentException if the type or sync policy is unknown
+     * @throws IOException if the storage could not be opened
+     */
+    public static Storage fromDescription(String description) throws IOException {
+        int colon = description.indexOf(':');
+        String type = colon == -1 ? "dir" : description.substring(0, colon);
+        File path = new File(colon == -1 ? description : description.substring(colon + 1));
+        switch (type) {
+            case "dir":
+                return new DirectoryStorage(path, SyncPolicy.fromName(Configuration.SYNC_POLICY));
+            case "memory":
+                return MemoryStorage.load(path);
+            case "mmap":
+                return new MappedStorage(path);
+            case "zip":
+                return new ZipStorage(path);
+            default:
+                throw new IllegalArgumentException("unknown storage type: " + type);
+        }
+    }
+
+}
@@ -0,0 +1,73 @@
+package tftp.core.storage;
+
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * Reads a stored file from start to end, for transfers which send a file as a stream. Closing the stream leaves
+ * the file open.
+ */
+public class StoredFileInputStream extends InputStream {
+
+    /**
+     * The file being read.
+     */
+    private final StoredFile file;
+
+    /**
+     * The offset of the next byte to read.
+     */
+    private long position = 0;
+
+    /**
+     * Creates a new stream reading from the start of the given file.
+     *
+     * @param file the file to read
+     */
+    public StoredFileInputStream(StoredFile file) {
+        this.file = file;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public int read() throws IOException {
+        byte[] single = new byte[1];
+        return read(single, 0, 1) == -1 ? -1 : single[0] & 0xff;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException {
+        if (len == 0) {
+            return 0;
+        }
+        int read = file.read(position, b, off, len);
+        if (read > 0) {
+            position += read;
+        }
+        return read;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public long skip(long n) throws IOException {
+        long skipped = Math.max(0, Math.min(n, file.size() - position));
+        position += skipped;
+        return skipped;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public int available() throws IOException {
+        return (int) Math.max(0, Math.min(Integer.MAX_VALUE, file.size() - position));
+    }
+
+}
@@ -0,0 +1,425 @@
+package tftp.core.store;
+
+import tftp.core.Configuration;
+import tftp.core.storage.GroupCommit;
+import tftp.core.storage.SyncPolicy;
+import tftp.core.util.FileUtil;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * A content-addressed store for uploaded files, so that uploading the same file again costs (almost) no disk
+ * writes or space. Each distinct file is kept once, as a read-only object named after the SHA-256 hash of its
+ * contents, and the uploaded file name is made a hard link to it.
+ * <p>
+ * The hash of a file is only known once it has been received in full, so the incoming data is also split into
+ * fixed-size chunks and hashed chunk by chunk. Every chunk of every stored object is indexed - while all of the
+ * chunks received so far are already in the store, nothing is written to disk at all. Only when a new chunk
+ * arrives is the upload spilled to a temporary file, which becomes a new object once complete.
+ * <p>
+ * New objects, their chunk lists and the links to them are made durable by the same {@link SyncPolicy} as files
+ * written to a directory storage, each before the next is renamed into place - so a file name never survives a
+ * crash pointing at an object which didn't.
+ */
+public class ContentStore {
+
+    /**
+     * The size of the chunks uploads are split into and indexed by.
+     */
+    public static final int CHUNK_SIZE = 64 * 1024;
+
+    /**
+     * The extension of the file listing the chunk hashes of an object, which the index is rebuilt from.
+     */
+    private static final String CHUNK_LIST_EXTENSION = ".chunks";
+
+    /**
+     * The directory holding the objects.
+     */
+    private final File directory;
+
+    /**
+     * The stored chunks, mapped from the hash of their contents to where they can be read from.
+     */
+    private final Map<String, Chunk> chunks = new ConcurrentHashMap<>();
+
+    /**
+     * How new files are made durable.
+     */
+    private final SyncPolicy syncPolicy;
+
+    /**
+     * Commits new files in batches, if the sync policy is {@link SyncPolicy#GROUP}.
+     */
+    private final GroupCommit groupCommit;
+
+    /**
+     * Opens a store, creating the directory if needed, and indexes the objects already in it.
+     *
+     * @param directory the directory to keep the objects in
+     * @param syncPolicy how new objects, and the links to them, are made durable
+     * @throws IOException if the directory could not be created
+     */
+    public ContentStore(File directory, SyncPolicy syncPolicy) throws IOException {
+        this.directory = directory;
+        this.syncPolicy = syncPolicy;
+        this.groupCommit = syncPolicy == SyncPolicy.GROUP
+                ? new GroupCommit(Configuration.GROUP_COMMIT_INTERVAL)
+                : null;
+        if (!directory.isDirectory() && !directory.mkdirs()) {
+            throw new IOException("unable to create store: " + directory);
+        }
+
+        File[] lists = directory.listFiles(f -> f.getName().endsWith(CHUNK_LIST_EXTENSION));
+        if (lists == null) {
+            return;
+        }
+        for (File list : lists) {
+            String name = list.getName();
+            File object = new File(directory, name.substring(0, name.length() - CHUNK_LIST_EXTENSION.length()));
+            if (!object.isFile()) {
+                continue;
+            }
+            try (DataInputStream in = new DataInputStream(new FileInputStream(list))) {
+                List<String> hashes = new ArrayList<>();
+                int count = in.readInt();
+                for (int i = 0; i < count; ++i) {
+                    hashes.add(in.readUTF());
+                }
+                index(object, hashes);
+            } catch (IOException e) {
+                System.out.println("unable to index " + object + ": " + e.getMessage());
+            }
+        }
+    }
+
+    /**
+     * Starts a new upload into the store.
+     *
+     * @return a stream to write the uploaded data to, which is committed under a file name once complete
+     * @throws IOException if the hash algorithm is unavailable
+     */
+    public Upload begin() throws IOException {
+        return new Upload();
+    }
+
+    /**
+     * Renames a new file into place, once it is as durable as the sync policy asks.
+     *
+     * @param channel the channel the file was written through, which is closed
+     * @param temp the file as written
+     * @param target the name to rename the file to
+     * @throws IOException if the file could not be flushed or renamed
+     */
+    private void commit(FileChannel channel, File temp, File target) throws IOException {
+        switch (syncPolicy) {
+            case NONE:
+                channel.close();
+                Files.move(temp.toPath(), target.toPath(),
+                        StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+                break;
+            case FILE:
+                channel.force(true);
+                channel.close();
+                Files.move(temp.toPath(), target.toPath(),
+                        StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+                FileUtil.syncDirectory(target.getAbsoluteFile().getParentFile());
+                break;
+            case GROUP:
+                groupCommit.commit(channel, temp, target);
+                break;
+        }
+    }
+
+    /**
+     * Adds the chunks of an object to the index.
+     */
+    private void index(File object, List<String> hashes) {
+        long length = object.length();
+        for (int i = 0; i < hashes.size(); ++i) {
+            long offset = (long) i * CHUNK_SIZE;
+            chunks.putIfAbsent(hashes.get(i), new Chunk(object, offset, (int) Math.min(CHUNK_SIZE, length - offset)));
+        }
+    }
+
+    /**
+     * Formats a hash as hex, for naming objects and keying chunks.
+     */
+    private static String hex(byte[] hash) {
+        StringBuilder hex = new StringBuilder();
+        for (byte b : hash) {
+            hex.append(String.format("%02x", b));
+        }
+        return hex.toString();
+    }
+
+    /**
+     * Creates a new SHA-256 digest.
+     */
+    private static MessageDigest sha256() throws IOException {
+        try {
+            return MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IOException(e);
+        }
+    }
+
+    /**
+     * Where a stored chunk can be read from.
+     */
+    private static class Chunk {
+
+        /**
+         * The object holding the chunk.
+         */
+        private final File object;
+
+        /**
+         * The offset of the chunk within the object.
+         */
+        private final long offset;
+
+        /**
+         * The length of the chunk - only the last chunk of an object is shorter than {@link #CHUNK_SIZE}.
+         */
+        private final int length;
+
+        /**
+         * Creates a new chunk location.
+         */
+        private Chunk(File object, long offset, int length) {
+            this.object = object;
+            this.offset = offset;
+            this.length = length;
+        }
+
+    }
+
+    /**
+     * A single upload into the store. Data written to this stream is chunked and hashed as it arrives, and only
+     * written to disk if it is not already in the store. Once all data has been written, {@link #commit(File)}
+     * gives it a file name - closing an upload without committing it discards it.
+     */
+    public class Upload extends OutputStream {
+
+        /**
+         * The hash of all data written so far.
+         */
+        private final MessageDigest fileDigest = sha256();
+
+        /**
+         * Used to hash each chunk.
+         */
+        private final MessageDigest chunkDigest = sha256();
+
+        /**
+         * The chunk currently being filled.
+         */
+        private final byte[] buffer = new byte[CHUNK_SIZE];
+
+        /**
+         * How much of the current chunk has been filled.
+         */
+        private int filled = 0;
+
+        /**
+         * The hashes of the complete chunks so far.
+         */
+        private final List<String> hashes = new ArrayList<>();
+
+        /**
+         * The chunks received so far which are already in the store, while nothing has been spilled to disk.
+         */
+        private final List<Chunk> known = new ArrayList<>();
+
+        /**
+         * The temporary file the upload is spilled to once a new chunk arrives, or null while all chunks are
+         * already in the store.
+         */
+        private File temp = null;
+
+        /**
+         * The stream writing to the temporary file.
+         */
+        private FileOutputStream spill = null;
+
+        /**
+         * Creates a new upload.
+         */
+        private Upload() throws IOException {}
+
+        /**
+         * {@inheritDoc}
+         */
+        @Override
+        public void write(int b) throws IOException {
+            write(new byte[]{(byte) b}, 0, 1);
+        }
+
+        /**
+         * {@inheritDoc}
+         */
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            while (len > 0) {
+                int count = Math.min(len, buffer.length - filled);
+                System.arraycopy(b, off, buffer, filled, count);
+                filled += count;
+                off += count;
+                len -= count;
+                if (filled == buffer.length) {
+                    endChunk();
+                }
+            }
+        }
+
+        /**
+         * Hashes the current chunk, and writes it to disk if it is new.
+         */
+        private void endChunk() throws IOException {
+            fileDigest.update(buffer, 0, filled);
+            chunkDigest.update(buffer, 0, filled);
+            String hash = hex(chunkDigest.digest());
+            hashes.add(hash);
+
+            Chunk chunk = chunks.get(hash);
+            if (spill == null && chunk != null) {
+                known.add(chunk);
+            } else {
+                spill().write(buffer, 0, filled);
+            }
+            filled = 0;
+        }
+
+        /**
+         * Opens the temporary file, first copying in any chunks received before it was needed.
+         */
+        private FileOutputStream spill() throws IOException {
+            if (spill == null) {
+                temp = File.createTempFile("upload", ".tmp", directory);
+                spill = new FileOutputStream(temp);
+                for (Chunk chunk : known) {
+                    byte[] bytes = new byte[chunk.length];
+                    try (RandomAccessFile object = new RandomAccessFile(chunk.object, "r")) {
+                        object.seek(chunk.offset);
+                        object.readFully(bytes);
+                    }
+                    spill.write(bytes);
+                }
+                known.clear();
+            }
+            return spill;
+        }
+
+        /**
+         * Completes the upload, and makes the given file name refer to its contents. If the same contents are
+         * already in the store nothing more is written - otherwise they are added as a new object.
+         *
+         * @param destination the file name the upload was made to
+         * @return true if the contents were already in the store
+         * @throws IOException if the upload could not be stored or linked to the file name
+         */
+        public boolean commit(File destination) throws IOException {
+            if (filled > 0) {
+                endChunk();
+            }
+            String hash = hex(fileDigest.digest());
+            File object = new File(directory, hash);
+
+            boolean duplicate = object.isFile();
+            if (!duplicate) {
+                //all chunks may have been seen before, but not in this order - so the object still has to be
+                // written, from the chunks already in the store
+                writeChunkList(hash);
+                ContentStore.this.commit(spill().getChannel(), temp, object);
+                spill = null;
+                object.setReadOnly();
+                index(object, hashes);
+            }
+            close();
+
+            link(object, destination);
+            return duplicate;
+        }
+
+        /**
+         * Writes the list of chunk hashes of a new object, so the index can be rebuilt when the store is
+         * reopened.
+         */
+        private void writeChunkList(String hash) throws IOException {
+            File list = File.createTempFile("chunks", ".tmp", directory);
+            FileOutputStream file = new FileOutputStream(list);
+            try {
+                DataOutputStream out = new DataOutputStream(file);
+                out.writeInt(hashes.size());
+                for (String chunk : hashes) {
+                    out.writeUTF(chunk);
+                }
+                out.flush();
+                ContentStore.this.commit(file.getChannel(), list, new File(directory, hash + CHUNK_LIST_EXTENSION));
+            } finally {
+                file.close();
+                list.delete();
+            }
+        }
+
+        /**
+         * Makes the file name a hard link to the object. The link is made under a temporary name and renamed
+         * over the file name, so readers of the old file never see it missing. If hard links aren't supported
+         * (eg. the store is on another file system), the object is copied instead - the sync policy flushes the
+         * link or copy, and the directory it is in, like any new file.
+         */
+        private void link(File object, File destination) throws IOException {
+            File absolute = destination.getAbsoluteFile();
+            File link = File.createTempFile(absolute.getName() + ".", ".link", absolute.getParentFile());
+            try {
+                link.delete();
+                try {
+                    Files.createLink(link.toPath(), object.toPath());
+                } catch (IOException | UnsupportedOperationException e) {
+                    Files.copy(object.toPath(), link.toPath());
+                }
+                //a link to the (read-only) object can only be opened to read - which is enough to flush it
+                try (FileChannel channel = FileChannel.open(link.toPath(), StandardOpenOption.READ)) {
+                    ContentStore.this.commit(channel, link, absolute);
+                }
+            } finally {
+                link.delete();
+            }
+        }
+
+        /**
+         * Discards the upload, unless it has been committed.
+         */
+        @Override
+        public void close() throws IOException {
+            if (spill != null) {
+                spill.close();
+                spill = null;
+            }
+            if (temp != null) {
+                temp.delete();
+                temp = null;
+            }
+        }
+
+    }
+
+}
@@ -0,0 +1,248 @@
+package tftp.udp;
+
+import tftp.core.Configuration;
+import tftp.core.TransferOptions;
+import tftp.core.packet.ParityPacket;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.List;
+
+/**
+ * Shares a budget of memory for packet buffers between all of a server's transfers. Before a transfer starts, it
+ * leases as much of the budget as it could hold at once - its window of blocks and the packets around them - and
+ * if the budget is spent it waits for other transfers to finish, and is turned away if none do in time. So a burst
+ * of clients is queued or refused, rather than each adding its buffers to the heap until the garbage collector
+ * can't keep up, or the heap runs out.
+ * <p>
+ * Buffers come in size classes - one for each packet length the transfers ask for - and a buffer given back is
+ * kept on its class's free list for the next transfer to reuse, so a steady stream of blocks reuses the same
+ * arrays rather than leaving one behind for the collector with every block. Buffers are only kept while the budget
+ * has room for them beside the leases.
+ */
+public class BufferPool {
+
+    /**
+     * The most bytes leased at once, and the bytes leased now. A transfer needing more than it leased is given it
+     * rather than failing part way through, so this can go over the budget - new leases then wait until it doesn't.
+     */
+    private final long budget;
+    private long leased = 0;
+
+    /**
+     * The length of the buffers in each size class, and the buffers given back which are kept for reuse.
+     */
+    private final int[] sizes;
+    private final List<Deque<byte[]>> free = new ArrayList<>();
+
+    /**
+     * The bytes held in the free lists.
+     */
+    private long pooled = 0;
+
+    /**
+     * The number of leases given out, and of transfers which had to wait for one or were refused.
+     */
+    private long leases = 0;
+    private long waited = 0;
+    private long refused = 0;
+
+    /**
+     * Creates a new pool.
+     *
+     * @param budget the most bytes to lease out at once
+     * @param sizes the length of the buffers in each size class
+     */
+    public BufferPool(long budget, int... sizes) {
+        this.budget = budget;
+        this.sizes = sizes.clone();
+        for (int i = 0; i < sizes.length; ++i) {
+            free.add(new ArrayDeque<>());
+        }
+    }
+
+    /**
+     * Creates a pool of packet buffers, with the budget set in {@link Configuration}.
+     *
+     * @return the pool, or null if transfers allocate their own buffers as they like
+     */
+    public static BufferPool fromConfiguration() {
+        return Configuration.BUFFER_BUDGET > 0
+                ? new BufferPool(Configuration.BUFFER_BUDGET, Configuration.MAX_PACKET_LENGTH)
+                : null;
+    }
+
+    /**
+     * Works out the most packet memory a transfer holds at once, with the given options - the blocks of its window
+     * (sent but not yet acknowledged, or received out of order), the parity packets for them, and the packets on
+     * either side.
+     *
+     * @param options the options negotiated for the transfer
+     * @return the number of bytes
+     */
+    public static long workingSet(TransferOptions options) {
+        int window = Math.max(options.getWindowSize(), options.getBulkWindow());
+        long bytes = (window + 2L) * Configuration.MAX_PACKET_LENGTH;
+        if (options.getBulkWindow() > 0 && options.getFecGroupSize() > 0) {
+            bytes += (window / options.getFecGroupSize() + 1L) * options.getFecParity() * ParityPacket.PACKET_LENGTH;
+        }
+        return bytes;
+    }
+
+    /**
+     * Leases part of the budget for a transfer, waiting for other transfers to give theirs back if need be. A lease
+     * bigger than the whole budget waits for every other lease to be given back.
+     *
+     * @param bytes the number of bytes needed
+     * @param wait the longest to wait, in milliseconds - zero to not wait at all
+     * @return the lease, or null if the bytes weren't free in time
+     * @throws InterruptedException if the thread was interrupted while waiting
+     */
+    public synchronized Lease lease(long bytes, long wait) throws InterruptedException {
+        bytes = Math.min(bytes, budget);
+        if (leased + bytes > budget) {
+            long deadline = System.currentTimeMillis() + wait;
+            long remaining = wait;
+            while (leased + bytes > budget) {
+                if (remaining <= 0) {
+                    ++refused;
+                    return null;
+                }
+                wait(remaining);
+                remaining = deadline - System.currentTimeMillis();
+            }
+            ++waited;
+        }
+        leased += bytes;
+        ++leases;
+        trim();
+        return new Lease(bytes);
+    }
+
+    /**
+     * Drops buffers from the free lists until they fit in the budget beside the leases.
+     */
+    private void trim() {
+        for (Deque<byte[]> buffers : free) {
+            while (!buffers.isEmpty() && pooled + leased > budget) {
+                pooled -= buffers.pop().length;
+            }
+        }
+    }
+
+    /**
+     * Gives the size class of buffers of the given length.
+     *
+     * @return the index of the class, or -1 if buffers of that length aren't pooled
+     */
+    private int sizeClass(int length) {
+        for (int i = 0; i < sizes.length; ++i) {
+            if (sizes[i] == length) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public synchronized String toString() {
+        return String.format(
+                "buffers: %d of %d bytes leased, %d pooled, %d leases (%d waited, %d refused)",
+                leased, budget, pooled, leases, waited, refused
+        );
+    }
+
+    /**
+     * A transfer's share of the budget. Buffers are taken from it, and given back to it as they are finished with;
+     * closing the lease gives its share back to the pool, for waiting transfers to take. Buffers still taken when
+     * the lease is closed are left to the garbage collector.
+     */
+    public class Lease implements AutoCloseable {
+
+        /**
+         * The bytes leased, and the bytes of them taken as buffers.
+         */
+        private long reserved;
+        private long taken = 0;
+
+        /**
+         * Whether the lease has been given back.
+         */
+        private boolean closed = false;
+
+        /**
+         * Creates a new lease.
+         */
+        private Lease(long reserved) {
+            this.reserved = reserved;
+        }
+
+        /**
+         * Takes a buffer, reusing one given back if there is one. The buffer's contents are undefined.
+         *
+         * @param length the length of the buffer
+         * @return the buffer
+         */
+        public byte[] take(int length) {
+            int sizeClass = sizeClass(length);
+            if (sizeClass < 0) {
+                return new byte[length];
+            }
+            synchronized (BufferPool.this) {
+                taken += length;
+                if (taken > reserved) {
+                    //more than the transfer was expected to need - let it have it, and hold back new leases
+                    // until it is given back
+                    leased += taken - reserved;
+                    reserved = taken;
+                }
+                byte[] buffer = free.get(sizeClass).poll();
+                if (buffer != null) {
+                    pooled -= length;
+                    return buffer;
+                }
+            }
+            return new byte[length];
+        }
+
+        /**
+         * Gives back a buffer taken from the lease, which must no longer be used.
+         *
+         * @param buffer the buffer
+         */
+        public void give(byte[] buffer) {
+            int sizeClass = sizeClass(buffer.length);
+            if (sizeClass < 0) {
+                return;
+            }
+            synchronized (BufferPool.this) {
+                taken -= buffer.length;
+                if (!closed && pooled + leased + buffer.length <= budget) {
+                    free.get(sizeClass).push(buffer);
+                    pooled += buffer.length;
+                }
+            }
+        }
+
+        /**
+         * Gives the lease back to the pool.
+         */
+        @Override
+        public void close() {
+            synchronized (BufferPool.this) {
+                if (closed) {
+                    return;
+                }
+                closed = true;
+                leased -= reserved;
+                BufferPool.this.notifyAll();
+            }
+        }
+
+    }
+
+}
@@ -0,0 +1,403 @@
+package tftp.udp;
+
+import tftp.core.Configuration;
+import tftp.core.TFTPException;
+import tftp.core.TransferOptions;
+import tftp.core.packet.*;
+import tftp.core.tuning.BufferTuner;
+import tftp.udp.fec.ParityCode;
+import tftp.udp.fec.ParityDecoder;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.math.BigDecimal;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetAddress;
+import java.net.SocketTimeoutException;
+import java.util.BitSet;
+
+/**
+ * Receives a file in bulk mode, once the sender has agreed to it - the other half of {@link BulkSender}. Blocks
+ * are written to the file in order as soon as they can be. Those arriving after a missing block are held until it
+ * turns up, with a bitmap of which blocks are held, and every {@link Configuration#NAK_INTERVAL} milliseconds
+ * (while blocks are arriving) the sender is told where the transfer is up to and which blocks are missing.
+ * <p>
+ * Once every block has been written, the final block is acknowledged with a plain ACK. The receiver then waits a
+ * while in case that ACK was lost, answering the sender if it resends (as RFC 1350 suggests).
+ * <p>
+ * If forward error correction was agreed, blocks lost from a group are rebuilt from the group's parity blocks
+ * where possible, and held just as if they had arrived - so they drop out of the next report.
+ */
+public class BulkReceiver {
+
+    /**
+     * The socket used to send and receive datagrams.
+     */
+    private final DatagramSocket socket;
+
+    /**
+     * The address and port of the sender.
+     */
+    private final InetAddress remoteAddress;
+    private final int remotePort;
+
+    /**
+     * The options negotiated for the transfer.
+     */
+    private final TransferOptions options;
+
+    /**
+     * The bulk window - the sender never gets further than this ahead of the last block received in order.
+     */
+    private final int window;
+
+    /**
+     * The blocks received after a missing one, held until it arrives, indexed by block number modulo the window -
+     * and the bitmap of which are held.
+     */
+    private final DataPacket[] held;
+    private final BitSet present;
+
+    /**
+     * The next block to write to the file, and the furthest block received.
+     */
+    private long expected = 1;
+    private long highest = 0;
+
+    /**
+     * The number of the final block, or -1 if it has not arrived yet, and the final block itself.
+     */
+    private long finalBlock = -1;
+    private DataPacket finalPacket = null;
+
+    /**
+     * Rebuilds lost blocks from their groups' parity blocks, or null if forward error correction is not in use.
+     */
+    private final ParityDecoder decoder;
+
+    /**
+     * Grows the socket's buffers to fit the link, or null.
+     */
+    private final BufferTuner tuner;
+
+    /**
+     * The number of data bytes written, and the number of reports sent and blocks received more than once.
+     */
+    private long bytesReceived = 0;
+    private long reports = 0;
+    private long duplicates = 0;
+
+    /**
+     * Creates a new receiver.
+     */
+    private BulkReceiver(DatagramSocket socket, InetAddress remoteAddress, int remotePort, TransferOptions options,
+                         BufferTuner tuner) {
+        this.socket = socket;
+        this.remoteAddress = remoteAddress;
+        this.remotePort = remotePort;
+        this.options = options;
+        this.window = options.getBulkWindow();
+        this.held = new DataPacket[window];
+        this.present = new BitSet(window);
+        this.decoder = options.getFecGroupSize() > 0
+                ? new ParityDecoder(new ParityCode(options.getFecGroupSize(), options.getFecParity()))
+                : null;
+        this.tuner = tuner;
+        if (tuner != null) {
+            //the whole window may arrive in one burst, with the parity blocks for each group in it
+            int parity = decoder == null ? 0 : (window / options.getFecGroupSize() + 1) * options.getFecParity();
+            tuner.reserve(window + parity, ParityPacket.PACKET_LENGTH);
+        }
+    }
+
+    /**
+     * Receives a file in bulk mode, starting from the first block, and prints information about the transfer
+     * once it is complete.
+     *
+     * @param socket the socket used to send and receive datagrams
+     * @param lastSent the packet last sent to the sender (an OACK or ACK0), resent until the first block arrives
+     * @param remoteAddress the address of the sender
+     * @param remotePort the port of the sender
+     * @param fos the stream to write the received data to
+     * @param options the options negotiated for the transfer, including the bulk window
+     * @param completion run once the whole file has been received, or null
+     * @param startTime when the transfer started, in terms of {@link System#currentTimeMillis()}
+     * @param tuner grows the socket's buffers to fit the link, or null
+     * @throws TFTPException if an 'unfixable' error occurred during transfer
+     */
+    public static void receive(DatagramSocket socket, TFTPPacket lastSent, InetAddress remoteAddress,
+                               int remotePort, OutputStream fos, TransferOptions options,
+                               FileReceiver.Completion completion, long startTime, BufferTuner tuner)
+            throws TFTPException {
+        BulkReceiver receiver = new BulkReceiver(socket, remoteAddress, remotePort, options, tuner);
+        DataPacket last = receiver.receive(lastSent, fos, completion);
+
+        System.out.println(last);
+        FileReceiver.trim(fos);
+
+        long time = System.currentTimeMillis() - startTime;
+        double seconds = (double) time / 1000.0;
+        BigDecimal bigDecimal = new BigDecimal(seconds);
+        bigDecimal = bigDecimal.setScale(1, BigDecimal.ROUND_UP);
+        System.out.printf("received %d bytes in %s seconds%n", receiver.bytesReceived, bigDecimal.toPlainString());
+        System.out.printf(
+                "bulk mode: sent %d reports, received %d duplicate blocks%n", receiver.reports, receiver.duplicates
+        );
+        if (receiver.decoder != null) {
+            System.out.printf("fec: rebuilt %d blocks from parity%n", receiver.decoder.getRecovered());
+        }
+        if (socket instanceof LossySocket) {
+            System.out.println(socket);
+        }
+
+        receiver.dally(new AcknowledgementPacket(last.getBlockNumber()));
+    }
+
+    /**
+     * Receives blocks until the whole file has been written, then acknowledges the final block.
+     *
+     * @return the final block
+     */
+    private DataPacket receive(TFTPPacket lastSent, OutputStream fos, FileReceiver.Completion completion)
+            throws TFTPException {
+        //large enough for a parity block, which has a longer header than a data block
+        byte[] rcvBuffer = new byte[Math.max(Configuration.MAX_PACKET_LENGTH, ParityPacket.PACKET_LENGTH)];
+        DatagramPacket rcvDatagram = new DatagramPacket(rcvBuffer, rcvBuffer.length);
+
+        //the stream the received data is written to, wrapped according to the negotiated options
+        OutputStream sink = null;
+
+        //whether any blocks have arrived since the last report, and when the next report is due (in terms of
+        // System.nanoTime()) - reports are only sent while blocks are arriving, or the sender has gone quiet. if
+        // nothing arrives for an interval after a report, it is repeated once, as the sender may be waiting on it
+        boolean arrived = false;
+        boolean repeat = false;
+        long reportDue = 0;
+
+        //keep track of the number of consecutive timeouts, and the number of nonsense packets received
+        int timeouts = 0;
+        int invalids = 0;
+        int timeout = -1;
+
+        while (timeouts < Configuration.MAX_TIMEOUTS && invalids < Configuration.MAX_INVALIDS) {
+            try {
+                try {
+                    //wait until the next report is due, if blocks have arrived since the last one
+                    int wait = arrived || repeat
+                            ? (int) Math.max(1, (reportDue - System.nanoTime() + 999_999) / 1_000_000)
+                            : options.getTimeout();
+                    if (wait != timeout) {
+                        socket.setSoTimeout(wait);
+                        timeout = wait;
+                    }
+                    socket.receive(rcvDatagram);
+                } catch (SocketTimeoutException e) {
+                    if (!arrived && repeat) {
+                        report();
+                        repeat = false;
+                        continue;
+                    } else if (!arrived) {
+                        ++timeouts;
+                        if (highest == 0) {
+                            //still waiting for the first block, so the sender may not have heard us
+                            System.out.println("timed out, resending " + lastSent);
+                            socket.send(UDPUtil.toDatagram(lastSent, remoteAddress, remotePort));
+                            continue;
+                        }
+                        System.out.println("timed out, reporting missing blocks");
+                    }
+                    report();
+                    arrived = false;
+                    repeat = true;
+                    reportDue = System.nanoTime() + Configuration.NAK_INTERVAL * 1_000_000L;
+                    continue;
+                }
+
+                TFTPPacket packet;
+                try {
+                    packet = UDPUtil.fromDatagram(rcvDatagram);
+                } catch (TFTPException e) {
+                    ++invalids;
+                    continue;
+                }
+
+                if (packet instanceof DataPacket || packet instanceof ParityPacket && decoder != null) {
+                    short blockNumber = packet instanceof DataPacket
+                            ? ((DataPacket) packet).getBlockNumber()
+                            : ((ParityPacket) packet).getFirstBlockNumber();
+                    long block = expected + (short) (blockNumber - (short) expected);
+                    if (block >= expected + window) {
+                        //further ahead than the sender may get - not a block of this transfer
+                        ++invalids;
+                        continue;
+                    }
+                    timeouts = 0;
+                    invalids = 0;
+                    if (!arrived && !repeat) {
+                        reportDue = System.nanoTime() + Configuration.NAK_INTERVAL * 1_000_000L;
+                    }
+                    arrived = true;
+
+                    if (packet instanceof ParityPacket) {
+                        ParityPacket parity = (ParityPacket) packet;
+                        if (block + parity.getCount() > expected) {
+                            //some of the group may be missing still
+                            for (DataPacket rebuilt : decoder.addParity(block, parity)) {
+                                hold(block + (short) (rebuilt.getBlockNumber() - (short) block), rebuilt);
+                            }
+                        }
+                    } else if (block < expected || present.get(index(block))) {
+                        //resent before the sender heard it had arrived
+                        ++duplicates;
+                    } else {
+                        hold(block, (DataPacket) packet);
+                        if (decoder != null) {
+                            for (DataPacket rebuilt : decoder.addData(block, (DataPacket) packet)) {
+                                hold(block + (short) (rebuilt.getBlockNumber() - (short) block), rebuilt);
+                            }
+                        }
+                    }
+
+                    //write out every block now in order
+                    while (present.get(index(expected))) {
+                        DataPacket next = held[index(expected)];
+                        if (sink == null) {
+                            sink = options.decode(fos);
+                        }
+                        sink.write(next.getPacketBytes(), DataPacket.DATA_OFFSET, next.getDataLength());
+                        bytesReceived += next.getDataLength();
+                        if (tuner != null) {
+                            tuner.received(next.getDataLength());
+                        }
+                        held[index(expected)] = null;
+                        present.clear(index(expected));
+                        ++expected;
+                    }
+                    if (decoder != null) {
+                        decoder.discardBefore(expected);
+                    }
+
+                    if (finalBlock >= 0 && expected > finalBlock) {
+                        //everything has arrived - flush anything held by the decoding stream through to the
+                        // file, complete the transfer, and acknowledge the final block
+                        if (sink != fos) {
+                            FileReceiver.finish(socket, remoteAddress, remotePort, sink);
+                        }
+                        if (completion != null) {
+                            FileReceiver.complete(socket, remoteAddress, remotePort, completion);
+                        }
+                        AcknowledgementPacket ack = new AcknowledgementPacket((short) finalBlock);
+                        socket.send(UDPUtil.toDatagram(ack, remoteAddress, remotePort));
+                        return finalPacket;
+                    }
+
+                    if (System.nanoTime() - reportDue >= 0) {
+                        report();
+                        arrived = false;
+                        repeat = true;
+                        reportDue = System.nanoTime() + Configuration.NAK_INTERVAL * 1_000_000L;
+                    }
+                } else if (packet instanceof OptionAcknowledgementPacket && highest == 0) {
+                    //the sender is still waiting for the answer to its OACK, so it was lost
+                    socket.send(UDPUtil.toDatagram(lastSent, remoteAddress, remotePort));
+                } else if (packet instanceof ErrorPacket) {
+                    //received error packet from remote host, so terminate - the file is incomplete
+                    throw new TFTPException("error: " + ((ErrorPacket) packet).getMessage());
+                }
+
+            } catch (IOException e) {
+                //failed to write to file for whatever reason - can still try again, but only up to MAX_INVALIDS
+                // times in a row
+                ++invalids;
+            }
+        }
+
+        if (timeouts == Configuration.MAX_TIMEOUTS) {
+            throw new TFTPException("error: transfer timed out");
+        } else {
+            throw new TFTPException(
+                    "error: too many invalid packets received " +
+                    "or failed to write to file too many times"
+            );
+        }
+    }
+
+    /**
+     * Holds a block which arrived (or was rebuilt) until it can be written in order.
+     */
+    private void hold(long block, DataPacket data) {
+        if (block < expected || present.get(index(block))) {
+            return;
+        }
+        held[index(block)] = data;
+        present.set(index(block));
+        highest = Math.max(highest, block);
+        if (data.isFinalPacket()) {
+            finalBlock = block;
+            finalPacket = data;
+        }
+    }
+
+    /**
+     * Tells the sender where the transfer is up to - the last block received in order, the furthest received,
+     * and the ranges of blocks missing in between (as many as fit in one packet).
+     */
+    private void report() throws IOException {
+        short[] ranges = new short[2 * NegativeAcknowledgementPacket.MAX_RANGES];
+        int count = 0;
+        long block = expected;
+        while (block < highest && count < ranges.length) {
+            //find the next run of missing blocks
+            while (block < highest && present.get(index(block))) {
+                ++block;
+            }
+            long start = block;
+            while (block < highest && !present.get(index(block))) {
+                ++block;
+            }
+            if (block > start) {
+                ranges[count++] = (short) start;
+                ranges[count++] = (short) (block - start);
+            }
+        }
+        short[] missing = new short[count];
+        System.arraycopy(ranges, 0, missing, 0, count);
+
+        NegativeAcknowledgementPacket nak = new NegativeAcknowledgementPacket(
+                (short) (expected - 1), (short) Math.max(highest, expected - 1), missing
+        );
+        socket.send(UDPUtil.toDatagram(nak, remoteAddress, remotePort));
+        ++reports;
+    }
+
+    /**
+     * Waits for the timeout after acknowledging the final block, in case the acknowledgement was lost - if the
+     * sender resends any blocks, it didn't get it, so it is sent again.
+     *
+     * @param ack the acknowledgement of the final block
+     */
+    private void dally(AcknowledgementPacket ack) {
+        byte[] rcvBuffer = new byte[Configuration.MAX_PACKET_LENGTH];
+        DatagramPacket rcvDatagram = new DatagramPacket(rcvBuffer, rcvBuffer.length);
+        try {
+            socket.setSoTimeout(options.getTimeout());
+            for (int i = 0; i < Configuration.MAX_TIMEOUTS; ++i) {
+                socket.receive(rcvDatagram);
+                if (UDPUtil.fromDatagram(rcvDatagram) instanceof DataPacket) {
+                    socket.send(UDPUtil.toDatagram(ack, remoteAddress, remotePort));
+                }
+            }
+        } catch (IOException | TFTPException ignore) {
+            //the sender has gone quiet (or the socket failed) - either way there is nothing more to do
+        }
+    }
+
+    /**
+     * Gives the index of a block in the window's arrays.
+     */
+    private int index(long block) {
+        return (int) (block % window);
+    }
+
+}
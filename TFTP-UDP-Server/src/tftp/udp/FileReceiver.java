@@ -1,16 +1,22 @@
 package tftp.udp;
 
 import tftp.core.Configuration;
+import tftp.core.ErrorType;
 import tftp.core.TFTPException;
+import tftp.core.TransferOptions;
 import tftp.core.packet.*;
+import tftp.core.tuning.BufferTuner;
+import tftp.core.util.FileUtil;
 
 import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.OutputStream;
 import java.math.BigDecimal;
 import java.net.DatagramPacket;
 import java.net.DatagramSocket;
 import java.net.InetAddress;
 import java.net.SocketTimeoutException;
+import java.util.Collections;
 
 /**
  * A generic class for receiving a file over UDP using the trivial file transfer protocol.
@@ -20,26 +26,63 @@ import java.net.SocketTimeoutException;
  */
 public class FileReceiver {
 
+    /**
+     * Work to do once the whole file has been received, before the final acknowledgement is sent - eg. moving the
+     * file into place, so that it exists by the time the remote host is told the transfer is complete.
+     */
+    public interface Completion {
+
+        /**
+         * Completes the transfer.
+         *
+         * @throws IOException if the transfer could not be completed, in which case the remote host is sent an
+         *                     error in place of the final acknowledgement
+         */
+        void complete() throws IOException;
+
+    }
+
     /**
      * Receives a file from a TFTP host.
      *
      * @param socket the socket used to send and receive datagrams
-     * @param firstPacket the first packet to send - this is usually a RRQ or an ACK0
+     * @param firstPacket the first packet to send - this is usually a RRQ, an ACK0 or an OACK
+     * @param remoteAddress the address of the remote host to send datagrams to
+     * @param remotePort the port on the remote host to send datagrams to
+     * @param fos the stream to write the received data to - if this writes to a file, the space for the file
+     *            is reserved up front when its size is known
+     * @param options the options for this transfer - if the first packet is a request, these are the requested
+     *                options, and are updated to reflect what the remote host acknowledged
+     * @throws TFTPException if an 'unfixable' error occurred during transfer
+     */
+    public static void receive(
+            DatagramSocket socket, TFTPPacket firstPacket, InetAddress remoteAddress,
+            int remotePort, OutputStream fos, TransferOptions options) throws TFTPException {
+        receive(socket, firstPacket, remoteAddress, remotePort, fos, options, null);
+    }
+
+    /**
+     * Receives a file from a TFTP host, completing the transfer before the final block is acknowledged.
+     *
+     * @param socket the socket used to send and receive datagrams
+     * @param firstPacket the first packet to send - this is usually a RRQ, an ACK0 or an OACK
      * @param remoteAddress the address of the remote host to send datagrams to
      * @param remotePort the port on the remote host to send datagrams to
-     * @param fos the file output stream to write the received data to
+     * @param fos the stream to write the received data to - if this writes to a file, the space for the file
+     *            is reserved up front when its size is known
+     * @param options the options for this transfer - if the first packet is a request, these are the requested
+     *                options, and are updated to reflect what the remote host acknowledged
+     * @param completion run once the whole file has been received, or null
      * @throws TFTPException if an 'unfixable' error occurred during transfer
      */
     public static void receive(
             DatagramSocket socket, TFTPPacket firstPacket, InetAddress remoteAddress,
-            int remotePort, FileOutputStream fos) throws TFTPException {
+            int remotePort, OutputStream fos, TransferOptions options, Completion completion)
+            throws TFTPException {
         
         //track the time taken and the number of bytes received to print at the end if all goes well
         long startTime = System.currentTimeMillis();
-        int bytesReceived = 0;
-
-        //the packet currently being sent into the network
-        TFTPPacket sendPacket;
+        long bytesReceived = 0;
 
         //a buffer for holding the data contained in received datagrams
         byte[] rcvBuffer = new byte[Configuration.MAX_PACKET_LENGTH];
@@ -47,124 +90,442 @@ public class FileReceiver {
         //a datagram object to hold received datagrams
         DatagramPacket rcvDatagram = new DatagramPacket(rcvBuffer, rcvBuffer.length);
 
-        //to check if we're sending the initial packet since this differs between server and client
+        //the packet last sent to the remote host, resent if it goes quiet - the first packet (could be ACK0, OACK
+        // or RRQ) to begin with, and then the acknowledgement of the last block received
+        TFTPPacket sendPacket = firstPacket;
+
+        //to check if we're still waiting on an answer to the initial packet since this differs between server
+        // and client
         boolean first = true;
 
-        //the acknowledgement number - currently acknowlegding the data packet with this block number
+        //the acknowledgement number - the block number of the last block received in order
         short ackNumber = 0;
 
-        //loop until all file is received, then break out
-        while (true) {
+        //the number of blocks the sender sends before waiting for an acknowledgement (RFC 7440) - only known once
+        // a request has been acknowledged - and the number received since the last acknowledgement was sent
+        int window = firstPacket instanceof RequestPacket ? 1 : options.getWindowSize();
+        int unacknowledged = 0;
 
-            //generally will be sending acks, but the first packet is different (could be ACK0 or RRQ)
-            // so set the packet to send accordingly
-            if (first) {
-                sendPacket = firstPacket;
-            } else {
-                sendPacket = new AcknowledgementPacket(ackNumber);
-            }
+        //the sender may have less than a window in flight - held back by congestion control, or because the rest
+        // of the window was lost - so what has arrived of a window is acknowledged if the blocks stop coming for
+        // a few times the usual gap between them. the gap is smoothed as the blocks arrive
+        long lastArrival = 0;
+        long arrivalGap = 0;
+
+        //the smoothed round trip from acknowledging a whole window to the first block of the next arriving, and
+        // when the last whole window was acknowledged, if its round trip is still to be measured. the wait for the
+        // rest of a window is never shorter than a round trip, so blocks the sender spreads out (or holds back for
+        // its rate limits) aren't mistaken for lost ones, and acknowledged early as if they were
+        long roundTripStart = 0;
+        long roundTrip = 0;
+
+        //whether the sender has been told where the transfer is up to since a block last arrived in order - it is
+        // told once, rather than in answer to every stray block, so it doesn't resend more than it has to
+        boolean reported = false;
+
+        //when an acknowledgement was last sent (in terms of System.nanoTime()), and the number of blocks received
+        // more than once and the number of those answered. a duplicate of the last block is only answered if it
+        // arrives long enough after the acknowledgement that the sender could have resent it for want of one - a
+        // copy held up in the network gets no answer, so it can't set off another round of duplicates
+        long ackSentAt = 0;
+        long duplicateBlocks = 0;
+        long duplicatesAnswered = 0;
+
+        //the stream the received data is written to - this is the file output stream, wrapped according to any
+        // negotiated options (eg. decompression). only known once the options have been acknowledged
+        OutputStream sink = null;
+
+        //keeps the blocks of a window which arrive after a missing one, so they needn't be sent again - created
+        // along with the sink, once the window is known - and the number kept since the last block arrived in
+        // order
+        ReorderBuffer reorder = null;
+        int pastGap = 0;
+
+        //grows the socket's buffers to fit the link - the receive buffer to hold a whole window, and beyond that
+        // to the round trip (timed from acknowledging a whole window to the next block arriving) times the rate
+        // blocks arrive at
+        BufferTuner tuner = BufferTuner.forSocket(socket, remoteAddress);
 
-            //convert the TFTP packet to a datagram
-            DatagramPacket datagram = UDPUtil.toDatagram(sendPacket, remoteAddress, remotePort);
+        //keep track of the number of consecutive timeouts, and the number of nonsense packets received
+        int timeouts = 0;
+        int invalids = 0;
 
-            //keep track of the number of consecutive timeouts, and the number of nonsense packets received
-            int timeouts = 0;
-            int invalids = 0;
+        try {
+            //start the transfer off
+            socket.send(UDPUtil.toDatagram(sendPacket, remoteAddress, remotePort));
+        } catch (IOException e) {
+            ++invalids;
+        }
+
+        //continue looping until we reach the max number of timeouts/invalids
+        // the hopeful alternative is that the whole file is received, in which case will return from the loop
+        while (timeouts < Configuration.MAX_TIMEOUTS && invalids < Configuration.MAX_INVALIDS) {
+            if (options.getBulkWindow() > 0 && !(first && firstPacket instanceof RequestPacket)) {
+                //the sender agreed to bulk mode - it streams the file, and is told which blocks are missing
+                BulkReceiver.receive(
+                        socket, sendPacket, remoteAddress, remotePort, fos, options, completion, startTime, tuner
+                );
+                return;
+            }
 
-            //continue looping until we reach the max number of timeouts/invalids
-            // the hopeful alternative is that the relevant data is received, in which case will break out of the loop
-            while (timeouts < Configuration.MAX_TIMEOUTS && invalids < Configuration.MAX_INVALIDS) {
+            try {
                 try {
-                    //send the current datagram to the remote host
-                    socket.send(datagram);
-
-                    try {
-                        //block until we receive a response, if this throws a timeout exception then increment
-                        // the number of timeouts and 're-enter' the loop - thus sending the datagram again
-                        socket.receive(rcvDatagram);
-                    } catch (SocketTimeoutException timeout) {
-                        System.out.println("timed out, resending " + sendPacket);
-                        ++timeouts;
+                    //block until we receive a datagram, if this throws a timeout exception then increment
+                    // the number of timeouts and resend the last packet sent
+                    socket.receive(rcvDatagram);
+                } catch (SocketTimeoutException timeout) {
+                    if (unacknowledged > 0) {
+                        //the blocks stopped part way through a window - acknowledge those which arrived
+                        sendPacket = new AcknowledgementPacket(ackNumber);
+                        socket.send(UDPUtil.toDatagram(sendPacket, remoteAddress, remotePort));
+                        ackSentAt = System.nanoTime();
+                        unacknowledged = 0;
+                        socket.setSoTimeout(options.getTimeout());
                         continue;
                     }
+                    if (!first) {
+                        //acknowledge everything received so far
+                        sendPacket = new AcknowledgementPacket(ackNumber);
+                    }
+                    System.out.println("timed out, resending " + sendPacket);
+                    ++timeouts;
+                    reported = false;
+                    socket.send(UDPUtil.toDatagram(sendPacket, remoteAddress, remotePort));
+                    ackSentAt = System.nanoTime();
+                    continue;
+                }
 
-                    if (ackNumber == 0) {
-                        //server can respond from a different port, so re-set the remote port based on
-                        // the received datagram
-                        remotePort = rcvDatagram.getPort();
+                if (ackNumber == 0) {
+                    //server can respond from a different port, so re-set the remote port based on
+                    // the received datagram
+                    remotePort = rcvDatagram.getPort();
+                }
+
+                //convert the received datagram to a TFTP packet - if this throws an exception, it means the packet
+                // is 'nonsensical' in terms of the protocol - so count it and wait for another
+                TFTPPacket packet;
+                try {
+                    packet = UDPUtil.fromDatagram(rcvDatagram);
+                } catch (TFTPException e) {
+                    ++invalids;
+                    continue;
+                }
+
+                if (packet instanceof OptionAcknowledgementPacket && first
+                        && firstPacket instanceof RequestPacket) {
+                    //the remote host accepted (some of) the requested options - take note of which, then
+                    // acknowledge the OACK with ACK0 to start the flow of data
+                    options.acknowledge(((OptionAcknowledgementPacket) packet).getOptions());
+                    System.out.println("negotiated options: " + options);
+                    socket.setSoTimeout(options.getTimeout());
+                    window = options.getWindowSize();
+                    if (options.hasTransferSize() && fos instanceof FileOutputStream) {
+                        preallocate(
+                                socket, remoteAddress, remotePort, (FileOutputStream) fos,
+                                options.getTransferSize()
+                        );
                     }
+                    first = false;
+                    timeouts = 0;
+                    sendPacket = new AcknowledgementPacket(ackNumber);
+                    socket.send(UDPUtil.toDatagram(sendPacket, remoteAddress, remotePort));
+                } else if (packet instanceof DataPacket) {
+                    DataPacket data = (DataPacket) packet;
 
-                    //convert the received datagram to a TFTP packet - if this throws an exception, it means the packet
-                    // is 'nonsensical' in terms of the protocol - so re-send the request for the next packet and
-                    // increment the number of these invalid packets received
-                    TFTPPacket packet;
-                    try {
-                        packet = UDPUtil.fromDatagram(rcvDatagram);
-                    } catch (TFTPException e) {
-                        ++invalids;
-                        continue;
+                    if (first && firstPacket instanceof RequestPacket) {
+                        //data straight away rather than an OACK - the remote host ignored any options
+                        options.acknowledge(Collections.<String, String>emptyMap());
+                        window = 1;
                     }
-                    
-                    if (packet instanceof DataPacket) {
-                        DataPacket data = (DataPacket) packet;
-
-                        //packet has correct block number, we are waiting on this pcaket
-                        if (data.getBlockNumber() == (short) (ackNumber + 1)) {
-                            //write the data received in the data packet to the file
-                            fos.write(data.getPacketBytes(), DataPacket.DATA_OFFSET, data.getDataLength());
-                            //increment the number of bytes successfully received
-                            bytesReceived += data.getDataLength();
-                            //now we are waiting on the packet with block number (ackNumber + 1)
-                            ++ackNumber;
-                            first = false;
-                            
-                            //if this is the final packet, send an acknowledgement, print information about the
-                            // transfer, and finish
-                            if (data.isFinalPacket()) {
-                                sendPacket = new AcknowledgementPacket(ackNumber);
-                                datagram = UDPUtil.toDatagram(sendPacket, remoteAddress, remotePort);
-                                socket.send(datagram);
-
-                                System.out.println(data);
-                                
-                                long time = System.currentTimeMillis() - startTime;
-                                double seconds = (double) time / 1000.0;
-                                BigDecimal bigDecimal = new BigDecimal(seconds);
-                                bigDecimal = bigDecimal.setScale(1, BigDecimal.ROUND_UP);
+
+                    //packet has correct block number, we are waiting on this packet
+                    if (data.getBlockNumber() == (short) (ackNumber + 1)) {
+                        if (sink == null) {
+                            sink = options.decode(fos);
+                            reorder = ReorderBuffer.create(fos, sink, window);
+                            if (tuner != null) {
+                                tuner.reserve(window, Configuration.MAX_PACKET_LENGTH);
+                            }
+                        }
+                        //write the data received in the data packet to the file
+                        sink.write(data.getPacketBytes(), DataPacket.DATA_OFFSET, data.getDataLength());
+                        //increment the number of bytes successfully received
+                        bytesReceived += data.getDataLength();
+                        if (tuner != null) {
+                            tuner.received(data.getDataLength());
+                        }
+                        //now we are waiting on the packet with block number (ackNumber + 1)
+                        ++ackNumber;
+                        first = false;
+                        timeouts = 0;
+                        invalids = 0;
+                        reported = false;
+                        pastGap = 0;
+
+                        //if this block filled a gap, the blocks kept after it follow it into the file
+                        boolean finalBlock = data.isFinalPacket();
+                        int released = 0;
+                        if (reorder != null) {
+                            reorder.advance();
+                            int length;
+                            while (!finalBlock && (length = reorder.release()) >= 0) {
+                                bytesReceived += length;
+                                ++ackNumber;
+                                ++released;
+                                finalBlock = length < Configuration.MAX_DATA_LENGTH;
+                            }
+                        }
+
+                        //if this is the final packet, send an acknowledgement, print information about the
+                        // transfer, and finish
+                        if (finalBlock) {
+                            if (sink != fos) {
+                                //flush anything still held by the decoding stream through to the file,
+                                // verifying the checksum if one was negotiated
+                                finish(socket, remoteAddress, remotePort, sink);
+                            }
+                            if (completion != null) {
+                                complete(socket, remoteAddress, remotePort, completion);
+                            }
+
+                            sendPacket = new AcknowledgementPacket(ackNumber);
+                            socket.send(UDPUtil.toDatagram(sendPacket, remoteAddress, remotePort));
+
+                            System.out.println(released > 0 ? reorder.getFinalPacket() : data);
+
+                            trim(fos);
+
+                            long time = System.currentTimeMillis() - startTime;
+                            double seconds = (double) time / 1000.0;
+                            BigDecimal bigDecimal = new BigDecimal(seconds);
+                            bigDecimal = bigDecimal.setScale(1, BigDecimal.ROUND_UP);
+                            System.out.printf(
+                                    "received %d bytes in %s seconds%n",
+                                    bytesReceived, bigDecimal.toPlainString()
+                            );
+                            if (reorder != null && reorder.getKept() > 0) {
+                                System.out.printf("kept %d blocks which arrived out of order%n", reorder.getKept());
+                            }
+                            if (duplicateBlocks > 0) {
                                 System.out.printf(
-                                        "received %d bytes in %s seconds%n",
-                                        bytesReceived, bigDecimal.toPlainString()
+                                        "received %d duplicate blocks, answered %d%n",
+                                        duplicateBlocks, duplicatesAnswered
                                 );
-                                return;
                             }
+                            if (socket instanceof LossySocket) {
+                                System.out.println(socket);
+                            }
+                            return;
+                        }
 
-                            break;
+                        //acknowledge each whole window - the sender waits for this before sending the next. if a
+                        // gap was filled, everything now in order is acknowledged straight away, so the sender
+                        // moves on rather than resending blocks which have already arrived
+                        long now = System.nanoTime();
+                        if (roundTripStart != 0) {
+                            long rtt = now - roundTripStart;
+                            roundTrip = roundTrip == 0 ? rtt : roundTrip + (rtt - roundTrip) / 8;
+                            roundTripStart = 0;
+                        }
+                        if (unacknowledged > 0 && released == 0) {
+                            long gap = now - lastArrival;
+                            arrivalGap = arrivalGap == 0 ? gap : arrivalGap + (gap - arrivalGap) / 8;
+                        }
+                        lastArrival = now;
+                        if (++unacknowledged >= window || released > 0) {
+                            sendPacket = new AcknowledgementPacket(ackNumber);
+                            socket.send(UDPUtil.toDatagram(sendPacket, remoteAddress, remotePort));
+                            ackSentAt = now;
+                            if (released == 0) {
+                                roundTripStart = now;
+                                if (tuner != null) {
+                                    tuner.startRoundTrip();
+                                }
+                            }
+                            if (unacknowledged > 1) {
+                                socket.setSoTimeout(options.getTimeout());
+                            }
+                            unacknowledged = 0;
+                        } else if (unacknowledged == 1) {
+                            socket.setSoTimeout(ackDelay(arrivalGap, roundTrip, options.getTimeout()));
                         }
 
-                    } else if (packet instanceof ErrorPacket) {
-                        //received error packet from remote host, so print the message and terminate
-                        System.out.println("error: " + ((ErrorPacket) packet).getMessage());
-                        return;
+                    } else if (first) {
+                        //still waiting for the transfer to start, so try starting it again
+                        socket.send(UDPUtil.toDatagram(sendPacket, remoteAddress, remotePort));
+                    } else {
+                        boolean duplicate = (short) (data.getBlockNumber() - ackNumber) <= 0
+                                || reorder != null && reorder.isKept(data.getBlockNumber());
+                        boolean answer;
+                        if (duplicate) {
+                            //a block already received - if it is the last one, the sender may be resending it
+                            // because it didn't get the acknowledgement, unless it is too soon for that
+                            ++duplicateBlocks;
+                            answer = data.getBlockNumber() == ackNumber && System.nanoTime() - ackSentAt
+                                    >= Configuration.MIN_RETRANSMISSION_TIMEOUT * 1_000_000L / 2;
+                            if (answer) {
+                                ++duplicatesAnswered;
+                            }
+                        } else {
+                            //a block went missing and later ones are arriving - keep them, and tell the sender
+                            // once, when enough have arrived past the gap that the block can't merely have been
+                            // overtaken (or the rest of the window is in). if the blocks stop before then, the
+                            // acknowledgement delay runs out and the sender is told anyway
+                            if (sink == null) {
+                                sink = options.decode(fos);
+                                reorder = ReorderBuffer.create(fos, sink, window);
+                                if (tuner != null) {
+                                    tuner.reserve(window, Configuration.MAX_PACKET_LENGTH);
+                                }
+                            }
+                            boolean kept = reorder != null && reorder.keep(data);
+                            if (kept) {
+                                ++pastGap;
+                            }
+                            answer = !reported && window > 1 && (!kept || pastGap >= Configuration.REORDER_THRESHOLD
+                                    || data.getBlockNumber() == (short) (ackNumber + window));
+                            reported |= answer;
+                            if (!reported && unacknowledged == 0) {
+                                unacknowledged = 1;
+                                socket.setSoTimeout(ackDelay(arrivalGap, roundTrip, options.getTimeout()));
+                            }
+                        }
+                        if (answer) {
+                            //tell the sender which block the transfer is up to
+                            sendPacket = new AcknowledgementPacket(ackNumber);
+                            socket.send(UDPUtil.toDatagram(sendPacket, remoteAddress, remotePort));
+                            ackSentAt = System.nanoTime();
+                            if (unacknowledged > 0) {
+                                socket.setSoTimeout(options.getTimeout());
+                                unacknowledged = 0;
+                            }
+                        }
                     }
 
-                } catch (IOException e) {
-                    //failed to write to file for whatever reason - can still try again, but only up to MAX_INVALIDS
-                    // times in a row
-                    ++invalids;
+                } else if (packet instanceof ErrorPacket) {
+                    //received error packet from remote host, so terminate - the file is incomplete
+                    throw new TFTPException("error: " + ((ErrorPacket) packet).getMessage());
                 }
+
+            } catch (IOException e) {
+                //failed to write to file for whatever reason - can still try again, but only up to MAX_INVALIDS
+                // times in a row
+                ++invalids;
             }
+        }
 
-            if (timeouts == Configuration.MAX_TIMEOUTS) {
-                //too many timeouts - give up
-                throw new TFTPException("error: transfer timed out");
-            } else if (invalids == Configuration.MAX_INVALIDS) {
-                //too many odd packets received or too many failed attempts to write to output stream
-                throw new TFTPException(
-                        "error: too many invalid packets received " +
-                        "or failed to write to file too many times"
-                );
+        if (timeouts == Configuration.MAX_TIMEOUTS) {
+            //too many timeouts - give up
+            throw new TFTPException("error: transfer timed out");
+        } else {
+            //too many odd packets received or too many failed attempts to write to output stream
+            throw new TFTPException(
+                    "error: too many invalid packets received " +
+                    "or failed to write to file too many times"
+            );
+        }
+    }
+
+    /**
+     * Gives how long to wait for the next block of a window before acknowledging those which have arrived.
+     *
+     * @param arrivalGap the smoothed gap between blocks arriving, in nanoseconds, or 0 if not yet known
+     * @param roundTrip the smoothed round trip from an acknowledgement to the next block, in nanoseconds, or 0 if
+     *                  not yet known
+     * @param timeout the retransmission timeout, in milliseconds
+     * @return the time to wait, in milliseconds
+     */
+    private static int ackDelay(long arrivalGap, long roundTrip, int timeout) {
+        long delay = Math.max(Configuration.MIN_ACK_DELAY, (Math.max(4 * arrivalGap, roundTrip) + 999_999) / 1_000_000);
+        return (int) Math.min(delay, Math.max(1, timeout / 4));
+    }
+
+    /**
+     * Closes the stream the received data was written to, once the final block has arrived. If this fails - the
+     * checksum didn't match, or the data couldn't be decoded - the file is corrupt, so the remote host is told as
+     * much in place of the final acknowledgement, and the transfer is abandoned.
+     *
+     * @param socket the socket used to send and receive datagrams
+     * @param remoteAddress the address of the remote host
+     * @param remotePort the port on the remote host
+     * @param sink the stream the received data was written to
+     * @throws TFTPException if the received data was corrupt
+     */
+    static void finish(DatagramSocket socket, InetAddress remoteAddress, int remotePort,
+                               OutputStream sink) throws TFTPException {
+        try {
+            sink.close();
+        } catch (IOException e) {
+            ErrorPacket error = new ErrorPacket(ErrorType.UNDEFINED, "transfer failed: " + e.getMessage());
+            try {
+                socket.send(UDPUtil.toDatagram(error, remoteAddress, remotePort));
+            } catch (IOException ignore) {}
+            throw new TFTPException("error: " + e.getMessage());
+        }
+    }
+
+    /**
+     * Completes the transfer once the final block has arrived. If this fails, the remote host is told as much in
+     * place of the final acknowledgement, and the transfer is abandoned.
+     *
+     * @param socket the socket used to send and receive datagrams
+     * @param remoteAddress the address of the remote host
+     * @param remotePort the port on the remote host
+     * @param completion the work completing the transfer
+     * @throws TFTPException if the transfer could not be completed
+     */
+    static void complete(DatagramSocket socket, InetAddress remoteAddress, int remotePort,
+                                 Completion completion) throws TFTPException {
+        try {
+            completion.complete();
+        } catch (IOException e) {
+            ErrorPacket error = new ErrorPacket(ErrorType.UNDEFINED, "unable to save file: " + e.getMessage());
+            try {
+                socket.send(UDPUtil.toDatagram(error, remoteAddress, remotePort));
+            } catch (IOException ignore) {}
+            throw new TFTPException("error: unable to save file: " + e.getMessage());
+        }
+    }
+
+    /**
+     * Trims the file once the whole of it has been written, if space was reserved up front but the file came up
+     * short.
+     *
+     * @param fos the stream the received data was written to
+     * @throws TFTPException if the file could not be trimmed
+     */
+    static void trim(OutputStream fos) throws TFTPException {
+        if (fos instanceof FileOutputStream) {
+            try {
+                FileUtil.truncateToPosition(((FileOutputStream) fos).getChannel());
+            } catch (IOException e) {
+                throw new TFTPException("error: failed to trim file: " + e.getMessage());
             }
         }
     }
 
+    /**
+     * Reserves space for the incoming file once its size is known. If this fails the disk is (most likely) full,
+     * so the remote host is told as much and the transfer is abandoned.
+     *
+     * @param socket the socket used to send and receive datagrams
+     * @param remoteAddress the address of the remote host
+     * @param remotePort the port on the remote host
+     * @param fos the file output stream the received data is written to
+     * @param size the size of the incoming file in bytes
+     * @throws TFTPException if the space could not be reserved
+     */
+    private static void preallocate(DatagramSocket socket, InetAddress remoteAddress, int remotePort,
+                                    FileOutputStream fos, long size) throws TFTPException {
+        try {
+            FileUtil.preallocate(fos.getChannel(), size);
+        } catch (IOException e) {
+            ErrorPacket error = new ErrorPacket(ErrorType.DISK_FULL, "unable to allocate " + size + " bytes");
+            try {
+                socket.send(UDPUtil.toDatagram(error, remoteAddress, remotePort));
+            } catch (IOException ignore) {}
+            throw new TFTPException("error: unable to allocate " + size + " bytes: " + e.getMessage());
+        }
+    }
+
 }
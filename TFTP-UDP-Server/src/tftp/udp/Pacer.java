@@ -0,0 +1,120 @@
+package tftp.udp;
+
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Spaces out the datagrams of a window, rather than letting them all go at once - a burst of a whole window can
+ * overflow a small switch buffer or the receiver's socket buffer, losing the tail of the window and costing a
+ * retransmission. The gap between datagrams is worked out from the measured round trip time and the window size,
+ * so a window is spread over a fraction of a round trip.
+ * <p>
+ * Gaps are often tens of microseconds, far finer than {@link Thread#sleep(long)} can manage, so the pacer parks
+ * until just before each deadline and then spins for the rest. It keeps track of how close to their deadlines the
+ * datagrams actually went, for the report at the end of a transfer.
+ */
+public class Pacer {
+
+    /**
+     * How long before a deadline the pacer stops parking and starts spinning, in nanoseconds - waking from a park
+     * can take this long.
+     */
+    private static final long SPIN_NANOS = 50_000;
+
+    /**
+     * Gaps shorter than this are not worth pacing, in nanoseconds - the datagrams are sent back to back.
+     */
+    private static final long MIN_GAP_NANOS = 2_000;
+
+    /**
+     * How much faster than a window per round trip windows are sent.
+     */
+    private final double gain;
+
+    /**
+     * The gap between datagrams, in nanoseconds.
+     */
+    private long gap = 0;
+
+    /**
+     * The time (in terms of {@link System#nanoTime()}) the next datagram is due to be sent.
+     */
+    private long deadline = 0;
+
+    /**
+     * The number of datagrams sent on a deadline, and the total and largest amounts by which they missed it.
+     */
+    private long paced = 0;
+    private long totalError = 0;
+    private long maxError = 0;
+
+    /**
+     * Creates a new pacer.
+     *
+     * @param gain how much faster than a window per round trip windows are sent
+     */
+    public Pacer(double gain) {
+        this.gain = gain;
+    }
+
+    /**
+     * Works out the gap between datagrams from the round trip time.
+     *
+     * @param smoothedRtt the smoothed round trip time, in nanoseconds - smoothed, so a single slow round trip
+     *                    doesn't throw the pacing out
+     * @param window the number of datagrams in a window
+     */
+    public void update(long smoothedRtt, int window) {
+        long gap = window <= 1 ? 0 : (long) (smoothedRtt / (gain * window));
+        this.gap = gap < MIN_GAP_NANOS ? 0 : gap;
+    }
+
+    /**
+     * Starts a new window - its first datagram goes straight away.
+     */
+    public void startWindow() {
+        deadline = System.nanoTime();
+    }
+
+    /**
+     * Waits until the next datagram is due.
+     */
+    public void pace() {
+        if (gap == 0) {
+            return;
+        }
+
+        long now = System.nanoTime();
+        if (deadline - now > 0) {
+            //park for most of the wait, then spin for the rest
+            long remaining;
+            while ((remaining = deadline - System.nanoTime()) > SPIN_NANOS) {
+                LockSupport.parkNanos(remaining - SPIN_NANOS);
+            }
+            while (deadline - System.nanoTime() > 0) {
+                //spin
+            }
+            long error = System.nanoTime() - deadline;
+            ++paced;
+            totalError += error;
+            maxError = Math.max(maxError, error);
+            deadline += gap;
+        } else {
+            //already late (eg. reading the file took a while) - don't try to catch up with a burst
+            deadline = now + gap;
+        }
+    }
+
+    /**
+     * @return a description of how closely datagrams kept to their deadlines, or null if none were paced
+     */
+    public String report() {
+        if (paced == 0) {
+            return null;
+        }
+        return String.format(
+                "paced %d datagrams %d us apart, mean error %d us, max error %d us",
+                paced, gap / 1000, totalError / paced / 1000, maxError / 1000
+        );
+    }
+
+}
@@ -0,0 +1,35 @@
+package tftp.udp.congestion;
+
+/**
+ * Decides how many blocks a sender may have in flight, reacting to the signs of congestion it sees along the way
+ * - so a transfer backs off when the network is dropping its packets, rather than resending whole windows into
+ * it. Each transfer has its own instance, created by {@link CongestionControls#create(String, int)}.
+ * <p>
+ * The window given is a limit on top of the window negotiated with the receiver, which is never exceeded.
+ */
+public interface CongestionControl {
+
+    /**
+     * @return the number of blocks the sender may have in flight, at least 1
+     */
+    int getWindow();
+
+    /**
+     * Called when blocks have been acknowledged for the first time.
+     *
+     * @param blocks the number of blocks newly acknowledged
+     */
+    void onAcknowledged(int blocks);
+
+    /**
+     * Called when the receiver reports a block missing - by acknowledging only part of a window, or repeating
+     * the acknowledgement of the block before it.
+     */
+    void onLoss();
+
+    /**
+     * Called when the receiver went quiet long enough for the sender to time out and resend.
+     */
+    void onTimeout();
+
+}
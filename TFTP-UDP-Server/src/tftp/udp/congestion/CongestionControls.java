@@ -0,0 +1,60 @@
+package tftp.udp.congestion;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.function.IntFunction;
+
+/**
+ * The registry of congestion control variants a sender can use, so they can be compared against each other. New
+ * variants are plugged in with {@link #register(String, IntFunction)}.
+ */
+public class CongestionControls {
+
+    /**
+     * Creates instances of each registered variant from the negotiated window, keyed by (lower case) name, in
+     * order of registration.
+     */
+    private static final Map<String, IntFunction<CongestionControl>> VARIANTS = new LinkedHashMap<>();
+
+    static {
+        register("reno", window -> new Aimd("reno", 1, 0.5, window));
+        //backs off less on each loss, for links which lose packets to noise rather than congestion
+        register("gentle", window -> new Aimd("gentle", 1, 0.875, window));
+        register("fixed", FixedWindow::new);
+    }
+
+    /**
+     * Makes a congestion control variant available. A variant registered under the same name as an existing one
+     * replaces it.
+     *
+     * @param name the name of the variant
+     * @param factory creates an instance of the variant for a transfer, from the window negotiated with the
+     *                receiver
+     */
+    public static synchronized void register(String name, IntFunction<CongestionControl> factory) {
+        VARIANTS.put(name.toLowerCase(Locale.ROOT), factory);
+    }
+
+    /**
+     * Creates an instance of a congestion control variant for a transfer.
+     *
+     * @param name the name of the variant
+     * @param window the window negotiated with the receiver, in blocks
+     * @return the congestion control, or null if no such variant is registered
+     */
+    public static synchronized CongestionControl create(String name, int window) {
+        IntFunction<CongestionControl> factory = VARIANTS.get(name.trim().toLowerCase(Locale.ROOT));
+        return factory == null ? null : factory.apply(window);
+    }
+
+    /**
+     * @return the names of all registered variants
+     */
+    public static synchronized List<String> getNames() {
+        return new ArrayList<>(VARIANTS.keySet());
+    }
+
+}
@@ -0,0 +1,222 @@
+package tftp.udp.fec;
+
+/**
+ * A systematic Reed-Solomon erasure code over GF(2^8), working out parity blocks for a group of data blocks such
+ * that any data blocks lost from the group can be rebuilt, as long as no more were lost than parity blocks arrived.
+ * <p>
+ * Parity block {@code r} is the sum (XOR) of every data block {@code j} multiplied by a coefficient {@code c[r][j]}.
+ * The coefficients are a Cauchy matrix with its columns scaled so the first row is all ones - so every square
+ * submatrix is invertible, which is what makes any combination of losses recoverable, and the first parity block
+ * is the plain XOR of the data blocks. With a single parity block per group, this is simple XOR parity, and no
+ * multiplication is done at all.
+ */
+public class ParityCode {
+
+    /**
+     * The largest number of data blocks in a group - the rows and columns of the Cauchy matrix need distinct
+     * elements of the field between them.
+     */
+    public static final int MAX_GROUP_SIZE = 128;
+
+    /**
+     * The largest number of parity blocks for a group.
+     */
+    public static final int MAX_PARITY = 16;
+
+    /**
+     * Logarithms and exponents of the field's elements, with the generator 2 and the polynomial
+     * x^8 + x^4 + x^3 + x^2 + 1. The exponents are doubled up, so a product can be looked up without reducing the
+     * sum of the logarithms.
+     */
+    private static final int[] LOG = new int[256];
+    private static final int[] EXP = new int[510];
+
+    static {
+        int x = 1;
+        for (int i = 0; i < 255; ++i) {
+            EXP[i] = x;
+            EXP[i + 255] = x;
+            LOG[x] = i;
+            x <<= 1;
+            if (x >= 256) {
+                x ^= 0x11d;
+            }
+        }
+    }
+
+    /**
+     * The number of data blocks in a group, and the number of parity blocks.
+     */
+    private final int groupSize;
+    private final int parity;
+
+    /**
+     * The coefficients, by parity block then data block.
+     */
+    private final int[][] coefficients;
+
+    /**
+     * Creates a new code.
+     *
+     * @param groupSize the number of data blocks in a group, up to {@link #MAX_GROUP_SIZE}
+     * @param parity the number of parity blocks for each group, up to {@link #MAX_PARITY}
+     * @throws IllegalArgumentException if either is out of range
+     */
+    public ParityCode(int groupSize, int parity) {
+        if (groupSize < 1 || groupSize > MAX_GROUP_SIZE || parity < 1 || parity > MAX_PARITY) {
+            throw new IllegalArgumentException("invalid parity code: " + groupSize + ":" + parity);
+        }
+        this.groupSize = groupSize;
+        this.parity = parity;
+        this.coefficients = new int[parity][groupSize];
+        for (int r = 0; r < parity; ++r) {
+            for (int j = 0; j < groupSize; ++j) {
+                //x[r] = r, y[j] = parity + j, and c[r][j] = (x[0] + y[j]) / (x[r] + y[j])
+                int y = parity + j;
+                coefficients[r][j] = divide(y, r ^ y);
+            }
+        }
+    }
+
+    /**
+     * @return the number of data blocks in a group
+     */
+    public int getGroupSize() {
+        return groupSize;
+    }
+
+    /**
+     * @return the number of parity blocks for each group
+     */
+    public int getParity() {
+        return parity;
+    }
+
+    /**
+     * Adds a data block's share to a parity block - once every data block in the group has been added, the parity
+     * block is complete. Data shorter than a full block counts as if padded out with zeroes.
+     *
+     * @param target the buffer holding the parity block
+     * @param targetOffset the offset of the parity block in its buffer
+     * @param row which parity block it is
+     * @param column the position of the data block in its group
+     * @param data the buffer holding the data block
+     * @param offset the offset of the data block in its buffer
+     * @param length the length of the data block
+     */
+    public void accumulate(byte[] target, int targetOffset, int row, int column,
+                           byte[] data, int offset, int length) {
+        multiplyAdd(target, targetOffset, coefficients[row][column], data, offset, length);
+    }
+
+    /**
+     * Rebuilds lost data blocks. Each syndrome must be a parity block which arrived, with the share of every data
+     * block which arrived already added to it (which, in a field of characteristic 2, takes it away) - leaving
+     * only the shares of the lost blocks.
+     *
+     * @param rows which parity block each syndrome was worked out from - at least as many as there are lost blocks
+     * @param syndromes the syndromes, each a full block long from offset 0
+     * @param lost the positions in the group of the lost data blocks
+     * @param targets the buffers to rebuild the lost data blocks in, in the same order
+     * @param targetOffset the offset to rebuild each data block at, in its buffer
+     * @param length the length of a full block
+     */
+    public void recover(int[] rows, byte[][] syndromes, int[] lost, byte[][] targets, int targetOffset,
+                        int length) {
+        //the equations to solve are the lost blocks' coefficients for as many parity blocks as there are losses
+        int n = lost.length;
+        int[][] matrix = new int[n][n];
+        for (int a = 0; a < n; ++a) {
+            for (int b = 0; b < n; ++b) {
+                matrix[a][b] = coefficients[rows[a]][lost[b]];
+            }
+        }
+        int[][] inverse = invert(matrix);
+        for (int b = 0; b < n; ++b) {
+            for (int a = 0; a < n; ++a) {
+                multiplyAdd(targets[b], targetOffset, inverse[b][a], syndromes[a], 0, length);
+            }
+        }
+    }
+
+    /**
+     * Adds the product of a coefficient and a block to a target block.
+     */
+    private static void multiplyAdd(byte[] target, int targetOffset, int coefficient,
+                                    byte[] data, int offset, int length) {
+        if (coefficient == 0) {
+            return;
+        }
+        if (coefficient == 1) {
+            for (int i = 0; i < length; ++i) {
+                target[targetOffset + i] ^= data[offset + i];
+            }
+            return;
+        }
+        int log = LOG[coefficient];
+        for (int i = 0; i < length; ++i) {
+            int value = data[offset + i] & 0xff;
+            if (value != 0) {
+                target[targetOffset + i] ^= (byte) EXP[log + LOG[value]];
+            }
+        }
+    }
+
+    /**
+     * Inverts a square matrix over the field, by Gauss-Jordan elimination. The submatrices of the coefficients
+     * are always invertible.
+     */
+    private static int[][] invert(int[][] matrix) {
+        int n = matrix.length;
+        int[][] work = new int[n][];
+        int[][] inverse = new int[n][n];
+        for (int i = 0; i < n; ++i) {
+            work[i] = matrix[i].clone();
+            inverse[i][i] = 1;
+        }
+        for (int col = 0; col < n; ++col) {
+            int pivot = col;
+            while (work[pivot][col] == 0) {
+                ++pivot;
+            }
+            int[] swap = work[pivot];
+            work[pivot] = work[col];
+            work[col] = swap;
+            swap = inverse[pivot];
+            inverse[pivot] = inverse[col];
+            inverse[col] = swap;
+
+            int scale = divide(1, work[col][col]);
+            for (int j = 0; j < n; ++j) {
+                work[col][j] = multiply(work[col][j], scale);
+                inverse[col][j] = multiply(inverse[col][j], scale);
+            }
+            for (int row = 0; row < n; ++row) {
+                int factor = work[row][col];
+                if (row == col || factor == 0) {
+                    continue;
+                }
+                for (int j = 0; j < n; ++j) {
+                    work[row][j] ^= multiply(factor, work[col][j]);
+                    inverse[row][j] ^= multiply(factor, inverse[col][j]);
+                }
+            }
+        }
+        return inverse;
+    }
+
+    /**
+     * Multiplies two elements of the field.
+     */
+    private static int multiply(int a, int b) {
+        return a == 0 || b == 0 ? 0 : EXP[LOG[a] + LOG[b]];
+    }
+
+    /**
+     * Divides one element of the field by another, which must not be zero.
+     */
+    private static int divide(int a, int b) {
+        return a == 0 ? 0 : EXP[LOG[a] + 255 - LOG[b]];
+    }
+
+}
@@ -0,0 +1,77 @@
+package tftp.udp.fec;
+
+import tftp.core.packet.DataPacket;
+import tftp.core.packet.ParityPacket;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Works out the parity blocks for each group of data blocks as they are sent, for a bulk mode transfer with
+ * forward error correction. Each data block's share is added to the group's parity blocks straight from the
+ * block's packet buffer, and the parity is worked out in the parity packets' own buffers - so the only
+ * allocation is one buffer per parity block.
+ */
+public class ParityEncoder {
+
+    /**
+     * The code the parity blocks are worked out with.
+     */
+    private final ParityCode code;
+
+    /**
+     * The buffers of the group's parity packets, or null before the group's first block.
+     */
+    private byte[][] parity = null;
+
+    /**
+     * The block number of the group's first block, and the number of blocks added to the group so far.
+     */
+    private short firstBlockNumber = 0;
+    private int count = 0;
+
+    /**
+     * Creates a new encoder.
+     *
+     * @param code the code to work out the parity blocks with
+     */
+    public ParityEncoder(ParityCode code) {
+        this.code = code;
+    }
+
+    /**
+     * Adds the next data block. Blocks must be added in order, starting with the first block of the file, and
+     * each only once (not when it is resent).
+     *
+     * @param block the data block
+     * @return the group's parity packets, if this block completed the group (it was the last of the group, or of
+     * the file) - otherwise an empty list
+     */
+    public List<ParityPacket> add(DataPacket block) {
+        if (parity == null) {
+            //parity packets aren't kept once sent, but the previous group's may not have been sent yet
+            parity = new byte[code.getParity()][ParityPacket.PACKET_LENGTH];
+            firstBlockNumber = block.getBlockNumber();
+            count = 0;
+        }
+        for (int row = 0; row < parity.length; ++row) {
+            code.accumulate(
+                    parity[row], ParityPacket.PARITY_OFFSET, row, count,
+                    block.getPacketBytes(), DataPacket.DATA_OFFSET, block.getDataLength()
+            );
+        }
+        ++count;
+
+        if (count < code.getGroupSize() && !block.isFinalPacket()) {
+            return Collections.emptyList();
+        }
+        ParityPacket[] packets = new ParityPacket[parity.length];
+        for (int row = 0; row < parity.length; ++row) {
+            packets[row] = new ParityPacket(firstBlockNumber, count, row, block.getDataLength(), parity[row]);
+        }
+        parity = null;
+        return Arrays.asList(packets);
+    }
+
+}
@@ -0,0 +1,279 @@
+package tftp.udp.server;
+
+import java.util.Arrays;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Times how long a server takes to answer read requests - from the request arriving to the first packet of the
+ * answer (the first block, or an option acknowledgement) being sent - and how long each stage on the way takes.
+ * The times of the most recent requests are kept, and printed as percentiles at intervals.
+ * <p>
+ * Requests answered from the thread which received them (with a first block already in memory and a socket
+ * already bound) are counted separately from those handed off to a handler to answer.
+ */
+public class FirstBlockTimes {
+
+    /**
+     * The number of recent requests whose times are kept.
+     */
+    private static final int SAMPLES = 4096;
+
+    /**
+     * The stages of answering a request, in the order they happen. Not every request goes through every stage.
+     */
+    public enum Stage {
+
+        /**
+         * Parsing the request, and checking it isn't for a file known to be missing.
+         */
+        PARSE("parse"),
+
+        /**
+         * Submitting the request to the handlers' executor.
+         */
+        SUBMIT("submit"),
+
+        /**
+         * Waiting for a handler thread to start on it.
+         */
+        START("start"),
+
+        /**
+         * Opening the transfer's socket.
+         */
+        SOCKET("socket"),
+
+        /**
+         * Opening the file.
+         */
+        OPEN("open"),
+
+        /**
+         * Reading the first block.
+         */
+        READ("read"),
+
+        /**
+         * Sending the first packet.
+         */
+        SEND("send");
+
+        /**
+         * The name of the stage, as printed.
+         */
+        private final String name;
+
+        Stage(String name) {
+            this.name = name;
+        }
+
+        /**
+         * {@inheritDoc}
+         */
+        @Override
+        public String toString() {
+            return name;
+        }
+
+    }
+
+    /**
+     * The times taken by recent requests, in nanoseconds - as a whole, answered straight away and handed off, and
+     * by stage.
+     */
+    private final Samples fast = new Samples();
+    private final Samples handedOff = new Samples();
+    private final Samples[] stages = new Samples[Stage.values().length];
+
+    /**
+     * Creates a new set of times.
+     */
+    public FirstBlockTimes() {
+        for (int i = 0; i < stages.length; ++i) {
+            stages[i] = new Samples();
+        }
+    }
+
+    /**
+     * Starts timing a request.
+     *
+     * @param received when the request arrived, in terms of {@link System#nanoTime()}
+     * @return the request's timer
+     */
+    public Request start(long received) {
+        return new Request(received);
+    }
+
+    /**
+     * Prints the percentiles every so often, if any requests were answered since they were last printed.
+     *
+     * @param interval the time between reports, in seconds
+     */
+    public void startReporting(long interval) {
+        ScheduledExecutorService reporter = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread thread = new Thread(r, "ttfb-reporter");
+            thread.setDaemon(true);
+            return thread;
+        });
+        reporter.scheduleAtFixedRate(() -> {
+            String report = report();
+            if (report != null) {
+                System.out.println(report);
+            }
+        }, interval, interval, TimeUnit.SECONDS);
+    }
+
+    /**
+     * Describes the times of the recent requests, and forgets them.
+     *
+     * @return the description, or null if no requests were answered since the last one
+     */
+    public synchronized String report() {
+        if (fast.count == 0 && handedOff.count == 0) {
+            return null;
+        }
+        StringBuilder report = new StringBuilder("time to first packet:");
+        if (fast.count > 0) {
+            report.append(" fast path ").append(fast.describe());
+        }
+        if (handedOff.count > 0) {
+            report.append(fast.count > 0 ? "," : "").append(" handed off ").append(handedOff.describe());
+        }
+        report.append("\ntime to first packet by stage, p50/p99 in us:");
+        for (Stage stage : Stage.values()) {
+            Samples samples = stages[stage.ordinal()];
+            if (samples.count > 0) {
+                report.append(' ').append(stage).append(' ')
+                        .append(micros(samples.percentile(50))).append('/')
+                        .append(micros(samples.percentile(99)));
+            }
+        }
+        fast.clear();
+        handedOff.clear();
+        for (Samples samples : stages) {
+            samples.clear();
+        }
+        return report.toString();
+    }
+
+    /**
+     * Takes note of a request's first packet being sent.
+     */
+    private synchronized void record(Request request, boolean answeredFast, long sent) {
+        (answeredFast ? fast : handedOff).add(sent - request.received);
+        long last = request.received;
+        for (Stage stage : Stage.values()) {
+            long at = request.marks.get(stage.ordinal());
+            if (at != 0) {
+                //stages marked from different threads can overlap - the time is counted in the earlier one
+                stages[stage.ordinal()].add(Math.max(0, at - last));
+                last = Math.max(last, at);
+            }
+        }
+    }
+
+    /**
+     * Converts nanoseconds to whole microseconds, for printing.
+     */
+    private static long micros(long nanos) {
+        return (nanos + 500) / 1000;
+    }
+
+    /**
+     * Times one request, through whichever threads answer it.
+     */
+    public class Request {
+
+        /**
+         * When the request arrived, in terms of {@link System#nanoTime()}.
+         */
+        private final long received;
+
+        /**
+         * When each stage finished, in terms of {@link System#nanoTime()}, or 0 if it hasn't (or never will).
+         */
+        private final AtomicLongArray marks = new AtomicLongArray(Stage.values().length);
+
+        /**
+         * Creates a new timer.
+         */
+        private Request(long received) {
+            this.received = received;
+        }
+
+        /**
+         * Takes note of a stage finishing.
+         *
+         * @param stage the stage
+         */
+        public void mark(Stage stage) {
+            marks.set(stage.ordinal(), System.nanoTime());
+        }
+
+        /**
+         * Takes note of the first packet being sent, ending the timing.
+         *
+         * @param answeredFast true if the request was answered from the thread which received it
+         */
+        public void sent(boolean answeredFast) {
+            mark(Stage.SEND);
+            record(this, answeredFast, marks.get(Stage.SEND.ordinal()));
+        }
+
+    }
+
+    /**
+     * The most recent times taken by something, in nanoseconds.
+     */
+    private static class Samples {
+
+        /**
+         * The times, oldest overwritten first once full.
+         */
+        private final long[] times = new long[SAMPLES];
+
+        /**
+         * The number of times taken since the last clear.
+         */
+        private int count = 0;
+
+        /**
+         * Adds a time.
+         */
+        private void add(long time) {
+            times[count++ % SAMPLES] = time;
+        }
+
+        /**
+         * Gives a percentile of the times kept.
+         */
+        private long percentile(int percent) {
+            long[] sorted = Arrays.copyOf(times, Math.min(count, SAMPLES));
+            Arrays.sort(sorted);
+            return sorted[Math.min(sorted.length - 1, sorted.length * percent / 100)];
+        }
+
+        /**
+         * Describes the times kept.
+         */
+        private String describe() {
+            return String.format(
+                    "%d requests, p50 %d us, p90 %d us, p99 %d us, max %d us",
+                    count, micros(percentile(50)), micros(percentile(90)), micros(percentile(99)),
+                    micros(percentile(100))
+            );
+        }
+
+        /**
+         * Forgets the times.
+         */
+        private void clear() {
+            count = 0;
+        }
+
+    }
+
+}
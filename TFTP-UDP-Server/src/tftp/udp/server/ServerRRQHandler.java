@@ -3,17 +3,32 @@ package tftp.udp.server;
 import tftp.core.Configuration;
 import tftp.core.ErrorType;
 import tftp.core.Mode;
+import tftp.core.Option;
 import tftp.core.TFTPException;
+import tftp.core.TransferOptions;
+import tftp.core.codec.CompressedFileCache;
 import tftp.core.packet.*;
+import tftp.core.preload.AccessStatistics;
+import tftp.core.scheduling.TransferScheduler;
+import tftp.core.shaping.BandwidthShaper;
+import tftp.core.storage.ChannelFile;
+import tftp.core.storage.FirstBlockCache;
+import tftp.core.storage.MissingFileCache;
+import tftp.core.storage.Storage;
+import tftp.core.storage.StoredFile;
+import tftp.core.storage.StoredFileInputStream;
+import tftp.udp.BufferPool;
 import tftp.udp.FileSender;
 import tftp.udp.UDPUtil;
 
-import java.io.FileInputStream;
+import java.io.File;
 import java.io.FileNotFoundException;
 import java.io.IOException;
+import java.io.InputStream;
 import java.net.DatagramPacket;
 import java.net.DatagramSocket;
 import java.net.InetAddress;
+import java.nio.file.AccessDeniedException;
 
 /**
  * Handles responses to read requests from clients.
@@ -23,20 +38,114 @@ public class ServerRRQHandler implements Runnable {
     private final InetAddress clientAddress;
     private final int clientPort;
     private final ReadRequestPacket rrq;
+    private final CompressedFileCache compressedFiles;
+    private final Storage storage;
+    private final AccessStatistics statistics;
+    private final MissingFileCache missingFiles;
+    private final BandwidthShaper shaper;
+    private final TransferScheduler scheduler;
+    private final SocketPool sockets;
+    private final FirstBlockCache firstBlocks;
+    private final BufferPool buffers;
+    private final FirstBlockTimes.Request timing;
 
-    public ServerRRQHandler(InetAddress clientAddress, int clientPort, ReadRequestPacket rrq) {
+    /**
+     * If the first packet was sent as soon as the request arrived: the socket it was sent from, the options it
+     * acknowledged, the cached first block and size it was made from, the transfer's share of the send slots (one
+     * of which the packet holds) and of the packet buffers, the packet itself and when it was sent (in terms of
+     * {@link System#nanoTime()}). Otherwise null, and a time of 0.
+     */
+    private DatagramSocket socket = null;
+    private TransferOptions options = null;
+    private FirstBlockCache.Entry cached = null;
+    private TransferScheduler.Session session = null;
+    private BufferPool.Lease lease = null;
+    private TFTPPacket firstPacket = null;
+    private long firstSentAt = 0;
+
+    public ServerRRQHandler(InetAddress clientAddress, int clientPort, ReadRequestPacket rrq,
+                            CompressedFileCache compressedFiles, Storage storage, AccessStatistics statistics,
+                            MissingFileCache missingFiles, BandwidthShaper shaper,
+                            TransferScheduler scheduler, SocketPool sockets, FirstBlockCache firstBlocks,
+                            BufferPool buffers, FirstBlockTimes.Request timing) {
         this.clientAddress = clientAddress;
         this.clientPort = clientPort;
         this.rrq = rrq;
+        this.compressedFiles = compressedFiles;
+        this.storage = storage;
+        this.statistics = statistics;
+        this.missingFiles = missingFiles;
+        this.shaper = shaper;
+        this.scheduler = scheduler;
+        this.sockets = sockets;
+        this.firstBlocks = firstBlocks;
+        this.buffers = buffers;
+        this.timing = timing;
+    }
+
+    /**
+     * Takes note that the first packet of the answer has already been sent, from a file's cached first block,
+     * so the handler carries on from there once it has checked the file still matches.
+     *
+     * @param socket the socket the packet was sent from
+     * @param options the options negotiated
+     * @param cached the cached first block and size of the file
+     * @param session the transfer's share of the send slots, holding a slot for the packet - or null
+     * @param lease the transfer's share of the packet buffers, or null
+     * @param firstPacket the packet sent - the first block, or an OACK
+     * @param firstSentAt when the packet was sent, in terms of {@link System#nanoTime()}
+     */
+    public void firstSent(DatagramSocket socket, TransferOptions options, FirstBlockCache.Entry cached,
+                          TransferScheduler.Session session, BufferPool.Lease lease, TFTPPacket firstPacket,
+                          long firstSentAt) {
+        this.socket = socket;
+        this.options = options;
+        this.cached = cached;
+        this.session = session;
+        this.lease = lease;
+        this.firstPacket = firstPacket;
+        this.firstSentAt = firstSentAt;
+    }
+
+    /**
+     * Works out the options to acknowledge for a read request.
+     *
+     * @param rrq the read request
+     * @return the options accepted
+     */
+    public static TransferOptions negotiate(ReadRequestPacket rrq) {
+        //parse any options appended to the request - a negotiated timeout replaces the global default
+        TransferOptions options = TransferOptions.fromMap(rrq.getOptions());
+        //delta transfers need the receiver to send its signature first, which UDP transfers have no room for
+        options.clear(Option.DELTA);
+        options.limitWindowSize(Configuration.WINDOW_SIZE);
+        options.limitBulkWindow(Configuration.BULK_WINDOW);
+        return options;
     }
 
     @Override
     public void run() {
+        if (timing != null) {
+            timing.mark(FirstBlockTimes.Stage.START);
+        }
         System.out.println("responding to request: " + rrq + " from client: " + clientAddress + ":" + clientPort);
 
+        TransferOptions options = this.options != null ? this.options : negotiate(rrq);
+
+        //a first packet sent already holds a send slot, as does one sent from here, which has to be given back if
+        // the transfer goes no further
+        TransferScheduler.Session session = this.session;
+        boolean slotHeld = session != null;
+        BufferPool.Lease lease = this.lease;
         try {
-            DatagramSocket socket = new DatagramSocket();
-            socket.setSoTimeout(Configuration.TIMEOUT);
+            DatagramSocket socket = this.socket;
+            if (socket == null) {
+                socket = sockets != null ? sockets.take() : UDPUtil.openSocket();
+                if (timing != null) {
+                    timing.mark(FirstBlockTimes.Stage.SOCKET);
+                }
+            }
+            socket.setSoTimeout(options.getTimeout());
 
             if (rrq.getMode() != Mode.OCTET) {
                 ErrorPacket error = new ErrorPacket(ErrorType.UNDEFINED, "unsupported mode: " + rrq.getMode());
@@ -45,29 +154,214 @@ public class ServerRRQHandler implements Runnable {
                 return;
             }
 
-            try (FileInputStream fis = new FileInputStream(rrq.getFileName())) {
-
-                byte[] first = new byte[Configuration.MAX_DATA_LENGTH];
-                int read = fis.read(first);
-                if (read == -1) read = 0;
-                DataPacket data = new DataPacket((short) 1, first, read);
-
-                FileSender.send(socket, data, clientAddress, clientPort, fis, (short) 1);
+            //take a share of the server's packet buffers - waiting for other transfers to finish if they are all
+            // taken, and turning the client away if none do in time
+            if (lease == null && buffers != null) {
+                lease = leaseBuffers(buffers, options);
+                if (lease == null) {
+                    System.out.println("out of buffer memory, refusing " + rrq.getFileName() + " - " + buffers);
+                    ErrorPacket error = new ErrorPacket(ErrorType.UNDEFINED, "server busy, try again later");
+                    socket.send(UDPUtil.toDatagram(error, clientAddress, clientPort));
+                    return;
+                }
+            }
 
+            StoredFile source;
+            try {
+                source = storage.open(rrq.getFileName());
             } catch (FileNotFoundException e) {
+                if (missingFiles != null) {
+                    missingFiles.recordMissing(rrq.getFileName());
+                }
                 ErrorPacket errorPacket = new ErrorPacket(
                         ErrorType.FILE_NOT_FOUND,
                         "file not found: " + rrq.getFileName()
                 );
                 DatagramPacket sendPacket = UDPUtil.toDatagram(errorPacket, clientAddress, clientPort);
                 socket.send(sendPacket);
+                return;
+            } catch (AccessDeniedException e) {
+                System.out.println("refusing request outside the served directory: " + rrq.getFileName());
+                ErrorPacket errorPacket = new ErrorPacket(
+                        ErrorType.ACCESS_VIOLATION,
+                        "access denied: " + rrq.getFileName()
+                );
+                socket.send(UDPUtil.toDatagram(errorPacket, clientAddress, clientPort));
+                return;
+            }
+
+            if (timing != null && firstSentAt == 0) {
+                timing.mark(FirstBlockTimes.Stage.OPEN);
+            }
+            if (statistics != null) {
+                statistics.record(rrq.getFileName());
+            }
+
+            try {
+                boolean changed = firstSentAt != 0 && !matchesCache(source);
+                if (changed) {
+                    //the file changed after its first block was cached
+                    System.out.println("file changed since it was cached: " + rrq.getFileName());
+                    firstBlocks.invalidate(rrq.getFileName());
+                    if (firstPacket instanceof DataPacket) {
+                        if (!firstBlockMatches(source)) {
+                            //the client may hold the old first block already, and would take a new one as a
+                            // duplicate - it can't be given a mix of the two, so it has to ask again
+                            ErrorPacket error = new ErrorPacket(
+                                    ErrorType.UNDEFINED, "file changed, try again: " + rrq.getFileName()
+                            );
+                            socket.send(UDPUtil.toDatagram(error, clientAddress, clientPort));
+                            return;
+                        }
+                    } else if (options.hasTransferSize() && source.size() != cached.getSize()) {
+                        //an OACK only goes stale by the size in it, and the client answers any OACK with ACK 0 -
+                        // so one with the right size is sent in its place
+                        firstPacket = null;
+                        firstSentAt = 0;
+                    }
+                }
+
+                if (options.hasTransferSize()) {
+                    //the client asked for the size of the file, so fill it in - the size of the file itself,
+                    // not of any compressed copy
+                    options.setTransferSize(source.size());
+                }
+
+                //if the client negotiated compression, send a compressed copy of the file where there is one,
+                // rather than compressing it all over again
+                if (options.getCodec() != null) {
+                    File compressed = compressedFiles.lookup(storage, rrq.getFileName(), options.getCodec());
+                    if (compressed != null) {
+                        StoredFile copy = ChannelFile.open(compressed);
+                        source.close();
+                        source = copy;
+                        options.setPrecompressed(true);
+                    }
+                }
+
+                InputStream in = new StoredFileInputStream(source);
+
+                //take turns with the other transfers when the server is busy, by how urgent this one is
+                if (scheduler != null) {
+                    if (session == null) {
+                        session = scheduler.register(rrq.getFileName(), source.size(), clientAddress);
+                    }
+                    System.out.println("sending " + rrq.getFileName() + " as " + session.getPriority() + " transfer");
+                }
+
+                TFTPPacket first;
+                short firstBlockNumber;
+                if (!options.isEmpty()) {
+                    //acknowledge the accepted options - the client answers with ACK0, and then the first
+                    // block of the file is sent
+                    first = firstPacket != null ? firstPacket : new OptionAcknowledgementPacket(options.toMap());
+                    firstBlockNumber = 0;
+                } else if (firstPacket != null) {
+                    //the first block has gone already - carry on from the second
+                    first = firstPacket;
+                    firstBlockNumber = 1;
+                    in.skip(((DataPacket) first).getDataLength());
+                } else {
+                    byte[] block = new byte[Configuration.MAX_DATA_LENGTH];
+                    int read = in.read(block);
+                    if (read == -1) read = 0;
+                    first = new DataPacket((short) 1, block, read);
+                    firstBlockNumber = 1;
+                    if (timing != null) {
+                        timing.mark(FirstBlockTimes.Stage.READ);
+                    }
+                }
+
+                //send the first packet from here unless it has gone already, once the rate limits allow and
+                // there is a send slot for it - which it holds until it is answered
+                long sentAt = firstSentAt;
+                if (sentAt == 0) {
+                    DatagramPacket datagram = UDPUtil.toDatagram(first, clientAddress, clientPort);
+                    if (shaper != null) {
+                        shaper.acquire(clientAddress, datagram.getLength());
+                    }
+                    //a packet sent in place of a stale one takes over its slot
+                    if (session != null && !slotHeld) {
+                        session.acquire(datagram.getLength());
+                        slotHeld = true;
+                    }
+                    socket.send(datagram);
+                    sentAt = System.nanoTime();
+                    if (timing != null && !changed) {
+                        timing.sent(false);
+                    }
+                }
+
+                //keep the file's first block, so the next request for it can be answered straight away. not
+                // when compressing, as the fast path only sends the file as it is
+                if (firstSentAt == 0 && firstBlocks != null && options.getCodec() == null) {
+                    firstBlocks.record(rrq.getFileName(), source);
+                }
+
+                //the sender gives the slot back once the first packet is answered
+                slotHeld = false;
+                FileSender.send(
+                        socket, first, clientAddress, clientPort, in, firstBlockNumber, options, shaper, session,
+                        sentAt, lease
+                );
+
             } catch (TFTPException e) {
                 System.out.println(e.getMessage());
+            } finally {
+                source.close();
             }
 
         } catch (IOException e) {
             System.out.println("error: " + e.getMessage());
+        } finally {
+            if (slotHeld) {
+                session.release();
+            }
+            if (lease != null) {
+                lease.close();
+            }
+        }
+    }
+
+    /**
+     * Leases the packet buffers a transfer with the given options needs, waiting up to
+     * {@link Configuration#BUFFER_WAIT} for them.
+     *
+     * @param buffers the server's packet buffers
+     * @param options the options negotiated
+     * @return the lease, or null if the buffers weren't free in time
+     */
+    static BufferPool.Lease leaseBuffers(BufferPool buffers, TransferOptions options) {
+        try {
+            return buffers.lease(BufferPool.workingSet(options), Configuration.BUFFER_WAIT);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return null;
         }
     }
 
+    /**
+     * Checks whether a file, as opened, still has the size and first block cached when the first packet was sent.
+     *
+     * @param source the file
+     * @return true if it does
+     * @throws IOException if the file could not be read
+     */
+    private boolean matchesCache(StoredFile source) throws IOException {
+        return source.size() == cached.getSize() && firstBlockMatches(source);
+    }
+
+    /**
+     * Checks whether a file, as opened, still has the first block cached when the first packet was sent.
+     *
+     * @param source the file
+     * @return true if it does
+     * @throws IOException if the file could not be read
+     */
+    private boolean firstBlockMatches(StoredFile source) throws IOException {
+        byte[] block = new byte[Configuration.MAX_DATA_LENGTH];
+        int read = source.read(0, block, 0, block.length);
+        return cached.matches(block, Math.max(0, read));
+    }
+
 }
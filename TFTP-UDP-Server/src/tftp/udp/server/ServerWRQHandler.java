@@ -3,17 +3,28 @@ package tftp.udp.server;
 import tftp.core.Configuration;
 import tftp.core.ErrorType;
 import tftp.core.TFTPException;
+import tftp.core.TransferOptions;
 import tftp.core.packet.*;
+import tftp.core.storage.CreatedFile;
+import tftp.core.storage.FirstBlockCache;
+import tftp.core.storage.MissingFileCache;
+import tftp.core.storage.Storage;
+import tftp.core.storage.StoredFileOutputStream;
+import tftp.core.store.ContentStore;
+import tftp.core.util.FileUtil;
+import tftp.udp.BufferPool;
 import tftp.udp.FileReceiver;
 import tftp.udp.UDPUtil;
 
+import java.io.File;
 import java.io.FileNotFoundException;
-import java.io.FileOutputStream;
 import java.io.IOException;
 import java.net.DatagramPacket;
 import java.net.DatagramSocket;
 import java.net.InetAddress;
+import java.nio.file.AccessDeniedException;
 import tftp.core.Mode;
+import tftp.core.Option;
 
 /**
  * A 'handler' for reading a file from a client (WRQ) and writing it to a disk. That is, this class is the
@@ -36,17 +47,54 @@ public class ServerWRQHandler implements Runnable {
      */
     private final WriteRequestPacket wrq;
 
+    /**
+     * Where the uploaded file is kept.
+     */
+    private final Storage storage;
+
+    /**
+     * The store uploads are deduplicated into, or null if files are written directly.
+     */
+    private final ContentStore store;
+
+    /**
+     * Remembers requested files which don't exist, to be told once the uploaded file does - or null.
+     */
+    private final MissingFileCache missingFiles;
+
+    /**
+     * The cached first blocks of files, or null if none are kept.
+     */
+    private final FirstBlockCache firstBlocks;
+
+    /**
+     * The server's packet buffers, a share of which the transfer takes before it starts - or null.
+     */
+    private final BufferPool buffers;
+
     /**
      * Creates a new handler for responding to a write request from a given client.
      *
      * @param clientAddress the address of the client which sent the WRQ
      * @param clientPort the port of the client which sent the WRQ
      * @param wrq the write request received from the client
+     * @param storage where to keep the uploaded file
+     * @param store the store to deduplicate the upload into, or null to write the file directly
+     * @param missingFiles the cache of files known not to exist, or null
+     * @param firstBlocks the cached first blocks of files, or null
+     * @param buffers the server's packet buffers, or null
      */
-    public ServerWRQHandler(InetAddress clientAddress, int clientPort, WriteRequestPacket wrq) {
+    public ServerWRQHandler(InetAddress clientAddress, int clientPort, WriteRequestPacket wrq,
+                            Storage storage, ContentStore store, MissingFileCache missingFiles,
+                            FirstBlockCache firstBlocks, BufferPool buffers) {
         this.clientAddress = clientAddress;
         this.clientPort = clientPort;
         this.wrq = wrq;
+        this.storage = storage;
+        this.store = store;
+        this.missingFiles = missingFiles;
+        this.firstBlocks = firstBlocks;
+        this.buffers = buffers;
     }
 
     /**
@@ -56,9 +104,17 @@ public class ServerWRQHandler implements Runnable {
     public void run() {
         System.out.println("responding to request: " + wrq + " from client: " + clientAddress + ":" + clientPort);
 
+        //parse any options appended to the request - a negotiated timeout replaces the global default
+        TransferOptions options = TransferOptions.fromMap(wrq.getOptions());
+        //delta transfers need the receiver to send its signature first, which UDP transfers have no room for
+        options.clear(Option.DELTA);
+        options.limitWindowSize(Configuration.WINDOW_SIZE);
+        options.limitBulkWindow(Configuration.BULK_WINDOW);
+
+        BufferPool.Lease lease = null;
         try {
-            DatagramSocket socket = new DatagramSocket();
-            socket.setSoTimeout(Configuration.TIMEOUT);
+            DatagramSocket socket = UDPUtil.openSocket();
+            socket.setSoTimeout(options.getTimeout());
 
             if (wrq.getMode() != Mode.OCTET) {
                 ErrorPacket error = new ErrorPacket(ErrorType.UNDEFINED, "unsupported mode: " + wrq.getMode());
@@ -66,18 +122,92 @@ public class ServerWRQHandler implements Runnable {
                 System.out.println("unsupported mode: " + wrq.getMode());
                 return;
             }
+
+            if (!storage.isWritable()) {
+                ErrorPacket error = new ErrorPacket(
+                        ErrorType.ACCESS_VIOLATION, "read-only server: " + wrq.getFileName()
+                );
+                socket.send(UDPUtil.toDatagram(error, clientAddress, clientPort));
+                System.out.println("read-only server, refusing: " + wrq.getFileName());
+                return;
+            }
+
+            try {
+                storage.checkAccess(wrq.getFileName());
+            } catch (AccessDeniedException e) {
+                System.out.println("refusing request outside the served directory: " + wrq.getFileName());
+                ErrorPacket error = new ErrorPacket(
+                        ErrorType.ACCESS_VIOLATION, "access denied: " + wrq.getFileName()
+                );
+                socket.send(UDPUtil.toDatagram(error, clientAddress, clientPort));
+                return;
+            }
+
+            //take a share of the server's packet buffers for the blocks held until they can be written - waiting
+            // for other transfers to finish if they are all taken, and turning the client away if none do in time
+            if (buffers != null) {
+                lease = ServerRRQHandler.leaseBuffers(buffers, options);
+                if (lease == null) {
+                    System.out.println("out of buffer memory, refusing " + wrq.getFileName() + " - " + buffers);
+                    ErrorPacket error = new ErrorPacket(ErrorType.UNDEFINED, "server busy, try again later");
+                    socket.send(UDPUtil.toDatagram(error, clientAddress, clientPort));
+                    return;
+                }
+            }
+
+            //the store links file names to its contents, so it can only be used if the storage keeps files on the
+            // local file system
+            File file = storage.getFile(wrq.getFileName());
+            if (store != null && file != null) {
+                receiveIntoStore(socket, file, options);
+                return;
+            }
             
-            //open output stream to the file specified in the write request
-            try (FileOutputStream fos = new FileOutputStream(wrq.getFileName())) {
+            //create the file specified in the write request - it only replaces any existing file once the
+            // whole upload has been received
+            long expectedSize = options.hasTransferSize() ? options.getTransferSize() : -1;
+            try (CreatedFile stored = storage.create(wrq.getFileName(), expectedSize)) {
+
+                if (options.hasTransferSize()) {
+                    //the client told us how big the file is - reserve the space now, so that a full disk is
+                    // reported before any data is sent rather than part-way through the transfer
+                    long size = options.getTransferSize();
+                    try {
+                        if (file != null && file.getAbsoluteFile().getParentFile().getUsableSpace() < size) {
+                            throw new IOException("not enough usable space");
+                        }
+                        FileUtil.preallocate(stored, size);
+                    } catch (IOException e) {
+                        System.out.println("unable to allocate " + size + " bytes: " + e.getMessage());
+                        ErrorPacket error = new ErrorPacket(
+                                ErrorType.DISK_FULL,
+                                "unable to allocate " + size + " bytes for: " + wrq.getFileName()
+                        );
+                        socket.send(UDPUtil.toDatagram(error, clientAddress, clientPort));
+                        return;
+                    }
+                }
 
-                //receive the file from the client, specifying the first packet to be
-                // acknowledging packet 0 as specified in the RFC
+                //receive the file from the client, specifying the first packet to be acknowledging packet 0
+                // as specified in the RFC - or, if any options were accepted, an OACK in its place
+                TFTPPacket firstPacket = options.isEmpty()
+                        ? new AcknowledgementPacket((short) 0)
+                        : new OptionAcknowledgementPacket(options.toMap());
+                StoredFileOutputStream out = new StoredFileOutputStream(stored);
                 FileReceiver.receive(
                         socket,
-                        new AcknowledgementPacket((short) 0),
+                        firstPacket,
                         clientAddress,
                         clientPort,
-                        fos
+                        out,
+                        options,
+                        () -> {
+                            //if space was reserved up front but the file came up short, trim the excess -
+                            // then move the file into place before the client is told it has been received
+                            stored.truncate(out.getPosition());
+                            stored.commit();
+                            uploaded();
+                        }
                 );
 
             } catch (FileNotFoundException fnfe) {
@@ -99,6 +229,70 @@ public class ServerWRQHandler implements Runnable {
             //couldn't even open a socket - give up
             // also could happen if the output stream failed to close, but that doesn't really matter
             System.out.println("failed to receive: " + e.getMessage());
+        } finally {
+            if (lease != null) {
+                lease.close();
+            }
+        }
+    }
+
+    /**
+     * Called once the uploaded file exists, so requests for it are no longer answered as missing (or with the
+     * first block of the file it replaced).
+     */
+    private void uploaded() {
+        if (missingFiles != null) {
+            missingFiles.invalidate(wrq.getFileName());
+        }
+        if (firstBlocks != null) {
+            firstBlocks.invalidate(wrq.getFileName());
+        }
+    }
+
+    /**
+     * Receives the file into the content store, rather than writing it directly. Nothing is written to disk for
+     * data already in the store, and once complete the file name is linked to the stored contents.
+     *
+     * @param socket the socket used to communicate with the client
+     * @param file the local file the upload is made to
+     * @param options the options accepted for this transfer
+     * @throws IOException if an error packet could not be sent to the client
+     */
+    private void receiveIntoStore(DatagramSocket socket, File file, TransferOptions options)
+            throws IOException {
+        //check the file name could be written to before accepting any data
+        File destination = file.getAbsoluteFile();
+        if (destination.isDirectory() || !destination.getParentFile().isDirectory()) {
+            System.out.println("unable to write to: " + wrq.getFileName());
+            ErrorPacket errorPacket = new ErrorPacket(
+                    ErrorType.FILE_NOT_FOUND,
+                    "unable to write to: " + wrq.getFileName()
+            );
+            socket.send(UDPUtil.toDatagram(errorPacket, clientAddress, clientPort));
+            return;
+        }
+
+        //the store only writes new data, so there is no space to reserve for the transfer size
+        TFTPPacket firstPacket = options.isEmpty()
+                ? new AcknowledgementPacket((short) 0)
+                : new OptionAcknowledgementPacket(options.toMap());
+
+        try (ContentStore.Upload upload = store.begin()) {
+            boolean[] duplicate = new boolean[1];
+            FileReceiver.receive(socket, firstPacket, clientAddress, clientPort, upload, options, () -> {
+                duplicate[0] = upload.commit(destination);
+                uploaded();
+            });
+            if (duplicate[0]) {
+                System.out.println("stored " + wrq.getFileName() + " (contents already in store)");
+            } else {
+                System.out.println("stored " + wrq.getFileName());
+            }
+        } catch (TFTPException e) {
+            //an error occurred in receiving the file, just print an error and end this handler
+            System.out.println(e.getMessage());
+        } catch (IOException e) {
+            System.out.println("unable to store " + wrq.getFileName() + ": " + e.getMessage());
         }
     }
 
@@ -0,0 +1,93 @@
+package tftp.udp.server;
+
+import tftp.core.Configuration;
+import tftp.udp.UDPUtil;
+
+import java.net.DatagramSocket;
+import java.net.SocketException;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Keeps a few transfer sockets bound ahead of time, so answering a request doesn't wait for a socket to be opened.
+ * Each socket is only used for one transfer, and a fresh one is opened in the background to replace it - so every
+ * transfer still gets a port of its own.
+ */
+public class SocketPool {
+
+    /**
+     * The sockets bound and ready.
+     */
+    private final BlockingQueue<DatagramSocket> spare;
+
+    /**
+     * Opens replacements for the sockets taken.
+     */
+    private final ExecutorService opener = Executors.newSingleThreadExecutor(r -> {
+        Thread thread = new Thread(r, "socket-opener");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    /**
+     * Creates a new pool, and opens its sockets in the background.
+     *
+     * @param size the number of sockets to keep ready
+     */
+    public SocketPool(int size) {
+        this.spare = new ArrayBlockingQueue<>(size);
+        for (int i = 0; i < size; ++i) {
+            opener.execute(this::open);
+        }
+    }
+
+    /**
+     * Creates a pool with the number of sockets set in {@link Configuration}.
+     *
+     * @return the pool, or null if sockets are opened as transfers start
+     */
+    public static SocketPool fromConfiguration() {
+        return Configuration.SPARE_SOCKETS > 0 ? new SocketPool(Configuration.SPARE_SOCKETS) : null;
+    }
+
+    /**
+     * Takes a socket which is ready, if there is one.
+     *
+     * @return the socket, or null if none is ready
+     */
+    public DatagramSocket poll() {
+        DatagramSocket socket = spare.poll();
+        if (socket != null) {
+            opener.execute(this::open);
+        }
+        return socket;
+    }
+
+    /**
+     * Takes a socket which is ready, or opens one if none is.
+     *
+     * @return the socket
+     * @throws SocketException if a socket had to be opened, and could not be
+     */
+    public DatagramSocket take() throws SocketException {
+        DatagramSocket socket = poll();
+        return socket != null ? socket : UDPUtil.openSocket();
+    }
+
+    /**
+     * Opens a socket to replace one taken.
+     */
+    private void open() {
+        try {
+            DatagramSocket socket = UDPUtil.openSocket();
+            if (!spare.offer(socket)) {
+                socket.close();
+            }
+        } catch (SocketException e) {
+            System.out.println("unable to open a spare socket: " + e.getMessage());
+        }
+    }
+
+}
@@ -1,12 +1,32 @@
 package tftp.udp.server;
 
 import tftp.core.Configuration;
+import tftp.core.ErrorType;
+import tftp.core.Mode;
 import tftp.core.TFTPException;
+import tftp.core.TransferOptions;
+import tftp.core.codec.CompressedFileCache;
+import tftp.core.packet.ErrorPacket;
+import tftp.core.packet.OptionAcknowledgementPacket;
 import tftp.core.packet.ReadRequestPacket;
 import tftp.core.packet.TFTPPacket;
 import tftp.core.packet.WriteRequestPacket;
+import tftp.core.preload.AccessStatistics;
+import tftp.core.preload.Preloader;
+import tftp.core.scheduling.TransferScheduler;
+import tftp.core.shaping.BandwidthShaper;
+import tftp.core.storage.FirstBlockCache;
+import tftp.core.storage.MissingFileCache;
+import tftp.core.storage.Storage;
+import tftp.core.storage.Storages;
+import tftp.core.storage.SyncPolicy;
+import tftp.core.store.ContentStore;
+import tftp.udp.BufferPool;
+import tftp.udp.DuplicateAckPolicy;
 import tftp.udp.UDPUtil;
+import tftp.udp.congestion.CongestionControls;
 
+import java.io.File;
 import java.io.IOException;
 import java.net.DatagramPacket;
 import java.net.DatagramSocket;
@@ -31,14 +51,104 @@ public class TFTPUDPServer extends Thread {
      */
     private final ExecutorService executor;
 
+    /**
+     * Finds compressed copies of files for clients which negotiate compression, shared by all transfers.
+     */
+    private final CompressedFileCache compressedFiles;
+
+    /**
+     * Where the files served are kept.
+     */
+    private final Storage storage;
+
+    /**
+     * The store uploads are deduplicated into, or null if uploaded files are written directly.
+     */
+    private final ContentStore store;
+
+    /**
+     * Counts reads of each file, or null if no counts are kept.
+     */
+    private final AccessStatistics statistics;
+
+    /**
+     * Remembers requested files which don't exist, so repeated requests are answered straight away - or null if
+     * every request is looked up.
+     */
+    private final MissingFileCache missingFiles;
+
+    /**
+     * Limits the rate files are sent at, or null if they are sent as fast as clients acknowledge them.
+     */
+    private final BandwidthShaper shaper;
+
+    /**
+     * Shares the send slots between transfers when the server is busy, or null if transfers send as they like.
+     */
+    private final TransferScheduler scheduler;
+
+    /**
+     * Transfer sockets bound ahead of time, or null if each transfer opens its own as it starts.
+     */
+    private final SocketPool sockets;
+
+    /**
+     * The first blocks of files recently read, so requests for them can be answered as soon as they arrive - or
+     * null if every request is handed off before it is answered. Not kept when rate limits apply, as the first
+     * block may have to wait for them.
+     */
+    private final FirstBlockCache firstBlocks;
+
+    /**
+     * The packet buffers shared by all transfers, within the memory budget - or null if transfers allocate their
+     * own as they like.
+     */
+    private final BufferPool buffers;
+
+    /**
+     * Times how long requests take to answer, or null if they aren't timed.
+     */
+    private final FirstBlockTimes times;
+
     /**
      * Creates a new TFTP server thread, to run on the given port.
      *
      * @param port the port to run the server on
+     * @param storage where the files served are kept
+     * @param statistics counts reads of each file, or null to not keep counts
+     * @throws IOException if the upload store could not be opened
+     * @throws IllegalArgumentException if the priority rules are invalid
      */
-    public TFTPUDPServer(int port) {
+    public TFTPUDPServer(int port, Storage storage, AccessStatistics statistics) throws IOException {
         this.port = port;
+        this.storage = storage;
+        this.statistics = statistics;
+        this.missingFiles = Configuration.MISSING_FILE_TTL > 0
+                ? new MissingFileCache(storage, Configuration.MISSING_FILE_TTL, Configuration.MISSING_FILE_CACHE_SIZE)
+                : null;
+        this.shaper = BandwidthShaper.fromConfiguration();
+        if (shaper != null && Configuration.RATE_REPORT_INTERVAL > 0) {
+            shaper.startReporting(Configuration.RATE_REPORT_INTERVAL);
+        }
+        this.scheduler = TransferScheduler.fromConfiguration();
+        this.sockets = SocketPool.fromConfiguration();
+        this.firstBlocks = shaper == null ? FirstBlockCache.fromConfiguration(storage) : null;
+        this.buffers = BufferPool.fromConfiguration();
+        if (Configuration.TTFB_REPORT_INTERVAL > 0) {
+            this.times = new FirstBlockTimes();
+            times.startReporting(Configuration.TTFB_REPORT_INTERVAL);
+        } else {
+            this.times = null;
+        }
         this.executor = Executors.newCachedThreadPool();
+        this.compressedFiles = new CompressedFileCache(
+                Configuration.COMPRESSION_CACHE == null ? null : new File(Configuration.COMPRESSION_CACHE),
+                Configuration.COMPRESSION_CACHE_SIZE
+        );
+        this.store = Configuration.UPLOAD_STORE == null
+                ? null
+                : new ContentStore(new File(Configuration.UPLOAD_STORE),
+                        SyncPolicy.fromName(Configuration.SYNC_POLICY));
     }
 
     /**
@@ -57,9 +167,11 @@ public class TFTPUDPServer extends Thread {
             //loop forever until forcibly stopped
             while (true) {
 
+                long received;
                 try {
                     //receive a datagram packet from the network - this method blocks
                     socket.receive(receivePacket);
+                    received = System.nanoTime();
                 } catch (IOException e) {
                     System.out.println("error receiving packet: " + e);
                     continue;
@@ -73,17 +185,52 @@ public class TFTPUDPServer extends Thread {
                     // to respond to the client, otherwise ignore.
                     switch (packet.getPacketType()) {
                         case READ_REQUEST:
-                            executor.submit(new ServerRRQHandler(
+                            ReadRequestPacket rrq = (ReadRequestPacket) packet;
+                            if (missingFiles != null && missingFiles.isMissing(rrq.getFileName())) {
+                                //known not to exist - answer from here, without starting a handler
+                                ErrorPacket error = new ErrorPacket(
+                                        ErrorType.FILE_NOT_FOUND, "file not found: " + rrq.getFileName()
+                                );
+                                socket.send(UDPUtil.toDatagram(
+                                        error, receivePacket.getAddress(), receivePacket.getPort()
+                                ));
+                                break;
+                            }
+                            FirstBlockTimes.Request timing = times == null ? null : times.start(received);
+                            if (timing != null) {
+                                timing.mark(FirstBlockTimes.Stage.PARSE);
+                            }
+                            ServerRRQHandler handler = new ServerRRQHandler(
                                     receivePacket.getAddress(),
                                     receivePacket.getPort(),
-                                    (ReadRequestPacket) packet
-                            ));
+                                    rrq,
+                                    compressedFiles,
+                                    storage,
+                                    statistics,
+                                    missingFiles,
+                                    shaper,
+                                    scheduler,
+                                    sockets,
+                                    firstBlocks,
+                                    buffers,
+                                    timing
+                            );
+                            sendFirstPacket(handler, rrq, receivePacket, timing);
+                            executor.submit(handler);
+                            if (timing != null) {
+                                timing.mark(FirstBlockTimes.Stage.SUBMIT);
+                            }
                             break;
                         case WRITE_REQUEST:
                             executor.submit(new ServerWRQHandler(
                                     receivePacket.getAddress(),
                                     receivePacket.getPort(),
-                                    (WriteRequestPacket) packet
+                                    (WriteRequestPacket) packet,
+                                    storage,
+                                    store,
+                                    missingFiles,
+                                    firstBlocks,
+                                    buffers
                             ));
                             break;
                         default:
@@ -93,6 +240,8 @@ public class TFTPUDPServer extends Thread {
 
                 } catch (TFTPException e) {
                     System.out.println("error parsing received packet: " + e);
+                } catch (IOException e) {
+                    System.out.println("error sending packet: " + e);
                 }
             }
 
@@ -101,6 +250,98 @@ public class TFTPUDPServer extends Thread {
         }
     }
 
+    /**
+     * Answers a read request straight away, from the thread which received it, if the file's first block is cached
+     * and a socket is ready - the handler then opens the file and carries on from there, while the client answers.
+     * Requests for compressed data aren't answered this way, nor are requests which would have to wait for a send
+     * slot or for room in the buffer budget.
+     *
+     * @param handler the handler which carries on with the transfer
+     * @param rrq the read request
+     * @param datagram the datagram the request arrived in
+     * @param timing times the request, or null
+     */
+    private void sendFirstPacket(ServerRRQHandler handler, ReadRequestPacket rrq, DatagramPacket datagram,
+                                 FirstBlockTimes.Request timing) {
+        if (firstBlocks == null || sockets == null || rrq.getMode() != Mode.OCTET) {
+            return;
+        }
+        TransferOptions options = ServerRRQHandler.negotiate(rrq);
+        if (options.getCodec() != null) {
+            return;
+        }
+        FirstBlockCache.Entry cached = firstBlocks.lookup(rrq.getFileName());
+        if (cached == null) {
+            return;
+        }
+
+        TFTPPacket first;
+        if (options.isEmpty()) {
+            first = cached.getFirstBlock();
+        } else {
+            if (options.hasTransferSize()) {
+                options.setTransferSize(cached.getSize());
+            }
+            first = new OptionAcknowledgementPacket(options.toMap());
+        }
+        DatagramPacket answer = UDPUtil.toDatagram(first, datagram.getAddress(), datagram.getPort());
+
+        BufferPool.Lease lease = null;
+        if (buffers != null) {
+            try {
+                lease = buffers.lease(BufferPool.workingSet(options), 0);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            if (lease == null) {
+                return;
+            }
+        }
+        TransferScheduler.Session session = null;
+        if (scheduler != null) {
+            session = scheduler.register(rrq.getFileName(), cached.getSize(), datagram.getAddress());
+            if (!session.tryAcquire(answer.getLength())) {
+                giveBack(lease, null);
+                return;
+            }
+        }
+        DatagramSocket socket = sockets.poll();
+        if (socket == null) {
+            giveBack(lease, session);
+            return;
+        }
+
+        try {
+            socket.send(answer);
+        } catch (IOException e) {
+            //the handler starts over with a socket of its own
+            System.out.println("error sending packet: " + e);
+            socket.close();
+            giveBack(lease, session);
+            return;
+        }
+        long sentAt = System.nanoTime();
+        if (timing != null) {
+            timing.sent(true);
+        }
+        handler.firstSent(socket, options, cached, session, lease, first, sentAt);
+    }
+
+    /**
+     * Gives back what was taken for answering a request straight away, when it can't be.
+     *
+     * @param lease the share of the packet buffers taken, or null
+     * @param session the send slots the packet would have been sent with, holding one slot - or null
+     */
+    private static void giveBack(BufferPool.Lease lease, TransferScheduler.Session session) {
+        if (session != null) {
+            session.release();
+        }
+        if (lease != null) {
+            lease.close();
+        }
+    }
+
     /**
      * The entry point of the program.
      *
@@ -125,12 +366,210 @@ public class TFTPUDPServer extends Thread {
                     System.out.println("invalid timeout: " + args[i + 1]);
                     return;
                 }
+            } else if (args[i].equals("-sockbuf")) {
+                try {
+                    Configuration.MAX_SOCKET_BUFFER = Integer.parseInt(args[i + 1]);
+                } catch (NumberFormatException nfe) {
+                    System.out.println("invalid socket buffer size: " + args[i + 1]);
+                    return;
+                }
+            } else if (args[i].equals("-buffers")) {
+                try {
+                    Configuration.BUFFER_BUDGET = Long.parseLong(args[i + 1]);
+                } catch (NumberFormatException nfe) {
+                    System.out.println("invalid buffer budget: " + args[i + 1]);
+                    return;
+                }
+            } else if (args[i].equals("-bufferwait")) {
+                try {
+                    Configuration.BUFFER_WAIT = Long.parseLong(args[i + 1]);
+                } catch (NumberFormatException nfe) {
+                    System.out.println("invalid buffer wait: " + args[i + 1]);
+                    return;
+                }
+            } else if (args[i].equals("-spare")) {
+                try {
+                    Configuration.SPARE_SOCKETS = Integer.parseInt(args[i + 1]);
+                } catch (NumberFormatException nfe) {
+                    System.out.println("invalid spare socket count: " + args[i + 1]);
+                    return;
+                }
+            } else if (args[i].equals("-firstblocks")) {
+                try {
+                    Configuration.FIRST_BLOCK_CACHE_SIZE = Integer.parseInt(args[i + 1]);
+                } catch (NumberFormatException nfe) {
+                    System.out.println("invalid first block cache size: " + args[i + 1]);
+                    return;
+                }
+            } else if (args[i].equals("-ttfbreport")) {
+                try {
+                    Configuration.TTFB_REPORT_INTERVAL = Long.parseLong(args[i + 1]);
+                } catch (NumberFormatException nfe) {
+                    System.out.println("invalid report interval: " + args[i + 1]);
+                    return;
+                }
+            } else if (args[i].equals("-cachedir")) {
+                Configuration.COMPRESSION_CACHE = args[i + 1];
+            } else if (args[i].equals("-cachesize")) {
+                try {
+                    //given in megabytes
+                    Configuration.COMPRESSION_CACHE_SIZE = Long.parseLong(args[i + 1]) * 1024 * 1024;
+                } catch (NumberFormatException nfe) {
+                    System.out.println("invalid cache size: " + args[i + 1]);
+                    return;
+                }
+            } else if (args[i].equals("-store")) {
+                Configuration.UPLOAD_STORE = args[i + 1];
+            } else if (args[i].equals("-storage")) {
+                Configuration.STORAGE = args[i + 1];
+            } else if (args[i].equals("-sync")) {
+                try {
+                    SyncPolicy.fromName(args[i + 1]);
+                } catch (IllegalArgumentException e) {
+                    System.out.println(e.getMessage());
+                    return;
+                }
+                Configuration.SYNC_POLICY = args[i + 1];
+            } else if (args[i].equals("-missingttl")) {
+                try {
+                    Configuration.MISSING_FILE_TTL = Long.parseLong(args[i + 1]);
+                } catch (NumberFormatException nfe) {
+                    System.out.println("invalid missing file ttl: " + args[i + 1]);
+                    return;
+                }
+            } else if (args[i].equals("-preload")) {
+                Configuration.PRELOAD_MANIFEST = args[i + 1];
+            } else if (args[i].equals("-stats")) {
+                Configuration.ACCESS_STATISTICS = args[i + 1];
+            } else if (args[i].equals("-globalrate")) {
+                try {
+                    //given in kilobytes per second
+                    Configuration.GLOBAL_RATE = Long.parseLong(args[i + 1]) * 1024;
+                } catch (NumberFormatException nfe) {
+                    System.out.println("invalid global rate: " + args[i + 1]);
+                    return;
+                }
+            } else if (args[i].equals("-subnetrate")) {
+                try {
+                    //given in kilobytes per second
+                    Configuration.SUBNET_RATE = Long.parseLong(args[i + 1]) * 1024;
+                } catch (NumberFormatException nfe) {
+                    System.out.println("invalid subnet rate: " + args[i + 1]);
+                    return;
+                }
+            } else if (args[i].equals("-clientrate")) {
+                try {
+                    //given in kilobytes per second
+                    Configuration.CLIENT_RATE = Long.parseLong(args[i + 1]) * 1024;
+                } catch (NumberFormatException nfe) {
+                    System.out.println("invalid client rate: " + args[i + 1]);
+                    return;
+                }
+            } else if (args[i].equals("-window")) {
+                try {
+                    Configuration.WINDOW_SIZE = Integer.parseInt(args[i + 1]);
+                } catch (NumberFormatException nfe) {
+                    System.out.println("invalid window size: " + args[i + 1]);
+                    return;
+                }
+            } else if (args[i].equals("-bulk")) {
+                try {
+                    Configuration.BULK_WINDOW = Integer.parseInt(args[i + 1]);
+                } catch (NumberFormatException nfe) {
+                    System.out.println("invalid bulk window: " + args[i + 1]);
+                    return;
+                }
+            } else if (args[i].equals("-loss")) {
+                try {
+                    Configuration.PACKET_LOSS = Double.parseDouble(args[i + 1]);
+                } catch (NumberFormatException nfe) {
+                    System.out.println("invalid loss: " + args[i + 1]);
+                    return;
+                }
+            } else if (args[i].equals("-duplicate")) {
+                try {
+                    Configuration.PACKET_DUPLICATION = Double.parseDouble(args[i + 1]);
+                } catch (NumberFormatException nfe) {
+                    System.out.println("invalid duplication: " + args[i + 1]);
+                    return;
+                }
+            } else if (args[i].equals("-dupdelay")) {
+                try {
+                    Configuration.DUPLICATE_DELAY = Integer.parseInt(args[i + 1]);
+                } catch (NumberFormatException nfe) {
+                    System.out.println("invalid duplicate delay: " + args[i + 1]);
+                    return;
+                }
+            } else if (args[i].equals("-dupacks")) {
+                try {
+                    DuplicateAckPolicy.fromName(args[i + 1]);
+                } catch (IllegalArgumentException e) {
+                    System.out.println(e.getMessage());
+                    return;
+                }
+                Configuration.DUPLICATE_ACK_POLICY = args[i + 1];
+            } else if (args[i].equals("-congestion")) {
+                if (CongestionControls.create(args[i + 1], 1) == null) {
+                    System.out.println("unknown congestion control: " + args[i + 1]);
+                    System.out.println("available: " + CongestionControls.getNames());
+                    return;
+                }
+                Configuration.CONGESTION_CONTROL = args[i + 1];
+            } else if (args[i].equals("-slots")) {
+                try {
+                    Configuration.SEND_SLOTS = Integer.parseInt(args[i + 1]);
+                } catch (NumberFormatException nfe) {
+                    System.out.println("invalid number of send slots: " + args[i + 1]);
+                    return;
+                }
+            } else if (args[i].equals("-priority")) {
+                Configuration.PRIORITY_RULES = args[i + 1];
+            } else if (args[i].equals("-directio")) {
+                try {
+                    //given in megabytes
+                    Configuration.DIRECT_IO_THRESHOLD = Long.parseLong(args[i + 1]) * 1024 * 1024;
+                } catch (NumberFormatException nfe) {
+                    System.out.println("invalid direct I/O threshold: " + args[i + 1]);
+                    return;
+                }
             }
         }
 
+        //open the storage the files are served from
+        Storage storage;
+        try {
+            storage = Storages.fromDescription(Configuration.STORAGE);
+        } catch (IOException | IllegalArgumentException e) {
+            System.out.println("invalid storage: " + e.getMessage());
+            System.out.println("expected: " + Storages.USAGE);
+            return;
+        }
+        System.out.println("serving files from " + storage);
+
+        //load the counts of reads from earlier runs, and keep counting
+        AccessStatistics statistics = null;
+        if (Configuration.ACCESS_STATISTICS != null) {
+            try {
+                statistics = new AccessStatistics(new File(Configuration.ACCESS_STATISTICS));
+                statistics.saveOnExit();
+            } catch (IOException e) {
+                System.out.println("unable to load access statistics: " + e.getMessage());
+                return;
+            }
+        }
+
+        //warm up the files expected to be asked for before accepting any requests
+        Preloader.warmUp(storage, statistics);
+
         //run the server, passing the port as an argument
-        TFTPUDPServer server = new TFTPUDPServer(port);
-        server.start();
+        try {
+            TFTPUDPServer server = new TFTPUDPServer(port, storage, statistics);
+            server.start();
+        } catch (IOException e) {
+            System.out.println("failed to start server: " + e.getMessage());
+        } catch (IllegalArgumentException e) {
+            System.out.println("invalid priority rules: " + e.getMessage());
+        }
     }
 
 }
@@ -0,0 +1,93 @@
+package tftp.core.packet;
+
+import org.junit.Test;
+import tftp.core.Configuration;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Writes NAKs out and reads them back, as they would be sent and received.
+ */
+public class NegativeAcknowledgementPacketTest {
+
+    @Test
+    public void roundTrip() throws Exception {
+        //block numbers past 32767 are negative as shorts, and a range may run past 65535 back to 0
+        short[] ranges = {(short) 40000, (short) 3, (short) 65534, (short) 4};
+        NegativeAcknowledgementPacket sent = new NegativeAcknowledgementPacket((short) 39999, (short) 2, ranges);
+
+        TFTPPacket received = TFTPPacket.fromByteArray(sent.getPacketBytes(), sent.getPacketBytes().length);
+
+        assertTrue(received instanceof NegativeAcknowledgementPacket);
+        NegativeAcknowledgementPacket nak = (NegativeAcknowledgementPacket) received;
+        assertEquals(PacketType.NEGATIVE_ACKNOWLEDGEMENT, nak.getPacketType());
+        assertEquals((short) 39999, nak.getBlockNumber());
+        assertEquals((short) 2, nak.getHighestBlockNumber());
+        assertEquals(2, nak.getRangeCount());
+        assertEquals((short) 40000, nak.getRangeStart(0));
+        assertEquals(3, nak.getRangeLength(0));
+        assertEquals((short) 65534, nak.getRangeStart(1));
+        assertEquals(4, nak.getRangeLength(1));
+        assertArrayEquals(sent.getPacketBytes(), nak.getPacketBytes());
+    }
+
+    @Test
+    public void roundTripWithoutRanges() throws Exception {
+        NegativeAcknowledgementPacket sent = new NegativeAcknowledgementPacket((short) 7, (short) 7, new short[0]);
+
+        NegativeAcknowledgementPacket nak = (NegativeAcknowledgementPacket) TFTPPacket.fromByteArray(
+                sent.getPacketBytes(), sent.getPacketBytes().length
+        );
+
+        assertEquals((short) 7, nak.getBlockNumber());
+        assertEquals((short) 7, nak.getHighestBlockNumber());
+        assertEquals(0, nak.getRangeCount());
+    }
+
+    @Test
+    public void roundTripWithMostRanges() throws Exception {
+        short[] ranges = new short[NegativeAcknowledgementPacket.MAX_RANGES * 2];
+        for (int i = 0; i < NegativeAcknowledgementPacket.MAX_RANGES; ++i) {
+            ranges[i * 2] = (short) (i * 3 + 1);
+            ranges[i * 2 + 1] = 1;
+        }
+        NegativeAcknowledgementPacket sent = new NegativeAcknowledgementPacket((short) 0, (short) -1, ranges);
+        assertTrue(sent.getPacketBytes().length <= Configuration.MAX_PACKET_LENGTH);
+
+        NegativeAcknowledgementPacket nak = (NegativeAcknowledgementPacket) TFTPPacket.fromByteArray(
+                sent.getPacketBytes(), sent.getPacketBytes().length
+        );
+
+        assertEquals(NegativeAcknowledgementPacket.MAX_RANGES, nak.getRangeCount());
+        for (int i = 0; i < NegativeAcknowledgementPacket.MAX_RANGES; ++i) {
+            assertEquals((short) (i * 3 + 1), nak.getRangeStart(i));
+            assertEquals(1, nak.getRangeLength(i));
+        }
+    }
+
+    @Test
+    public void trailingPartialRangeIgnored() throws Exception {
+        NegativeAcknowledgementPacket sent = new NegativeAcknowledgementPacket(
+                (short) 10, (short) 20, new short[]{(short) 12, (short) 5}
+        );
+        byte[] bytes = new byte[sent.getPacketBytes().length + 2];
+        System.arraycopy(sent.getPacketBytes(), 0, bytes, 0, sent.getPacketBytes().length);
+
+        NegativeAcknowledgementPacket nak = (NegativeAcknowledgementPacket) TFTPPacket.fromByteArray(
+                bytes, bytes.length
+        );
+
+        assertEquals(1, nak.getRangeCount());
+        assertEquals((short) 12, nak.getRangeStart(0));
+        assertEquals(5, nak.getRangeLength(0));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void tooManyRangesRefused() {
+        short[] ranges = new short[(NegativeAcknowledgementPacket.MAX_RANGES + 1) * 2];
+        new NegativeAcknowledgementPacket((short) 0, (short) 0, ranges);
+    }
+
+}
@@ -0,0 +1,194 @@
+package tftp.udp;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import tftp.core.Configuration;
+import tftp.core.Mode;
+import tftp.core.TransferOptions;
+import tftp.core.packet.OptionAcknowledgementPacket;
+import tftp.core.packet.ReadRequestPacket;
+import tftp.core.packet.RequestPacket;
+import tftp.core.packet.WriteRequestPacket;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.net.DatagramPacket;
+import java.net.InetAddress;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Transfers files in bulk mode over loopback, with a tenth of the datagrams each way dropped - blocks, parity
+ * blocks and NAKs alike - and checks the file arrives exactly as it was sent.
+ */
+public class BulkTransferTest {
+
+    /**
+     * The fraction of datagrams dropped.
+     */
+    private static final double LOSS = 0.1;
+
+    /**
+     * The bulk window asked for, in blocks.
+     */
+    private static final int BULK_WINDOW = 64;
+
+    /**
+     * The length of the files transferred - not a multiple of the block size, and more than a bulk window of
+     * blocks, so the window wraps round several times.
+     */
+    private static final int LENGTH = 300_000;
+
+    /**
+     * Runs the transfers on the other side of the loopback.
+     */
+    private ExecutorService executor;
+
+    @Before
+    public void setUp() {
+        executor = Executors.newSingleThreadExecutor();
+    }
+
+    @After
+    public void tearDown() {
+        executor.shutdownNow();
+    }
+
+    @Test(timeout = 120_000)
+    public void get() throws Exception {
+        TransferOptions options = new TransferOptions();
+        options.setBulkWindow(BULK_WINDOW);
+        byte[] file = randomFile(LENGTH);
+        assertArrayEquals(file, get(file, options));
+    }
+
+    @Test(timeout = 120_000)
+    public void getWithFec() throws Exception {
+        TransferOptions options = new TransferOptions();
+        options.setBulkWindow(BULK_WINDOW);
+        options.setFec(8, 1);
+        byte[] file = randomFile(LENGTH);
+        assertArrayEquals(file, get(file, options));
+    }
+
+    @Test(timeout = 120_000)
+    public void getMultipleOfBlockSize() throws Exception {
+        //ends with an empty block, which can be lost like any other
+        TransferOptions options = new TransferOptions();
+        options.setBulkWindow(BULK_WINDOW);
+        byte[] file = randomFile(Configuration.MAX_DATA_LENGTH * 200);
+        assertArrayEquals(file, get(file, options));
+    }
+
+    @Test(timeout = 120_000)
+    public void put() throws Exception {
+        TransferOptions options = new TransferOptions();
+        options.setBulkWindow(BULK_WINDOW);
+        byte[] file = randomFile(LENGTH);
+        assertArrayEquals(file, put(file, options));
+    }
+
+    /**
+     * Reads a file from a server - the server sends it.
+     *
+     * @param file the contents of the file
+     * @param options the options the client asks for
+     * @return the file as the client received it
+     */
+    private byte[] get(byte[] file, TransferOptions options) throws Exception {
+        try (LossySocket server = new LossySocket(LOSS);
+             LossySocket client = new LossySocket(LOSS)) {
+            client.setSoTimeout(Configuration.TIMEOUT);
+
+            //the server answers the request with an OACK, and streams the file once that is acknowledged
+            Future<?> sending = executor.submit(() -> {
+                DatagramPacket request = receiveRequest(server);
+                TransferOptions accepted = TransferOptions.fromMap(
+                        ((RequestPacket) UDPUtil.fromDatagram(request)).getOptions()
+                );
+                FileSender.send(
+                        server, new OptionAcknowledgementPacket(accepted.toMap()), request.getAddress(),
+                        request.getPort(), new ByteArrayInputStream(file), (short) 0, accepted
+                );
+                return null;
+            });
+
+            ByteArrayOutputStream received = new ByteArrayOutputStream();
+            FileReceiver.receive(
+                    client, new ReadRequestPacket("file.bin", Mode.OCTET, options.toMap()),
+                    InetAddress.getLoopbackAddress(), server.getLocalPort(), received, options
+            );
+            sending.get(30, TimeUnit.SECONDS);
+            assertEquals(BULK_WINDOW, options.getBulkWindow());
+            return received.toByteArray();
+        }
+    }
+
+    /**
+     * Writes a file to a server - the client sends it.
+     *
+     * @param file the contents of the file
+     * @param options the options the client asks for
+     * @return the file as the server received it
+     */
+    private byte[] put(byte[] file, TransferOptions options) throws Exception {
+        try (LossySocket server = new LossySocket(LOSS);
+             LossySocket client = new LossySocket(LOSS)) {
+            client.setSoTimeout(Configuration.TIMEOUT);
+
+            //the server answers the request with an OACK, and receives the stream of blocks after it
+            ByteArrayOutputStream received = new ByteArrayOutputStream();
+            Future<?> receiving = executor.submit(() -> {
+                DatagramPacket request = receiveRequest(server);
+                TransferOptions accepted = TransferOptions.fromMap(
+                        ((RequestPacket) UDPUtil.fromDatagram(request)).getOptions()
+                );
+                FileReceiver.receive(
+                        server, new OptionAcknowledgementPacket(accepted.toMap()), request.getAddress(),
+                        request.getPort(), received, accepted
+                );
+                return null;
+            });
+
+            FileSender.send(
+                    client, new WriteRequestPacket("file.bin", Mode.OCTET, options.toMap()),
+                    InetAddress.getLoopbackAddress(), server.getLocalPort(), new ByteArrayInputStream(file),
+                    (short) 0, options
+            );
+            receiving.get(30, TimeUnit.SECONDS);
+            assertEquals(BULK_WINDOW, options.getBulkWindow());
+            return received.toByteArray();
+        }
+    }
+
+    /**
+     * Waits for a request to arrive - for as long as it takes, as the client resends a request which was lost -
+     * and then sets the socket's timeout for the transfer.
+     *
+     * @return the datagram the request arrived in
+     */
+    private static DatagramPacket receiveRequest(LossySocket socket) throws Exception {
+        byte[] buffer = new byte[Configuration.MAX_PACKET_LENGTH];
+        DatagramPacket datagram = new DatagramPacket(buffer, buffer.length);
+        socket.receive(datagram);
+        socket.setSoTimeout(Configuration.TIMEOUT);
+        return datagram;
+    }
+
+    /**
+     * @return the contents of a file to transfer - random, so a block out of place shows up
+     */
+    private static byte[] randomFile(int length) {
+        byte[] file = new byte[length];
+        new Random(length).nextBytes(file);
+        return file;
+    }
+
+}
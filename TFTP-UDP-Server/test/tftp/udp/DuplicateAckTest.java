@@ -0,0 +1,214 @@
+package tftp.udp;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.Parameterized;
+import tftp.core.Configuration;
+import tftp.core.Mode;
+import tftp.core.TransferOptions;
+import tftp.core.packet.OptionAcknowledgementPacket;
+import tftp.core.packet.ReadRequestPacket;
+import tftp.core.packet.RequestPacket;
+import tftp.core.packet.WriteRequestPacket;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.net.DatagramPacket;
+import java.net.InetAddress;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Transfers a file over loopback with half the datagrams each way duplicated, the copies held up for about a
+ * retransmission timeout - so late copies of acknowledgements and blocks keep turning up after the transfer has
+ * moved on. Neither side may answer them by resending, so the bytes the sender puts on the wire stay within 5% of
+ * the file, under either duplicate acknowledgement policy.
+ */
+@RunWith(Parameterized.class)
+public class DuplicateAckTest {
+
+    /**
+     * The fraction of datagrams duplicated, and how long the copies are held up, in milliseconds.
+     */
+    private static final double DUPLICATION = 0.5;
+    private static final int DELAY = 25;
+
+    /**
+     * The length of the file transferred - not a multiple of the block size.
+     */
+    private static final int LENGTH = 300_000;
+
+    /**
+     * The most bytes the sender may put on the wire, as a multiple of the length of the file.
+     */
+    private static final double MAX_OVERHEAD = 1.05;
+
+    /**
+     * The duplicate acknowledgement policy tested, and the one set before the test.
+     */
+    private final String policy;
+    private String previousPolicy;
+
+    /**
+     * Runs the transfers on the other side of the loopback.
+     */
+    private ExecutorService executor;
+
+    /**
+     * Creates a new test of a duplicate acknowledgement policy.
+     *
+     * @param policy the name of the policy
+     */
+    public DuplicateAckTest(String policy) {
+        this.policy = policy;
+    }
+
+    /**
+     * @return the names of the duplicate acknowledgement policies
+     */
+    @Parameterized.Parameters(name = "{0}")
+    public static Object[] policies() {
+        Object[] names = new Object[DuplicateAckPolicy.values().length];
+        for (int i = 0; i < names.length; ++i) {
+            names[i] = DuplicateAckPolicy.values()[i].toString();
+        }
+        return names;
+    }
+
+    @Before
+    public void setUp() {
+        previousPolicy = Configuration.DUPLICATE_ACK_POLICY;
+        Configuration.DUPLICATE_ACK_POLICY = policy;
+        executor = Executors.newSingleThreadExecutor();
+    }
+
+    @After
+    public void tearDown() {
+        Configuration.DUPLICATE_ACK_POLICY = previousPolicy;
+        executor.shutdownNow();
+    }
+
+    /**
+     * Reads a file from a server - the server sends it.
+     */
+    @Test(timeout = 60_000)
+    public void get() throws Exception {
+        byte[] file = randomFile();
+        try (LossySocket server = new LossySocket(0, DUPLICATION, DELAY);
+             LossySocket client = new LossySocket(0, DUPLICATION, DELAY)) {
+            server.setSoTimeout(Configuration.TIMEOUT);
+            client.setSoTimeout(Configuration.TIMEOUT);
+
+            //the server answers the request with an OACK, and sends the file once that is acknowledged
+            Future<?> sending = executor.submit(() -> {
+                DatagramPacket request = receiveRequest(server);
+                TransferOptions options = TransferOptions.fromMap(
+                        ((RequestPacket) UDPUtil.fromDatagram(request)).getOptions()
+                );
+                FileSender.send(
+                        server, new OptionAcknowledgementPacket(options.toMap()), request.getAddress(),
+                        request.getPort(), new ByteArrayInputStream(file), (short) 0, options
+                );
+                return null;
+            });
+
+            TransferOptions options = requestedOptions();
+            ByteArrayOutputStream received = new ByteArrayOutputStream();
+            FileReceiver.receive(
+                    client, new ReadRequestPacket("file.bin", Mode.OCTET, options.toMap()),
+                    InetAddress.getLoopbackAddress(), server.getLocalPort(), received, options
+            );
+            sending.get(10, TimeUnit.SECONDS);
+
+            assertArrayEquals(file, received.toByteArray());
+            assertWithinOverhead(server.getBytesSent(), file.length);
+        }
+    }
+
+    /**
+     * Writes a file to a server - the client sends it.
+     */
+    @Test(timeout = 60_000)
+    public void put() throws Exception {
+        byte[] file = randomFile();
+        try (LossySocket server = new LossySocket(0, DUPLICATION, DELAY);
+             LossySocket client = new LossySocket(0, DUPLICATION, DELAY)) {
+            server.setSoTimeout(Configuration.TIMEOUT);
+            client.setSoTimeout(Configuration.TIMEOUT);
+
+            //the server answers the request with an OACK, and receives the file after it
+            ByteArrayOutputStream received = new ByteArrayOutputStream();
+            Future<?> receiving = executor.submit(() -> {
+                DatagramPacket request = receiveRequest(server);
+                TransferOptions options = TransferOptions.fromMap(
+                        ((RequestPacket) UDPUtil.fromDatagram(request)).getOptions()
+                );
+                FileReceiver.receive(
+                        server, new OptionAcknowledgementPacket(options.toMap()), request.getAddress(),
+                        request.getPort(), received, options
+                );
+                return null;
+            });
+
+            TransferOptions options = requestedOptions();
+            FileSender.send(
+                    client, new WriteRequestPacket("file.bin", Mode.OCTET, options.toMap()),
+                    InetAddress.getLoopbackAddress(), server.getLocalPort(), new ByteArrayInputStream(file),
+                    (short) 0, options
+            );
+            receiving.get(10, TimeUnit.SECONDS);
+
+            assertArrayEquals(file, received.toByteArray());
+            assertWithinOverhead(client.getBytesSent(), file.length);
+        }
+    }
+
+    /**
+     * @return the options the client asks for - a window of blocks, as duplicates hurt most there
+     */
+    private static TransferOptions requestedOptions() {
+        TransferOptions options = new TransferOptions();
+        options.setWindowSize(4);
+        return options;
+    }
+
+    /**
+     * Waits for a request to arrive.
+     *
+     * @return the datagram the request arrived in
+     */
+    private static DatagramPacket receiveRequest(LossySocket socket) throws Exception {
+        byte[] buffer = new byte[Configuration.MAX_PACKET_LENGTH];
+        DatagramPacket datagram = new DatagramPacket(buffer, buffer.length);
+        socket.receive(datagram);
+        return datagram;
+    }
+
+    /**
+     * @return the contents of a file to transfer - random, so a block out of place shows up
+     */
+    private static byte[] randomFile() {
+        byte[] file = new byte[LENGTH];
+        new Random(LENGTH).nextBytes(file);
+        return file;
+    }
+
+    /**
+     * Checks the sender didn't put much more on the wire than the file itself.
+     */
+    private static void assertWithinOverhead(long wireBytes, long fileLength) {
+        assertTrue(
+                String.format("%d bytes on the wire for a %d byte file", wireBytes, fileLength),
+                wireBytes <= MAX_OVERHEAD * fileLength
+        );
+    }
+
+}